@@ -15,6 +15,10 @@ import com.fasterxml.jackson.databind.node.NullNode;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 
 import static org.noise_planet.noisemodelling.emission.utils.Utils.*;
 
@@ -32,6 +36,17 @@ public class RoadCnossos {
     private static JsonNode RoadCnossos_2015 = parse(RoadCnossos.class.getResourceAsStream("RoadCnossos_2015.json")); // old coefficients in 2015 amendments
     private static JsonNode cnossosData2020 =parse(RoadCnossos.class.getResourceAsStream("RoadCnossos_2020.json")); // new coefficients in 2020 amendments
 
+    /** Octave bands of the coefficients in Hz */
+    public static final int[] FREQUENCIES = new int[]{63, 125, 250, 500, 1000, 2000, 4000, 8000};
+    private static final String[] CATEGORIES = new String[]{"1", "2", "3", "4a", "4b", "5"};
+    private static final String[] VEHICLE_COEFFICIENTS = new String[]{"ar", "br", "ap", "bp", "a", "b"};
+    private static final int LV = 0, MV = 1, HGV = 2, WAV = 3, WBV = 4;
+    private static final int AR = 0, BR = 1, AP = 2, BP = 3, A_STUD = 4, B_STUD = 5;
+    private static final double V_REF = 70.;
+
+    private static final CoefficientTables tables2015 = new CoefficientTables(RoadCnossos_2015);
+    private static final CoefficientTables tables2020 = new CoefficientTables(cnossosData2020);
+
     private static JsonNode parse(InputStream inputStream) {
         try {
             ObjectMapper mapper = new ObjectMapper();
@@ -54,6 +69,36 @@ public class RoadCnossos {
         }
     }
 
+    private static CoefficientTables getTables(int fileVersion) {
+        return fileVersion == 1 ? tables2015 : tables2020;
+    }
+
+    /**
+     * @param freq Frequency in Hz (octave band)
+     * @return Index of the octave band in the coefficients arrays, 0 if the frequency is not an octave band
+     */
+    private static int getFrequencyIndex(int freq) {
+        for (int idFreq = 0; idFreq < FREQUENCIES.length; idFreq++) {
+            if (FREQUENCIES[idFreq] == freq) {
+                return idFreq;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @param vehicleCategory Vehicle category (1,2,3,4a,4b,5)
+     * @return Index of the vehicle category in the coefficients arrays
+     */
+    private static int getCategoryIndex(String vehicleCategory) {
+        for (int idCat = 0; idCat < CATEGORIES.length; idCat++) {
+            if (CATEGORIES[idCat].equals(vehicleCategory)) {
+                return idCat;
+            }
+        }
+        throw new IllegalArgumentException("Unknown vehicle category " + vehicleCategory);
+    }
+
     /**
      * Get "a" road surface coefficient (also called spectrum) for a frequency value
      * @param Freq Frequency in Hz (octave band)
@@ -64,37 +109,8 @@ public class RoadCnossos {
      * @return a Road Coeff
      */
     public static Double getA_RoadSurfaceCoeff(int Freq, String vehCat, String roadSurface, int fileVersion) throws IOException {
-        int Freq_ind;
-        switch (Freq) {
-            case 63:
-                Freq_ind = 0;
-                break;
-            case 125:
-                Freq_ind = 1;
-                break;
-            case 250:
-                Freq_ind = 2;
-                break;
-            case 500:
-                Freq_ind = 3;
-                break;
-            case 1000:
-                Freq_ind = 4;
-                break;
-            case 2000:
-                Freq_ind = 5;
-                break;
-            case 4000:
-                Freq_ind = 6;
-                break;
-            case 8000:
-                Freq_ind = 7;
-                break;
-            default:
-                Freq_ind = 0;
-        }
-        if (getCnossosData(fileVersion).get("roads").get(roadSurface)==null)  throw new IOException("Error : the pavement "+roadSurface + " doesn't exist in the database.");
-        return getCnossosData(fileVersion).get("roads").get(roadSurface).get("ref").get(vehCat).get("spectrum").get(Freq_ind).doubleValue();
+        CoefficientTables tables = getTables(fileVersion);
+        return tables.surfaceSpectrum[tables.getSurfaceIndex(roadSurface)][getCategoryIndex(vehCat)][getFrequencyIndex(Freq)];
     }
 
     /**
@@ -105,8 +121,9 @@ public class RoadCnossos {
      * @param fileVersion 2015 or 2019 coefficients version
      * @return a Road Coeff
      */
-    public static Double getB_RoadSurfaceCoeff(String vehCat, String roadSurface, int fileVersion) { //CNOSSOS-EU_Road_Catalogue_Final - 01April2014.xlsx - https://circabc.europa.eu/webdav/CircaBC/env/noisedir/Library/Public/cnossos-eu/Final_methods%26software
-        return getCnossosData(fileVersion).get("roads").get(roadSurface).get("ref").get(vehCat).get("ßm").doubleValue();
+    public static Double getB_RoadSurfaceCoeff(String vehCat, String roadSurface, int fileVersion) throws IOException { //CNOSSOS-EU_Road_Catalogue_Final - 01April2014.xlsx - https://circabc.europa.eu/webdav/CircaBC/env/noisedir/Library/Public/cnossos-eu/Final_methods%26software
+        CoefficientTables tables = getTables(fileVersion);
+        return tables.surfaceBeta[tables.getSurfaceIndex(roadSurface)][getCategoryIndex(vehCat)];
     }
 
     /**
@@ -117,7 +134,7 @@ public class RoadCnossos {
      * @return Cr coefficient
      */
     public static double getCr(String vehCat, int k, int fileVersion) {
-        return getCnossosData(fileVersion).get("vehicles").get(vehCat).get(k == 1 ? "crossing" : "roundabout").get("cr").doubleValue();
+        return getTables(fileVersion).getJunctionCoefficients(k)[getCategoryIndex(vehCat)][0];
     }
 
     /**
@@ -128,7 +145,7 @@ public class RoadCnossos {
      * @return Cp coefficient
      */
     public static double getCp(String vehCat, int k, int fileVersion) {
-        return getCnossosData(fileVersion).get("vehicles").get(vehCat).get(k == 1 ? "crossing" : "roundabout").get("cp").doubleValue();
+        return getTables(fileVersion).getJunctionCoefficients(k)[getCategoryIndex(vehCat)][1];
     }
 
     /**
@@ -139,36 +156,17 @@ public class RoadCnossos {
      * @return Vehicle emission values coefficients
      */
     public static Double getCoeff(String coeff, int freq, String vehicleCategory, int coeffVer) {
-        int Freq_ind;
-        switch (freq) {
-            case 63:
-                Freq_ind = 0;
-                break;
-            case 125:
-                Freq_ind = 1;
-                break;
-            case 250:
-                Freq_ind = 2;
-                break;
-            case 500:
-                Freq_ind = 3;
+        int idCoeff = -1;
+        for (int i = 0; i < VEHICLE_COEFFICIENTS.length; i++) {
+            if (VEHICLE_COEFFICIENTS[i].equals(coeff)) {
+                idCoeff = i;
                 break;
-            case 1000:
-                Freq_ind = 4;
-                break;
-            case 2000:
-                Freq_ind = 5;
-                break;
-            case 4000:
-                Freq_ind = 6;
-                break;
-            case 8000:
-                Freq_ind = 7;
-                break;
-            default:
-                Freq_ind = 0;
+            }
+        }
+        if (idCoeff < 0) {
+            throw new IllegalArgumentException("Unknown vehicle coefficient " + coeff);
         }
-        return getCnossosData(coeffVer).get("vehicles").get(vehicleCategory).get(coeff).get(Freq_ind).doubleValue();
+        return getTables(coeffVer).vehicle[getCategoryIndex(vehicleCategory)][idCoeff][getFrequencyIndex(freq)];
     }
 
     /**
@@ -184,45 +182,21 @@ public class RoadCnossos {
         return base + adj * Math.log10(speed / speedBase);
     }
 
-    /**
-     * Correction for studded tyres - Eq. 2.2.6
-     * only for light vehicles
-     * if speed is over 50 km/h or below 90 km/h the correction is limited.
-     * @param roadCnossosParameters every others parameters linked to RoadCnossosParameters class (e.g. speed on the road segment)
-     * @param Pm_stud proportion of vehicle equipped of studded tyres
-     * @param Ts_stud number of months they are equipped with studded tires
-     * @param freq Frequency in Hz (octave band)
-     * @param fileVersion
-     * @return
-     */
-    private static Double getDeltaStuddedTyres(RoadCnossosParameters roadCnossosParameters, double Pm_stud, double Ts_stud,
-                                               int freq, int fileVersion, double vRef) throws IOException {
-        double speed = roadCnossosParameters.getSpeedLv();
-        double ps = Pm_stud * Ts_stud / 12;  // Eq. 2.2.7 yearly average proportion of vehicles equipped with studded tyres
-        speed = (speed >= 90) ? 90 : speed;
-        speed = (speed <= 50) ? 50 : speed;
-        double deltastud = getNoiseLvl(getCoeff("a", freq, "1", fileVersion), getCoeff("b", freq, "1", fileVersion), speed, vRef);
-        return 10 * Math.log10((1 - ps) + ps * Math.pow(10, deltastud / 10)); // Eq. 2.2.8
-        // Only for light vehicles (Eq.2.2.9)
-    }
-
     /**
      * Get the correction due to the air temperature
      * @param Temperature temperature in °C
-     * @param vehicleCategory 1,2,3,4a,4b..
+     * @param vehicleCategory index of the vehicle category
      * @return
      */
-    private static Double getDeltaTemperature(double Temperature, String vehicleCategory) {
+    private static double getDeltaTemperature(double Temperature, int vehicleCategory) {
         double K = 0.08;
         double tempRef = 20;
         switch (vehicleCategory) {
-            case "1":
+            case LV:
                 K = 0.08;
                 break;
-            case "2":
-                K = 0.04;
-                break;
-            case "3":
+            case MV:
+            case HGV:
                 K = 0.04;
                 break;
         }
@@ -234,17 +208,17 @@ public class RoadCnossos {
      * Get the correction due to the slope
      * Effects on vehicles 1,2 or 3 (light, medium and heavy vehicles)
      * @param roadCnossosParameters every others parameters linked to RoadCnossosParameters class (e.g. speed on the road segment)
-     * @param vehicleCategory 1,2,3,4a,4b..
+     * @param vehicleCategory index of the vehicle category
      * @param slopeDirection slope direction in °
      * @return
      * @throws IOException
      */
-    private static Double getDeltaSlope(RoadCnossosParameters roadCnossosParameters, String vehicleCategory, double slopeDirection) throws IOException {
+    private static double getDeltaSlope(RoadCnossosParameters roadCnossosParameters, int vehicleCategory, double slopeDirection) throws IOException {
 
         double deltaSlope = 0;
         double slope = slopeDirection * roadCnossosParameters.getSlopePercentage();
         switch (vehicleCategory) {
-            case "1":
+            case LV:
                 if (slope < -6) {
                     deltaSlope = (Math.min(12, -slope) - 6);
                 } else if (slope <= 2) {
@@ -253,7 +227,7 @@ public class RoadCnossos {
                     deltaSlope = ((roadCnossosParameters.getSpeedLv() / 100) * ((Math.min(12, slope) - 2) / 1.5));
                 }
                 break;
-            case "2":
+            case MV:
                 // Medium and Heavy vehicles (cat 2 and 3) - Eq 2.2.14 and 2.2.15
                 if (slope < -4) {
                     deltaSlope = ((roadCnossosParameters.getSpeedMv() - 20) / 100) * (Math.min(12, -slope) - 4) / 0.7;
@@ -263,7 +237,7 @@ public class RoadCnossos {
                     deltaSlope = (roadCnossosParameters.getSpeedMv() / 100) * (Math.min(12, slope));
                 }
                 break;
-            case "3":
+            case HGV:
                 // Medium and Heavy vehicles (cat 2 and 3) - Eq 2.2.14 and 2.2.15
                 if (slope < -4) {
                     deltaSlope = ((roadCnossosParameters.getSpeedHgv() - 10) / 100) * (Math.min(12, -slope) - 4) / 0.5;
@@ -284,127 +258,231 @@ public class RoadCnossos {
      * @param roadCnossosParameters every parameters linked to RoadCnossosParameters class (e.g. speed on the road segment)
      * @return Noise level in dB
      */
-
     public static double evaluate(RoadCnossosParameters roadCnossosParameters) throws IOException {
-        final int freqParam = roadCnossosParameters.getFrequency();
-        final double Temperature = roadCnossosParameters.getTemperature();
-        final double Ts_stud = roadCnossosParameters.getTsStud();
-        final double Pm_stud = roadCnossosParameters.getqStudRatio();
-        final double Junc_dist = roadCnossosParameters.getJunc_dist();
-        final int Junc_type = roadCnossosParameters.getJunc_type();
-        final String roadSurface = roadCnossosParameters.getRoadSurface();
-        final int coeffVer = roadCnossosParameters.getFileVersion();
-        double vRef = 70.;
+        RoadEmission roadEmission = new RoadEmission(roadCnossosParameters);
+        return roadEmission.evaluate(getFrequencyIndex(roadCnossosParameters.getFrequency()));
+    }
 
-        /**
-         * Rolling Noise
-         */
-        // Rolling noise level Eq. 2.2.4
-        double lvRoadLvl = getNoiseLvl(getCoeff("ar", freqParam, "1", coeffVer), getCoeff("br", freqParam, "1", coeffVer), roadCnossosParameters.getSpeedLv(), vRef);
-        double medRoadLvl = getNoiseLvl(getCoeff("ar", freqParam, "2", coeffVer), getCoeff("br", freqParam, "2", coeffVer), roadCnossosParameters.getSpeedMv(), vRef);
-        double hgvRoadLvl = getNoiseLvl(getCoeff("ar", freqParam, "3", coeffVer), getCoeff("br", freqParam, "3", coeffVer), roadCnossosParameters.getSpeedHgv(), vRef);
-        // Rolling noise is only for categories 1, 2 and 3
-
-        // Correction for studded tyres - Eq. 2.2.6
-        if (Pm_stud > 0 && Ts_stud > 0) {
-            lvRoadLvl = lvRoadLvl + getDeltaStuddedTyres(roadCnossosParameters, Pm_stud, Ts_stud, freqParam, coeffVer, vRef);
+    /**
+     * Return the noise emission spectrum of a road segment in dB/m for the 8 octave bands of {@link #FREQUENCIES}.
+     * The frequency of the parameters is ignored.
+     * @param roadCnossosParameters every parameters linked to RoadCnossosParameters class (e.g. speed on the road segment)
+     * @return Noise level in dB for each octave band
+     */
+    public static double[] evaluateSpectrum(RoadCnossosParameters roadCnossosParameters) throws IOException {
+        RoadEmission roadEmission = new RoadEmission(roadCnossosParameters);
+        double[] spectrum = new double[FREQUENCIES.length];
+        for (int idFreq = 0; idFreq < spectrum.length; idFreq++) {
+            spectrum[idFreq] = roadEmission.evaluate(idFreq);
         }
+        return spectrum;
+    }
 
-        // Effect of air temperature on rolling noise correction Eq 2.2.10
-        lvRoadLvl = lvRoadLvl + getDeltaTemperature(Temperature, "1"); // K = 0.08
-        medRoadLvl = medRoadLvl + getDeltaTemperature(Temperature, "2"); // K = 0.04
-        hgvRoadLvl = hgvRoadLvl + getDeltaTemperature(Temperature, "3"); // K = 0.04
+    /**
+     * Return the noise emission spectrum of a road segment in dB/m. The frequency of the parameters is ignored.
+     * @param roadCnossosParameters every parameters linked to RoadCnossosParameters class (e.g. speed on the road segment)
+     * @param frequencies Frequencies in Hz (octave band)
+     * @return Noise level in dB for each frequency
+     */
+    public static double[] evaluateSpectrum(RoadCnossosParameters roadCnossosParameters, List<Integer> frequencies) throws IOException {
+        RoadEmission roadEmission = new RoadEmission(roadCnossosParameters);
+        double[] spectrum = new double[frequencies.size()];
+        for (int idFreq = 0; idFreq < spectrum.length; idFreq++) {
+            spectrum[idFreq] = roadEmission.evaluate(getFrequencyIndex(frequencies.get(idFreq)));
+        }
+        return spectrum;
+    }
 
-        /**
-         * Propulsion Noise
-         */
-        // General equation - Eq. 2.2.11
-        double lvMotorLvl = getCoeff("ap", freqParam, "1", coeffVer) + getCoeff("bp", freqParam, "1", coeffVer) * (roadCnossosParameters.getSpeedLv() - vRef) / vRef;
-        double medMotorLvl = getCoeff("ap", freqParam, "2", coeffVer) + getCoeff("bp", freqParam, "2", coeffVer) * (roadCnossosParameters.getSpeedMv() - vRef) / vRef;
-        double hgvMotorLvl = getCoeff("ap", freqParam, "3", coeffVer) + getCoeff("bp", freqParam, "3", coeffVer) * (roadCnossosParameters.getSpeedHgv() - vRef) / vRef;
-        double wheelaMotorLvl = getCoeff("ap", freqParam, "4a", coeffVer) + getCoeff("bp", freqParam, "4a", coeffVer) * (roadCnossosParameters.getSpeedWav() - vRef) / vRef;
-        double wheelbMotorLvl = getCoeff("ap", freqParam, "4b", coeffVer) + getCoeff("bp", freqParam, "4b", coeffVer) * (roadCnossosParameters.getSpeedWbv() - vRef) / vRef;
-
-        // Effect of road gradients
-        // This correction implicitly includes the effect of slope on speed.
-        // Light vehicles (cat 1) - Eq 2.2.13
-        double sign = 1;
-        boolean twoWay = false;
-        switch ((int) roadCnossosParameters.getWay()) {
-            case 1:
-                sign = 1;
-                break;
-            case 2:
-                sign = -1;
-                break;
-            case 3:
-                twoWay = true;
+    /**
+     * Coefficients of a file version, read once from the json tree into arrays indexed by vehicle category,
+     * coefficient and octave band
+     */
+    private static final class CoefficientTables {
+        /** [category][ar,br,ap,bp,a,b][band], NaN for the missing coefficients */
+        final double[][][] vehicle = new double[CATEGORIES.length][VEHICLE_COEFFICIENTS.length][FREQUENCIES.length];
+        /** [category][cr,cp] */
+        final double[][] crossing = new double[CATEGORIES.length][2];
+        /** [category][cr,cp] */
+        final double[][] roundabout = new double[CATEGORIES.length][2];
+        final Map<String, Integer> surfaceIndex = new HashMap<>();
+        /** [surface][category][band] */
+        final double[][][] surfaceSpectrum;
+        /** [surface][category] */
+        final double[][] surfaceBeta;
+
+        CoefficientTables(JsonNode root) {
+            JsonNode vehicles = root.path("vehicles");
+            for (int idCat = 0; idCat < CATEGORIES.length; idCat++) {
+                JsonNode vehicleNode = vehicles.path(CATEGORIES[idCat]);
+                for (int idCoeff = 0; idCoeff < VEHICLE_COEFFICIENTS.length; idCoeff++) {
+                    readArray(vehicleNode.path(VEHICLE_COEFFICIENTS[idCoeff]), vehicle[idCat][idCoeff]);
+                }
+                crossing[idCat][0] = readValue(vehicleNode.path("crossing").path("cr"));
+                crossing[idCat][1] = readValue(vehicleNode.path("crossing").path("cp"));
+                roundabout[idCat][0] = readValue(vehicleNode.path("roundabout").path("cr"));
+                roundabout[idCat][1] = readValue(vehicleNode.path("roundabout").path("cp"));
+            }
+            JsonNode roads = root.path("roads");
+            surfaceSpectrum = new double[roads.size()][CATEGORIES.length][FREQUENCIES.length];
+            surfaceBeta = new double[roads.size()][CATEGORIES.length];
+            Iterator<Map.Entry<String, JsonNode>> fields = roads.fields();
+            while (fields.hasNext()) {
+                Map.Entry<String, JsonNode> road = fields.next();
+                int surface = surfaceIndex.size();
+                surfaceIndex.put(road.getKey(), surface);
+                JsonNode ref = road.getValue().path("ref");
+                for (int idCat = 0; idCat < CATEGORIES.length; idCat++) {
+                    readArray(ref.path(CATEGORIES[idCat]).path("spectrum"), surfaceSpectrum[surface][idCat]);
+                    surfaceBeta[surface][idCat] = readValue(ref.path(CATEGORIES[idCat]).path("ßm"));
+                }
+            }
         }
 
-        lvMotorLvl = lvMotorLvl + getDeltaSlope(roadCnossosParameters, "1", sign);
-        medMotorLvl = medMotorLvl + getDeltaSlope(roadCnossosParameters, "2", sign);
-        hgvMotorLvl = hgvMotorLvl + getDeltaSlope(roadCnossosParameters, "3", sign);
+        private static double readValue(JsonNode node) {
+            return node.isNumber() ? node.doubleValue() : Double.NaN;
+        }
 
-        /**
-         * Mixed effects (Rolling & Propulsion)
-         */
-        // Effect of the acceleration and deceleration of vehicles
-        // Todo Here, we should get the Junc_dist by another way that we are doing now to be more precise issue #524
-        double coefficientJunctionDistance = Math.max(1 - Math.abs(Junc_dist) / 100, 0);
-        // Effect of the acceleration and deceleration of vehicles - Rolling Noise Eq 2.2.17
-        lvRoadLvl = lvRoadLvl + getCr("1", Junc_type, coeffVer) * coefficientJunctionDistance;
-        medRoadLvl = medRoadLvl + getCr("2", Junc_type, coeffVer) * coefficientJunctionDistance;
-        hgvRoadLvl = hgvRoadLvl + getCr("3", Junc_type, coeffVer) * coefficientJunctionDistance;
-        // Effect of the acceleration and deceleration of vehicles - Propulsion Noise Eq 2.2.18
-        lvMotorLvl = lvMotorLvl + getCp("1", Junc_type, coeffVer) * coefficientJunctionDistance;
-        medMotorLvl = medMotorLvl + getCp("2", Junc_type, coeffVer) * coefficientJunctionDistance;
-        hgvMotorLvl = hgvMotorLvl + getCp("3", Junc_type, coeffVer) * coefficientJunctionDistance;
-        wheelaMotorLvl = wheelaMotorLvl + getCp("4a", Junc_type, coeffVer) * coefficientJunctionDistance;
-        wheelbMotorLvl = wheelbMotorLvl + getCp("4b", Junc_type, coeffVer) * coefficientJunctionDistance;
-
-        // Effect of the type of road surface - Eq. 2.2.19
-        lvRoadLvl = lvRoadLvl + getNoiseLvl(getA_RoadSurfaceCoeff(freqParam, "1", roadCnossosParameters.getRoadSurface(), coeffVer), getB_RoadSurfaceCoeff("1", roadSurface, coeffVer), roadCnossosParameters.getSpeedLv(), 70.);
-        medRoadLvl = medRoadLvl + getNoiseLvl(getA_RoadSurfaceCoeff(freqParam, "2", roadCnossosParameters.getRoadSurface(), coeffVer), getB_RoadSurfaceCoeff("2", roadSurface, coeffVer), roadCnossosParameters.getSpeedMv(), 70.);
-        hgvRoadLvl = hgvRoadLvl + getNoiseLvl(getA_RoadSurfaceCoeff(freqParam, "3", roadCnossosParameters.getRoadSurface(), coeffVer), getB_RoadSurfaceCoeff("3", roadSurface, coeffVer), roadCnossosParameters.getSpeedHgv(), 70.);
-
-        // Correction road on propulsion noise - Eq. 2.2.20
-        lvMotorLvl = lvMotorLvl + Math.min(getA_RoadSurfaceCoeff(freqParam, "1", roadSurface, coeffVer), 0.);
-        medMotorLvl = medMotorLvl + Math.min(getA_RoadSurfaceCoeff(freqParam, "2", roadSurface, coeffVer), 0.);
-        hgvMotorLvl = hgvMotorLvl + Math.min(getA_RoadSurfaceCoeff(freqParam, "3", roadSurface, coeffVer), 0.);
-        wheelaMotorLvl = wheelaMotorLvl + Math.min(getA_RoadSurfaceCoeff(freqParam, "4a", roadSurface, coeffVer), 0.);
-        wheelbMotorLvl = wheelbMotorLvl + Math.min(getA_RoadSurfaceCoeff(freqParam, "4b", roadSurface, coeffVer), 0.);
+        private static void readArray(JsonNode node, double[] values) {
+            for (int i = 0; i < values.length; i++) {
+                values[i] = readValue(node.path(i));
+            }
+        }
+
+        int getSurfaceIndex(String roadSurface) throws IOException {
+            Integer surface = surfaceIndex.get(roadSurface);
+            if (surface == null) {
+                throw new IOException("Error : the pavement " + roadSurface + " doesn't exist in the database.");
+            }
+            return surface;
+        }
+
+        double[][] getJunctionCoefficients(int k) {
+            return k == 1 ? crossing : roundabout;
+        }
+    }
+
+    /**
+     * Terms of the emission model that do not depend on the frequency, computed once for a road segment
+     */
+    private static final class RoadEmission {
+        final CoefficientTables tables;
+        final int surface;
+        final double[] speed = new double[WBV + 1];
+        /** log10(vm / vref) of the rolling noise Eq. 2.2.4 and road surface Eq. 2.2.19 */
+        final double[] speedFactor = new double[WBV + 1];
+        /** 10 log10(Qm / (1000 vm)) Eq 2.2.1 */
+        final double[] flowCorrection = new double[WBV + 1];
+        /** Flow correction of the half flow of each way of a bi-directional road */
+        final double[] halfFlowCorrection = new double[WBV + 1];
+        final double[] deltaTemperature = new double[HGV + 1];
+        final double[] deltaSlope = new double[HGV + 1];
+        final double[] inverseDeltaSlope = new double[HGV + 1];
+        final double[][] junctionCoefficients;
+        final double coefficientJunctionDistance;
+        final boolean studdedTyres;
+        final double studSpeedFactor;
+        final double ps;
+        final boolean twoWaySlope;
+        /** Emission level of each vehicle category for the evaluated band */
+        final double[] lvl = new double[WBV + 1];
+
+        RoadEmission(RoadCnossosParameters roadCnossosParameters) throws IOException {
+            tables = getTables(roadCnossosParameters.getFileVersion());
+            surface = tables.getSurfaceIndex(roadCnossosParameters.getRoadSurface());
+            speed[LV] = roadCnossosParameters.getSpeedLv();
+            speed[MV] = roadCnossosParameters.getSpeedMv();
+            speed[HGV] = roadCnossosParameters.getSpeedHgv();
+            speed[WAV] = roadCnossosParameters.getSpeedWav();
+            speed[WBV] = roadCnossosParameters.getSpeedWbv();
+            double[] flow = new double[] {roadCnossosParameters.getLvPerHour(), roadCnossosParameters.getMvPerHour(),
+                    roadCnossosParameters.getHgvPerHour(), roadCnossosParameters.getWavPerHour(),
+                    roadCnossosParameters.getWbvPerHour()};
+            for (int idCat = LV; idCat <= WBV; idCat++) {
+                speedFactor[idCat] = Math.log10(speed[idCat] / V_REF);
+                flowCorrection[idCat] = 10 * Math.log10(flow[idCat] / (1000 * speed[idCat]));
+                halfFlowCorrection[idCat] = 10 * Math.log10(flow[idCat] / 2 / (1000 * speed[idCat]));
+            }
+            // Correction for studded tyres - Eq. 2.2.6
+            // if speed is over 50 km/h or below 90 km/h the correction is limited.
+            final double Ts_stud = roadCnossosParameters.getTsStud();
+            final double Pm_stud = roadCnossosParameters.getqStudRatio();
+            studdedTyres = Pm_stud > 0 && Ts_stud > 0;
+            ps = Pm_stud * Ts_stud / 12;  // Eq. 2.2.7 yearly average proportion of vehicles equipped with studded tyres
+            studSpeedFactor = Math.log10(Math.max(50, Math.min(90, speed[LV])) / V_REF);
+            // Effect of road gradients
+            // This correction implicitly includes the effect of slope on speed.
+            double sign = 1;
+            boolean twoWay = false;
+            switch ((int) roadCnossosParameters.getWay()) {
+                case 1:
+                    sign = 1;
+                    break;
+                case 2:
+                    sign = -1;
+                    break;
+                case 3:
+                    twoWay = true;
+            }
+            twoWaySlope = twoWay && roadCnossosParameters.getSlopePercentage() != 0;
+            for (int idCat = LV; idCat <= HGV; idCat++) {
+                // Effect of air temperature on rolling noise correction Eq 2.2.10
+                deltaTemperature[idCat] = getDeltaTemperature(roadCnossosParameters.getTemperature(), idCat);
+                deltaSlope[idCat] = getDeltaSlope(roadCnossosParameters, idCat, sign);
+                inverseDeltaSlope[idCat] = getDeltaSlope(roadCnossosParameters, idCat, -sign);
+            }
+            // Effect of the acceleration and deceleration of vehicles
+            // Todo Here, we should get the Junc_dist by another way that we are doing now to be more precise issue #524
+            junctionCoefficients = tables.getJunctionCoefficients(roadCnossosParameters.getJunc_type());
+            coefficientJunctionDistance = Math.max(1 - Math.abs(roadCnossosParameters.getJunc_dist()) / 100, 0);
+        }
 
         /**
-         * Combine Propulsion and Rolling Noise - Eq. 2.2.2
-         */
-        final double lvCompound = sumDbValues(lvRoadLvl, lvMotorLvl);
-        final double medCompound = sumDbValues(medRoadLvl, medMotorLvl);
-        final double hgvCompound = sumDbValues(hgvRoadLvl, hgvMotorLvl);
-        final double wheelaCompound = wheelaMotorLvl; // Eq. 2.2.3
-        final double wheelbCompound = wheelbMotorLvl; // Eq. 2.2.3
-        /**
-         * Compute Noise Level from flow_rate and speed - Eq 2.2.1
+         * @param idFreq Index of the octave band
+         * @return Noise level in dB
          */
-        double lvLvl = Vperhour2NoiseLevel(lvCompound, roadCnossosParameters.getLvPerHour(), roadCnossosParameters.getSpeedLv());
-        double medLvl = Vperhour2NoiseLevel(medCompound, roadCnossosParameters.getMvPerHour(), roadCnossosParameters.getSpeedMv());
-        double hgvLvl = Vperhour2NoiseLevel(hgvCompound, roadCnossosParameters.getHgvPerHour(), roadCnossosParameters.getSpeedHgv());
-        double wheelaLvl = Vperhour2NoiseLevel(wheelaCompound, roadCnossosParameters.getWavPerHour(), roadCnossosParameters.getSpeedWav());
-        double wheelbLvl = Vperhour2NoiseLevel(wheelbCompound, roadCnossosParameters.getWbvPerHour(), roadCnossosParameters.getSpeedWbv());
-
-        // In the case of a bi-directional traffic flow, it is necessary to split the flow into two components and correct half for uphill and half for downhill.
-        if (twoWay && roadCnossosParameters.getSlopePercentage() != 0) {
-            lvRoadLvl = lvRoadLvl - getDeltaSlope(roadCnossosParameters, "1", sign) + getDeltaSlope(roadCnossosParameters, "1", -sign);
-            medRoadLvl = medRoadLvl - getDeltaSlope(roadCnossosParameters, "2", sign) + getDeltaSlope(roadCnossosParameters, "2", -sign);
-            hgvRoadLvl = hgvRoadLvl - getDeltaSlope(roadCnossosParameters, "3", sign) + getDeltaSlope(roadCnossosParameters, "3", -sign);
-            double lvCompound_InverseSlope = sumDbValues(lvRoadLvl, lvMotorLvl);
-            double medCompound_InverseSlope = sumDbValues(medRoadLvl, medMotorLvl);
-            double hgvCompound_InverseSlope = sumDbValues(hgvRoadLvl, hgvMotorLvl);
-
-            lvLvl = sumDbValues(Vperhour2NoiseLevel(lvCompound, roadCnossosParameters.getLvPerHour() / 2, roadCnossosParameters.getSpeedLv()), Vperhour2NoiseLevel(lvCompound_InverseSlope, roadCnossosParameters.getLvPerHour() / 2, roadCnossosParameters.getSpeedLv()));
-            medLvl = sumDbValues(Vperhour2NoiseLevel(medCompound, roadCnossosParameters.getMvPerHour() / 2, roadCnossosParameters.getSpeedMv()), Vperhour2NoiseLevel(medCompound_InverseSlope, roadCnossosParameters.getMvPerHour() / 2, roadCnossosParameters.getSpeedMv()));
-            hgvLvl = sumDbValues(Vperhour2NoiseLevel(hgvCompound, roadCnossosParameters.getHgvPerHour() / 2, roadCnossosParameters.getSpeedHgv()), Vperhour2NoiseLevel(hgvCompound_InverseSlope, roadCnossosParameters.getHgvPerHour() / 2, roadCnossosParameters.getSpeedHgv()));
+        double evaluate(int idFreq) {
+            for (int idCat = LV; idCat <= WBV; idCat++) {
+                final double[][] coefficients = tables.vehicle[idCat];
+                final double surfaceA = tables.surfaceSpectrum[surface][idCat][idFreq];
+                // Propulsion Noise - General equation - Eq. 2.2.11
+                double motorLvl = coefficients[AP][idFreq] + coefficients[BP][idFreq] * (speed[idCat] - V_REF) / V_REF;
+                if (idCat > HGV) {
+                    // Effect of the acceleration and deceleration of vehicles - Propulsion Noise Eq 2.2.18
+                    motorLvl = motorLvl + junctionCoefficients[idCat][1] * coefficientJunctionDistance;
+                    // Correction road on propulsion noise - Eq. 2.2.20
+                    motorLvl = motorLvl + Math.min(surfaceA, 0.);
+                    // Compute Noise Level from flow_rate and speed - Eq 2.2.1 and Eq. 2.2.3
+                    lvl[idCat] = motorLvl + flowCorrection[idCat];
+                    continue;
+                }
+                // Rolling noise level Eq. 2.2.4, only for categories 1, 2 and 3
+                double roadLvl = coefficients[AR][idFreq] + coefficients[BR][idFreq] * speedFactor[idCat];
+                if (idCat == LV && studdedTyres) {
+                    // Correction for studded tyres - Eq. 2.2.6 - Only for light vehicles (Eq.2.2.9)
+                    double deltastud = coefficients[A_STUD][idFreq] + coefficients[B_STUD][idFreq] * studSpeedFactor;
+                    roadLvl = roadLvl + 10 * Math.log10((1 - ps) + ps * Math.pow(10, deltastud / 10)); // Eq. 2.2.8
+                }
+                roadLvl = roadLvl + deltaTemperature[idCat];
+                motorLvl = motorLvl + deltaSlope[idCat];
+                // Effect of the acceleration and deceleration of vehicles - Rolling Noise Eq 2.2.17
+                roadLvl = roadLvl + junctionCoefficients[idCat][0] * coefficientJunctionDistance;
+                motorLvl = motorLvl + junctionCoefficients[idCat][1] * coefficientJunctionDistance;
+                // Effect of the type of road surface - Eq. 2.2.19
+                roadLvl = roadLvl + (surfaceA + tables.surfaceBeta[surface][idCat] * speedFactor[idCat]);
+                motorLvl = motorLvl + Math.min(surfaceA, 0.);
+                // Combine Propulsion and Rolling Noise - Eq. 2.2.2
+                final double compound = sumDbValues(roadLvl, motorLvl);
+                if (twoWaySlope) {
+                    // In the case of a bi-directional traffic flow, it is necessary to split the flow into two components and correct half for uphill and half for downhill.
+                    roadLvl = roadLvl - deltaSlope[idCat] + inverseDeltaSlope[idCat];
+                    final double compoundInverseSlope = sumDbValues(roadLvl, motorLvl);
+                    lvl[idCat] = sumDbValues(compound + halfFlowCorrection[idCat],
+                            compoundInverseSlope + halfFlowCorrection[idCat]);
+                } else {
+                    lvl[idCat] = compound + flowCorrection[idCat];
+                }
+            }
+            return sumDb5(lvl[LV], lvl[MV], lvl[HGV], lvl[WAV], lvl[WBV]);
         }
-
-        return sumDb5(lvLvl, medLvl, hgvLvl, wheelaLvl, wheelbLvl);
     }
-}
\ No newline at end of file
+}
@@ -8,14 +8,22 @@
  */
 package org.noise_planet.noisemodelling.emission.road;
 
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.NullNode;
 import org.junit.Test;
 import org.noise_planet.noisemodelling.emission.road.cnossos.RoadCnossos;
 import org.noise_planet.noisemodelling.emission.road.cnossos.RoadCnossosParameters;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Random;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
@@ -26,6 +34,7 @@ import static org.junit.Assert.assertTrue;
 
 
 public class RoadCnossosTest {
+    private Logger logger = LoggerFactory.getLogger(RoadCnossosTest.class);
     private static final double EPSILON_TEST1 = 0.01;
     private static final int[] FREQUENCIES = new int[]{63, 125, 250, 500, 1000, 2000, 4000, 8000};
 
@@ -223,6 +232,124 @@ public class RoadCnossosTest {
         }
     }
 
+    /**
+     * The compiled coefficients must be the values of the json files
+     */
+    @Test
+    public void testCoefficientTables() throws IOException {
+        for (int fileVersion : new int[]{1, 2}) {
+            JsonNode data = RoadCnossos.getCnossosData(fileVersion);
+            for (String vehCat : new String[]{"1", "2", "3", "4a", "4b"}) {
+                JsonNode vehicle = data.get("vehicles").get(vehCat);
+                for (String coeff : new String[]{"ar", "br", "ap", "bp"}) {
+                    for (int idFreq = 0; idFreq < FREQUENCIES.length; idFreq++) {
+                        assertEquals(vehicle.get(coeff).get(idFreq).doubleValue(),
+                                RoadCnossos.getCoeff(coeff, FREQUENCIES[idFreq], vehCat, fileVersion), 0);
+                    }
+                }
+                assertEquals(vehicle.get("crossing").get("cr").doubleValue(), RoadCnossos.getCr(vehCat, 1, fileVersion), 0);
+                assertEquals(vehicle.get("roundabout").get("cp").doubleValue(), RoadCnossos.getCp(vehCat, 2, fileVersion), 0);
+            }
+            Iterator<String> surfaces = data.get("roads").fieldNames();
+            while (surfaces.hasNext()) {
+                String surface = surfaces.next();
+                for (String vehCat : new String[]{"1", "2", "3", "4a", "4b", "5"}) {
+                    JsonNode ref = data.get("roads").get(surface).get("ref").get(vehCat);
+                    assertEquals(ref.get("ßm").doubleValue(), RoadCnossos.getB_RoadSurfaceCoeff(vehCat, surface, fileVersion), 0);
+                    for (int idFreq = 0; idFreq < FREQUENCIES.length; idFreq++) {
+                        assertEquals(ref.get("spectrum").get(idFreq).doubleValue(),
+                                RoadCnossos.getA_RoadSurfaceCoeff(FREQUENCIES[idFreq], vehCat, surface, fileVersion), 0);
+                    }
+                }
+            }
+        }
+    }
+
+    private static RoadCnossosParameters randomParameters(Random random, int frequency) {
+        String[] surfaces = new String[]{"NL01", "NL05", "NL08", "FR_R2", "DEF"};
+        RoadCnossosParameters rsParameters = new RoadCnossosParameters(10 + random.nextDouble() * 120,
+                10 + random.nextDouble() * 100, 10 + random.nextDouble() * 90, 10 + random.nextDouble() * 90,
+                10 + random.nextDouble() * 90, random.nextDouble() * 2000, random.nextDouble() * 200,
+                random.nextDouble() * 200, random.nextDouble() * 50, random.nextDouble() * 50, frequency,
+                random.nextDouble() * 30 - 5, surfaces[random.nextInt(surfaces.length)], random.nextInt(5),
+                random.nextDouble() * 0.5, random.nextDouble() * 200, 1 + random.nextInt(2));
+        rsParameters.setSlopePercentage(random.nextDouble() * 24 - 12);
+        rsParameters.setWay(1 + random.nextInt(3));
+        rsParameters.setFileVersion(1 + random.nextInt(2));
+        return rsParameters;
+    }
+
+    /**
+     * The spectrum evaluation of a road must give the same levels than the evaluation of each band
+     */
+    @Test
+    public void testEvaluateSpectrum() throws IOException {
+        Random random = new Random(7);
+        for (int i = 0; i < 200; i++) {
+            RoadCnossosParameters rsParameters = randomParameters(random, 0);
+            double[] spectrum = RoadCnossos.evaluateSpectrum(rsParameters);
+            assertArrayEquals(spectrum, RoadCnossos.evaluateSpectrum(rsParameters,
+                    Arrays.asList(63, 125, 250, 500, 1000, 2000, 4000, 8000)), 0);
+            for (int idFreq = 0; idFreq < FREQUENCIES.length; idFreq++) {
+                rsParameters.setFrequency(FREQUENCIES[idFreq]);
+                assertEquals(RoadCnossos.evaluate(rsParameters), spectrum[idFreq], 0);
+            }
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testWrongPavementSpectrum() throws IOException {
+        RoadCnossosParameters rsParameters = randomParameters(new Random(1), 0);
+        rsParameters.setRoadSurface("wrongPavement");
+        RoadCnossos.evaluateSpectrum(rsParameters);
+    }
+
+    /**
+     * Emission spectrum evaluation speed of a road network
+     */
+    @Test
+    public void benchmarkEvaluateSpectrum() throws IOException {
+        Random random = new Random(42);
+        RoadCnossosParameters[] roads = new RoadCnossosParameters[20000];
+        for (int i = 0; i < roads.length; i++) {
+            roads[i] = randomParameters(random, 0);
+        }
+        int loops = 10;
+        int startLoop = 5;
+        long bandTime = 0;
+        long spectrumTime = 0;
+        for (int loop = 0; loop < loops; loop++) {
+            long start = System.nanoTime();
+            double sumBands = 0;
+            for (RoadCnossosParameters road : roads) {
+                for (int freq : FREQUENCIES) {
+                    road.setFrequency(freq);
+                    sumBands += RoadCnossos.evaluate(road);
+                }
+            }
+            long bandEnd = System.nanoTime();
+            double sumSpectrum = 0;
+            for (RoadCnossosParameters road : roads) {
+                for (double level : RoadCnossos.evaluateSpectrum(road)) {
+                    sumSpectrum += level;
+                }
+            }
+            if (loop >= startLoop) {
+                bandTime += bandEnd - start;
+                spectrumTime += System.nanoTime() - bandEnd;
+            }
+            assertEquals(sumBands, sumSpectrum, 0);
+        }
+        logger.info(String.format(Locale.ROOT, "Road emission spectrum in %.1f ns band per band, %.1f ns in one call",
+                bandTime / (double) ((loops - startLoop) * roads.length),
+                spectrumTime / (double) ((loops - startLoop) * roads.length)));
+    }
+
+    @Test(expected = IOException.class)
+    public void testWrongPavementBCoeff() throws IOException {
+        RoadCnossos.getB_RoadSurfaceCoeff("1", "wrongPavement", 1);
+    }
+
     @Test(expected = IOException.class)
     public void testWrongPavement() throws IOException {
         String vehCat="1";
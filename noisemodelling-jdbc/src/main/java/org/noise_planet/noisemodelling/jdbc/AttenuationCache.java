@@ -0,0 +1,480 @@
+/**
+ * NoiseModelling is an open-source tool designed to produce environmental noise maps on very large urban areas. It can be used as a Java library or be controlled through a user friendly web interface.
+ *
+ * This version is developed by the DECIDE team from the Lab-STICC (CNRS) and by the Mixt Research Unit in Environmental Acoustics (Université Gustave Eiffel).
+ * <http://noise-planet.org/noisemodelling.html>
+ *
+ * NoiseModelling is distributed under GPL 3 license. You can read a copy of this License in the file LICENCE provided with this software.
+ *
+ * Contact: contact@noise-planet.org
+ *
+ */
+package org.noise_planet.noisemodelling.jdbc;
+
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Geometry;
+import org.noise_planet.noisemodelling.pathfinder.CnossosPropagationData;
+import org.noise_planet.noisemodelling.pathfinder.GroundRaster;
+import org.noise_planet.noisemodelling.pathfinder.Orientation;
+import org.noise_planet.noisemodelling.pathfinder.ProfileBuilder;
+import org.noise_planet.noisemodelling.pathfinder.RasterTopography;
+import org.noise_planet.noisemodelling.pathfinder.Triangle;
+import org.noise_planet.noisemodelling.propagation.ComputeRaysOutAttenuation;
+import org.noise_planet.noisemodelling.propagation.PropagationProcessPathData;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Persistent cache of the source-receiver attenuation of the cells of a {@link PointNoiseMap}.
+ * The attenuation does not depend on the source emission, so when only the emission of the sources changes
+ * (traffic, emission model) a new computation reuses the stored attenuation matrix and only evaluates the energetic
+ * sum of the new source levels.
+ *
+ * Each cell is stored in a file named after a hash of the cell inputs: receivers, sources geometry and
+ * directivity, buildings, walls, topography, ground effects, DEM and ground factor rasters, path finding parameters
+ * and meteorological data of each time period. Any change of these inputs is a cache miss. The cache is not used when
+ * the propagation depends on the source emission ({@link CnossosPropagationData#maximumError} or
+ * {@link CnossosPropagationData#noiseFloor}) or when the far sources are clustered
+ * ({@link CnossosPropagationData#sourceClusteringDistance}).
+ * @author Nicolas Fortin
+ */
+public class AttenuationCache {
+    private static final int FILE_VERSION = 2;
+    private static final String FILE_EXTENSION = ".att.gz";
+    // Directivity is sampled on this angular grid, in order to detect changes of the directivity tables
+    private static final int DIRECTIVITY_PHI_STEPS = 8;
+    private static final int DIRECTIVITY_THETA_STEPS = 5;
+    // Digest of the content of the rasters, computed once for each raster instance
+    private static final Map<Object, byte[]> RASTER_DIGESTS = Collections.synchronizedMap(new WeakHashMap<>());
+
+    private final Logger logger = LoggerFactory.getLogger(AttenuationCache.class);
+    private final File directory;
+    private final AtomicLong hitCount = new AtomicLong(0);
+    private final AtomicLong missCount = new AtomicLong(0);
+
+    /**
+     * Attenuation (without source emission) of all the sources of a receiver, for each time period
+     */
+    public static class ReceiverAttenuation {
+        public final int receiverIndex;
+        /** Attenuation of day, evening and night time periods */
+        public final List<List<ComputeRaysOutAttenuation.VerticeSL>> periodAttenuation;
+
+        public ReceiverAttenuation(int receiverIndex, List<List<ComputeRaysOutAttenuation.VerticeSL>> periodAttenuation) {
+            this.receiverIndex = receiverIndex;
+            this.periodAttenuation = periodAttenuation;
+        }
+    }
+
+    /**
+     * Computation output able to record and replay the attenuation of a cell
+     */
+    public interface CacheableComputeRaysOut {
+        /**
+         * @return True if the output of the cell can be rebuilt from the attenuation alone
+         */
+        boolean isAttenuationCacheable();
+
+        /**
+         * Start collecting the attenuation of the receivers computed from now on
+         */
+        void startAttenuationRecording();
+
+        /**
+         * @return Attenuation collected since {@link #startAttenuationRecording()}
+         */
+        Collection<ReceiverAttenuation> stopAttenuationRecording();
+
+        /**
+         * Produce the results of the receivers with the current source emission
+         * @param attenuation Attenuation of all receivers of the cell
+         */
+        void replayAttenuation(Collection<ReceiverAttenuation> attenuation);
+    }
+
+    /**
+     * @param directory Folder of the cache files, created if it does not exists
+     */
+    public AttenuationCache(File directory) throws IOException {
+        if(!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Unable to create attenuation cache folder " + directory.getAbsolutePath());
+        }
+        this.directory = directory;
+    }
+
+    /**
+     * @return Folder of the cache files
+     */
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * @return Number of cells read from the cache
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * @return Number of cells not found in the cache
+     */
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * @param data Cell data
+     * @return True if the attenuation of the cell does not depend on the source emission
+     */
+    public static boolean isEmissionIndependent(CnossosPropagationData data) {
+        return !data.isEarlyTerminationEnabled() && !(data.sourceClusteringDistance > 0);
+    }
+
+    /**
+     * Hash all inputs of the cell that affect the attenuation
+     * @param data Cell data, before the conversion of relative Z coordinates
+     * @param receiverHasAbsoluteZCoordinates Receivers Z conversion setting
+     * @param sourceHasAbsoluteZCoordinates Sources Z conversion setting
+     * @param pathData Meteorological data of each time period
+     * @return Cache key of the cell
+     */
+    public static String computeKey(CnossosPropagationData data, boolean receiverHasAbsoluteZCoordinates,
+                                    boolean sourceHasAbsoluteZCoordinates, PropagationProcessPathData... pathData)
+            throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IOException(ex);
+        }
+        try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new DigestOutputStream(
+                OutputStream.nullOutputStream(), digest)))) {
+            out.writeInt(FILE_VERSION);
+            out.writeBoolean(receiverHasAbsoluteZCoordinates);
+            out.writeBoolean(sourceHasAbsoluteZCoordinates);
+            // Path finding parameters
+            out.writeInt(data.reflexionOrder);
+            out.writeDouble(data.maxSrcDist);
+            out.writeDouble(data.maxRefDist);
+            out.writeDouble(data.gS);
+            out.writeDouble(data.sourceClusteringDistance);
+            out.writeDouble(data.sourceClusteringRatio);
+            out.writeBoolean(data.isComputeHEdgeDiffraction());
+            out.writeBoolean(data.isComputeVEdgeDiffraction());
+            out.writeBoolean(data.isBodyBarrier());
+            for(PropagationProcessPathData periodData : pathData) {
+                writePathData(out, periodData);
+            }
+            // Receivers
+            out.writeInt(data.receivers.size());
+            for(int i = 0; i < data.receivers.size(); i++) {
+                writeCoordinate(out, data.receivers.get(i));
+                out.writeLong(i < data.receiversPk.size() ? data.receiversPk.get(i) : i);
+            }
+            // Sources
+            double[] frequencies = new double[0];
+            if(pathData.length > 0 && pathData[0].freq_lvl_exact != null) {
+                frequencies = pathData[0].freq_lvl_exact.stream().mapToDouble(Double::doubleValue).toArray();
+            }
+            out.writeInt(data.sourceGeometries.size());
+            for(int i = 0; i < data.sourceGeometries.size(); i++) {
+                writeGeometry(out, data.sourceGeometries.get(i));
+                long sourcePk = i < data.sourcesPk.size() ? data.sourcesPk.get(i) : i;
+                out.writeLong(sourcePk);
+                Orientation orientation = data.sourceOrientation.get(sourcePk);
+                out.writeBoolean(orientation != null);
+                if(orientation != null) {
+                    out.writeDouble(orientation.yaw);
+                    out.writeDouble(orientation.pitch);
+                    out.writeDouble(orientation.roll);
+                }
+                Double sourceGs = data.sourceGs.get(sourcePk);
+                out.writeDouble(sourceGs == null ? Double.NaN : sourceGs);
+                boolean omnidirectional = data.isOmnidirectional(i);
+                out.writeBoolean(omnidirectional);
+                if(!omnidirectional) {
+                    for(int idPhi = 0; idPhi < DIRECTIVITY_PHI_STEPS; idPhi++) {
+                        for(int idTheta = 0; idTheta < DIRECTIVITY_THETA_STEPS; idTheta++) {
+                            double phi = 2 * Math.PI * idPhi / DIRECTIVITY_PHI_STEPS;
+                            double theta = -Math.PI / 2 + Math.PI * idTheta / (DIRECTIVITY_THETA_STEPS - 1);
+                            for(double value : data.getSourceAttenuation(i, frequencies, phi, theta)) {
+                                out.writeDouble(value);
+                            }
+                        }
+                    }
+                }
+            }
+            writeProfileBuilder(out, data.profileBuilder);
+        }
+        StringBuilder key = new StringBuilder();
+        for(byte b : digest.digest()) {
+            key.append(String.format("%02x", b));
+        }
+        return key.toString();
+    }
+
+    private static void writePathData(DataOutputStream out, PropagationProcessPathData pathData) throws IOException {
+        out.writeBoolean(pathData != null);
+        if(pathData == null) {
+            return;
+        }
+        out.writeDouble(pathData.getTemperature());
+        out.writeDouble(pathData.getCelerity());
+        out.writeDouble(pathData.getHumidity());
+        out.writeDouble(pathData.getPressure());
+        out.writeDouble(pathData.getDefaultOccurance());
+        out.writeBoolean(pathData.isgDisc());
+        out.writeBoolean(pathData.isPrime2520());
+        for(double windRose : pathData.getWindRose()) {
+            out.writeDouble(windRose);
+        }
+        out.writeInt(pathData.freq_lvl.size());
+        for(int frequency : pathData.freq_lvl) {
+            out.writeInt(frequency);
+        }
+        for(double frequency : pathData.freq_lvl_exact) {
+            out.writeDouble(frequency);
+        }
+        for(double weight : pathData.freq_lvl_a_weighting) {
+            out.writeDouble(weight);
+        }
+    }
+
+    private static void writeProfileBuilder(DataOutputStream out, ProfileBuilder builder) throws IOException {
+        out.writeBoolean(builder != null);
+        if(builder == null) {
+            return;
+        }
+        out.writeInt(builder.getBuildings().size());
+        for(ProfileBuilder.Building building : builder.getBuildings()) {
+            writeGeometry(out, building.getGeometry());
+            out.writeDouble(building.getHeight());
+            writeAlphas(out, building.getAlphas());
+        }
+        out.writeInt(builder.getWalls().size());
+        for(ProfileBuilder.Wall wall : builder.getWalls()) {
+            writeGeometry(out, wall.getLine());
+            out.writeDouble(wall.getHeight());
+            writeAlphas(out, wall.getAlphas());
+        }
+        List<Coordinate> vertices = builder.getVertices();
+        out.writeInt(vertices == null ? 0 : vertices.size());
+        if(vertices != null) {
+            for (Coordinate vertex : vertices) {
+                writeCoordinate(out, vertex);
+            }
+        }
+        List<Triangle> triangles = builder.getTriangles();
+        out.writeInt(triangles == null ? 0 : triangles.size());
+        if(triangles != null) {
+            for (Triangle triangle : triangles) {
+                out.writeInt(triangle.getA());
+                out.writeInt(triangle.getB());
+                out.writeInt(triangle.getC());
+                out.writeInt(triangle.getAttribute());
+            }
+        }
+        out.writeInt(builder.getGroundEffects().size());
+        for(ProfileBuilder.GroundEffect groundEffect : builder.getGroundEffects()) {
+            writeGeometry(out, groundEffect.getGeometry());
+            out.writeDouble(groundEffect.getCoefficient());
+        }
+        RasterTopography topographicRaster = builder.getTopographicRaster();
+        out.writeBoolean(topographicRaster != null);
+        if(topographicRaster != null) {
+            out.write(RASTER_DIGESTS.computeIfAbsent(topographicRaster, raster -> computeRasterDigest(
+                    topographicRaster.getMinX(), topographicRaster.getMaxY(), topographicRaster.getCellSize(),
+                    topographicRaster.getColumns(), topographicRaster.getRows(), topographicRaster::getCellZ)));
+        }
+        GroundRaster groundRaster = builder.getGroundRaster();
+        out.writeBoolean(groundRaster != null);
+        if(groundRaster != null) {
+            out.write(RASTER_DIGESTS.computeIfAbsent(groundRaster, raster -> computeRasterDigest(
+                    groundRaster.getMinX(), groundRaster.getMaxY(), groundRaster.getCellSize(),
+                    groundRaster.getColumns(), groundRaster.getRows(), groundRaster::getCellG)));
+        }
+    }
+
+    private interface RasterCells {
+        double getCell(int column, int row);
+    }
+
+    /**
+     * @return SHA-256 of the raster extent and of all its cell values
+     */
+    private static byte[] computeRasterDigest(double minX, double maxY, double cellSize, int columns, int rows,
+                                              RasterCells cells) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+        try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new DigestOutputStream(
+                OutputStream.nullOutputStream(), digest)))) {
+            out.writeDouble(minX);
+            out.writeDouble(maxY);
+            out.writeDouble(cellSize);
+            out.writeInt(columns);
+            out.writeInt(rows);
+            for(int row = 0; row < rows; row++) {
+                for(int column = 0; column < columns; column++) {
+                    out.writeFloat((float) cells.getCell(column, row));
+                }
+            }
+        } catch (IOException ex) {
+            // Not expected, the stream does not write anything
+            throw new IllegalStateException(ex);
+        }
+        return digest.digest();
+    }
+
+    private static void writeAlphas(DataOutputStream out, List<Double> alphas) throws IOException {
+        out.writeInt(alphas == null ? 0 : alphas.size());
+        if(alphas != null) {
+            for (double alpha : alphas) {
+                out.writeDouble(alpha);
+            }
+        }
+    }
+
+    private static void writeGeometry(DataOutputStream out, Geometry geometry) throws IOException {
+        out.writeUTF(geometry.getGeometryType());
+        Coordinate[] coordinates = geometry.getCoordinates();
+        out.writeInt(coordinates.length);
+        for(Coordinate coordinate : coordinates) {
+            writeCoordinate(out, coordinate);
+        }
+    }
+
+    private static void writeCoordinate(DataOutputStream out, Coordinate coordinate) throws IOException {
+        out.writeDouble(coordinate.x);
+        out.writeDouble(coordinate.y);
+        out.writeDouble(coordinate.getZ());
+    }
+
+    private File getFile(String key) {
+        return new File(directory, key + FILE_EXTENSION);
+    }
+
+    /**
+     * @param key Cell key, see {@link #computeKey}
+     * @return Stored attenuation of the cell, null if the cell is not in the cache
+     */
+    public List<ReceiverAttenuation> load(String key) throws IOException {
+        File file = getFile(key);
+        if(!file.exists()) {
+            missCount.incrementAndGet();
+            return null;
+        }
+        List<ReceiverAttenuation> attenuation;
+        try(DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(
+                new FileInputStream(file))))) {
+            if(in.readInt() != FILE_VERSION) {
+                missCount.incrementAndGet();
+                return null;
+            }
+            int periodCount = in.readInt();
+            int bandCount = in.readInt();
+            int receiverCount = in.readInt();
+            attenuation = new ArrayList<>(receiverCount);
+            for(int idReceiver = 0; idReceiver < receiverCount; idReceiver++) {
+                int receiverIndex = in.readInt();
+                List<List<ComputeRaysOutAttenuation.VerticeSL>> periods = new ArrayList<>(periodCount);
+                for(int idPeriod = 0; idPeriod < periodCount; idPeriod++) {
+                    int levelCount = in.readInt();
+                    List<ComputeRaysOutAttenuation.VerticeSL> levels = new ArrayList<>(levelCount);
+                    for(int idLevel = 0; idLevel < levelCount; idLevel++) {
+                        long sourceIndex = in.readInt();
+                        double[] value = new double[bandCount];
+                        for(int idBand = 0; idBand < bandCount; idBand++) {
+                            value[idBand] = in.readDouble();
+                        }
+                        levels.add(new ComputeRaysOutAttenuation.VerticeSL(receiverIndex, sourceIndex, value));
+                    }
+                    periods.add(levels);
+                }
+                attenuation.add(new ReceiverAttenuation(receiverIndex, periods));
+            }
+        }
+        hitCount.incrementAndGet();
+        return attenuation;
+    }
+
+    /**
+     * Store the attenuation of a cell. The file is written next to the destination then renamed, so concurrent
+     * computations never read an incomplete file.
+     * @param key Cell key, see {@link #computeKey}
+     * @param attenuation Attenuation of all receivers of the cell
+     */
+    public void save(String key, Collection<ReceiverAttenuation> attenuation) throws IOException {
+        int periodCount = 0;
+        int bandCount = 0;
+        for(ReceiverAttenuation receiverAttenuation : attenuation) {
+            periodCount = Math.max(periodCount, receiverAttenuation.periodAttenuation.size());
+            for(List<ComputeRaysOutAttenuation.VerticeSL> levels : receiverAttenuation.periodAttenuation) {
+                for(ComputeRaysOutAttenuation.VerticeSL level : levels) {
+                    bandCount = Math.max(bandCount, level.value.length);
+                }
+            }
+        }
+        File file = getFile(key);
+        File tempFile = File.createTempFile(key, ".tmp", directory);
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(
+                    new FileOutputStream(tempFile))))) {
+                out.writeInt(FILE_VERSION);
+                out.writeInt(periodCount);
+                out.writeInt(bandCount);
+                out.writeInt(attenuation.size());
+                for (ReceiverAttenuation receiverAttenuation : attenuation) {
+                    out.writeInt(receiverAttenuation.receiverIndex);
+                    for (int idPeriod = 0; idPeriod < periodCount; idPeriod++) {
+                        List<ComputeRaysOutAttenuation.VerticeSL> levels =
+                                idPeriod < receiverAttenuation.periodAttenuation.size() ?
+                                        receiverAttenuation.periodAttenuation.get(idPeriod) : new ArrayList<>();
+                        out.writeInt(levels.size());
+                        for (ComputeRaysOutAttenuation.VerticeSL level : levels) {
+                            out.writeInt((int) level.sourceId);
+                            for (int idBand = 0; idBand < bandCount; idBand++) {
+                                out.writeDouble(idBand < level.value.length ? level.value[idBand] :
+                                        Double.NEGATIVE_INFINITY);
+                            }
+                        }
+                    }
+                }
+            }
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            if(tempFile.exists() && !tempFile.delete()) {
+                logger.warn("Unable to delete " + tempFile.getAbsolutePath());
+            }
+        }
+    }
+}
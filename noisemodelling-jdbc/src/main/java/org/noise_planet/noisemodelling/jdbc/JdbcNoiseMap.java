@@ -9,8 +9,12 @@ import org.h2gis.utilities.dbtypes.DBUtils;
 import org.locationtech.jts.geom.*;
 import org.locationtech.jts.geom.prep.PreparedPolygon;
 import org.locationtech.jts.io.WKTWriter;
+import org.noise_planet.noisemodelling.jdbc.utils.BuildingTileStore;
+import org.noise_planet.noisemodelling.jdbc.utils.DemTileStore;
 import org.noise_planet.noisemodelling.pathfinder.CnossosPropagationData;
+import org.noise_planet.noisemodelling.pathfinder.GroundRaster;
 import org.noise_planet.noisemodelling.pathfinder.ProfileBuilder;
+import org.noise_planet.noisemodelling.pathfinder.RasterTopography;
 import org.noise_planet.noisemodelling.propagation.PropagationProcessPathData;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -47,6 +51,14 @@ public abstract class JdbcNoiseMap {
     protected String soilTableName = "";
     // Digital elevation model table. (Contains points or triangles)
     protected String demTable = "";
+    // Optional digital elevation model tiles, replace the queries on demTable
+    protected DemTileStore demTileStore = null;
+    // Buildings tiles used instead of the buildings table
+    protected BuildingTileStore buildingTileStore = null;
+    // Optional regular grid digital elevation model, replace the triangulation of the dem points
+    protected RasterTopography demRaster = null;
+    // Ground factor raster used instead of the soil table
+    protected GroundRaster groundRaster = null;
     protected String sound_lvl_field = "DB_M";
     // True if Z of sound source and receivers are relative to the ground
     protected boolean receiverHasAbsoluteZCoordinates = false;
@@ -73,6 +85,12 @@ public abstract class JdbcNoiseMap {
     /** stop calculation if the sum of further sources contributions are smaller than this value */
     public double noiseFloor = Double.NEGATIVE_INFINITY;
 
+    /** Lower the maximal source contribution when a building cut the direct path, see CnossosPropagationData */
+    protected boolean obstacleAttenuationBound = false;
+
+    /** Far sources clustering distance, 0 to disable, see CnossosPropagationData */
+    protected double sourceClusteringDistance = 0;
+
     protected String heightField = "HEIGHT";
     protected GeometryFactory geometryFactory;
     protected int parallelComputationCount = 0;
@@ -106,6 +124,32 @@ public abstract class JdbcNoiseMap {
                 propagationProcessPathDataNight = propagationProcessPathData;
         }
     }
+
+    /**
+     * @return Lowest atmospheric absorption (dB/km) of the day, evening and night conditions for each frequency band,
+     * null if the frequency bands are not the same
+     */
+    public double[] getMinimalAtmosphericAbsorption() {
+        double[] minimalAbsorption = null;
+        for (LDENConfig.TIME_PERIOD timePeriod : LDENConfig.TIME_PERIOD.values()) {
+            PropagationProcessPathData pathData = getPropagationProcessPathData(timePeriod);
+            if (pathData == null || pathData.getAlpha_atmo() == null) {
+                return null;
+            }
+            double[] alpha = pathData.getAlpha_atmo();
+            if (minimalAbsorption == null) {
+                minimalAbsorption = alpha.clone();
+            } else if (minimalAbsorption.length != alpha.length) {
+                return null;
+            } else {
+                for (int idFreq = 0; idFreq < alpha.length; idFreq++) {
+                    minimalAbsorption[idFreq] = Math.min(minimalAbsorption[idFreq], alpha[idFreq]);
+                }
+            }
+        }
+        return minimalAbsorption;
+    }
+
     public PropagationProcessPathData getPropagationProcessPathDataDay() {
         return propagationProcessPathDataDay;
     }
@@ -179,7 +223,11 @@ public abstract class JdbcNoiseMap {
     }
 
     protected void fetchCellDem(Connection connection, Envelope fetchEnvelope, ProfileBuilder mesh) throws SQLException {
-        if(!demTable.isEmpty()) {
+        if(demRaster != null) {
+            mesh.setTopographicRaster(demRaster);
+        } else if(demTileStore != null) {
+            demTileStore.fetch(fetchEnvelope, mesh);
+        } else if(!demTable.isEmpty()) {
             List<String> geomFields = getGeometryColumnNames(connection,
                     TableLocation.parse(demTable));
             if(geomFields.isEmpty()) {
@@ -205,7 +253,9 @@ public abstract class JdbcNoiseMap {
 
     protected void fetchCellSoilAreas(Connection connection, Envelope fetchEnvelope, ProfileBuilder builder)
             throws SQLException {
-        if(!soilTableName.isEmpty()){
+        if(groundRaster != null) {
+            builder.setGroundRaster(groundRaster);
+        } else if(!soilTableName.isEmpty()){
             double startX = Math.floor(fetchEnvelope.getMinX() / groundSurfaceSplitSideLength) * groundSurfaceSplitSideLength;
             double startY = Math.floor(fetchEnvelope.getMinY() / groundSurfaceSplitSideLength) * groundSurfaceSplitSideLength;
             String soilGeomName = getGeometryColumnNames(connection,
@@ -260,6 +310,39 @@ public abstract class JdbcNoiseMap {
     }
 
 
+    /**
+     * Rasterise the soil table once over the computation area. The raster can then be given to
+     * {@link #setGroundRaster(GroundRaster)} so the soil polygons are not split for each cell.
+     * The main envelope must be set, see {@link #initialize(Connection, ProgressVisitor)}.
+     * @param connection Active connection
+     * @param cellSize Size of the raster cells in meters, the ground factor of a cell is the one at its center
+     * @return Ground factor raster, the cells outside of the soil areas use the default ground factor
+     */
+    public GroundRaster rasterizeSoilTable(Connection connection, double cellSize) throws SQLException {
+        Envelope envelope = new Envelope(mainEnvelope);
+        envelope.expandBy(maximumPropagationDistance);
+        GroundRaster raster = GroundRaster.create(envelope, cellSize);
+        if(!soilTableName.isEmpty()) {
+            String soilGeomName = getGeometryColumnNames(connection,
+                    TableLocation.parse(soilTableName)).get(0);
+            try (PreparedStatement st = connection.prepareStatement(
+                    "SELECT " + TableLocation.quoteIdentifier(soilGeomName) + ", G FROM " +
+                            soilTableName + " WHERE " +
+                            TableLocation.quoteIdentifier(soilGeomName) + " && ?::geometry")) {
+                st.setObject(1, geometryFactory.toGeometry(envelope));
+                try (SpatialResultSet rs = st.executeQuery().unwrap(SpatialResultSet.class)) {
+                    while (rs.next()) {
+                        Geometry soil = rs.getGeometry();
+                        if(soil != null) {
+                            raster.fill(soil, rs.getDouble("G"));
+                        }
+                    }
+                }
+            }
+        }
+        return raster;
+    }
+
     void fetchCellBuildings(Connection connection, Envelope fetchEnvelope, ProfileBuilder builder) throws SQLException {
         ArrayList<ProfileBuilder.Building> buildings = new ArrayList<>();
         fetchCellBuildings(connection, fetchEnvelope, buildings);
@@ -269,6 +352,20 @@ public abstract class JdbcNoiseMap {
     }
 
     void fetchCellBuildings(Connection connection, Envelope fetchEnvelope, List<ProfileBuilder.Building> buildings) throws SQLException {
+        if(buildingTileStore != null) {
+            double[] frequencies = buildingTileStore.getFrequencies();
+            List<Double> computedFrequencies = propagationProcessPathDataDay.freq_lvl_exact;
+            boolean sameFrequencies = frequencies.length == computedFrequencies.size();
+            for(int idFreq = 0; sameFrequencies && idFreq < frequencies.length; idFreq++) {
+                sameFrequencies = Double.compare(frequencies[idFreq], computedFrequencies.get(idFreq)) == 0;
+            }
+            if(!sameFrequencies) {
+                throw new SQLException("The frequency bands of the building tiles do not match the computation" +
+                        " frequency bands");
+            }
+            buildingTileStore.fetch(fetchEnvelope, iszBuildings(), buildings);
+            return;
+        }
         Geometry envGeo = geometryFactory.toGeometry(fetchEnvelope);
         boolean fetchAlpha = JDBCUtilities.hasField(connection, buildingsTableName, alphaFieldName);
         String additionalQuery = "";
@@ -583,6 +680,71 @@ public abstract class JdbcNoiseMap {
         this.demTable = demTable;
     }
 
+    /**
+     * @return Digital Elevation model tiles used instead of {@link #getDemTable()}, null if not set
+     */
+    public DemTileStore getDemTileStore() {
+        return demTileStore;
+    }
+
+    /**
+     * Digital Elevation model read from a memory mapped file instead of {@link #getDemTable()}.
+     * The store must be closed by the caller after the computation.
+     * @param demTileStore Digital Elevation model tiles, see {@link DemTileStore#build(Connection, String, double, java.io.File)}
+     */
+    public void setDemTileStore(DemTileStore demTileStore) {
+        this.demTileStore = demTileStore;
+    }
+
+    /**
+     * @return Buildings tiles used instead of the buildings table, null if not set
+     */
+    public BuildingTileStore getBuildingTileStore() {
+        return buildingTileStore;
+    }
+
+    /**
+     * Buildings read from a memory mapped file instead of the buildings table. The fetched buildings are not cut by
+     * the cell envelope. The store must be closed by the caller after the computation.
+     * @param buildingTileStore Buildings tiles, see
+     * {@link BuildingTileStore#build(Connection, String, String, String, double, List, double, java.io.File)}
+     */
+    public void setBuildingTileStore(BuildingTileStore buildingTileStore) {
+        this.buildingTileStore = buildingTileStore;
+    }
+
+    /**
+     * @return Ground factor raster used instead of {@link #getSoilTableName()}, null if not set
+     */
+    public GroundRaster getGroundRaster() {
+        return groundRaster;
+    }
+
+    /**
+     * Ground factor read from a raster instead of the soil table. The profiles then contain no ground effect cut
+     * points and the G path is integrated along the segments in the raster.
+     * @param groundRaster Ground factor raster, see {@link #rasterizeSoilTable(Connection, double)}
+     */
+    public void setGroundRaster(GroundRaster groundRaster) {
+        this.groundRaster = groundRaster;
+    }
+
+    /**
+     * @return Regular grid digital elevation model used instead of {@link #getDemTable()}, null if not set
+     */
+    public RasterTopography getDemRaster() {
+        return demRaster;
+    }
+
+    /**
+     * Regular grid digital elevation model used instead of {@link #getDemTable()}. The topography is not
+     * triangulated, the same raster is shared by all cells.
+     * @param demRaster Digital Elevation model, see {@link org.noise_planet.noisemodelling.jdbc.utils.AscReaderDriver#readRaster(java.io.File)}
+     */
+    public void setDemRaster(RasterTopography demRaster) {
+        this.demRaster = demRaster;
+    }
+
     /**
      * Field name of the {@link #sourcesTableName}HERTZ. Where HERTZ is a number [100-5000].
      * Without the hertz value.
@@ -637,6 +799,38 @@ public abstract class JdbcNoiseMap {
         this.noiseFloor = noiseFloor;
     }
 
+    /**
+     * @return True if the maximal source contribution is lowered when a building cut the direct path
+     */
+    public boolean isObstacleAttenuationBound() {
+        return obstacleAttenuationBound;
+    }
+
+    /**
+     * Only used with {@link #setMaximumError(double)} or {@link #setNoiseFloor(double)}.
+     * @param obstacleAttenuationBound If true, the maximal source contribution is lowered by the minimal diffraction
+     *                                 attenuation when a building higher than the source and the receiver cut the
+     *                                 direct path. Faster but the reflected paths may go around this building.
+     */
+    public void setObstacleAttenuationBound(boolean obstacleAttenuationBound) {
+        this.obstacleAttenuationBound = obstacleAttenuationBound;
+    }
+
+    /**
+     * @return Distance from the receiver of the clustered sources, 0 if disabled
+     */
+    public double getSourceClusteringDistance() {
+        return sourceClusteringDistance;
+    }
+
+    /**
+     * @param sourceClusteringDistance Omnidirectional sources farther than this distance (m) from the receiver are
+     *                                 merged into clusters sharing the same propagation paths. 0 to disable.
+     */
+    public void setSourceClusteringDistance(double sourceClusteringDistance) {
+        this.sourceClusteringDistance = sourceClusteringDistance;
+    }
+
     /**
      * @return maximum dB Error, stop calculation if the maximum sum of further sources contributions are smaller than this value
      */
@@ -7,23 +7,30 @@ import org.noise_planet.noisemodelling.propagation.ComputeRaysOutAttenuation;
 import org.noise_planet.noisemodelling.propagation.PropagationProcessPathData;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 import static org.noise_planet.noisemodelling.pathfinder.utils.PowerUtils.*;
 
-public class LDENComputeRaysOut extends ComputeRaysOutAttenuation {
+public class LDENComputeRaysOut extends ComputeRaysOutAttenuation implements AttenuationCache.CacheableComputeRaysOut {
     LdenData ldenData;
     LDENPropagationProcessData ldenPropagationProcessData;
     public PropagationProcessPathData dayPathData;
     public PropagationProcessPathData eveningPathData;
     public PropagationProcessPathData nightPathData;
     public LDENConfig ldenConfig;
+    /** Attenuation of the computed receivers, null if not recorded */
+    ConcurrentLinkedDeque<AttenuationCache.ReceiverAttenuation> recordedAttenuation = null;
 
     public LDENComputeRaysOut(PropagationProcessPathData dayPathData, PropagationProcessPathData eveningPathData,
                               PropagationProcessPathData nightPathData, LDENPropagationProcessData inputData,
@@ -47,6 +54,41 @@ public class LDENComputeRaysOut extends ComputeRaysOutAttenuation {
         return new ThreadComputeRaysOut(this);
     }
 
+    @Override
+    public boolean isAttenuationCacheable() {
+        // rays are not stored in the cache
+        return !keepRays && !keepAbsorption && AttenuationCache.isEmissionIndependent(inputData);
+    }
+
+    @Override
+    public void startAttenuationRecording() {
+        recordedAttenuation = new ConcurrentLinkedDeque<>();
+    }
+
+    @Override
+    public Collection<AttenuationCache.ReceiverAttenuation> stopAttenuationRecording() {
+        Collection<AttenuationCache.ReceiverAttenuation> attenuation = recordedAttenuation;
+        recordedAttenuation = null;
+        return attenuation == null ? Collections.emptyList() : attenuation;
+    }
+
+    @Override
+    public void replayAttenuation(Collection<AttenuationCache.ReceiverAttenuation> attenuation) {
+        ThreadComputeRaysOut threadComputeRaysOut = new ThreadComputeRaysOut(this);
+        for (AttenuationCache.ReceiverAttenuation receiverAttenuation : attenuation) {
+            for (LDENConfig.TIME_PERIOD timePeriod : LDENConfig.TIME_PERIOD.values()) {
+                if(timePeriod.ordinal() < receiverAttenuation.periodAttenuation.size()) {
+                    threadComputeRaysOut.lDENThreadRaysOut[timePeriod.ordinal()].receiverAttenuationLevels.addAll(
+                            receiverAttenuation.periodAttenuation.get(timePeriod.ordinal()));
+                }
+            }
+            threadComputeRaysOut.finalizeReceiver(receiverAttenuation.receiverIndex);
+            if(ldenConfig.aborted) {
+                break;
+            }
+        }
+    }
+
     public static class DENAttenuation {
         public double [] dayLevels = null;
         public double [] eveningLevels = null;
@@ -66,8 +108,10 @@ public class LDENComputeRaysOut extends ComputeRaysOutAttenuation {
             switch (timePeriod) {
                 case DAY:
                     dayLevels = levels;
+                    break;
                 case EVENING:
                     eveningLevels = levels;
+                    break;
                 default:
                     nightLevels = levels;
             }
@@ -79,6 +123,11 @@ public class LDENComputeRaysOut extends ComputeRaysOutAttenuation {
         LDENConfig ldenConfig;
         ThreadRaysOut[] lDENThreadRaysOut = new ThreadRaysOut[3];
         public List<PropagationPath> propagationPaths = new ArrayList<PropagationPath>();
+        /**
+         * Meteorological data of each time period, if geometric attenuation terms can be shared between periods.
+         * Null if each period must be evaluated separately.
+         */
+        PropagationProcessPathData[] singlePassPathData = null;
 
         public ThreadComputeRaysOut(LDENComputeRaysOut multiThreadParent) {
             this.ldenComputeRaysOut = multiThreadParent;
@@ -89,7 +138,12 @@ public class LDENComputeRaysOut extends ComputeRaysOutAttenuation {
             for (ThreadRaysOut threadRaysOut : lDENThreadRaysOut) {
                 threadRaysOut.keepRays = false;
             }
-
+            // absorption values are kept for each time period, so each period must be evaluated separately
+            if(!multiThreadParent.keepAbsorption && isSinglePassCompatible(multiThreadParent.dayPathData,
+                    multiThreadParent.eveningPathData, multiThreadParent.nightPathData)) {
+                singlePassPathData = new PropagationProcessPathData[] {multiThreadParent.dayPathData,
+                        multiThreadParent.eveningPathData, multiThreadParent.nightPathData};
+            }
         }
 
         /**
@@ -101,8 +155,7 @@ public class LDENComputeRaysOut extends ComputeRaysOutAttenuation {
         double[] sumLevels(List<double[]> wjSources,List<VerticeSL> receiverAttenuationLevels) {
             double[] levels = new double[ldenComputeRaysOut.dayPathData.freq_lvl.size()];
             for (VerticeSL lvl : receiverAttenuationLevels) {
-                levels = sumArray(levels,
-                        dbaToW(sumArray(wToDba(wjSources.get((int) lvl.sourceId)), lvl.value)));
+                PowerUtils.addAttenuatedEnergy(levels, wjSources.get((int) lvl.sourceId), lvl.value);
             }
             return levels;
         }
@@ -133,15 +186,19 @@ public class LDENComputeRaysOut extends ComputeRaysOutAttenuation {
                     }
                 }
             }
+            if(singlePassPathData != null) {
+                return addPropagationPathsSinglePass(sourceId, sourceLi, receiverId, propagationPathsParameter);
+            }
             double[] globalLevel = null;
             for(LDENConfig.TIME_PERIOD timePeriod : LDENConfig.TIME_PERIOD.values()) {
                 for(PropagationPath propagationPath : propagationPathsParameter) {
                     if (globalLevel == null) {
+                        // the returned level is kept in the receiver attenuation levels, the sum is done in a copy
                         globalLevel = lDENThreadRaysOut[timePeriod.ordinal()].addPropagationPaths(sourceId, sourceLi,
-                                receiverId, Collections.singletonList(propagationPath));
+                                receiverId, Collections.singletonList(propagationPath)).clone();
                     } else {
-                        globalLevel = PowerUtils.sumDbArray(globalLevel, lDENThreadRaysOut[timePeriod.ordinal()].addPropagationPaths(sourceId, sourceLi,
-                                receiverId, Collections.singletonList(propagationPath)));
+                        PowerUtils.sumDbArray(globalLevel, lDENThreadRaysOut[timePeriod.ordinal()].addPropagationPaths(sourceId, sourceLi,
+                                receiverId, Collections.singletonList(propagationPath)), globalLevel);
                     }
                     propagationPath.setTimePeriod(timePeriod.name());
                     if(ldenComputeRaysOut.keepRays && ldenComputeRaysOut.keepAbsorption) {
@@ -161,28 +218,59 @@ public class LDENComputeRaysOut extends ComputeRaysOutAttenuation {
             return globalLevel;
         }
 
+        /**
+         * Evaluate the geometric attenuation terms once for each path, then the day, evening and night attenuation.
+         * @return Energetic sum of the attenuation of all periods
+         */
+        private double[] addPropagationPathsSinglePass(long sourceId, double sourceLi, long receiverId, List<PropagationPath> propagationPathsParameter) {
+            double[][][] pathLevels = new double[propagationPathsParameter.size()][][];
+            for(int idPath = 0; idPath < pathLevels.length; idPath++) {
+                pathLevels[idPath] = ldenComputeRaysOut.computeAttenuation(singlePassPathData, sourceId, sourceLi,
+                        receiverId, Collections.singletonList(propagationPathsParameter.get(idPath)));
+            }
+            double[] globalLevel = null;
+            for(LDENConfig.TIME_PERIOD timePeriod : LDENConfig.TIME_PERIOD.values()) {
+                ThreadRaysOut threadRaysOut = lDENThreadRaysOut[timePeriod.ordinal()];
+                for (double[][] levels : pathLevels) {
+                    double[] periodLevel = levels[timePeriod.ordinal()];
+                    threadRaysOut.receiverAttenuationLevels.add(new VerticeSL(receiverId, sourceId, periodLevel));
+                    if (globalLevel == null) {
+                        // periodLevel is kept in the receiver attenuation levels, the sum is done in a copy
+                        globalLevel = periodLevel.clone();
+                    } else {
+                        PowerUtils.sumDbArray(globalLevel, periodLevel, globalLevel);
+                    }
+                }
+                ldenComputeRaysOut.rayCount.addAndGet(propagationPathsParameter.size());
+            }
+            return globalLevel;
+        }
+
         /**
          * @param stack Stack to feed
          * @param data receiver noise level in dB
          */
         public void pushInStack(ConcurrentLinkedDeque<VerticeSL> stack, VerticeSL data) {
-            while(ldenComputeRaysOut.ldenData.queueSize.get() > ldenConfig.outputMaximumQueue) {
-                try {
-                    Thread.sleep(10);
-                } catch (InterruptedException ex) {
-                    ldenConfig.aborted = true;
-                    break;
-                }
-                if(ldenConfig.aborted) {
-                    if(ldenComputeRaysOut != null && this.ldenComputeRaysOut.inputData != null &&
-                            this.ldenComputeRaysOut.inputData.cellProg != null) {
-                        this.ldenComputeRaysOut.inputData.cellProg.cancel();
-                    }
-                    return;
-                }
+            if(!waitForQueueCapacity()) {
+                return;
             }
             stack.add(data);
             ldenComputeRaysOut.ldenData.queueSize.incrementAndGet();
+            ldenComputeRaysOut.ldenData.notifyPush();
+        }
+
+        /**
+         * Block until the result queue is below the maximum queue size
+         * @return False if the computation has been aborted
+         */
+        boolean waitForQueueCapacity() {
+            if(!ldenComputeRaysOut.ldenData.waitForCapacity(ldenConfig)) {
+                if(this.ldenComputeRaysOut.inputData != null && this.ldenComputeRaysOut.inputData.cellProg != null) {
+                    this.ldenComputeRaysOut.inputData.cellProg.cancel();
+                }
+                return false;
+            }
+            return true;
         }
 
         @Override
@@ -195,20 +283,8 @@ public class LDENComputeRaysOut extends ComputeRaysOutAttenuation {
          * @param data rays
          */
         public void pushInStack(ConcurrentLinkedDeque<PropagationPath> stack, Collection<PropagationPath> data) {
-            while(ldenComputeRaysOut.ldenData.queueSize.get() > ldenConfig.outputMaximumQueue) {
-                try {
-                    Thread.sleep(10);
-                } catch (InterruptedException ex) {
-                    ldenConfig.aborted = true;
-                    break;
-                }
-                if(ldenConfig.aborted) {
-                    if(ldenComputeRaysOut != null && this.ldenComputeRaysOut.inputData != null &&
-                            this.ldenComputeRaysOut.inputData.cellProg != null) {
-                        this.ldenComputeRaysOut.inputData.cellProg.cancel();
-                    }
-                    return;
-                }
+            if(!waitForQueueCapacity()) {
+                return;
             }
             if(ldenConfig.getMaximumRaysOutputCount() == 0 || ldenComputeRaysOut.ldenData.totalRaysInserted.get() < ldenConfig.getMaximumRaysOutputCount()) {
                 long newTotalRays = ldenComputeRaysOut.ldenData.totalRaysInserted.addAndGet(data.size());
@@ -226,6 +302,7 @@ public class LDENComputeRaysOut extends ComputeRaysOutAttenuation {
                 }
                 stack.addAll(data);
                 ldenComputeRaysOut.ldenData.queueSize.addAndGet(data.size());
+                ldenComputeRaysOut.ldenData.notifyPush();
             }
         }
 
@@ -249,6 +326,14 @@ public class LDENComputeRaysOut extends ComputeRaysOutAttenuation {
                 }
                 propagationPaths.clear();
             }
+            if(ldenComputeRaysOut.recordedAttenuation != null) {
+                List<List<VerticeSL>> periodAttenuation = new ArrayList<>(lDENThreadRaysOut.length);
+                for (ThreadRaysOut threadRaysOut : lDENThreadRaysOut) {
+                    periodAttenuation.add(new ArrayList<>(threadRaysOut.receiverAttenuationLevels));
+                }
+                ldenComputeRaysOut.recordedAttenuation.add(
+                        new AttenuationCache.ReceiverAttenuation((int) receiverId, periodAttenuation));
+            }
             long receiverPK = receiverId;
             if(ldenComputeRaysOut.inputData != null) {
                 if(receiverId < ldenComputeRaysOut.inputData.receiversPk.size()) {
@@ -270,11 +355,12 @@ public class LDENComputeRaysOut extends ComputeRaysOutAttenuation {
                             denAttenuation = levelsPerSourceLines.get(lvl.sourceId);
                         }
                         if (denAttenuation.getTimePeriodLevel(timePeriod) == null) {
-                            denAttenuation.setTimePeriodLevel(timePeriod, lvl.value);
+                            // copy as the merge is done in place and lvl may be kept in the attenuation cache
+                            denAttenuation.setTimePeriodLevel(timePeriod, lvl.value.clone());
                         } else {
                             // same receiver, same source already exists, merge attenuation
-                            denAttenuation.setTimePeriodLevel(timePeriod, sumDbArray(
-                                    denAttenuation.getTimePeriodLevel(timePeriod), lvl.value));
+                            double[] merged = denAttenuation.getTimePeriodLevel(timePeriod);
+                            sumDbArray(merged, lvl.value, merged);
                         }
                     }
                 }
@@ -352,13 +438,133 @@ public class LDENComputeRaysOut extends ComputeRaysOutAttenuation {
         }
     }
 
+    /**
+     * Result queues shared by the computation threads (producers) and the table writer (consumer).
+     * Producers block while the queue is full, the writer is woken up as soon as a result is pushed.
+     */
     public static class LdenData {
+        // Maximum wait duration before checking the abort flag again
+        private static final long WAIT_TIMEOUT_MS = 100;
         public final AtomicLong queueSize = new AtomicLong(0);
         public final AtomicLong totalRaysInserted = new AtomicLong(0);
+        /** Cumulated time spent by the computation threads waiting for the writer, in nanoseconds */
+        public final AtomicLong producerStallTime = new AtomicLong(0);
         public final ConcurrentLinkedDeque<VerticeSL> lDayLevels = new ConcurrentLinkedDeque<>();
         public final ConcurrentLinkedDeque<VerticeSL> lEveningLevels = new ConcurrentLinkedDeque<>();
         public final ConcurrentLinkedDeque<VerticeSL> lNightLevels = new ConcurrentLinkedDeque<>();
         public final ConcurrentLinkedDeque<VerticeSL> lDenLevels = new ConcurrentLinkedDeque<>();
         public final ConcurrentLinkedDeque<PropagationPath> rays = new ConcurrentLinkedDeque<>();
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition notFull = lock.newCondition();
+        private final Condition notEmpty = lock.newCondition();
+        private final AtomicInteger waitingConsumers = new AtomicInteger(0);
+        private final AtomicInteger waitingProducers = new AtomicInteger(0);
+
+        /**
+         * @return True if there is no result to write
+         */
+        public boolean isEmpty() {
+            return lDayLevels.isEmpty() && lEveningLevels.isEmpty() && lNightLevels.isEmpty() &&
+                    lDenLevels.isEmpty() && rays.isEmpty();
+        }
+
+        private static boolean isEmpty(Collection<? extends Collection<?>> stacks) {
+            for(Collection<?> stack : stacks) {
+                if(!stack.isEmpty()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Called by producers, block while the queue size exceeds {@link LDENConfig#outputMaximumQueue}
+         * @param ldenConfig Configuration
+         * @return False if the computation has been aborted while waiting
+         */
+        boolean waitForCapacity(LDENConfig ldenConfig) {
+            if(queueSize.get() <= ldenConfig.outputMaximumQueue) {
+                return !ldenConfig.aborted;
+            }
+            long start = System.nanoTime();
+            waitingProducers.incrementAndGet();
+            lock.lock();
+            try {
+                while (queueSize.get() > ldenConfig.outputMaximumQueue && !ldenConfig.aborted) {
+                    notFull.await(WAIT_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                }
+            } catch (InterruptedException ex) {
+                ldenConfig.aborted = true;
+            } finally {
+                lock.unlock();
+                waitingProducers.decrementAndGet();
+                producerStallTime.addAndGet(System.nanoTime() - start);
+            }
+            return !ldenConfig.aborted;
+        }
+
+        /**
+         * Called by producers after pushing results, wake up the writers
+         */
+        void notifyPush() {
+            if(waitingConsumers.get() > 0) {
+                wakeUpConsumer();
+            }
+        }
+
+        /**
+         * Called by the writer after having popped results, wake up the blocked producers
+         */
+        void notifyPop() {
+            if(waitingProducers.get() > 0) {
+                lock.lock();
+                try {
+                    notFull.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+
+        /**
+         * Wake up the writers, ex. when the computation is done or aborted
+         */
+        void wakeUpConsumer() {
+            lock.lock();
+            try {
+                notEmpty.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Called by the writer, block until a result is pushed or the timeout is elapsed
+         * @param ldenConfig Configuration
+         * @throws InterruptedException
+         */
+        void waitForResults(LDENConfig ldenConfig) throws InterruptedException {
+            waitForResults(ldenConfig, Arrays.asList(lDayLevels, lEveningLevels, lNightLevels, lDenLevels, rays));
+        }
+
+        /**
+         * Called by a writer, block until a result is pushed or the timeout is elapsed
+         * @param ldenConfig Configuration
+         * @param stacks Stacks written by this writer
+         * @throws InterruptedException
+         */
+        void waitForResults(LDENConfig ldenConfig, Collection<? extends Collection<?>> stacks) throws InterruptedException {
+            lock.lock();
+            try {
+                waitingConsumers.incrementAndGet();
+                // Producers push before reading waitingConsumers, so results pushed without signal are seen here
+                if(isEmpty(stacks) && !ldenConfig.exitWhenDone && !ldenConfig.aborted) {
+                    notEmpty.await(WAIT_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                }
+            } finally {
+                waitingConsumers.decrementAndGet();
+                lock.unlock();
+            }
+        }
     }
 }
@@ -43,9 +43,12 @@ public class LDENConfig {
     // this parameter will be removed when the final version of Cnossos will be published
     int coefficientVersion = 2;
 
+    // Maximum number of sources kept in the emission cache shared by the cells (0 to disable)
+    int emissionCacheSize = SourceEmissionCache.DEFAULT_CAPACITY;
+
     // Process status
-    boolean exitWhenDone = false;
-    boolean aborted = false;
+    volatile boolean exitWhenDone = false;
+    volatile boolean aborted = false;
 
     // Output config
     boolean computeLDay = true;
@@ -73,6 +76,8 @@ public class LDENConfig {
     // Maximum result stack to be inserted in database
     // if the stack is full, the computation core is waiting
     int outputMaximumQueue = 50000;
+    // Number of threads writing the result tables, each thread write a subset of the tables
+    int resultWriterThreadCount = 1;
 
     boolean mergeSources = true;
 
@@ -86,6 +91,8 @@ public class LDENConfig {
 
     File sqlOutputFile;
     Boolean sqlOutputFileCompression = true;
+    // If set, results are written in this binary file instead of the database or the sql file
+    File binaryOutputFile;
     Boolean dropResultsTable = true;
 
     public LDENConfig(INPUT_MODE input_mode) {
@@ -173,6 +180,20 @@ public class LDENConfig {
         this.sqlOutputFile = sqlOutputFile;
     }
 
+    public File getBinaryOutputFile() {
+        return binaryOutputFile;
+    }
+
+    /**
+     * Write the results in a compact binary file instead of the database or the sql file.
+     * The file can be imported later with {@link org.noise_planet.noisemodelling.jdbc.utils.ColumnarResultReader}.
+     * Levels are stored with a 0.01 dB precision and rays coordinates with a 1 mm precision.
+     * @param binaryOutputFile Binary output file, null to disable
+     */
+    public void setBinaryOutputFile(File binaryOutputFile) {
+        this.binaryOutputFile = binaryOutputFile;
+    }
+
     public void setComputeLDay(boolean computeLDay) {
         this.computeLDay = computeLDay;
     }
@@ -235,6 +256,23 @@ public class LDENConfig {
         return coefficientVersion;
     }
 
+    /**
+     * @return Maximum number of sources kept in the emission cache shared by the cells
+     */
+    public int getEmissionCacheSize() {
+        return emissionCacheSize;
+    }
+
+    /**
+     * The sources of the expanded envelope of a cell are also fetched by the neighbouring cells. The emission of the
+     * sources is kept in a fixed size cache in order to be evaluated only once. The cache is not used for road traffic
+     * flow with a DEM, as the road slope is computed from the topography of each cell.
+     * @param emissionCacheSize Maximum number of sources kept in the emission cache, 0 to disable the cache
+     */
+    public void setEmissionCacheSize(int emissionCacheSize) {
+        this.emissionCacheSize = emissionCacheSize;
+    }
+
     /**
      * Maximum result stack to be inserted in database
      * if the stack is full, the computation core is waiting
@@ -244,6 +282,24 @@ public class LDENConfig {
         this.outputMaximumQueue = outputMaximumQueue;
     }
 
+    /**
+     * @return Number of threads writing the result tables
+     */
+    public int getResultWriterThreadCount() {
+        return resultWriterThreadCount;
+    }
+
+    /**
+     * Result tables (LDAY, LEVENING, LNIGHT, LDEN, RAYS) are distributed between the writer threads.
+     * With a database output each thread use its own connection, a DataSource must be provided
+     * to {@link LDENPointNoiseMapFactory#setWriterDataSource} otherwise a single thread is used. With a sql file output each thread write
+     * a staging file that is merged into the output file at the end.
+     * @param resultWriterThreadCount Number of threads writing the result tables, 1 by default
+     */
+    public void setResultWriterThreadCount(int resultWriterThreadCount) {
+        this.resultWriterThreadCount = Math.max(1, resultWriterThreadCount);
+    }
+
     /**
      * @param computeLDEN IF true create LDEN_GEOM table
      */
@@ -28,6 +28,7 @@ import org.locationtech.jts.geom.LineString;
 import org.noise_planet.noisemodelling.emission.LineSource;
 import org.noise_planet.noisemodelling.emission.directivity.DirectivitySphere;
 import org.noise_planet.noisemodelling.emission.railway.cnossos.RailWayCnossosParameters;
+import org.noise_planet.noisemodelling.jdbc.utils.ColumnarResultWriter;
 import org.noise_planet.noisemodelling.jdbc.utils.StringPreparedStatements;
 import org.noise_planet.noisemodelling.pathfinder.*;
 import org.noise_planet.noisemodelling.pathfinder.utils.ProfilerThread;
@@ -36,6 +37,7 @@ import org.noise_planet.noisemodelling.propagation.PropagationProcessPathData;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.sql.DataSource;
 import java.io.*;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
@@ -43,6 +45,11 @@ import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.*;
 import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.zip.GZIPOutputStream;
 
 import static org.noise_planet.noisemodelling.pathfinder.utils.PowerUtils.*;
@@ -55,9 +62,12 @@ public class LDENPointNoiseMapFactory implements PointNoiseMap.PropagationProces
     TableWriter tableWriter;
     Thread tableWriterThread;
     Connection connection;
+    DataSource writerDataSource;
     static final int BATCH_MAX_SIZE = 500;
     static final int WRITER_CACHE = 65536;
+    static final int BINARY_BLOCK_SIZE = 8192;
     LDENComputeRaysOut.LdenData ldenData = new LDENComputeRaysOut.LdenData();
+    SourceEmissionCache emissionCache = null;
     int srid;
     List<String> noiseSource = Arrays.asList("ROLLING","TRACTIONA", "TRACTIONB","AERODYNAMICA","AERODYNAMICB","BRIDGE");
 
@@ -75,12 +85,13 @@ public class LDENPointNoiseMapFactory implements PointNoiseMap.PropagationProces
 
     @Override
     public String[] getColumnNames() {
-        return new String[] {"jdbc_stack"};
+        return new String[] {"jdbc_stack", "jdbc_producer_stall_ms"};
     }
 
     @Override
     public String[] getCurrentValues() {
-        return new String[] {Long.toString(ldenData.queueSize.get())};
+        return new String[] {Long.toString(ldenData.queueSize.get()),
+                Long.toString(TimeUnit.NANOSECONDS.toMillis(ldenData.producerStallTime.get()))};
     }
 
     @Override
@@ -88,10 +99,26 @@ public class LDENPointNoiseMapFactory implements PointNoiseMap.PropagationProces
 
     }
 
+    /**
+     * @param writerDataSource Connections used by the result writer threads, see
+     * {@link LDENConfig#setResultWriterThreadCount(int)}. If null the result tables inserted in the database are
+     * written by a single thread using the main connection
+     */
+    public void setWriterDataSource(DataSource writerDataSource) {
+        this.writerDataSource = writerDataSource;
+    }
+
     public LDENComputeRaysOut.LdenData getLdenData() {
         return ldenData;
     }
 
+    /**
+     * @return Emission of the sources shared by the cells, null if disabled or not initialized
+     */
+    public SourceEmissionCache getEmissionCache() {
+        return emissionCache;
+    }
+
 
     public void insertTrainDirectivity() {
         directionAttributes.clear();
@@ -169,6 +196,13 @@ public class LDENPointNoiseMapFactory implements PointNoiseMap.PropagationProces
                 }
             }
         }
+        // The emission of the sources is shared by the cells of this computation only
+        if(ldenConfig.emissionCacheSize > 0) {
+            emissionCache = new SourceEmissionCache(ldenConfig.emissionCacheSize, LDENConfig.TIME_PERIOD.values().length,
+                    ldenConfig.propagationProcessPathDataDay.freq_lvl.size());
+        } else {
+            emissionCache = null;
+        }
     }
 
     /**
@@ -179,6 +213,7 @@ public class LDENPointNoiseMapFactory implements PointNoiseMap.PropagationProces
             throw new IllegalStateException("start() function must be called after PointNoiseMap initialization call");
         }
         tableWriter = new TableWriter(connection, ldenConfig, ldenData, srid);
+        tableWriter.dataSource = writerDataSource;
         ldenConfig.exitWhenDone = false;
         tableWriterThread = new Thread(tableWriter);
         tableWriterThread.start();
@@ -197,6 +232,7 @@ public class LDENPointNoiseMapFactory implements PointNoiseMap.PropagationProces
      */
     public void stop() {
         ldenConfig.exitWhenDone = true;
+        ldenData.wakeUpConsumer();
         while (tableWriterThread != null && tableWriterThread.isAlive()) {
             try {
                 Thread.sleep(150);
@@ -212,6 +248,7 @@ public class LDENPointNoiseMapFactory implements PointNoiseMap.PropagationProces
      */
     public void cancel() {
         ldenConfig.aborted = true;
+        ldenData.wakeUpConsumer();
         while (tableWriterThread.isAlive()) {
             try {
                 Thread.sleep(150);
@@ -226,6 +263,7 @@ public class LDENPointNoiseMapFactory implements PointNoiseMap.PropagationProces
     public LDENPropagationProcessData create(ProfileBuilder builder) {
         LDENPropagationProcessData ldenPropagationProcessData = new LDENPropagationProcessData(builder, ldenConfig);
         ldenPropagationProcessData.setDirectionAttributes(directionAttributes);
+        ldenPropagationProcessData.setEmissionCache(emissionCache);
         return ldenPropagationProcessData;
     }
 
@@ -246,6 +284,10 @@ public class LDENPointNoiseMapFactory implements PointNoiseMap.PropagationProces
         boolean started = false;
         Writer o;
         int srid;
+        // Optional source of connections for the parallel writers
+        DataSource dataSource;
+        // Not null if the results are written in a binary file
+        ColumnarResultWriter binaryWriter;
 
         public TableWriter(Connection connection, LDENConfig ldenConfig, LDENComputeRaysOut.LdenData ldenData, int srid) {
             this.connection = connection;
@@ -259,7 +301,22 @@ public class LDENPointNoiseMapFactory implements PointNoiseMap.PropagationProces
             this.srid = srid;
         }
 
-        void processRaysStack(ConcurrentLinkedDeque<PropagationPath> stack) throws SQLException {
+        void processRaysStack(ConcurrentLinkedDeque<PropagationPath> stack) throws SQLException, IOException {
+            if(binaryWriter != null) {
+                List<PropagationPath> rows = new ArrayList<>();
+                while(!stack.isEmpty()) {
+                    rows.add(stack.pop());
+                    ldenData.queueSize.decrementAndGet();
+                    if(rows.size() >= BINARY_BLOCK_SIZE || stack.isEmpty()) {
+                        binaryWriter.writeRays(ldenConfig.raysTable, rows,
+                                ldenConfig.exportProfileInRays ? ldenConfig.geojsonColumnSizeLimit : -1,
+                                ldenConfig.keepAbsorption);
+                        rows.clear();
+                        ldenData.notifyPop();
+                    }
+                }
+                return;
+            }
             StringBuilder query = new StringBuilder("INSERT INTO " + ldenConfig.raysTable +
                     "(the_geom , IDRECEIVER , IDSOURCE");
             if(ldenConfig.exportProfileInRays) {
@@ -313,11 +370,13 @@ public class LDENPointNoiseMapFactory implements PointNoiseMap.PropagationProces
                     ps.executeBatch();
                     ps.clearBatch();
                     batchSize = 0;
+                    ldenData.notifyPop();
                 }
             }
             if (batchSize > 0) {
                 ps.executeBatch();
             }
+            ldenData.notifyPop();
 
         }
 
@@ -327,7 +386,20 @@ public class LDENPointNoiseMapFactory implements PointNoiseMap.PropagationProces
          * @param stack Stack to pop from
          * @throws SQLException Got an error
          */
-        void processStack(String tableName, ConcurrentLinkedDeque<ComputeRaysOutAttenuation.VerticeSL> stack) throws SQLException {
+        void processStack(String tableName, ConcurrentLinkedDeque<ComputeRaysOutAttenuation.VerticeSL> stack) throws SQLException, IOException {
+            if(binaryWriter != null) {
+                List<ComputeRaysOutAttenuation.VerticeSL> rows = new ArrayList<>();
+                while(!stack.isEmpty()) {
+                    rows.add(stack.pop());
+                    ldenData.queueSize.decrementAndGet();
+                    if(rows.size() >= BINARY_BLOCK_SIZE || stack.isEmpty()) {
+                        binaryWriter.writeLevels(tableName, rows);
+                        rows.clear();
+                        ldenData.notifyPop();
+                    }
+                }
+                return;
+            }
             StringBuilder query = new StringBuilder("INSERT INTO ");
             query.append(tableName);
             query.append(" VALUES (? "); // ID_RECEIVER
@@ -385,11 +457,13 @@ public class LDENPointNoiseMapFactory implements PointNoiseMap.PropagationProces
                     ps.executeBatch();
                     ps.clearBatch();
                     batchSize = 0;
+                    ldenData.notifyPop();
                 }
             }
             if (batchSize > 0) {
                 ps.executeBatch();
             }
+            ldenData.notifyPop();
         }
 
         private String forgeCreateTable(String tableName) {
@@ -487,25 +561,82 @@ public class LDENPointNoiseMapFactory implements PointNoiseMap.PropagationProces
             }
         }
 
+        /**
+         * @return Result tables fed by the computation, in writing priority order
+         */
+        List<String> getResultTables() {
+            List<String> tables = new ArrayList<>();
+            if(ldenConfig.computeLDay) {
+                tables.add(ldenConfig.lDayTable);
+            }
+            if(ldenConfig.computeLEvening) {
+                tables.add(ldenConfig.lEveningTable);
+            }
+            if(ldenConfig.computeLNight) {
+                tables.add(ldenConfig.lNightTable);
+            }
+            if(ldenConfig.computeLDEN) {
+                tables.add(ldenConfig.lDenTable);
+            }
+            if(ldenConfig.getExportRaysMethod() == LDENConfig.ExportRaysMethods.TO_RAYS_TABLE) {
+                tables.add(ldenConfig.raysTable);
+            }
+            return tables;
+        }
+
+        /**
+         * @param tableName Result table name
+         * @return Stack of the levels to insert in the table, null for the rays table
+         */
+        ConcurrentLinkedDeque<ComputeRaysOutAttenuation.VerticeSL> getLevelsStack(String tableName) {
+            if(tableName.equals(ldenConfig.lDayTable)) {
+                return ldenData.lDayLevels;
+            } else if(tableName.equals(ldenConfig.lEveningTable)) {
+                return ldenData.lEveningLevels;
+            } else if(tableName.equals(ldenConfig.lNightTable)) {
+                return ldenData.lNightLevels;
+            } else if(tableName.equals(ldenConfig.lDenTable)) {
+                return ldenData.lDenLevels;
+            } else {
+                return null;
+            }
+        }
+
         void mainLoop() throws SQLException, IOException {
+            mainLoop(getResultTables());
+        }
+
+        /**
+         * Write the results until the computation is done
+         * @param tables Result tables written by this writer
+         */
+        void mainLoop(List<String> tables) throws SQLException, IOException {
+            List<ConcurrentLinkedDeque<ComputeRaysOutAttenuation.VerticeSL>> levelsStacks = new ArrayList<>(tables.size());
+            List<ConcurrentLinkedDeque<?>> stacks = new ArrayList<>(tables.size());
+            for(String tableName : tables) {
+                ConcurrentLinkedDeque<ComputeRaysOutAttenuation.VerticeSL> levelsStack = getLevelsStack(tableName);
+                levelsStacks.add(levelsStack);
+                stacks.add(levelsStack != null ? levelsStack : ldenData.rays);
+            }
             while (!ldenConfig.aborted) {
                 started = true;
                 try {
-                    if(!ldenData.lDayLevels.isEmpty()) {
-                        processStack(ldenConfig.lDayTable, ldenData.lDayLevels);
-                    } else if(!ldenData.lEveningLevels.isEmpty()) {
-                        processStack(ldenConfig.lEveningTable, ldenData.lEveningLevels);
-                    } else if(!ldenData.lNightLevels.isEmpty()) {
-                        processStack(ldenConfig.lNightTable, ldenData.lNightLevels);
-                    } else if(!ldenData.lDenLevels.isEmpty()) {
-                        processStack(ldenConfig.lDenTable, ldenData.lDenLevels);
-                    } else if(!ldenData.rays.isEmpty()) {
-                        processRaysStack(ldenData.rays);
-                    } else {
+                    boolean processed = false;
+                    for(int idTable = 0; idTable < tables.size() && !processed; idTable++) {
+                        if(!stacks.get(idTable).isEmpty()) {
+                            processed = true;
+                            if(levelsStacks.get(idTable) == null) {
+                                processRaysStack(ldenData.rays);
+                            } else {
+                                processStack(tables.get(idTable), levelsStacks.get(idTable));
+                            }
+                        }
+                    }
+                    if(!processed) {
                         if(ldenConfig.exitWhenDone) {
                             break;
                         } else {
-                            Thread.sleep(50);
+                            ldenData.waitForResults(ldenConfig, stacks);
                         }
                     }
                 } catch (InterruptedException ex) {
@@ -515,6 +646,118 @@ public class LDENPointNoiseMapFactory implements PointNoiseMap.PropagationProces
             }
         }
 
+        /**
+         * Write the results, the result tables are distributed between
+         * {@link LDENConfig#getResultWriterThreadCount()} threads
+         */
+        void writeResults() throws SQLException, IOException {
+            List<String> tables = getResultTables();
+            int partitionCount = Math.min(ldenConfig.resultWriterThreadCount, tables.size());
+            if(partitionCount > 1 && binaryWriter == null && sqlFilePath == null && dataSource == null) {
+                // A JDBC connection can't be used by multiple threads
+                LOGGER.warn("No writer DataSource, the result tables are written by a single thread");
+                partitionCount = 1;
+            }
+            if(partitionCount <= 1) {
+                mainLoop(tables);
+                return;
+            }
+            List<List<String>> partitions = new ArrayList<>(partitionCount);
+            for(int idPartition = 0; idPartition < partitionCount; idPartition++) {
+                partitions.add(new ArrayList<>());
+            }
+            for(int idTable = 0; idTable < tables.size(); idTable++) {
+                partitions.get(idTable % partitionCount).add(tables.get(idTable));
+            }
+            ExecutorService executorService = Executors.newFixedThreadPool(partitionCount);
+            List<Future<File>> partitionResults = new ArrayList<>(partitionCount);
+            try {
+                for (int idPartition = 0; idPartition < partitionCount; idPartition++) {
+                    final List<String> partition = partitions.get(idPartition);
+                    File stagingFile = null;
+                    if(binaryWriter != null) {
+                        stagingFile = new File(ldenConfig.binaryOutputFile.getAbsolutePath() + "." + idPartition + ".part");
+                    } else if(sqlFilePath != null) {
+                        stagingFile = new File(sqlFilePath.getAbsolutePath() + "." + idPartition + ".part");
+                    }
+                    final File partitionFile = stagingFile;
+                    partitionResults.add(executorService.submit(() -> writePartition(partition, partitionFile)));
+                }
+                started = true;
+                for (Future<File> partitionResult : partitionResults) {
+                    File stagingFile = partitionResult.get();
+                    if (stagingFile == null) {
+                        continue;
+                    }
+                    // merge in the output file
+                    if (binaryWriter != null) {
+                        binaryWriter.appendBlocks(stagingFile);
+                    } else {
+                        try (Reader reader = new InputStreamReader(new FileInputStream(stagingFile))) {
+                            char[] buffer = new char[WRITER_CACHE];
+                            int read;
+                            while ((read = reader.read(buffer)) != -1) {
+                                o.write(buffer, 0, read);
+                            }
+                        }
+                    }
+                    if (!stagingFile.delete()) {
+                        LOGGER.warn("Unable to delete " + stagingFile);
+                    }
+                }
+            } catch (InterruptedException ex) {
+                ldenConfig.aborted = true;
+            } catch (ExecutionException ex) {
+                ldenConfig.aborted = true;
+                if(ex.getCause() instanceof SQLException) {
+                    throw (SQLException) ex.getCause();
+                } else if(ex.getCause() instanceof IOException) {
+                    throw (IOException) ex.getCause();
+                } else {
+                    throw new IOException(ex.getCause());
+                }
+            } finally {
+                executorService.shutdownNow();
+            }
+        }
+
+        /**
+         * Write a subset of the result tables with its own connection or staging file
+         * @param tables Result tables to write
+         * @param stagingFile Sql or binary file to write, null if the results are inserted in the database
+         * @return The staging file
+         */
+        File writePartition(List<String> tables, File stagingFile) throws SQLException, IOException {
+            TableWriter partitionWriter = new TableWriter(connection, ldenConfig, ldenData, srid);
+            partitionWriter.sqlFilePath = stagingFile;
+            try {
+                if (stagingFile != null && binaryWriter != null) {
+                    try (ColumnarResultWriter partitionBinaryWriter = new ColumnarResultWriter(new BufferedOutputStream(
+                            new FileOutputStream(stagingFile), WRITER_CACHE))) {
+                        partitionBinaryWriter.setFormat(a_weighting.length, ldenConfig.mergeSources);
+                        partitionWriter.binaryWriter = partitionBinaryWriter;
+                        partitionWriter.mainLoop(tables);
+                    }
+                } else if (stagingFile != null) {
+                    try (OutputStreamWriter bw = new OutputStreamWriter(new BufferedOutputStream(
+                            new FileOutputStream(stagingFile), WRITER_CACHE))) {
+                        partitionWriter.o = bw;
+                        partitionWriter.mainLoop(tables);
+                    }
+                } else {
+                    try (Connection partitionConnection = JDBCUtilities.wrapConnection(dataSource.getConnection())) {
+                        partitionWriter.connection = partitionConnection;
+                        partitionWriter.mainLoop(tables);
+                    }
+                }
+            } catch (SQLException | IOException | RuntimeException ex) {
+                // stop the other writers and the computation
+                ldenConfig.aborted = true;
+                throw ex;
+            }
+            return stagingFile;
+        }
+
         void createKeys()  throws SQLException, IOException {
             // Set primary keys
             LOGGER.info("Write done, apply primary keys");
@@ -542,11 +785,29 @@ public class LDENPointNoiseMapFactory implements PointNoiseMap.PropagationProces
 
         @Override
         public void run() {
+            if(ldenConfig.binaryOutputFile != null) {
+                // Tables are created when the file is imported
+                try(ColumnarResultWriter writer = new ColumnarResultWriter(new BufferedOutputStream(
+                        new FileOutputStream(ldenConfig.binaryOutputFile), WRITER_CACHE))) {
+                    List<Double> aWeighting = new ArrayList<>(a_weighting.length);
+                    for(double weight : a_weighting) {
+                        aWeighting.add(weight);
+                    }
+                    writer.writeHeader(srid, ldenConfig.mergeSources, ldenConfig.computeLAEQOnly,
+                            ldenConfig.propagationProcessPathDataDay.freq_lvl, aWeighting);
+                    binaryWriter = writer;
+                    writeResults();
+                } catch (Throwable e) {
+                    LOGGER.error("Got exception on result writer, cancel calculation", e);
+                    ldenConfig.aborted = true;
+                }
+                return;
+            }
             // Drop and create tables
             if(sqlFilePath == null) {
                 try {
                     init();
-                    mainLoop();
+                    writeResults();
                     createKeys();
                 } catch (SQLException e) {
                     LOGGER.error("SQL Writer exception", e);
@@ -560,7 +821,7 @@ public class LDENPointNoiseMapFactory implements PointNoiseMap.PropagationProces
                 try(OutputStreamWriter bw = getStream()) {
                     o = bw;
                     init();
-                    mainLoop();
+                    writeResults();
                     createKeys();
                 } catch (SQLException e) {
                     LOGGER.error("SQL Writer exception", e);
@@ -22,13 +22,10 @@
 
 package org.noise_planet.noisemodelling.jdbc;
 
-import org.h2gis.utilities.JDBCUtilities;
 import org.h2gis.utilities.SpatialResultSet;
 import org.locationtech.jts.geom.Coordinate;
 import org.locationtech.jts.geom.Geometry;
 import org.noise_planet.noisemodelling.emission.directivity.DirectivitySphere;
-import org.noise_planet.noisemodelling.emission.road.cnossos.RoadCnossos;
-import org.noise_planet.noisemodelling.emission.road.cnossos.RoadCnossosParameters;
 import org.noise_planet.noisemodelling.emission.utils.Utils;
 import org.noise_planet.noisemodelling.pathfinder.CnossosPropagationData;
 import org.noise_planet.noisemodelling.pathfinder.ProfileBuilder;
@@ -37,6 +34,7 @@ import java.io.IOException;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -47,7 +45,8 @@ import static org.noise_planet.noisemodelling.pathfinder.utils.PowerUtils.dbaToW
  * Read source database and compute the sound emission spectrum of roads sources
  */
 public class LDENPropagationProcessData extends CnossosPropagationData {
-    public Map<String, Integer> sourceFields = null;
+    private RoadEmissionBlock roadEmissionBlock = null;
+    private SourceEmissionCache emissionCache = null;
 
     // Source value in energetic  e = pow(10, dbVal / 10.0)
     public List<double[]> wjSourcesD = new ArrayList<>();
@@ -70,10 +69,30 @@ public class LDENPropagationProcessData extends CnossosPropagationData {
         this.directionAttributes = directionAttributes;
     }
 
+    /**
+     * @param emissionCache Emission of the sources already evaluated by the other cells, null to always evaluate.
+     *                      Not used with road traffic flow and a DEM, the road slope is read on the topography of the
+     *                      cell and may differ between cells.
+     */
+    public void setEmissionCache(SourceEmissionCache emissionCache) {
+        this.emissionCache = emissionCache;
+    }
+
     @Override
     public void addSource(Long pk, Geometry geom, SpatialResultSet rs) throws SQLException, IOException {
         super.addSource(pk, geom, rs);
-        double[][] res = computeLw(rs);
+        boolean useEmissionCache = emissionCache != null && pk != null && !(ldenConfig.input_mode ==
+                LDENConfig.INPUT_MODE.INPUT_MODE_TRAFFIC_FLOW && profileBuilder != null && profileBuilder.hasDem());
+        double[][] res = null;
+        if(useEmissionCache) {
+            res = emissionCache.get(pk);
+        }
+        if(res == null) {
+            res = computeLw(rs);
+            if(useEmissionCache) {
+                emissionCache.put(pk, res);
+            }
+        }
         if(ldenConfig.computeLDay || ldenConfig.computeLDEN) {
             wjSourcesD.add(res[0]);
         }
@@ -113,125 +132,27 @@ public class LDENPropagationProcessData extends CnossosPropagationData {
      * @return Emission spectrum in dB
      */
     public double[] getEmissionFromResultSet(ResultSet rs, String period, double slope) throws SQLException, IOException {
-        if (sourceFields == null) {
-            sourceFields = new HashMap<>();
-            int fieldId = 1;
-            for (String fieldName : JDBCUtilities.getColumnNames(rs.getMetaData())) {
-                sourceFields.put(fieldName.toUpperCase(), fieldId++);
-            }
-        }
-        double[] lvl = new double[ldenConfig.propagationProcessPathDataDay.freq_lvl.size()];
-        // Set default values
-        double tv = 0; // old format "total vehicles"
-        double hv = 0; // old format "heavy vehicles"
-        double lv_speed = 0;
-        double mv_speed = 0;
-        double hgv_speed = 0;
-        double wav_speed = 0;
-        double wbv_speed = 0;
-        double lvPerHour = 0;
-        double mvPerHour = 0;
-        double hgvPerHour = 0;
-        double wavPerHour = 0;
-        double wbvPerHour = 0;
-        double temperature = 20.0;
-        String roadSurface = "NL08";
-        double tsStud = 0;
-        double pmStud = 0;
-        double junctionDistance = 100; // no acceleration of deceleration changes with dist >= 100
-        int junctionType = 2;
-        int way = 3; // default value 2-way road
-
-        // Read fields
-        if(sourceFields.containsKey("LV_SPD_"+period)) {
-            lv_speed = rs.getDouble(sourceFields.get("LV_SPD_"+period));
-        }
-        if(sourceFields.containsKey("MV_SPD_"+period)) {
-            mv_speed = rs.getDouble(sourceFields.get("MV_SPD_"+period));
-        }
-        if(sourceFields.containsKey("HGV_SPD_"+period)) {
-            hgv_speed = rs.getDouble(sourceFields.get("HGV_SPD_"+period));
-        }
-        if(sourceFields.containsKey("WAV_SPD_"+period)) {
-            wav_speed = rs.getDouble(sourceFields.get("WAV_SPD_"+period));
-        }
-        if(sourceFields.containsKey("WBV_SPD_"+period)) {
-            wbv_speed = rs.getDouble(sourceFields.get("WBV_SPD_"+period));
-        }
-        if(sourceFields.containsKey("LV_"+period)) {
-            lvPerHour = rs.getDouble(sourceFields.get("LV_"+period));
-        }
-        if(sourceFields.containsKey("MV_"+period)) {
-            mvPerHour = rs.getDouble(sourceFields.get("MV_"+period));
-        }
-        if(sourceFields.containsKey("HGV_"+period)) {
-            hgvPerHour = rs.getDouble(sourceFields.get("HGV_"+period));
-        }
-        if(sourceFields.containsKey("WAV_"+period)) {
-            wavPerHour = rs.getDouble(sourceFields.get("WAV_"+period));
-        }
-        if(sourceFields.containsKey("WBV_"+period)) {
-            wbvPerHour = rs.getDouble(sourceFields.get("WBV_"+period));
-        }
-        if(sourceFields.containsKey("PVMT")) {
-            roadSurface= rs.getString(sourceFields.get("PVMT"));
-        }
-        if(sourceFields.containsKey("TEMP_"+period)) {
-            temperature = rs.getDouble(sourceFields.get("TEMP_"+period));
-        }
-        if(sourceFields.containsKey("TS_STUD")) {
-            tsStud = rs.getDouble(sourceFields.get("TS_STUD"));
-        }
-        if(sourceFields.containsKey("PM_STUD")) {
-            pmStud = rs.getDouble(sourceFields.get("PM_STUD"));
-        }
-        if(sourceFields.containsKey("JUNC_DIST")) {
-            junctionDistance = rs.getDouble(sourceFields.get("JUNC_DIST"));
-        }
-        if(sourceFields.containsKey("JUNC_TYPE")) {
-            junctionType = rs.getInt(sourceFields.get("JUNC_TYPE"));
-        }
-
-        if(sourceFields.containsKey("WAY")) {
-            way = rs.getInt(sourceFields.get("WAY"));
-        }
-
-        if(sourceFields.containsKey("SLOPE")) {
-            slope = rs.getDouble(sourceFields.get("SLOPE"));
-        }else{
-            way = 3;
-        }
-
-
-        // old fields
-        if(sourceFields.containsKey("TV_"+period)) {
-            tv = rs.getDouble(sourceFields.get("TV_"+period));
-        }
-        if(sourceFields.containsKey("HV_"+period)) {
-            hv = rs.getDouble(sourceFields.get("HV_"+period));
-        }
-        if(sourceFields.containsKey("HV_SPD_"+period)) {
-            hgv_speed = rs.getDouble(sourceFields.get("HV_SPD_"+period));
+        int periodIndex = Arrays.asList(RoadEmissionBlock.PERIODS).indexOf(period);
+        if(periodIndex < 0) {
+            throw new IllegalArgumentException("Unknown period " + period);
         }
+        return evaluateRoadEmission(rs, slope).getLevels(periodIndex, 0).clone();
+    }
 
-        if(tv > 0) {
-            lvPerHour = tv - (hv + mvPerHour + hgvPerHour + wavPerHour + wbvPerHour);
-        }
-        if(hv > 0) {
-            hgvPerHour = hv;
-        }
-        // Compute emission
-        int idFreq = 0;
-        for (int freq : ldenConfig.propagationProcessPathDataDay.freq_lvl) {
-            RoadCnossosParameters rsParametersCnossos = new RoadCnossosParameters(lv_speed, mv_speed, hgv_speed, wav_speed,
-                    wbv_speed,lvPerHour, mvPerHour, hgvPerHour, wavPerHour, wbvPerHour, freq, temperature,
-                    roadSurface, tsStud, pmStud, junctionDistance, junctionType);
-            rsParametersCnossos.setSlopePercentage(slope);
-            rsParametersCnossos.setWay(way);
-            rsParametersCnossos.setFileVersion(ldenConfig.coefficientVersion);
-            lvl[idFreq++] = RoadCnossos.evaluate(rsParametersCnossos);
-        }
-        return lvl;
+    /**
+     * @param rs result set of source
+     * @param slope Gradient percentage of road from -12 % to 12 %
+     * @return Road emission of the current row
+     */
+    private RoadEmissionBlock evaluateRoadEmission(ResultSet rs, double slope) throws SQLException, IOException {
+        if (roadEmissionBlock == null) {
+            roadEmissionBlock = new RoadEmissionBlock(rs.getMetaData(), ldenConfig.propagationProcessPathDataDay.freq_lvl,
+                    ldenConfig.coefficientVersion, 1);
+        }
+        roadEmissionBlock.clear();
+        roadEmissionBlock.addRow(rs, slope);
+        roadEmissionBlock.evaluate(0, 1);
+        return roadEmissionBlock;
     }
 
     public double[][] computeLw(SpatialResultSet rs) throws SQLException, IOException {
@@ -283,14 +204,15 @@ public class LDENPropagationProcessData extends CnossosPropagationData {
             } catch (SQLException ex) {
                 // ignore
             }
+            RoadEmissionBlock roadEmission = evaluateRoadEmission(rs, slope);
             // Day
-            ld = dbaToW(getEmissionFromResultSet(rs, "D", slope));
+            ld = dbaToW(roadEmission.getLevels(0, 0));
 
             // Evening
-            le = dbaToW(getEmissionFromResultSet(rs, "E", slope));
+            le = dbaToW(roadEmission.getLevels(1, 0));
 
             // Night
-            ln = dbaToW(getEmissionFromResultSet(rs, "N", slope));
+            ln = dbaToW(roadEmission.getLevels(2, 0));
 
         }
         return new double[][] {ld, le, ln};
@@ -35,6 +35,13 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Compute noise propagation at specified receiver points.
@@ -47,6 +54,14 @@ public class PointNoiseMap extends JdbcNoiseMap {
     private Logger logger = LoggerFactory.getLogger(PointNoiseMap.class);
     private int threadCount = 0;
     private ProfilerThread profilerThread;
+    /** Number of cells prepared in advance by {@link #evaluateCells} while the current cell is computed */
+    private int cellPrefetchCount = 1;
+    /** If greater than 0, cells with few receivers are computed with fewer threads and concurrently */
+    private int minimumReceiversPerThread = 0;
+    /** Optional cache of buildings, topography and soil areas shared between cells */
+    private ProfileBuilderCache profileBuilderCache = null;
+    /** Optional persistent cache of the source-receiver attenuation of the cells */
+    private AttenuationCache attenuationCache = null;
 
     public PointNoiseMap(String buildingsTableName, String sourcesTableName, String receiverTableName) {
         super(buildingsTableName, sourcesTableName);
@@ -87,6 +102,95 @@ public class PointNoiseMap extends JdbcNoiseMap {
         this.threadCount = threadCount;
     }
 
+    /**
+     * @return Number of cells prepared in advance by {@link #evaluateCells} while the current cell is computed
+     */
+    public int getCellPrefetchCount() {
+        return cellPrefetchCount;
+    }
+
+    /**
+     * @param cellPrefetchCount Number of cells prepared in advance by {@link #evaluateCells} while the current cell
+     *                          is computed. 0 to fetch the cell only when the previous one is done.
+     */
+    public void setCellPrefetchCount(int cellPrefetchCount) {
+        this.cellPrefetchCount = Math.max(0, cellPrefetchCount);
+    }
+
+    /**
+     * @return Minimal number of receivers for each computation thread of a cell. 0 if disabled.
+     */
+    public int getMinimumReceiversPerThread() {
+        return minimumReceiversPerThread;
+    }
+
+    /**
+     * Cells that contain less than threadCount * minimumReceiversPerThread receivers are computed with fewer threads,
+     * the remaining threads of the budget ({@link #getThreadCount()}) are used to compute the next cells at the same
+     * time.
+     * @param minimumReceiversPerThread Minimal number of receivers for each computation thread of a cell.
+     *                                  0 (default) to compute cells one by one with all threads.
+     */
+    public void setMinimumReceiversPerThread(int minimumReceiversPerThread) {
+        this.minimumReceiversPerThread = Math.max(0, minimumReceiversPerThread);
+    }
+
+    /**
+     * @return Cache of buildings, topography and soil areas shared between cells, null if disabled
+     */
+    public ProfileBuilderCache getProfileBuilderCache() {
+        return profileBuilderCache;
+    }
+
+    /**
+     * Cells borrow the buildings, topography and soil areas of a tile of cells instead of fetching and processing
+     * their own. The tile covers more area than the cell so the triangulation of the topography can differ slightly.
+     * @param profileBuilderCache Cache shared between cells, null (default) to fetch the data of each cell
+     */
+    public void setProfileBuilderCache(ProfileBuilderCache profileBuilderCache) {
+        this.profileBuilderCache = profileBuilderCache;
+    }
+
+    /**
+     * @return Persistent cache of the source-receiver attenuation, null if disabled
+     */
+    public AttenuationCache getAttenuationCache() {
+        return attenuationCache;
+    }
+
+    /**
+     * Cells with the same receivers, sources geometry, obstacles and propagation settings than a previous
+     * computation reuse its attenuation, only the energetic sum of the current source emission is evaluated.
+     * The computation output must implement {@link AttenuationCache.CacheableComputeRaysOut}.
+     * @param attenuationCache Attenuation cache, null (default) to compute the propagation of each cell
+     */
+    public void setAttenuationCache(AttenuationCache attenuationCache) {
+        this.attenuationCache = attenuationCache;
+    }
+
+    /**
+     * Fetch buildings, topography and soil areas located in the envelope
+     * @param connection Active connection
+     * @param envelope Fetch envelope
+     * @return Finished profile builder
+     */
+    private ProfileBuilder fetchProfileBuilder(Connection connection, Envelope envelope) throws SQLException, IOException {
+        ProfileBuilder builder = new ProfileBuilder();
+        // //////////////////////////////////////////////////////
+        // feed freeFieldFinder for fast intersection query
+        // optimization
+        // Fetch buildings in extendedEnvelope
+        fetchCellBuildings(connection, envelope, builder);
+        //if we have topographic points data
+        fetchCellDem(connection, envelope, builder);
+
+        // Fetch soil areas
+        fetchCellSoilAreas(connection, envelope, builder);
+
+        builder.finishFeeding();
+        return builder;
+    }
+
     /**
      * Initialisation of data structures needed for sound propagation.
      * @param connection JDBC Connection
@@ -98,7 +202,6 @@ public class PointNoiseMap extends JdbcNoiseMap {
      */
     public CnossosPropagationData prepareCell(Connection connection,int cellI, int cellJ,
                                               ProgressVisitor progression, Set<Long> skipReceivers) throws SQLException, IOException {
-        ProfileBuilder builder = new ProfileBuilder();
         int ij = cellI * gridDim + cellJ + 1;
         if(verbose) {
             logger.info("Begin processing of cell " + ij + " / " + gridDim * gridDim);
@@ -110,19 +213,21 @@ public class PointNoiseMap extends JdbcNoiseMap {
         Envelope expandedCellEnvelop = new Envelope(cellEnvelope);
         expandedCellEnvelop.expandBy(maximumPropagationDistance);
 
-        // //////////////////////////////////////////////////////
-        // feed freeFieldFinder for fast intersection query
-        // optimization
-        // Fetch buildings in extendedEnvelope
-        fetchCellBuildings(connection, expandedCellEnvelop, builder);
-        //if we have topographic points data
-        fetchCellDem(connection, expandedCellEnvelop, builder);
-
-        // Fetch soil areas
-        fetchCellSoilAreas(connection, expandedCellEnvelop, builder);
-
-        builder.finishFeeding();
-
+        ProfileBuilder builder;
+        if(profileBuilderCache != null) {
+            int cellsPerTile = profileBuilderCache.getCellsPerTile();
+            int tileI = cellI / cellsPerTile;
+            int tileJ = cellJ / cellsPerTile;
+            Envelope tileEnvelope = getCellEnv(mainEnvelope, tileI * cellsPerTile, tileJ * cellsPerTile,
+                    getCellWidth(), getCellHeight());
+            tileEnvelope.expandToInclude(getCellEnv(mainEnvelope, Math.min(gridDim, (tileI + 1) * cellsPerTile) - 1,
+                    Math.min(gridDim, (tileJ + 1) * cellsPerTile) - 1, getCellWidth(), getCellHeight()));
+            tileEnvelope.expandBy(maximumPropagationDistance);
+            builder = profileBuilderCache.get(new CellIndex(tileJ, tileI), tileEnvelope,
+                    envelope -> fetchProfileBuilder(connection, envelope));
+        } else {
+            builder = fetchProfileBuilder(connection, expandedCellEnvelop);
+        }
 
         CnossosPropagationData propagationProcessData;
         if(propagationProcessDataFactory != null) {
@@ -134,8 +239,13 @@ public class PointNoiseMap extends JdbcNoiseMap {
         propagationProcessData.setBodyBarrier(bodyBarrier);
         propagationProcessData.maximumError = getMaximumError();
         propagationProcessData.noiseFloor = getNoiseFloor();
+        if(propagationProcessData.isEarlyTerminationEnabled()) {
+            propagationProcessData.obstacleAttenuationBound = obstacleAttenuationBound;
+            propagationProcessData.minimalAtmosphericAbsorption = getMinimalAtmosphericAbsorption();
+        }
         propagationProcessData.maxRefDist = maximumReflectionDistance;
         propagationProcessData.maxSrcDist = maximumPropagationDistance;
+        propagationProcessData.sourceClusteringDistance = sourceClusteringDistance;
         propagationProcessData.gS = getGs();
         propagationProcessData.setComputeVerticalDiffraction(computeVerticalDiffraction);
         propagationProcessData.setComputeHorizontalDiffraction(computeHorizontalDiffraction);
@@ -257,7 +367,116 @@ public class PointNoiseMap extends JdbcNoiseMap {
     public IComputeRaysOut evaluateCell(Connection connection, int cellI, int cellJ,
                                         ProgressVisitor progression, Set<Long> skipReceivers) throws SQLException, IOException {
         CnossosPropagationData threadData = prepareCell(connection, cellI, cellJ, progression, skipReceivers);
+        return computeCell(threadData, threadCount);
+    }
+
+    /**
+     * Launch sound propagation on the provided cells. While a cell is computed the next cells are fetched from the
+     * database on another thread (see {@link #setCellPrefetchCount(int)}). Small cells can be computed at the same
+     * time without exceeding the thread count (see {@link #setMinimumReceiversPerThread(int)}).
+     * @param connection Active connection
+     * @param cells Cells to compute, in this order
+     * @param progression Progression info
+     * @param skipReceivers Receivers already computed
+     * @param cellComputedListener Called with the result of each cell, may be called from another thread. Can be null
+     * @throws SQLException
+     * @throws IOException
+     */
+    public void evaluateCells(Connection connection, Collection<CellIndex> cells, ProgressVisitor progression,
+                              Set<Long> skipReceivers, CellComputedListener cellComputedListener) throws SQLException, IOException {
+        final int threadBudget = threadCount > 0 ? threadCount : Runtime.getRuntime().availableProcessors();
+        final Semaphore availableThreads = new Semaphore(threadBudget);
+        final AtomicReference<Throwable> computeError = new AtomicReference<>();
+        ExecutorService prepareExecutor = Executors.newSingleThreadExecutor();
+        ExecutorService computeExecutor = Executors.newCachedThreadPool();
+        Deque<Future<CnossosPropagationData>> preparedCells = new ArrayDeque<>();
+        Deque<CellIndex> preparedCellsIndex = new ArrayDeque<>();
+        Iterator<CellIndex> cellIterator = cells.iterator();
+        try {
+            while (computeError.get() == null && (progression == null || !progression.isCanceled())) {
+                // Feed the preparation thread
+                while (preparedCells.size() <= cellPrefetchCount && cellIterator.hasNext()) {
+                    final CellIndex cellIndex = cellIterator.next();
+                    preparedCellsIndex.add(cellIndex);
+                    preparedCells.add(prepareExecutor.submit(() -> prepareCell(connection,
+                            cellIndex.getLatitudeIndex(), cellIndex.getLongitudeIndex(), progression, skipReceivers)));
+                }
+                if (preparedCells.isEmpty()) {
+                    break;
+                }
+                final CellIndex cellIndex = preparedCellsIndex.poll();
+                final CnossosPropagationData threadData = preparedCells.poll().get();
+                final int cellThreadCount = getCellThreadCount(threadData.receivers.size(), threadBudget);
+                availableThreads.acquire(cellThreadCount);
+                computeExecutor.execute(() -> {
+                    try {
+                        IComputeRaysOut computeRaysOut = computeCell(threadData, cellThreadCount);
+                        if (cellComputedListener != null) {
+                            cellComputedListener.onCellComputed(cellIndex, computeRaysOut);
+                        }
+                    } catch (Throwable ex) {
+                        logger.error(ex.getLocalizedMessage(), ex);
+                        computeError.compareAndSet(null, ex);
+                    } finally {
+                        availableThreads.release(cellThreadCount);
+                    }
+                });
+            }
+        } catch (InterruptedException ex) {
+            throw new IOException(ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof SQLException) {
+                throw (SQLException) ex.getCause();
+            } else if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            } else {
+                throw new IOException(ex.getCause());
+            }
+        } finally {
+            // Do not interrupt a running query, only skip the cells not yet fetched
+            for (Future<CnossosPropagationData> preparedCell : preparedCells) {
+                preparedCell.cancel(false);
+            }
+            prepareExecutor.shutdown();
+            computeExecutor.shutdown();
+            try {
+                // Wait for the end of all cells computation
+                computeExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+                prepareExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ex) {
+                logger.error(ex.getLocalizedMessage(), ex);
+            }
+        }
+        Throwable error = computeError.get();
+        if (error instanceof SQLException) {
+            throw (SQLException) error;
+        } else if (error instanceof IOException) {
+            throw (IOException) error;
+        } else if (error != null) {
+            throw new IOException(error);
+        }
+    }
 
+    /**
+     * @param receiverCount Number of receivers in the cell
+     * @param threadBudget Maximum number of threads
+     * @return Number of threads to use for the computation of this cell
+     */
+    int getCellThreadCount(int receiverCount, int threadBudget) {
+        if (minimumReceiversPerThread <= 0) {
+            return threadBudget;
+        }
+        int cellThreadCount = (int) Math.ceil(receiverCount / (double) minimumReceiversPerThread);
+        return Math.max(1, Math.min(threadBudget, cellThreadCount));
+    }
+
+    /**
+     * Launch sound propagation on a prepared cell
+     * @param threadData Cell data, see {@link #prepareCell}
+     * @param cellThreadCount Number of thread to use, 0 for all available cores
+     * @return Computation output
+     */
+    private IComputeRaysOut computeCell(CnossosPropagationData threadData, int cellThreadCount) throws IOException {
         if(verbose) {
             logger.info(String.format("This computation area contains %d receivers %d sound sources and %d buildings",
                     threadData.receivers.size(), threadData.sourceGeometries.size(),
@@ -271,14 +490,33 @@ public class PointNoiseMap extends JdbcNoiseMap {
                     propagationProcessPathDataEvening, propagationProcessPathDataNight);
         }
 
+        AttenuationCache.CacheableComputeRaysOut cacheableRaysOut = null;
+        String cacheKey = null;
+        if(attenuationCache != null && computeRaysOut instanceof AttenuationCache.CacheableComputeRaysOut &&
+                ((AttenuationCache.CacheableComputeRaysOut) computeRaysOut).isAttenuationCacheable()) {
+            cacheableRaysOut = (AttenuationCache.CacheableComputeRaysOut) computeRaysOut;
+            cacheKey = AttenuationCache.computeKey(threadData, receiverHasAbsoluteZCoordinates,
+                    sourceHasAbsoluteZCoordinates, propagationProcessPathDataDay, propagationProcessPathDataEvening,
+                    propagationProcessPathDataNight);
+            List<AttenuationCache.ReceiverAttenuation> attenuation = attenuationCache.load(cacheKey);
+            if(attenuation != null) {
+                if(verbose) {
+                    logger.info("Propagation of this computation area read from the attenuation cache");
+                }
+                cacheableRaysOut.replayAttenuation(attenuation);
+                return computeRaysOut;
+            }
+            cacheableRaysOut.startAttenuationRecording();
+        }
+
         ComputeCnossosRays computeRays = new ComputeCnossosRays(threadData);
 
         if(profilerThread != null) {
             computeRays.setProfilerThread(profilerThread);
         }
 
-        if(threadCount > 0) {
-            computeRays.setThreadCount(threadCount);
+        if(cellThreadCount > 0) {
+            computeRays.setThreadCount(cellThreadCount);
         }
 
         if(!receiverHasAbsoluteZCoordinates) {
@@ -291,6 +529,14 @@ public class PointNoiseMap extends JdbcNoiseMap {
 
         computeRays.run(computeRaysOut);
 
+        if(cacheableRaysOut != null) {
+            Collection<AttenuationCache.ReceiverAttenuation> attenuation = cacheableRaysOut.stopAttenuationRecording();
+            // a cancelled computation does not contain all receivers
+            if(threadData.cellProg == null || !threadData.cellProg.isCanceled()) {
+                attenuationCache.save(cacheKey, attenuation);
+            }
+        }
+
         return computeRaysOut;
     }
 
@@ -313,6 +559,17 @@ public class PointNoiseMap extends JdbcNoiseMap {
                                PropagationProcessPathData pathDataEvening, PropagationProcessPathData pathDataNight);
     }
 
+    /**
+     * Receive the result of each cell computed by {@link #evaluateCells}
+     */
+    public interface CellComputedListener {
+        /**
+         * @param cellIndex Computed cell
+         * @param computeRaysOut Result of the cell computation
+         */
+        void onCellComputed(CellIndex cellIndex, IComputeRaysOut computeRaysOut);
+    }
+
     /**
      * Cell metadata computed from receivers table
      */
@@ -0,0 +1,232 @@
+/**
+ * NoiseModelling is an open-source tool designed to produce environmental noise maps on very large urban areas. It can be used as a Java library or be controlled through a user friendly web interface.
+ *
+ * This version is developed by the DECIDE team from the Lab-STICC (CNRS) and by the Mixt Research Unit in Environmental Acoustics (Université Gustave Eiffel).
+ * <http://noise-planet.org/noisemodelling.html>
+ *
+ * NoiseModelling is distributed under GPL 3 license. You can read a copy of this License in the file LICENCE provided with this software.
+ *
+ * Contact: contact@noise-planet.org
+ *
+ */
+package org.noise_planet.noisemodelling.jdbc;
+
+import org.locationtech.jts.geom.Envelope;
+import org.noise_planet.noisemodelling.pathfinder.ProfileBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Finished {@link ProfileBuilder} shared between the cells of a {@link PointNoiseMap}.
+ * Cells are grouped by square tiles of {@link #getCellsPerTile()} cells side, the buildings, topography and soil
+ * areas of a tile are fetched and processed once, then borrowed by all the cells of the tile.
+ * The least recently used tiles are evicted when the estimated memory usage exceeds the memory budget.
+ *
+ * A finished ProfileBuilder is read only, so a tile can be used by several cells computed at the same time.
+ * The cache must be used by a single PointNoiseMap configuration (tables and propagation distance).
+ * @author Nicolas Fortin
+ */
+public class ProfileBuilderCache {
+    // Rough memory footprint of the processed geometries (coordinates, JTS objects, RTree nodes)
+    private static final long BYTES_PER_BUILDING_COORDINATE = 120;
+    private static final long BYTES_PER_WALL = 400;
+    private static final long BYTES_PER_TRIANGLE = 100;
+    private static final long BYTES_PER_VERTEX = 60;
+    private static final long BYTES_PER_GROUND_COORDINATE = 80;
+    private static final long BYTES_PER_BUILDER = 4096;
+
+    private final Logger logger = LoggerFactory.getLogger(ProfileBuilderCache.class);
+    private final int cellsPerTile;
+    private final long memoryBudget;
+    // Access ordered, eldest entry is the least recently used tile
+    private final LinkedHashMap<PointNoiseMap.CellIndex, Tile> tiles = new LinkedHashMap<>(16, 0.75f, true);
+    private long memoryUsage = 0;
+    private final AtomicLong hitCount = new AtomicLong(0);
+    private final AtomicLong missCount = new AtomicLong(0);
+    private final AtomicLong evictionCount = new AtomicLong(0);
+
+    /**
+     * Load the content of a tile
+     */
+    public interface TileLoader {
+        /**
+         * @param tileEnvelope Envelope of the data to fetch
+         * @return Finished profile builder
+         */
+        ProfileBuilder load(Envelope tileEnvelope) throws SQLException, IOException;
+    }
+
+    private static class Tile {
+        ProfileBuilder builder = null;
+        long memoryUsage = 0;
+        // True once counted in the cache memory usage, guarded by the cache lock
+        boolean accounted = false;
+    }
+
+    /**
+     * @param cellsPerTile Number of cells on each side of a tile
+     * @param memoryBudget Estimated memory usage in bytes above which the least recently used tiles are evicted.
+     *                     The last used tile is always kept.
+     */
+    public ProfileBuilderCache(int cellsPerTile, long memoryBudget) {
+        if(cellsPerTile < 1) {
+            throw new IllegalArgumentException("Tile must contain at least one cell");
+        }
+        this.cellsPerTile = cellsPerTile;
+        this.memoryBudget = memoryBudget;
+    }
+
+    /**
+     * @return Number of cells on each side of a tile
+     */
+    public int getCellsPerTile() {
+        return cellsPerTile;
+    }
+
+    /**
+     * @return Estimated memory usage in bytes above which the least recently used tiles are evicted
+     */
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /**
+     * @return Estimated memory usage of the cached tiles in bytes
+     */
+    public synchronized long getMemoryUsage() {
+        return memoryUsage;
+    }
+
+    /**
+     * @return Number of cached tiles, including tiles being loaded
+     */
+    public synchronized int getTileCount() {
+        return tiles.size();
+    }
+
+    /**
+     * @return Number of requests served by an already loaded tile
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * @return Number of requests that needed to load a tile
+     */
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * @return Number of evicted tiles
+     */
+    public long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+    /**
+     * Retrieve the profile builder of a tile, load it if it is not in the cache.
+     * Threads that request a tile being loaded wait for the end of the loading.
+     * @param tileIndex Tile index, cell index divided by {@link #getCellsPerTile()}
+     * @param tileEnvelope Envelope of the tile data, must always be the same for a tile index
+     * @param loader Tile loader called if the tile is not in the cache
+     * @return Finished profile builder, must not be modified
+     */
+    public ProfileBuilder get(PointNoiseMap.CellIndex tileIndex, Envelope tileEnvelope, TileLoader loader)
+            throws SQLException, IOException {
+        Tile tile;
+        synchronized (this) {
+            tile = tiles.get(tileIndex);
+            if(tile == null) {
+                tile = new Tile();
+                tiles.put(tileIndex, tile);
+            }
+        }
+        synchronized (tile) {
+            if(tile.builder != null) {
+                hitCount.incrementAndGet();
+                return tile.builder;
+            }
+            missCount.incrementAndGet();
+            ProfileBuilder builder;
+            try {
+                builder = loader.load(tileEnvelope);
+            } catch (SQLException | IOException | RuntimeException ex) {
+                synchronized (this) {
+                    tiles.remove(tileIndex, tile);
+                }
+                throw ex;
+            }
+            tile.builder = builder;
+            tile.memoryUsage = estimateMemoryUsage(builder);
+            synchronized (this) {
+                if(tiles.get(tileIndex) == tile) {
+                    memoryUsage += tile.memoryUsage;
+                    tile.accounted = true;
+                    evict(tile);
+                }
+            }
+            return builder;
+        }
+    }
+
+    /**
+     * Remove the least recently used loaded tiles until the memory usage is below the budget
+     * @param keep Tile that must not be evicted
+     */
+    private void evict(Tile keep) {
+        Iterator<Map.Entry<PointNoiseMap.CellIndex, Tile>> it = tiles.entrySet().iterator();
+        while(memoryUsage > memoryBudget && it.hasNext()) {
+            Map.Entry<PointNoiseMap.CellIndex, Tile> entry = it.next();
+            Tile tile = entry.getValue();
+            // Tiles being loaded are accounted once loaded
+            if(tile != keep && tile.accounted) {
+                it.remove();
+                memoryUsage -= tile.memoryUsage;
+                evictionCount.incrementAndGet();
+                if(logger.isDebugEnabled()) {
+                    logger.debug(String.format("Evict profile builder tile %s", entry.getKey()));
+                }
+            }
+        }
+    }
+
+    /**
+     * Remove all tiles
+     */
+    public synchronized void clear() {
+        tiles.clear();
+        memoryUsage = 0;
+    }
+
+    /**
+     * @param builder Finished profile builder
+     * @return Rough estimation of the memory used by the builder in bytes
+     */
+    public static long estimateMemoryUsage(ProfileBuilder builder) {
+        long size = BYTES_PER_BUILDER;
+        for(ProfileBuilder.Building building : builder.getBuildings()) {
+            size += building.getGeometry().getNumPoints() * BYTES_PER_BUILDING_COORDINATE;
+        }
+        size += (long)builder.getWallCount() * BYTES_PER_WALL;
+        size += (long)builder.getProcessedWalls().size() * BYTES_PER_WALL;
+        if(builder.getTriangles() != null) {
+            size += (long)builder.getTriangles().size() * BYTES_PER_TRIANGLE;
+        }
+        if(builder.getVertices() != null) {
+            size += (long)builder.getVertices().size() * BYTES_PER_VERTEX;
+        }
+        for(ProfileBuilder.GroundEffect groundEffect : builder.getGroundEffects()) {
+            size += groundEffect.getGeometry().getNumPoints() * BYTES_PER_GROUND_COORDINATE;
+        }
+        return size;
+    }
+}
@@ -0,0 +1,261 @@
+package org.noise_planet.noisemodelling.jdbc;
+
+import org.noise_planet.noisemodelling.emission.road.cnossos.RoadCnossos;
+import org.noise_planet.noisemodelling.emission.road.cnossos.RoadCnossosParameters;
+
+import java.io.IOException;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Evaluate the CNOSSOS emission of a block of road segments read from a traffic table.
+ * The traffic columns are resolved once from the table metadata, the rows are copied into primitive arrays and the
+ * emission spectrum of every period is evaluated for the whole block, optionally on several threads.
+ * @author Nicolas Fortin, Université Gustave Eiffel
+ */
+public class RoadEmissionBlock {
+    public static final int DEFAULT_BLOCK_SIZE = 4096;
+    /** Day, evening and night periods, in this order for the arrays indexed by period */
+    public static final String[] PERIODS = new String[] {"D", "E", "N"};
+    private static final String[] VEHICLES = new String[] {"LV", "MV", "HGV", "WAV", "WBV"};
+    private static final int HGV = 2;
+    private static final double DEFAULT_TEMPERATURE = 20.0;
+    private static final String DEFAULT_PAVEMENT = "NL08";
+    private static final double DEFAULT_JUNCTION_DISTANCE = 100; // no acceleration of deceleration changes with dist >= 100
+    private static final int DEFAULT_JUNCTION_TYPE = 2;
+    private static final int DEFAULT_WAY = 3; // 2-way road
+
+    private final List<Integer> frequencies;
+    private final int coefficientVersion;
+    private final int capacity;
+    private int size = 0;
+
+    // Column index in the result set, 0 if the column does not exists
+    private final int[][] speedColumns = new int[PERIODS.length][VEHICLES.length];
+    private final int[][] flowColumns = new int[PERIODS.length][VEHICLES.length];
+    private final int[] totalFlowColumns = new int[PERIODS.length]; // old format "total vehicles"
+    private final int[] heavyFlowColumns = new int[PERIODS.length]; // old format "heavy vehicles"
+    private final int[] heavySpeedColumns = new int[PERIODS.length]; // old format "heavy vehicles" speed
+    private final int[] temperatureColumns = new int[PERIODS.length];
+    private final int pavementColumn;
+    private final int tsStudColumn;
+    private final int pmStudColumn;
+    private final int junctionDistanceColumn;
+    private final int junctionTypeColumn;
+    private final int wayColumn;
+    private final int slopeColumn;
+
+    // Values of the rows of the block
+    private final double[][][] speed; // [period][vehicle][row]
+    private final double[][][] flow; // [period][vehicle][row]
+    private final double[][] temperature; // [period][row]
+    private final String[] pavement;
+    private final double[] tsStud;
+    private final double[] pmStud;
+    private final double[] junctionDistance;
+    private final int[] junctionType;
+    private final int[] way;
+    private final double[] slope;
+    // Emission of the rows of the block in dB [period][row][band]
+    private final double[][][] levels;
+
+    /**
+     * @param metaData Traffic table metadata
+     * @param frequencies Frequency bands in Hz
+     * @param coefficientVersion CNOSSOS coefficients version (1 = 2015, 2 = 2020)
+     * @param capacity Maximum number of rows of the block
+     */
+    public RoadEmissionBlock(ResultSetMetaData metaData, List<Integer> frequencies, int coefficientVersion,
+                             int capacity) throws SQLException {
+        this.frequencies = frequencies;
+        this.coefficientVersion = coefficientVersion;
+        this.capacity = capacity;
+        for(int period = 0; period < PERIODS.length; period++) {
+            for(int vehicle = 0; vehicle < VEHICLES.length; vehicle++) {
+                speedColumns[period][vehicle] = findColumn(metaData, VEHICLES[vehicle] + "_SPD_" + PERIODS[period]);
+                flowColumns[period][vehicle] = findColumn(metaData, VEHICLES[vehicle] + "_" + PERIODS[period]);
+            }
+            totalFlowColumns[period] = findColumn(metaData, "TV_" + PERIODS[period]);
+            heavyFlowColumns[period] = findColumn(metaData, "HV_" + PERIODS[period]);
+            heavySpeedColumns[period] = findColumn(metaData, "HV_SPD_" + PERIODS[period]);
+            temperatureColumns[period] = findColumn(metaData, "TEMP_" + PERIODS[period]);
+        }
+        pavementColumn = findColumn(metaData, "PVMT");
+        tsStudColumn = findColumn(metaData, "TS_STUD");
+        pmStudColumn = findColumn(metaData, "PM_STUD");
+        junctionDistanceColumn = findColumn(metaData, "JUNC_DIST");
+        junctionTypeColumn = findColumn(metaData, "JUNC_TYPE");
+        wayColumn = findColumn(metaData, "WAY");
+        slopeColumn = findColumn(metaData, "SLOPE");
+        speed = new double[PERIODS.length][VEHICLES.length][capacity];
+        flow = new double[PERIODS.length][VEHICLES.length][capacity];
+        temperature = new double[PERIODS.length][capacity];
+        pavement = new String[capacity];
+        tsStud = new double[capacity];
+        pmStud = new double[capacity];
+        junctionDistance = new double[capacity];
+        junctionType = new int[capacity];
+        way = new int[capacity];
+        slope = new double[capacity];
+        levels = new double[PERIODS.length][capacity][frequencies.size()];
+    }
+
+    /**
+     * @param metaData Table metadata
+     * @param columnName Column name, case-insensitive
+     * @return Column index, 0 if the column does not exists
+     */
+    private static int findColumn(ResultSetMetaData metaData, String columnName) throws SQLException {
+        for(int columnId = 1; columnId <= metaData.getColumnCount(); columnId++) {
+            if(columnName.equalsIgnoreCase(metaData.getColumnName(columnId))) {
+                return columnId;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @return Number of rows in the block
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return True if the block cannot receive more rows
+     */
+    public boolean isFull() {
+        return size >= capacity;
+    }
+
+    /**
+     * Remove all rows of the block
+     */
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * Copy the current row of the result set into the block
+     * @param rs Traffic table result set
+     * @param geometrySlope Gradient percentage of the road used if the table does not contain a SLOPE column
+     * @return Index of the row in the block
+     */
+    public int addRow(ResultSet rs, double geometrySlope) throws SQLException {
+        if(isFull()) {
+            throw new IllegalStateException(String.format(Locale.ROOT, "The block is full (%d rows)", capacity));
+        }
+        int row = size++;
+        for(int period = 0; period < PERIODS.length; period++) {
+            for(int vehicle = 0; vehicle < VEHICLES.length; vehicle++) {
+                speed[period][vehicle][row] = readDouble(rs, speedColumns[period][vehicle], 0);
+                flow[period][vehicle][row] = readDouble(rs, flowColumns[period][vehicle], 0);
+            }
+            temperature[period][row] = readDouble(rs, temperatureColumns[period], DEFAULT_TEMPERATURE);
+            // old fields
+            if(heavySpeedColumns[period] > 0) {
+                speed[period][HGV][row] = rs.getDouble(heavySpeedColumns[period]);
+            }
+            double tv = readDouble(rs, totalFlowColumns[period], 0);
+            double hv = readDouble(rs, heavyFlowColumns[period], 0);
+            if(tv > 0) {
+                double otherFlow = hv;
+                for(int vehicle = 1; vehicle < VEHICLES.length; vehicle++) {
+                    otherFlow += flow[period][vehicle][row];
+                }
+                flow[period][0][row] = tv - otherFlow;
+            }
+            if(hv > 0) {
+                flow[period][HGV][row] = hv;
+            }
+        }
+        pavement[row] = pavementColumn > 0 ? rs.getString(pavementColumn) : DEFAULT_PAVEMENT;
+        tsStud[row] = readDouble(rs, tsStudColumn, 0);
+        pmStud[row] = readDouble(rs, pmStudColumn, 0);
+        junctionDistance[row] = readDouble(rs, junctionDistanceColumn, DEFAULT_JUNCTION_DISTANCE);
+        junctionType[row] = junctionTypeColumn > 0 ? rs.getInt(junctionTypeColumn) : DEFAULT_JUNCTION_TYPE;
+        if(slopeColumn > 0) {
+            way[row] = wayColumn > 0 ? rs.getInt(wayColumn) : DEFAULT_WAY;
+            slope[row] = rs.getDouble(slopeColumn);
+        } else {
+            way[row] = DEFAULT_WAY;
+            slope[row] = geometrySlope;
+        }
+        return row;
+    }
+
+    private static double readDouble(ResultSet rs, int column, double defaultValue) throws SQLException {
+        return column > 0 ? rs.getDouble(column) : defaultValue;
+    }
+
+    /**
+     * Evaluate the emission of the rows of the block
+     * @param from First row (inclusive)
+     * @param to Last row (exclusive)
+     */
+    public void evaluate(int from, int to) throws IOException {
+        for(int row = from; row < to; row++) {
+            for(int period = 0; period < PERIODS.length; period++) {
+                double[][] periodSpeed = speed[period];
+                double[][] periodFlow = flow[period];
+                RoadCnossosParameters rsParametersCnossos = new RoadCnossosParameters(periodSpeed[0][row],
+                        periodSpeed[1][row], periodSpeed[2][row], periodSpeed[3][row], periodSpeed[4][row],
+                        periodFlow[0][row], periodFlow[1][row], periodFlow[2][row], periodFlow[3][row],
+                        periodFlow[4][row], 0, temperature[period][row], pavement[row], tsStud[row], pmStud[row],
+                        junctionDistance[row], junctionType[row]);
+                rsParametersCnossos.setSlopePercentage(slope[row]);
+                rsParametersCnossos.setWay(way[row]);
+                rsParametersCnossos.setFileVersion(coefficientVersion);
+                double[] spectrum = RoadCnossos.evaluateSpectrum(rsParametersCnossos, frequencies);
+                System.arraycopy(spectrum, 0, levels[period][row], 0, spectrum.length);
+            }
+        }
+    }
+
+    /**
+     * Evaluate the emission of all the rows of the block, split in chunks of rows evaluated by the executor
+     * @param executorService Executor of the chunks
+     * @param threadCount Number of chunks
+     */
+    public void evaluate(ExecutorService executorService, int threadCount) throws IOException {
+        int chunkSize = Math.max(1, (size + threadCount - 1) / threadCount);
+        List<Future<?>> chunks = new ArrayList<>(threadCount);
+        for(int from = 0; from < size; from += chunkSize) {
+            final int chunkFrom = from;
+            final int chunkTo = Math.min(size, from + chunkSize);
+            chunks.add(executorService.submit(() -> {
+                evaluate(chunkFrom, chunkTo);
+                return null;
+            }));
+        }
+        try {
+            for(Future<?> chunk : chunks) {
+                chunk.get();
+            }
+        } catch (ExecutionException ex) {
+            if(ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IOException(ex.getCause());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException(ex);
+        }
+    }
+
+    /**
+     * @param period Period index in {@link #PERIODS}
+     * @param row Row index in the block
+     * @return Emission spectrum in dB, the array is owned by the block and overwritten by the next evaluation
+     */
+    public double[] getLevels(int period, int row) {
+        return levels[period][row];
+    }
+}
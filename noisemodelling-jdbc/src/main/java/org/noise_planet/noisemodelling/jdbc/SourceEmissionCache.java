@@ -0,0 +1,121 @@
+package org.noise_planet.noisemodelling.jdbc;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Emission spectrum of the sources for each period, kept for the whole computation and keyed by the source primary
+ * key. The cells fetch the sources of their expanded envelope so the same source is read by the neighbouring cells,
+ * this cache avoid evaluating its emission again.
+ * The spectrum are stored in a fixed size direct buffer. The cache is direct mapped: a new source replace the source
+ * stored at the same slot, so the memory used does not depend on the number of sources.
+ * @author Nicolas Fortin, Université Gustave Eiffel
+ */
+public class SourceEmissionCache {
+    public static final int DEFAULT_CAPACITY = 1 << 16;
+    private final int periodCount;
+    private final int bandCount;
+    private final int mask;
+    private final long[] keys;
+    private final boolean[] occupied;
+    private final DoubleBuffer values;
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+
+    /**
+     * @param capacity Maximum number of sources, rounded up to a power of two
+     * @param periodCount Number of periods of each source
+     * @param bandCount Number of frequency bands of each period
+     */
+    public SourceEmissionCache(int capacity, int periodCount, int bandCount) {
+        if(capacity <= 0) {
+            throw new IllegalArgumentException("The capacity must be strictly positive");
+        }
+        int slotCount = Integer.highestOneBit(capacity);
+        if(slotCount < capacity) {
+            slotCount <<= 1;
+        }
+        if((long) slotCount * periodCount * bandCount * Double.BYTES > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("The capacity exceeds the maximum buffer size");
+        }
+        this.periodCount = periodCount;
+        this.bandCount = bandCount;
+        this.mask = slotCount - 1;
+        this.keys = new long[slotCount];
+        this.occupied = new boolean[slotCount];
+        this.values = ByteBuffer.allocateDirect(slotCount * periodCount * bandCount * Double.BYTES)
+                .order(ByteOrder.nativeOrder()).asDoubleBuffer();
+    }
+
+    private int slot(long pk) {
+        long hash = pk * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32)) & mask;
+    }
+
+    /**
+     * @param pk Source primary key
+     * @return Copy of the emission spectrum of each period, null if the source is not in the cache
+     */
+    public double[][] get(long pk) {
+        int slot = slot(pk);
+        synchronized (this) {
+            if(!occupied[slot] || keys[slot] != pk) {
+                missCount.incrementAndGet();
+                return null;
+            }
+            double[][] emission = new double[periodCount][bandCount];
+            int offset = slot * periodCount * bandCount;
+            for(double[] periodEmission : emission) {
+                values.position(offset);
+                values.get(periodEmission);
+                offset += bandCount;
+            }
+            hitCount.incrementAndGet();
+            return emission;
+        }
+    }
+
+    /**
+     * @param pk Source primary key
+     * @param emission Emission spectrum of each period
+     */
+    public void put(long pk, double[][] emission) {
+        if(emission.length != periodCount) {
+            throw new IllegalArgumentException(String.format("Expected %d periods got %d", periodCount,
+                    emission.length));
+        }
+        for(double[] periodEmission : emission) {
+            if(periodEmission.length != bandCount) {
+                throw new IllegalArgumentException(String.format("Expected %d bands got %d", bandCount,
+                        periodEmission.length));
+            }
+        }
+        int slot = slot(pk);
+        synchronized (this) {
+            int offset = slot * periodCount * bandCount;
+            for(double[] periodEmission : emission) {
+                values.position(offset);
+                values.put(periodEmission);
+                offset += bandCount;
+            }
+            keys[slot] = pk;
+            occupied[slot] = true;
+        }
+    }
+
+    /**
+     * @return Number of sources found in the cache
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * @return Number of sources not found in the cache
+     */
+    public long getMissCount() {
+        return missCount.get();
+    }
+}
@@ -26,6 +26,7 @@ import org.h2gis.utilities.TableLocation;
 import org.h2gis.utilities.dbtypes.DBTypes;
 import org.h2gis.utilities.dbtypes.DBUtils;
 import org.locationtech.jts.geom.*;
+import org.noise_planet.noisemodelling.pathfinder.RasterTopography;
 
 import java.io.*;
 import java.sql.*;
@@ -247,6 +248,56 @@ public class AscReaderDriver {
         }
     }
 
+    /**
+     * Read an asc file as a regular grid digital elevation model, without creating a table.
+     * The {@link #setDownScale(int)} setting is applied, other settings are ignored.
+     * @param fileName asc file, can be compressed with gzip (.gz extension)
+     * @return Digital elevation model, no data cells are NaN
+     */
+    public RasterTopography readRaster(File fileName) throws IOException {
+        if (!fileName.exists()) {
+            throw new FileNotFoundException("The file " + fileName + " doesn't exist ");
+        }
+        try (InputStream inputStream = fileName.getName().toLowerCase().endsWith(".gz") ?
+                new GZIPInputStream(new FileInputStream(fileName)) : new FileInputStream(fileName)) {
+            return readRaster(inputStream);
+        }
+    }
+
+    /**
+     * Read an ascii grid as a regular grid digital elevation model
+     * @param inputStream asc content
+     * @return Digital elevation model, no data cells are NaN
+     */
+    public RasterTopography readRaster(InputStream inputStream) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new BufferedInputStream(inputStream, BUFFER_SIZE), encoding));
+        Scanner scanner = new Scanner(reader);
+        try {
+            readHeader(scanner);
+            int columns = (ncols + downScale - 1) / downScale;
+            int rows = (nrows + downScale - 1) / downScale;
+            float[] heights = new float[columns * rows];
+            for (int i = 0; i < nrows; i++) {
+                for (int j = 0; j < ncols; j++) {
+                    if (readFirst) {
+                        lastWord = scanner.next();
+                    } else {
+                        readFirst = true;
+                    }
+                    if (i % downScale == 0 && j % downScale == 0) {
+                        double z = Double.parseDouble(lastWord);
+                        heights[(i / downScale) * columns + j / downScale] = z != noData ? (float) z : Float.NaN;
+                    }
+                }
+            }
+            // xValue and yValue are the north west corner of the grid
+            return new RasterTopography(xValue + cellSize / 2, yValue - cellSize / 2, cellSize * downScale,
+                    columns, rows, heights);
+        } catch (NoSuchElementException | NumberFormatException ex) {
+            throw new IOException("Unexpected word " + lastWord, ex);
+        }
+    }
+
     /**
      * Read the ascii file from inpustream
      *
@@ -0,0 +1,513 @@
+package org.noise_planet.noisemodelling.jdbc.utils;
+
+import org.h2gis.utilities.JDBCUtilities;
+import org.h2gis.utilities.SpatialResultSet;
+import org.h2gis.utilities.TableLocation;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.LinearRing;
+import org.locationtech.jts.geom.Polygon;
+import org.locationtech.jts.geom.util.GeometryFixer;
+import org.noise_planet.noisemodelling.pathfinder.ProfileBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.h2gis.utilities.GeometryTableUtilities.getGeometryColumnNames;
+import static org.noise_planet.noisemodelling.pathfinder.utils.AlphaUtils.getWallAlpha;
+
+/**
+ * Buildings stored in a file, referenced by square tiles.
+ * The file is built once from a buildings table: the geometries are validated, split into polygons and stored with
+ * their height and wall absorption spectrum. The file is then memory mapped in order to fetch the buildings of an
+ * envelope without querying the database nor computing geometry intersections.
+ * A building overlapping several tiles is stored once and referenced by each tile, so the fetched buildings are
+ * never cut at the tile or cell boundaries.
+ *
+ * File layout (big endian):
+ * - header: magic, version, min x, min y, tile size, tile column count, tile row count, building count,
+ *   reference count, tile index position, band count, frequencies
+ * - buildings: envelope, primary key, height, wall absorption of each band, then the exterior ring, the hole count
+ *   and the holes. Each ring is stored as the coordinate count followed by x, y, z of each coordinate.
+ *   A building never overlaps two mapped segments.
+ * - tile index: for each tile (row by row) the index of its first reference, followed by the total reference count
+ * - references: position of the buildings, grouped by tile
+ *
+ * An opened store can be read by several threads.
+ */
+public class BuildingTileStore implements Closeable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(BuildingTileStore.class);
+    private static final int MAGIC = 0x4E4D4254; // NMBT
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 4 + 4 + 8 * 3 + 4 * 2 + 8 * 3 + 4;
+    private static final int SEGMENT_SIZE = 1 << 30;
+
+    private final RandomAccessFile file;
+    private final GeometryFactory factory = new GeometryFactory();
+    private final double minX;
+    private final double minY;
+    private final double tileSize;
+    private final int tileColumns;
+    private final int tileRows;
+    private final long buildingCount;
+    private final double[] frequencies;
+    private final LongBuffer tileIndex;
+    private final LongBuffer references;
+    private final MappedByteBuffer[] segments;
+
+    private BuildingTileStore(RandomAccessFile file) throws IOException {
+        this.file = file;
+        FileChannel channel = file.getChannel();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        readFully(channel, header, 0);
+        if (header.getInt() != MAGIC) {
+            throw new IOException("Not a building tile file");
+        }
+        int version = header.getInt();
+        if (version != VERSION) {
+            throw new IOException(String.format("Unsupported building tile file version %d", version));
+        }
+        minX = header.getDouble();
+        minY = header.getDouble();
+        tileSize = header.getDouble();
+        tileColumns = header.getInt();
+        tileRows = header.getInt();
+        buildingCount = header.getLong();
+        long referenceCount = header.getLong();
+        long indexPosition = header.getLong();
+        int bandCount = header.getInt();
+        ByteBuffer frequencyBuffer = ByteBuffer.allocate(bandCount * Double.BYTES);
+        readFully(channel, frequencyBuffer, HEADER_SIZE);
+        frequencies = new double[bandCount];
+        frequencyBuffer.asDoubleBuffer().get(frequencies);
+        long indexSize = getIndexSize(tileColumns, tileRows);
+        tileIndex = channel.map(FileChannel.MapMode.READ_ONLY, indexPosition, indexSize).asLongBuffer();
+        references = channel.map(FileChannel.MapMode.READ_ONLY, indexPosition + indexSize,
+                referenceCount * Long.BYTES).asLongBuffer();
+        long dataOffset = getDataOffset(bandCount);
+        long dataSize = indexPosition - dataOffset;
+        segments = new MappedByteBuffer[(int) ((dataSize + SEGMENT_SIZE - 1) / SEGMENT_SIZE)];
+        for (int idSegment = 0; idSegment < segments.length; idSegment++) {
+            long segmentStart = (long) idSegment * SEGMENT_SIZE;
+            segments[idSegment] = channel.map(FileChannel.MapMode.READ_ONLY, dataOffset + segmentStart,
+                    Math.min(SEGMENT_SIZE, dataSize - segmentStart));
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of building tile file");
+            }
+        }
+        buffer.flip();
+    }
+
+    private static long getIndexSize(int tileColumns, int tileRows) {
+        return ((long) tileColumns * tileRows + 1) * Long.BYTES;
+    }
+
+    private static long getDataOffset(int bandCount) {
+        return HEADER_SIZE + (long) bandCount * Double.BYTES;
+    }
+
+    /**
+     * Open a file created by {@link #build(Connection, String, String, String, double, List, double, File)}
+     * @param storeFile Building tile file
+     * @return Opened store, must be closed
+     * @throws IOException If the file is not a valid building tile file
+     */
+    public static BuildingTileStore open(File storeFile) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(storeFile, "r");
+        try {
+            return new BuildingTileStore(file);
+        } catch (IOException | RuntimeException ex) {
+            file.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Write the buildings of the table into a tile file. Invalid geometries are repaired, multi-polygons are split
+     * into polygons and the wall absorption spectrum is evaluated once for each building.
+     * @param connection Database connection
+     * @param buildingsTable Buildings table with a POLYGON or MULTIPOLYGON column
+     * @param heightField Height column, if empty the buildings have an infinite height
+     * @param alphaField Wall absorption column, if it does not exists defaultAlpha is used
+     * @param defaultAlpha Wall absorption of the buildings without alpha column
+     * @param frequencies Exact frequencies of the absorption spectrum in Hz
+     * @param tileSize Side length of the tiles in meters, should be of the order of the cell size
+     * @param storeFile Destination file, overwritten if exists
+     * @return Number of stored buildings
+     */
+    public static long build(Connection connection, String buildingsTable, String heightField, String alphaField,
+                             double defaultAlpha, List<Double> frequencies, double tileSize, File storeFile)
+            throws SQLException, IOException {
+        if (tileSize <= 0) {
+            throw new IllegalArgumentException("Tile size must be greater than 0");
+        }
+        List<String> geomFields = getGeometryColumnNames(connection, TableLocation.parse(buildingsTable));
+        if (geomFields.isEmpty()) {
+            throw new SQLException("Buildings table \"" + buildingsTable + "\" must exist and contain a POLYGON field");
+        }
+        String geom = TableLocation.quoteIdentifier(geomFields.get(0));
+        double minX = 0;
+        double minY = 0;
+        int tileColumns = 0;
+        int tileRows = 0;
+        try (Statement st = connection.createStatement()) {
+            try (ResultSet rs = st.executeQuery("SELECT MIN(ST_XMIN(" + geom + ")), MIN(ST_YMIN(" + geom +
+                    ")), MAX(ST_XMAX(" + geom + ")), MAX(ST_YMAX(" + geom + ")), COUNT(" + geom + ") FROM " +
+                    buildingsTable)) {
+                if (rs.next() && rs.getLong(5) > 0) {
+                    minX = rs.getDouble(1);
+                    minY = rs.getDouble(2);
+                    tileColumns = (int) Math.floor((rs.getDouble(3) - minX) / tileSize) + 1;
+                    tileRows = (int) Math.floor((rs.getDouble(4) - minY) / tileSize) + 1;
+                }
+            }
+        }
+        long tileCount = (long) tileColumns * tileRows;
+        if (tileCount + 1 > Integer.MAX_VALUE / Long.BYTES) {
+            throw new IllegalArgumentException("Too many tiles, tile size must be increased");
+        }
+        String additionalQuery = "";
+        boolean fetchHeight = !heightField.isEmpty();
+        if (fetchHeight) {
+            additionalQuery += ", " + TableLocation.quoteIdentifier(heightField);
+        }
+        boolean fetchAlpha = JDBCUtilities.hasField(connection, buildingsTable, alphaField);
+        if (fetchAlpha) {
+            additionalQuery += ", " + TableLocation.quoteIdentifier(alphaField);
+        }
+        String pkField = "";
+        int indexPk = JDBCUtilities.getIntegerPrimaryKey(connection, new TableLocation(buildingsTable));
+        if (indexPk > 0) {
+            pkField = JDBCUtilities.getColumnName(connection, buildingsTable, indexPk);
+            additionalQuery += ", " + TableLocation.quoteIdentifier(pkField);
+        }
+        int bandCount = frequencies.size();
+        long dataOffset = getDataOffset(bandCount);
+        // Position of each building and range of tiles [min column, max column, min row, max row]
+        LongArray positions = new LongArray();
+        IntArray tileRanges = new IntArray();
+        long[] tileReferenceCount = new long[(int) tileCount];
+        long buildingCount = 0;
+        try (RandomAccessFile file = new RandomAccessFile(storeFile, "rw")) {
+            file.setLength(dataOffset);
+            FileChannel channel = file.getChannel();
+            ByteBuffer record = ByteBuffer.allocate(4096);
+            long position = 0;
+            if (tileCount > 0) {
+                double[] alphas = new double[bandCount];
+                double oldAlpha = Double.NaN;
+                try (Statement st = connection.createStatement()) {
+                    st.setFetchSize(10000);
+                    try (SpatialResultSet rs = st.executeQuery("SELECT " + geom + additionalQuery + " FROM " +
+                            buildingsTable + " WHERE " + geom + " IS NOT NULL").unwrap(SpatialResultSet.class)) {
+                        int columnIndex = 2;
+                        int heightIndex = fetchHeight ? columnIndex++ : 0;
+                        int alphaIndex = fetchAlpha ? columnIndex++ : 0;
+                        int pkIndex = indexPk > 0 ? columnIndex : 0;
+                        while (rs.next()) {
+                            Geometry building = rs.getGeometry(1);
+                            if (building == null || building.isEmpty()) {
+                                continue;
+                            }
+                            if (!building.isValid()) {
+                                LOGGER.warn(String.format("Invalid building geometry repaired (%s)",
+                                        pkIndex > 0 ? rs.getString(pkIndex) : "no primary key"));
+                                building = GeometryFixer.fix(building);
+                            }
+                            double height = fetchHeight ? rs.getDouble(heightIndex) : Double.MAX_VALUE;
+                            double alpha = fetchAlpha ? rs.getDouble(alphaIndex) : defaultAlpha;
+                            if (Double.compare(alpha, oldAlpha) != 0) {
+                                oldAlpha = alpha;
+                                for (int idFreq = 0; idFreq < bandCount; idFreq++) {
+                                    alphas[idFreq] = getWallAlpha(alpha, frequencies.get(idFreq));
+                                }
+                            }
+                            int pk = pkIndex > 0 ? rs.getInt(pkIndex) : -1;
+                            for (int i = 0; i < building.getNumGeometries(); i++) {
+                                Geometry geometry = building.getGeometryN(i);
+                                if (!(geometry instanceof Polygon) || geometry.isEmpty()) {
+                                    continue;
+                                }
+                                Polygon polygon = (Polygon) geometry;
+                                long recordSize = getRecordSize(polygon, bandCount);
+                                if (recordSize > SEGMENT_SIZE) {
+                                    throw new IllegalArgumentException(String.format("Building %d is too large", pk));
+                                }
+                                if (position / SEGMENT_SIZE != (position + recordSize - 1) / SEGMENT_SIZE) {
+                                    // Skip the end of the segment
+                                    position = (position / SEGMENT_SIZE + 1) * SEGMENT_SIZE;
+                                }
+                                if (record.capacity() < recordSize) {
+                                    record = ByteBuffer.allocate((int) recordSize);
+                                }
+                                record.clear();
+                                Envelope envelope = polygon.getEnvelopeInternal();
+                                record.putDouble(envelope.getMinX());
+                                record.putDouble(envelope.getMaxX());
+                                record.putDouble(envelope.getMinY());
+                                record.putDouble(envelope.getMaxY());
+                                record.putInt(pk);
+                                record.putDouble(height);
+                                for (double value : alphas) {
+                                    record.putDouble(value);
+                                }
+                                putRing(record, polygon.getExteriorRing().getCoordinates());
+                                record.putInt(polygon.getNumInteriorRing());
+                                for (int idHole = 0; idHole < polygon.getNumInteriorRing(); idHole++) {
+                                    putRing(record, polygon.getInteriorRingN(idHole).getCoordinates());
+                                }
+                                record.flip();
+                                while (record.hasRemaining()) {
+                                    channel.write(record, dataOffset + position + record.position());
+                                }
+                                int minColumn = clamp((int) Math.floor((envelope.getMinX() - minX) / tileSize), tileColumns);
+                                int maxColumn = clamp((int) Math.floor((envelope.getMaxX() - minX) / tileSize), tileColumns);
+                                int minRow = clamp((int) Math.floor((envelope.getMinY() - minY) / tileSize), tileRows);
+                                int maxRow = clamp((int) Math.floor((envelope.getMaxY() - minY) / tileSize), tileRows);
+                                for (int row = minRow; row <= maxRow; row++) {
+                                    for (int column = minColumn; column <= maxColumn; column++) {
+                                        tileReferenceCount[row * tileColumns + column]++;
+                                    }
+                                }
+                                positions.add(position);
+                                tileRanges.add(minColumn);
+                                tileRanges.add(maxColumn);
+                                tileRanges.add(minRow);
+                                tileRanges.add(maxRow);
+                                position += recordSize;
+                                buildingCount++;
+                            }
+                        }
+                    }
+                }
+            }
+            // Tile index then references grouped by tile
+            long[] firstReferences = new long[(int) tileCount + 1];
+            for (int tile = 0; tile < tileCount; tile++) {
+                firstReferences[tile + 1] = firstReferences[tile] + tileReferenceCount[tile];
+            }
+            long referenceCount = firstReferences[(int) tileCount];
+            if (referenceCount > Integer.MAX_VALUE / Long.BYTES) {
+                throw new IllegalArgumentException("Too many building references, tile size must be increased");
+            }
+            long[] sortedReferences = new long[(int) referenceCount];
+            long[] nextReferences = Arrays.copyOf(firstReferences, (int) tileCount);
+            for (int idBuilding = 0; idBuilding < buildingCount; idBuilding++) {
+                for (int row = tileRanges.get(idBuilding * 4 + 2); row <= tileRanges.get(idBuilding * 4 + 3); row++) {
+                    for (int column = tileRanges.get(idBuilding * 4); column <= tileRanges.get(idBuilding * 4 + 1);
+                         column++) {
+                        sortedReferences[(int) nextReferences[row * tileColumns + column]++] = positions.get(idBuilding);
+                    }
+                }
+            }
+            long indexPosition = dataOffset + position;
+            ByteBuffer index = ByteBuffer.allocate((int) (getIndexSize(tileColumns, tileRows) +
+                    referenceCount * Long.BYTES));
+            index.asLongBuffer().put(firstReferences).put(sortedReferences);
+            while (index.hasRemaining()) {
+                channel.write(index, indexPosition + index.position());
+            }
+            ByteBuffer header = ByteBuffer.allocate((int) dataOffset);
+            header.putInt(MAGIC);
+            header.putInt(VERSION);
+            header.putDouble(minX);
+            header.putDouble(minY);
+            header.putDouble(tileSize);
+            header.putInt(tileColumns);
+            header.putInt(tileRows);
+            header.putLong(buildingCount);
+            header.putLong(referenceCount);
+            header.putLong(indexPosition);
+            header.putInt(bandCount);
+            for (double frequency : frequencies) {
+                header.putDouble(frequency);
+            }
+            header.flip();
+            while (header.hasRemaining()) {
+                channel.write(header, header.position());
+            }
+        }
+        return buildingCount;
+    }
+
+    private static int clamp(int value, int count) {
+        return Math.max(0, Math.min(count - 1, value));
+    }
+
+    private static long getRecordSize(Polygon polygon, int bandCount) {
+        long size = 4 * Double.BYTES + Integer.BYTES + Double.BYTES + (long) bandCount * Double.BYTES;
+        size += (1 + polygon.getNumInteriorRing()) * (long) Integer.BYTES + Integer.BYTES;
+        return size + (long) polygon.getNumPoints() * 3 * Double.BYTES;
+    }
+
+    private static void putRing(ByteBuffer record, Coordinate[] coordinates) {
+        record.putInt(coordinates.length);
+        for (Coordinate coordinate : coordinates) {
+            record.putDouble(coordinate.x);
+            record.putDouble(coordinate.y);
+            record.putDouble(coordinate.getZ());
+        }
+    }
+
+    /**
+     * Add the buildings overlapping the envelope into the list, buildings are not cut by the envelope
+     * @param envelope Fetch envelope
+     * @param zBuildings True if the z coordinates of the buildings are the altitude of the roof
+     * @param buildings Destination of the buildings
+     * @return Number of added buildings
+     */
+    public int fetch(Envelope envelope, boolean zBuildings, List<ProfileBuilder.Building> buildings) {
+        if (buildingCount == 0) {
+            return 0;
+        }
+        int minColumn = Math.max(0, (int) Math.floor((envelope.getMinX() - minX) / tileSize));
+        int maxColumn = Math.min(tileColumns - 1, (int) Math.floor((envelope.getMaxX() - minX) / tileSize));
+        int minRow = Math.max(0, (int) Math.floor((envelope.getMinY() - minY) / tileSize));
+        int maxRow = Math.min(tileRows - 1, (int) Math.floor((envelope.getMaxY() - minY) / tileSize));
+        if (minColumn > maxColumn || minRow > maxRow) {
+            return 0;
+        }
+        // Buildings overlapping several tiles are referenced several times
+        LongArray positions = new LongArray();
+        for (int row = minRow; row <= maxRow; row++) {
+            long first = tileIndex.get(row * tileColumns + minColumn);
+            long last = tileIndex.get(row * tileColumns + maxColumn + 1);
+            for (long idReference = first; idReference < last; idReference++) {
+                positions.add(references.get((int) idReference));
+            }
+        }
+        long[] sortedPositions = positions.toArray();
+        Arrays.sort(sortedPositions);
+        int added = 0;
+        for (int i = 0; i < sortedPositions.length; i++) {
+            if (i > 0 && sortedPositions[i] == sortedPositions[i - 1]) {
+                continue;
+            }
+            ProfileBuilder.Building building = readBuilding(sortedPositions[i], envelope, zBuildings);
+            if (building != null) {
+                buildings.add(building);
+                added++;
+            }
+        }
+        return added;
+    }
+
+    private ProfileBuilder.Building readBuilding(long position, Envelope envelope, boolean zBuildings) {
+        ByteBuffer segment = segments[(int) (position / SEGMENT_SIZE)].duplicate();
+        segment.position((int) (position % SEGMENT_SIZE));
+        double buildingMinX = segment.getDouble();
+        double buildingMaxX = segment.getDouble();
+        double buildingMinY = segment.getDouble();
+        double buildingMaxY = segment.getDouble();
+        if (buildingMaxX < envelope.getMinX() || buildingMinX > envelope.getMaxX() || buildingMaxY < envelope.getMinY()
+                || buildingMinY > envelope.getMaxY()) {
+            return null;
+        }
+        int pk = segment.getInt();
+        double height = segment.getDouble();
+        List<Double> alphas = new ArrayList<>(frequencies.length);
+        for (int idFreq = 0; idFreq < frequencies.length; idFreq++) {
+            alphas.add(segment.getDouble());
+        }
+        LinearRing shell = factory.createLinearRing(getRing(segment));
+        int holeCount = segment.getInt();
+        LinearRing[] holes = new LinearRing[holeCount];
+        for (int idHole = 0; idHole < holeCount; idHole++) {
+            holes[idHole] = factory.createLinearRing(getRing(segment));
+        }
+        return new ProfileBuilder.Building(factory.createPolygon(shell, holes), height,
+                alphas, pk, zBuildings);
+    }
+
+    private static Coordinate[] getRing(ByteBuffer segment) {
+        Coordinate[] coordinates = new Coordinate[segment.getInt()];
+        for (int idCoordinate = 0; idCoordinate < coordinates.length; idCoordinate++) {
+            coordinates[idCoordinate] = new Coordinate(segment.getDouble(), segment.getDouble(), segment.getDouble());
+        }
+        return coordinates;
+    }
+
+    /**
+     * @return Number of buildings in the store, multi-polygons are counted once per polygon
+     */
+    public long getBuildingCount() {
+        return buildingCount;
+    }
+
+    /**
+     * @return Exact frequencies of the wall absorption spectrum of the buildings
+     */
+    public double[] getFrequencies() {
+        return frequencies.clone();
+    }
+
+    /**
+     * @return Side length of the tiles
+     */
+    public double getTileSize() {
+        return tileSize;
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+
+    private static class LongArray {
+        private long[] values = new long[64];
+        private int size = 0;
+
+        void add(long value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        long get(int index) {
+            return values[index];
+        }
+
+        long[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+
+    private static class IntArray {
+        private int[] values = new int[256];
+        private int size = 0;
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        int get(int index) {
+            return values[index];
+        }
+    }
+}
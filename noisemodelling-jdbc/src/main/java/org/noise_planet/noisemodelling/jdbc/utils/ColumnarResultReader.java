@@ -0,0 +1,376 @@
+package org.noise_planet.noisemodelling.jdbc.utils;
+
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.LineString;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import static org.noise_planet.noisemodelling.pathfinder.utils.PowerUtils.*;
+
+/**
+ * Bulk load a file written by {@link ColumnarResultWriter} into database tables.
+ * Created tables have the same columns and keys as the tables written by LDENPointNoiseMapFactory.
+ */
+public class ColumnarResultReader {
+    private static final int BATCH_MAX_SIZE = 500;
+
+    private final Connection connection;
+    private final GeometryFactory geometryFactory = new GeometryFactory();
+    private int srid;
+    private boolean mergeSources;
+    private boolean computeLAEQOnly;
+    private int[] frequencies;
+    private double[] aWeighting;
+    // Created tables and true if the table contains levels
+    private final Map<String, Boolean> tables = new LinkedHashMap<>();
+    private final Inflater inflater = new Inflater();
+
+    private ColumnarResultReader(Connection connection) {
+        this.connection = connection;
+    }
+
+    /**
+     * Create the tables and insert the rows of the file
+     * @param connection Database connection
+     * @param file File written by {@link ColumnarResultWriter}
+     * @param dropTables Drop the tables if they already exist
+     * @return Number of inserted rows
+     */
+    public static long importFile(Connection connection, File file, boolean dropTables) throws SQLException, IOException {
+        ColumnarResultReader reader = new ColumnarResultReader(connection);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536))) {
+            return reader.read(in, dropTables);
+        } finally {
+            reader.inflater.end();
+        }
+    }
+
+    private long read(DataInputStream in, boolean dropTables) throws SQLException, IOException {
+        if (in.readInt() != ColumnarResultWriter.MAGIC) {
+            throw new IOException("Not a NoiseModelling result file");
+        }
+        int version = in.readInt();
+        if (version != ColumnarResultWriter.VERSION) {
+            throw new IOException(String.format("Unsupported result file version %d", version));
+        }
+        srid = in.readInt();
+        int flags = in.readInt();
+        mergeSources = (flags & ColumnarResultWriter.FLAG_MERGE_SOURCES) != 0;
+        computeLAEQOnly = (flags & ColumnarResultWriter.FLAG_LAEQ_ONLY) != 0;
+        frequencies = new int[in.readInt()];
+        for (int idBand = 0; idBand < frequencies.length; idBand++) {
+            frequencies[idBand] = in.readInt();
+        }
+        aWeighting = new double[frequencies.length];
+        for (int idBand = 0; idBand < frequencies.length; idBand++) {
+            aWeighting[idBand] = in.readDouble();
+        }
+        long rowCount = 0;
+        byte[] compressed = new byte[0];
+        byte[] raw = new byte[0];
+        while (true) {
+            int blockType = in.read();
+            if (blockType == -1) {
+                break;
+            }
+            String tableName = in.readUTF();
+            int blockRows = in.readInt();
+            int rawLength = in.readInt();
+            int compressedLength = in.readInt();
+            if (compressed.length < compressedLength) {
+                compressed = new byte[compressedLength];
+            }
+            if (raw.length < rawLength) {
+                raw = new byte[rawLength];
+            }
+            in.readFully(compressed, 0, compressedLength);
+            inflater.reset();
+            inflater.setInput(compressed, 0, compressedLength);
+            try {
+                int inflated = 0;
+                while (inflated < rawLength && !inflater.finished()) {
+                    inflated += inflater.inflate(raw, inflated, rawLength - inflated);
+                }
+                if (inflated != rawLength) {
+                    throw new EOFException("Truncated result block");
+                }
+            } catch (DataFormatException ex) {
+                throw new IOException("Corrupted result block", ex);
+            }
+            DataInputStream block = new DataInputStream(new ByteArrayInputStream(raw, 0, rawLength));
+            if (blockType == ColumnarResultWriter.BLOCK_LEVELS) {
+                readLevels(tableName, blockRows, block, dropTables);
+            } else if (blockType == ColumnarResultWriter.BLOCK_RAYS) {
+                readRays(tableName, blockRows, block, dropTables);
+            } else {
+                throw new IOException(String.format("Unknown result block type %d", blockType));
+            }
+            rowCount += blockRows;
+        }
+        createKeys();
+        return rowCount;
+    }
+
+    private void execute(String query) throws SQLException {
+        try (Statement st = connection.createStatement()) {
+            st.execute(query);
+        }
+    }
+
+    private void createLevelsTable(String tableName, boolean dropTables) throws SQLException {
+        if (dropTables) {
+            execute("DROP TABLE IF EXISTS " + tableName);
+        }
+        StringBuilder sb = new StringBuilder("CREATE TABLE ");
+        sb.append(tableName);
+        sb.append(" (IDRECEIVER bigint NOT NULL");
+        if (!mergeSources) {
+            sb.append(", IDSOURCE bigint NOT NULL");
+        }
+        if (computeLAEQOnly) {
+            sb.append(", LAEQ numeric(5, 2))");
+        } else {
+            for (int frequency : frequencies) {
+                sb.append(", HZ");
+                sb.append(frequency);
+                sb.append(" numeric(5, 2)");
+            }
+            sb.append(", LAEQ numeric(5, 2), LEQ numeric(5, 2))");
+        }
+        execute(sb.toString());
+        tables.put(tableName, true);
+    }
+
+    private void readLevels(String tableName, int rowCount, DataInputStream block, boolean dropTables)
+            throws SQLException, IOException {
+        if (!tables.containsKey(tableName)) {
+            createLevelsTable(tableName, dropTables);
+        }
+        long[] receivers = new long[rowCount];
+        long previous = 0;
+        for (int idRow = 0; idRow < rowCount; idRow++) {
+            previous += ColumnarResultWriter.readVarLong(block);
+            receivers[idRow] = previous;
+        }
+        long[] sources = null;
+        if (!mergeSources) {
+            sources = new long[rowCount];
+            previous = 0;
+            for (int idRow = 0; idRow < rowCount; idRow++) {
+                previous += ColumnarResultWriter.readVarLong(block);
+                sources[idRow] = previous;
+            }
+        }
+        double[][] levels = new double[rowCount][frequencies.length];
+        long[] previousBand = new long[rowCount];
+        for (int idBand = 0; idBand < frequencies.length; idBand++) {
+            for (int idRow = 0; idRow < rowCount; idRow++) {
+                long level = ColumnarResultWriter.readVarLong(block) + (idBand == 0 ? 0 : previousBand[idRow]);
+                levels[idRow][idBand] = level / ColumnarResultWriter.LEVEL_SCALE;
+                previousBand[idRow] = level;
+            }
+        }
+        StringBuilder query = new StringBuilder("INSERT INTO ");
+        query.append(tableName);
+        query.append(" VALUES (?");
+        if (!mergeSources) {
+            query.append(", ?");
+        }
+        if (!computeLAEQOnly) {
+            query.append(", ?".repeat(frequencies.length));
+            query.append(", ?");
+        }
+        query.append(", ?)");
+        try (PreparedStatement ps = connection.prepareStatement(query.toString())) {
+            int batchSize = 0;
+            for (int idRow = 0; idRow < rowCount; idRow++) {
+                int parameterIndex = 1;
+                ps.setLong(parameterIndex++, receivers[idRow]);
+                if (!mergeSources) {
+                    ps.setLong(parameterIndex++, sources[idRow]);
+                }
+                double[] value = levels[idRow];
+                if (!computeLAEQOnly) {
+                    for (double bandValue : value) {
+                        ps.setDouble(parameterIndex++, bandValue);
+                    }
+                }
+                double laeq = wToDba(sumArray(dbaToW(sumArray(value, aWeighting))));
+                ps.setDouble(parameterIndex++, Double.isFinite(laeq) ? laeq : -99);
+                if (!computeLAEQOnly) {
+                    ps.setDouble(parameterIndex++, wToDba(sumArray(dbaToW(value))));
+                }
+                ps.addBatch();
+                batchSize++;
+                if (batchSize >= BATCH_MAX_SIZE) {
+                    ps.executeBatch();
+                    ps.clearBatch();
+                    batchSize = 0;
+                }
+            }
+            if (batchSize > 0) {
+                ps.executeBatch();
+            }
+        }
+    }
+
+    private void readRays(String tableName, int rowCount, DataInputStream block, boolean dropTables)
+            throws SQLException, IOException {
+        int flags = block.readUnsignedByte();
+        boolean profile = (flags & ColumnarResultWriter.FLAG_RAYS_PROFILE) != 0;
+        boolean absorption = (flags & ColumnarResultWriter.FLAG_RAYS_ABSORPTION) != 0;
+        if (!tables.containsKey(tableName)) {
+            if (dropTables) {
+                execute("DROP TABLE IF EXISTS " + tableName);
+            }
+            StringBuilder sb = new StringBuilder("CREATE TABLE IF NOT EXISTS " + tableName +
+                    "(pk bigint auto_increment, the_geom geometry(LINESTRING Z,");
+            sb.append(srid);
+            sb.append("), IDRECEIVER bigint NOT NULL, IDSOURCE bigint NOT NULL");
+            if (profile) {
+                sb.append(", GEOJSON VARCHAR");
+            }
+            if (absorption) {
+                sb.append(", LEQ DOUBLE, PERIOD VARCHAR");
+            }
+            sb.append(")");
+            execute(sb.toString());
+            tables.put(tableName, false);
+        }
+        long[] receivers = new long[rowCount];
+        long previous = 0;
+        for (int idRow = 0; idRow < rowCount; idRow++) {
+            previous += ColumnarResultWriter.readVarLong(block);
+            receivers[idRow] = previous;
+        }
+        long[] sources = new long[rowCount];
+        previous = 0;
+        for (int idRow = 0; idRow < rowCount; idRow++) {
+            previous += ColumnarResultWriter.readVarLong(block);
+            sources[idRow] = previous;
+        }
+        Coordinate[][] geometries = new Coordinate[rowCount][];
+        for (int idRow = 0; idRow < rowCount; idRow++) {
+            geometries[idRow] = new Coordinate[(int) ColumnarResultWriter.readVarLong(block)];
+        }
+        for (Coordinate[] coordinates : geometries) {
+            for (int idPoint = 0; idPoint < coordinates.length; idPoint++) {
+                coordinates[idPoint] = new Coordinate();
+            }
+        }
+        for (int ordinate = Coordinate.X; ordinate <= Coordinate.Z; ordinate++) {
+            long previousFirst = 0;
+            long previousLast = 0;
+            for (Coordinate[] coordinates : geometries) {
+                long previousPoint = 0;
+                long first = 0;
+                for (int idPoint = 0; idPoint < coordinates.length; idPoint++) {
+                    long predicted = idPoint == 0 ? previousFirst :
+                            idPoint == coordinates.length - 1 ? previousLast : previousPoint;
+                    previousPoint = predicted + ColumnarResultWriter.readVarLong(block);
+                    coordinates[idPoint].setOrdinate(ordinate, ColumnarResultWriter.restoreCoordinate(previousPoint));
+                    if (idPoint == 0) {
+                        first = previousPoint;
+                    }
+                }
+                if (coordinates.length > 0) {
+                    previousFirst = first;
+                    previousLast = previousPoint;
+                }
+            }
+        }
+        String[] profiles = null;
+        if (profile) {
+            profiles = new String[rowCount];
+            for (int idRow = 0; idRow < rowCount; idRow++) {
+                profiles[idRow] = ColumnarResultWriter.readString(block);
+            }
+        }
+        double[] leq = null;
+        String[] periods = null;
+        if (absorption) {
+            leq = new double[rowCount];
+            for (int idRow = 0; idRow < rowCount; idRow++) {
+                leq[idRow] = block.readDouble();
+            }
+            String[] dictionary = new String[(int) ColumnarResultWriter.readVarLong(block)];
+            for (int idPeriod = 0; idPeriod < dictionary.length; idPeriod++) {
+                dictionary[idPeriod] = ColumnarResultWriter.readString(block);
+            }
+            periods = new String[rowCount];
+            for (int idRow = 0; idRow < rowCount; idRow++) {
+                periods[idRow] = dictionary[(int) ColumnarResultWriter.readVarLong(block)];
+            }
+        }
+        StringBuilder query = new StringBuilder("INSERT INTO " + tableName + "(the_geom , IDRECEIVER , IDSOURCE");
+        if (profile) {
+            query.append(", GEOJSON");
+        }
+        if (absorption) {
+            query.append(", LEQ, PERIOD");
+        }
+        query.append(") VALUES (?, ?, ?");
+        if (profile) {
+            query.append(", ?");
+        }
+        if (absorption) {
+            query.append(", ?, ?");
+        }
+        query.append(")");
+        try (PreparedStatement ps = connection.prepareStatement(query.toString())) {
+            int batchSize = 0;
+            for (int idRow = 0; idRow < rowCount; idRow++) {
+                int parameterIndex = 1;
+                LineString lineString = geometryFactory.createLineString(geometries[idRow]);
+                lineString.setSRID(srid);
+                ps.setObject(parameterIndex++, lineString);
+                ps.setLong(parameterIndex++, receivers[idRow]);
+                ps.setLong(parameterIndex++, sources[idRow]);
+                if (profile) {
+                    ps.setString(parameterIndex++, profiles[idRow]);
+                }
+                if (absorption) {
+                    ps.setDouble(parameterIndex++, leq[idRow]);
+                    ps.setString(parameterIndex++, periods[idRow]);
+                }
+                ps.addBatch();
+                batchSize++;
+                if (batchSize >= BATCH_MAX_SIZE) {
+                    ps.executeBatch();
+                    ps.clearBatch();
+                    batchSize = 0;
+                }
+            }
+            if (batchSize > 0) {
+                ps.executeBatch();
+            }
+        }
+    }
+
+    private void createKeys() throws SQLException {
+        for (Map.Entry<String, Boolean> table : tables.entrySet()) {
+            if (table.getValue()) {
+                if (mergeSources) {
+                    execute("ALTER TABLE " + table.getKey() + " ADD PRIMARY KEY(IDRECEIVER)");
+                } else {
+                    execute("CREATE INDEX ON " + table.getKey() + " (IDRECEIVER)");
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,322 @@
+package org.noise_planet.noisemodelling.jdbc.utils;
+
+import org.locationtech.jts.geom.Coordinate;
+import org.noise_planet.noisemodelling.pathfinder.PropagationPath;
+import org.noise_planet.noisemodelling.pathfinder.utils.PowerUtils;
+import org.noise_planet.noisemodelling.propagation.ComputeRaysOutAttenuation;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+
+/**
+ * Write receiver levels and rays in a compact binary file, instead of sql insert queries.
+ * The file can be imported in a database with {@link ColumnarResultReader}.
+ *
+ * File layout (big endian):
+ * - header: magic, version, srid, flags (merged sources, laeq only), band count, band frequencies, band A weighting
+ * - blocks until the end of file: block type, table name, row count, uncompressed size, compressed size,
+ *   deflate compressed columns
+ *
+ * Levels block columns: receiver ids, source ids (if not merged) as delta encoded variable length integers, then
+ * the values of each band quantized to 0.01 dB (the precision of the levels tables) and delta encoded with the
+ * previous band of the row.
+ * Rays block columns: receiver ids, source ids, point counts, x, y and z of all points quantized to 1 mm and delta
+ * encoded (the first point of a ray with the first point of the previous ray, the other points with the previous
+ * point of the ray), optional profile GeoJSON, optional LEQ and dictionary encoded time period.
+ *
+ * Blocks are independent, so files written without header (see {@link #ColumnarResultWriter(OutputStream)})
+ * can be appended to a file with {@link #appendBlocks(File)}.
+ */
+public class ColumnarResultWriter implements Closeable {
+    static final int MAGIC = 0x4E4D4352; // NMCR
+    static final int VERSION = 2;
+    static final byte BLOCK_LEVELS = 1;
+    static final byte BLOCK_RAYS = 2;
+    static final int FLAG_MERGE_SOURCES = 1;
+    static final int FLAG_LAEQ_ONLY = 2;
+    static final int FLAG_RAYS_PROFILE = 1;
+    static final int FLAG_RAYS_ABSORPTION = 2;
+    // Written value of levels that are not finite
+    static final float NO_LEVEL = -99.0f;
+    // Quantization of the levels, 0.01 dB
+    static final double LEVEL_SCALE = 100;
+    // Quantization of the rays coordinates, 1 mm
+    static final double COORDINATE_SCALE = 1000;
+    // Quantized value of a coordinate that is not finite
+    static final long NO_COORDINATE = Long.MIN_VALUE;
+
+    private final DataOutputStream out;
+    private final ByteArrayOutputStream blockBuffer = new ByteArrayOutputStream();
+    private final DataOutputStream block = new DataOutputStream(blockBuffer);
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private byte[] compressed = new byte[0];
+    private int bandCount = -1;
+    private boolean mergeSources;
+
+    /**
+     * @param out Destination stream, closed with this writer
+     */
+    public ColumnarResultWriter(OutputStream out) {
+        this.out = new DataOutputStream(out);
+    }
+
+    /**
+     * Write the file header, must be called before the first block unless the blocks are appended to another file
+     * @param srid Spatial reference of the rays
+     * @param mergeSources True if levels rows do not contain the source identifier
+     * @param computeLAEQOnly True if levels tables contain only the LAEQ column
+     * @param frequencies Frequency of each band
+     * @param aWeighting A-weighting of each band
+     */
+    public void writeHeader(int srid, boolean mergeSources, boolean computeLAEQOnly, List<Integer> frequencies,
+                            List<Double> aWeighting) throws IOException {
+        setFormat(frequencies.size(), mergeSources);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(srid);
+        out.writeInt((mergeSources ? FLAG_MERGE_SOURCES : 0) | (computeLAEQOnly ? FLAG_LAEQ_ONLY : 0));
+        out.writeInt(frequencies.size());
+        for (int frequency : frequencies) {
+            out.writeInt(frequency);
+        }
+        for (double weight : aWeighting) {
+            out.writeDouble(weight);
+        }
+    }
+
+    /**
+     * Set the format of the levels blocks without writing the header
+     * @param bandCount Number of frequency bands
+     * @param mergeSources True if levels rows do not contain the source identifier
+     */
+    public void setFormat(int bandCount, boolean mergeSources) {
+        this.bandCount = bandCount;
+        this.mergeSources = mergeSources;
+    }
+
+    /**
+     * Write a block of receiver levels
+     * @param tableName Destination table
+     * @param rows Levels in dB, one value per band
+     */
+    public void writeLevels(String tableName, List<ComputeRaysOutAttenuation.VerticeSL> rows) throws IOException {
+        if (bandCount < 0) {
+            throw new IllegalStateException("Header or format must be set before writing levels");
+        }
+        if (rows.isEmpty()) {
+            return;
+        }
+        long previous = 0;
+        for (ComputeRaysOutAttenuation.VerticeSL row : rows) {
+            writeVarLong(block, row.receiverId - previous);
+            previous = row.receiverId;
+        }
+        if (!mergeSources) {
+            previous = 0;
+            for (ComputeRaysOutAttenuation.VerticeSL row : rows) {
+                writeVarLong(block, row.sourceId - previous);
+                previous = row.sourceId;
+            }
+        }
+        for (int idBand = 0; idBand < bandCount; idBand++) {
+            for (ComputeRaysOutAttenuation.VerticeSL row : rows) {
+                long level = quantizeLevel(row.value[idBand]);
+                writeVarLong(block, idBand == 0 ? level : level - quantizeLevel(row.value[idBand - 1]));
+            }
+        }
+        flushBlock(BLOCK_LEVELS, tableName, rows.size());
+    }
+
+    /**
+     * Write a block of rays
+     * @param tableName Destination table
+     * @param rows Rays
+     * @param profileSizeLimit If greater or equal to 0 the profile of the rays is written as GeoJSON
+     *                         (see {@link PropagationPath#profileAsJSON(int)})
+     * @param keepAbsorption Write the global attenuation and the time period of the rays
+     */
+    public void writeRays(String tableName, Collection<PropagationPath> rows, int profileSizeLimit,
+                          boolean keepAbsorption) throws IOException {
+        if (rows.isEmpty()) {
+            return;
+        }
+        List<Coordinate[]> geometries = new ArrayList<>(rows.size());
+        for (PropagationPath row : rows) {
+            geometries.add(row.asGeom().getCoordinates());
+        }
+        block.writeByte((profileSizeLimit >= 0 ? FLAG_RAYS_PROFILE : 0) | (keepAbsorption ? FLAG_RAYS_ABSORPTION : 0));
+        long previous = 0;
+        for (PropagationPath row : rows) {
+            writeVarLong(block, row.getIdReceiver() - previous);
+            previous = row.getIdReceiver();
+        }
+        previous = 0;
+        for (PropagationPath row : rows) {
+            writeVarLong(block, row.getIdSource() - previous);
+            previous = row.getIdSource();
+        }
+        for (Coordinate[] coordinates : geometries) {
+            writeVarLong(block, coordinates.length);
+        }
+        for (int ordinate = Coordinate.X; ordinate <= Coordinate.Z; ordinate++) {
+            long previousFirst = 0;
+            long previousLast = 0;
+            for (Coordinate[] coordinates : geometries) {
+                long previousPoint = 0;
+                for (int idPoint = 0; idPoint < coordinates.length; idPoint++) {
+                    long value = quantizeCoordinate(coordinates[idPoint].getOrdinate(ordinate));
+                    long predicted = idPoint == 0 ? previousFirst :
+                            idPoint == coordinates.length - 1 ? previousLast : previousPoint;
+                    // wrapping subtraction, the reader restore the value with a wrapping addition
+                    writeVarLong(block, value - predicted);
+                    previousPoint = value;
+                }
+                if (coordinates.length > 0) {
+                    previousFirst = quantizeCoordinate(coordinates[0].getOrdinate(ordinate));
+                    previousLast = previousPoint;
+                }
+            }
+        }
+        if (profileSizeLimit >= 0) {
+            for (PropagationPath row : rows) {
+                writeString(block, row.profileAsJSON(profileSizeLimit));
+            }
+        }
+        if (keepAbsorption) {
+            for (PropagationPath row : rows) {
+                block.writeDouble(PowerUtils.sumDbArray(row.absorptionData.aGlobal));
+            }
+            Map<String, Integer> dictionary = new HashMap<>();
+            List<String> periods = new ArrayList<>();
+            int[] periodIndex = new int[rows.size()];
+            int idRow = 0;
+            for (PropagationPath row : rows) {
+                String period = row.getTimePeriod() == null ? "" : row.getTimePeriod();
+                Integer index = dictionary.get(period);
+                if (index == null) {
+                    index = periods.size();
+                    dictionary.put(period, index);
+                    periods.add(period);
+                }
+                periodIndex[idRow++] = index;
+            }
+            writeVarLong(block, periods.size());
+            for (String period : periods) {
+                writeString(block, period);
+            }
+            for (int index : periodIndex) {
+                writeVarLong(block, index);
+            }
+        }
+        flushBlock(BLOCK_RAYS, tableName, rows.size());
+    }
+
+    private void flushBlock(byte blockType, String tableName, int rowCount) throws IOException {
+        block.flush();
+        byte[] raw = blockBuffer.toByteArray();
+        blockBuffer.reset();
+        deflater.reset();
+        deflater.setInput(raw);
+        deflater.finish();
+        if (compressed.length < raw.length + 64) {
+            compressed = new byte[raw.length + raw.length / 8 + 64];
+        }
+        int compressedLength = 0;
+        while (!deflater.finished()) {
+            if (compressedLength == compressed.length) {
+                byte[] larger = new byte[compressed.length * 2];
+                System.arraycopy(compressed, 0, larger, 0, compressedLength);
+                compressed = larger;
+            }
+            compressedLength += deflater.deflate(compressed, compressedLength, compressed.length - compressedLength);
+        }
+        out.writeByte(blockType);
+        out.writeUTF(tableName);
+        out.writeInt(rowCount);
+        out.writeInt(raw.length);
+        out.writeInt(compressedLength);
+        out.write(compressed, 0, compressedLength);
+    }
+
+    /**
+     * Copy the blocks of a file written without header
+     * @param blocksFile File written by another instance without header
+     */
+    public void appendBlocks(File blocksFile) throws IOException {
+        byte[] buffer = new byte[65536];
+        try (InputStream in = new FileInputStream(blocksFile)) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        deflater.end();
+        out.close();
+    }
+
+    static long quantizeLevel(double value) {
+        return Math.round((Double.isFinite(value) ? value : NO_LEVEL) * LEVEL_SCALE);
+    }
+
+    static long quantizeCoordinate(double value) {
+        return Double.isFinite(value) ? Math.round(value * COORDINATE_SCALE) : NO_COORDINATE;
+    }
+
+    static double restoreCoordinate(long value) {
+        return value == NO_COORDINATE ? Double.NaN : value / COORDINATE_SCALE;
+    }
+
+    static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarLong(out, bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[(int) readVarLong(in)];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Write a zigzag encoded variable length integer, small absolute values use less bytes
+     */
+    static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        long zigzag = (value << 1) ^ (value >> 63);
+        while ((zigzag & ~0x7FL) != 0) {
+            out.writeByte((int) ((zigzag & 0x7F) | 0x80));
+            zigzag >>>= 7;
+        }
+        out.writeByte((int) zigzag);
+    }
+
+    static long readVarLong(DataInputStream in) throws IOException {
+        long zigzag = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = in.readUnsignedByte();
+            zigzag |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return (zigzag >>> 1) ^ -(zigzag & 1);
+    }
+}
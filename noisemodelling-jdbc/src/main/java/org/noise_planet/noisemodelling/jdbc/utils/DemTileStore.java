@@ -0,0 +1,263 @@
+package org.noise_planet.noisemodelling.jdbc.utils;
+
+import org.h2gis.utilities.TableLocation;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Envelope;
+import org.noise_planet.noisemodelling.pathfinder.ProfileBuilder;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+
+import static org.h2gis.utilities.GeometryTableUtilities.getGeometryColumnNames;
+
+/**
+ * Digital elevation model points stored in a file, sorted by square tiles.
+ * The file is built once from a DEM table (ex. a table imported with {@link AscReaderDriver}), then memory mapped in
+ * order to fetch the points of an envelope without querying the database.
+ *
+ * File layout (big endian):
+ * - header: magic, version, min x, min y, tile size, tile column count, tile row count, point count
+ * - tile index: for each tile (row by row) the index of its first point, followed by the total point count
+ * - points: x, y, z of each point, grouped by tile
+ *
+ * An opened store can be read by several threads.
+ */
+public class DemTileStore implements Closeable {
+    private static final int MAGIC = 0x4E4D4454; // NMDT
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 4 + 4 + 8 * 3 + 4 * 2 + 8;
+    private static final int POINT_SIZE = 3 * Double.BYTES;
+    // Points never overlap two mapped segments
+    private static final int POINTS_PER_SEGMENT = 1 << 25;
+
+    private final RandomAccessFile file;
+    private final double minX;
+    private final double minY;
+    private final double tileSize;
+    private final int tileColumns;
+    private final int tileRows;
+    private final long pointCount;
+    private final LongBuffer tileIndex;
+    private final MappedByteBuffer[] segments;
+
+    private DemTileStore(RandomAccessFile file) throws IOException {
+        this.file = file;
+        FileChannel channel = file.getChannel();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        while (header.hasRemaining()) {
+            if (channel.read(header, header.position()) < 0) {
+                throw new IOException("Unexpected end of DEM tile file");
+            }
+        }
+        header.flip();
+        if (header.getInt() != MAGIC) {
+            throw new IOException("Not a DEM tile file");
+        }
+        int version = header.getInt();
+        if (version != VERSION) {
+            throw new IOException(String.format("Unsupported DEM tile file version %d", version));
+        }
+        minX = header.getDouble();
+        minY = header.getDouble();
+        tileSize = header.getDouble();
+        tileColumns = header.getInt();
+        tileRows = header.getInt();
+        pointCount = header.getLong();
+        long indexSize = getIndexSize(tileColumns, tileRows);
+        tileIndex = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE, indexSize).asLongBuffer();
+        long dataOffset = HEADER_SIZE + indexSize;
+        segments = new MappedByteBuffer[(int) ((pointCount + POINTS_PER_SEGMENT - 1) / POINTS_PER_SEGMENT)];
+        for (int idSegment = 0; idSegment < segments.length; idSegment++) {
+            long firstPoint = (long) idSegment * POINTS_PER_SEGMENT;
+            long segmentPoints = Math.min(POINTS_PER_SEGMENT, pointCount - firstPoint);
+            segments[idSegment] = channel.map(FileChannel.MapMode.READ_ONLY, dataOffset + firstPoint * POINT_SIZE,
+                    segmentPoints * POINT_SIZE);
+        }
+    }
+
+    private static long getIndexSize(int tileColumns, int tileRows) {
+        return ((long) tileColumns * tileRows + 1) * Long.BYTES;
+    }
+
+    /**
+     * Open a file created by {@link #build(Connection, String, double, File)}
+     * @param storeFile DEM tile file
+     * @return Opened store, must be closed
+     * @throws IOException If the file is not a valid DEM tile file
+     */
+    public static DemTileStore open(File storeFile) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(storeFile, "r");
+        try {
+            return new DemTileStore(file);
+        } catch (IOException | RuntimeException ex) {
+            file.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Write the points of the DEM table into a tile file. Points are sorted by the database so the whole table
+     * is never loaded in memory.
+     * @param connection Database connection
+     * @param demTable Digital elevation model table with a POINTZ column
+     * @param tileSize Side length of the tiles in meters, should be of the order of the cell size
+     * @param storeFile Destination file, overwritten if exists
+     * @return Number of stored points
+     */
+    public static long build(Connection connection, String demTable, double tileSize, File storeFile)
+            throws SQLException, IOException {
+        if (tileSize <= 0) {
+            throw new IllegalArgumentException("Tile size must be greater than 0");
+        }
+        List<String> geomFields = getGeometryColumnNames(connection, TableLocation.parse(demTable));
+        if (geomFields.isEmpty()) {
+            throw new SQLException("Digital elevation model table \"" + demTable + "\" must exist and contain a POINT field");
+        }
+        String geom = TableLocation.quoteIdentifier(geomFields.get(0));
+        double minX = 0;
+        double minY = 0;
+        int tileColumns = 0;
+        int tileRows = 0;
+        try (Statement st = connection.createStatement()) {
+            try (ResultSet rs = st.executeQuery("SELECT MIN(ST_X(" + geom + ")), MIN(ST_Y(" + geom + ")), MAX(ST_X(" +
+                    geom + ")), MAX(ST_Y(" + geom + ")), COUNT(" + geom + ") FROM " + demTable)) {
+                if (rs.next() && rs.getLong(5) > 0) {
+                    minX = rs.getDouble(1);
+                    minY = rs.getDouble(2);
+                    tileColumns = (int) Math.floor((rs.getDouble(3) - minX) / tileSize) + 1;
+                    tileRows = (int) Math.floor((rs.getDouble(4) - minY) / tileSize) + 1;
+                }
+            }
+        }
+        long tileCount = (long) tileColumns * tileRows;
+        if (tileCount + 1 > Integer.MAX_VALUE / Long.BYTES) {
+            throw new IllegalArgumentException("Too many tiles, tile size must be increased");
+        }
+        long[] firstPoints = new long[(int) tileCount + 1];
+        long dataOffset = HEADER_SIZE + getIndexSize(tileColumns, tileRows);
+        long pointCount = 0;
+        try (RandomAccessFile file = new RandomAccessFile(storeFile, "rw")) {
+            file.setLength(dataOffset);
+            FileChannel channel = file.getChannel();
+            channel.position(dataOffset);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+            if (tileCount > 0) {
+                String tileX = "FLOOR((ST_X(" + geom + ") - " + minX + ") / " + tileSize + ")";
+                String tileY = "FLOOR((ST_Y(" + geom + ") - " + minY + ") / " + tileSize + ")";
+                int nextTile = 0;
+                try (Statement st = connection.createStatement()) {
+                    st.setFetchSize(10000);
+                    try (ResultSet rs = st.executeQuery("SELECT ST_X(" + geom + "), ST_Y(" + geom + "), ST_Z(" + geom +
+                            "), " + tileX + ", " + tileY + " FROM " + demTable + " WHERE " + geom +
+                            " IS NOT NULL ORDER BY 5, 4")) {
+                        while (rs.next()) {
+                            int column = Math.max(0, Math.min(tileColumns - 1, rs.getInt(4)));
+                            int row = Math.max(0, Math.min(tileRows - 1, rs.getInt(5)));
+                            int tile = row * tileColumns + column;
+                            if (tile < nextTile - 1) {
+                                throw new SQLException("DEM points are not sorted by tile");
+                            }
+                            while (nextTile <= tile) {
+                                firstPoints[nextTile++] = pointCount;
+                            }
+                            double z = rs.getDouble(3);
+                            out.writeDouble(rs.getDouble(1));
+                            out.writeDouble(rs.getDouble(2));
+                            out.writeDouble(rs.wasNull() ? Double.NaN : z);
+                            pointCount++;
+                        }
+                    }
+                }
+                while (nextTile <= tileCount) {
+                    firstPoints[nextTile++] = pointCount;
+                }
+            }
+            out.flush();
+            ByteBuffer header = ByteBuffer.allocate((int) dataOffset);
+            header.putInt(MAGIC);
+            header.putInt(VERSION);
+            header.putDouble(minX);
+            header.putDouble(minY);
+            header.putDouble(tileSize);
+            header.putInt(tileColumns);
+            header.putInt(tileRows);
+            header.putLong(pointCount);
+            header.asLongBuffer().put(firstPoints);
+            header.position(0);
+            channel.position(0);
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+        }
+        return pointCount;
+    }
+
+    /**
+     * Add the points located in the envelope to the profile builder
+     * @param envelope Fetch envelope, boundary included
+     * @param builder Destination of the topographic points
+     * @return Number of added points
+     */
+    public int fetch(Envelope envelope, ProfileBuilder builder) {
+        if (pointCount == 0) {
+            return 0;
+        }
+        int minColumn = Math.max(0, (int) Math.floor((envelope.getMinX() - minX) / tileSize));
+        int maxColumn = Math.min(tileColumns - 1, (int) Math.floor((envelope.getMaxX() - minX) / tileSize));
+        int minRow = Math.max(0, (int) Math.floor((envelope.getMinY() - minY) / tileSize));
+        int maxRow = Math.min(tileRows - 1, (int) Math.floor((envelope.getMaxY() - minY) / tileSize));
+        if (minColumn > maxColumn || minRow > maxRow) {
+            return 0;
+        }
+        int added = 0;
+        for (int row = minRow; row <= maxRow; row++) {
+            // Tiles of a row are contiguous
+            long first = tileIndex.get(row * tileColumns + minColumn);
+            long last = tileIndex.get(row * tileColumns + maxColumn + 1);
+            for (long idPoint = first; idPoint < last; idPoint++) {
+                MappedByteBuffer segment = segments[(int) (idPoint / POINTS_PER_SEGMENT)];
+                int position = (int) (idPoint % POINTS_PER_SEGMENT) * POINT_SIZE;
+                double x = segment.getDouble(position);
+                double y = segment.getDouble(position + Double.BYTES);
+                if (envelope.contains(x, y)) {
+                    builder.addTopographicPoint(new Coordinate(x, y, segment.getDouble(position + 2 * Double.BYTES)));
+                    added++;
+                }
+            }
+        }
+        return added;
+    }
+
+    /**
+     * @return Number of points in the store
+     */
+    public long getPointCount() {
+        return pointCount;
+    }
+
+    /**
+     * @return Side length of the tiles
+     */
+    public double getTileSize() {
+        return tileSize;
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+}
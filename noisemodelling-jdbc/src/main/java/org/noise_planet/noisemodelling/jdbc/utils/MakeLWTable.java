@@ -2,17 +2,27 @@ package org.noise_planet.noisemodelling.jdbc.utils;
 
 import org.h2gis.functions.spatial.convert.ST_Force3D;
 import org.h2gis.functions.spatial.edit.ST_UpdateZ;
+import org.h2gis.utilities.JDBCUtilities;
+import org.h2gis.utilities.SpatialResultSet;
+import org.h2gis.utilities.TableLocation;
+import org.locationtech.jts.geom.Coordinate;
 import org.locationtech.jts.geom.Geometry;
 import org.locationtech.jts.geom.LineString;
 import org.noise_planet.noisemodelling.emission.railway.RailWayParameters;
+import org.noise_planet.noisemodelling.emission.utils.Utils;
 import org.noise_planet.noisemodelling.jdbc.RailWayLWIterator;
+import org.noise_planet.noisemodelling.jdbc.RoadEmissionBlock;
 import org.noise_planet.noisemodelling.pathfinder.CnossosPropagationData;
 
+import java.io.IOException;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * Functions to generate Sound source table from traffic tables
@@ -169,4 +179,92 @@ public class MakeLWTable {
         // Add primary key to the LW table
         connection.createStatement().execute("ALTER TABLE "+outputTable+" ADD PK INT AUTO_INCREMENT PRIMARY KEY;");
     }
+
+    /**
+     * Generate the road emission table from the road traffic table. The road table is read by blocks of rows, the
+     * emission of each block is evaluated on all the cores then inserted into the output table.
+     * @param connection
+     * @param roadsTableName Road traffic table, see {@link RoadEmissionBlock} for the recognized columns
+     * @param outputTable Output table with the primary key, the geometry and the LW[D,E,N][frequency] columns
+     * @param coefficientVersion CNOSSOS coefficients version (1 = 2015, 2 = 2020)
+     * @param threadCount Number of threads, 0 for the number of available processors
+     * @throws SQLException
+     * @throws IOException Unknown pavement in the road table
+     */
+    public static void makeRoadLWTable(Connection connection, String roadsTableName, String outputTable,
+                                       int coefficientVersion, int threadCount) throws SQLException, IOException {
+        List<Integer> frequencies = Arrays.asList(CnossosPropagationData.asOctaveBands(
+                CnossosPropagationData.DEFAULT_FREQUENCIES_THIRD_OCTAVE));
+        int pkIndex = JDBCUtilities.getIntegerPrimaryKey(connection, TableLocation.parse(roadsTableName));
+        if (pkIndex < 1) {
+            throw new IllegalArgumentException(String.format("Source table %s does not contain a primary key", roadsTableName));
+        }
+        connection.createStatement().execute("drop table if exists " + outputTable);
+        StringBuilder createTableQuery = new StringBuilder("create table " + outputTable + " (PK integer not null " +
+                "primary key, the_geom GEOMETRY");
+        StringBuilder insertIntoQuery = new StringBuilder("INSERT INTO " + outputTable + "(PK, the_geom");
+        StringBuilder insertIntoValuesQuery = new StringBuilder("?,?");
+        for (String period : RoadEmissionBlock.PERIODS) {
+            for (int frequency : frequencies) {
+                createTableQuery.append(", LW").append(period).append(frequency).append(" double precision");
+                insertIntoQuery.append(", LW").append(period).append(frequency);
+                insertIntoValuesQuery.append(", ?");
+            }
+        }
+        createTableQuery.append(")");
+        insertIntoQuery.append(") VALUES (").append(insertIntoValuesQuery).append(")");
+        connection.createStatement().execute(createTableQuery.toString());
+
+        int threads = threadCount > 0 ? threadCount : Runtime.getRuntime().availableProcessors();
+        ExecutorService executorService = Executors.newFixedThreadPool(threads);
+        try (Statement st = connection.createStatement();
+             PreparedStatement ps = connection.prepareStatement(insertIntoQuery.toString())) {
+            SpatialResultSet rs = st.executeQuery("SELECT * FROM " + roadsTableName).unwrap(SpatialResultSet.class);
+            RoadEmissionBlock block = new RoadEmissionBlock(rs.getMetaData(), frequencies, coefficientVersion,
+                    RoadEmissionBlock.DEFAULT_BLOCK_SIZE);
+            int[] pk = new int[RoadEmissionBlock.DEFAULT_BLOCK_SIZE];
+            Geometry[] geometries = new Geometry[RoadEmissionBlock.DEFAULT_BLOCK_SIZE];
+            boolean hasNext = rs.next();
+            while (hasNext) {
+                block.clear();
+                while (hasNext && !block.isFull()) {
+                    Geometry geometry = rs.getGeometry();
+                    int row = block.addRow(rs, getGeometrySlope(geometry));
+                    pk[row] = rs.getInt(pkIndex);
+                    geometries[row] = geometry == null ? null : ST_UpdateZ.updateZ(ST_Force3D.force3D(geometry), 0.05);
+                    hasNext = rs.next();
+                }
+                block.evaluate(executorService, threads);
+                for (int row = 0; row < block.size(); row++) {
+                    int cursor = 1;
+                    ps.setInt(cursor++, pk[row]);
+                    ps.setObject(cursor++, geometries[row]);
+                    for (int period = 0; period < RoadEmissionBlock.PERIODS.length; period++) {
+                        for (double v : block.getLevels(period, row)) {
+                            ps.setDouble(cursor++, v);
+                        }
+                    }
+                    ps.addBatch();
+                }
+                ps.executeBatch();
+            }
+        } finally {
+            executorService.shutdown();
+        }
+    }
+
+    /**
+     * @param geometry Road geometry
+     * @return Slope percentage from the z of the first two vertices of the road, 0 if the z are not defined
+     */
+    private static double getGeometrySlope(Geometry geometry) {
+        if (geometry == null || geometry.isEmpty()) {
+            return 0;
+        }
+        Coordinate[] coordinates = geometry.getCoordinates();
+        if (coordinates.length < 2 || Double.isNaN(coordinates[0].z) || Double.isNaN(coordinates[1].z)) {
+            return 0;
+        }
+        return Utils.computeSlope(coordinates[0].z, coordinates[1].z, geometry.getLength());
+    }
 }
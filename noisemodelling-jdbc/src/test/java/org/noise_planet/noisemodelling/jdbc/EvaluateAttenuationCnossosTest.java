@@ -5845,6 +5845,110 @@ public class EvaluateAttenuationCnossosTest {
     }
 
 
+    /**
+     * Attenuation of several meteorological conditions evaluated in a single pass must be equal to the attenuation
+     * evaluated for each condition
+     */
+    @Test
+    public void testSinglePassMeteoConditions() {
+        //Profile building
+        ProfileBuilder builder = new ProfileBuilder()
+                .addWall(new Coordinate[]{new Coordinate(100, 240, 0), new Coordinate(265, -180, 0)}, 6, -1)
+                .addGroundEffect(0, 50, -250, 250, 0.9)
+                .addGroundEffect(50, 150, -250, 250, 0.5)
+                .addGroundEffect(150, 225, -250, 250, 0.2)
+                .finishFeeding();
+
+        //Propagation data building
+        CnossosPropagationData rayData = new PropagationDataBuilder(builder)
+                .addReceiver(200.0, 50.0, 4.0)
+                .addSource(10.0, 10.0, 1.0)
+                .setGs(0.9)
+                .hEdgeDiff(true)
+                .vEdgeDiff(false)
+                .build();
+
+        //Day, evening and night conditions share the temperature but not the humidity and the wind rose
+        PropagationProcessPathData[] periods = new PropagationProcessPathData[3];
+        double[] humidity = new double[]{HUMIDITY, 50, 90};
+        double[] windRoseOccurrence = new double[]{0.0, 0.5, 1.0};
+        for (int i = 0; i < periods.length; i++) {
+            periods[i] = new PropagationProcessPathData();
+            periods[i].setHumidity(humidity[i]);
+            periods[i].setTemperature(TEMPERATURE);
+            double[] windRose = new double[PropagationProcessPathData.DEFAULT_WIND_ROSE.length];
+            Arrays.fill(windRose, windRoseOccurrence[i]);
+            periods[i].setWindRose(windRose);
+        }
+        assertTrue(ComputeRaysOutAttenuation.isSinglePassCompatible(periods));
+
+        //Out and computation settings
+        ComputeRaysOutAttenuation propDataOut = new ComputeRaysOutAttenuation(true, periods[0]);
+        ComputeCnossosRays computeRays = new ComputeCnossosRays(rayData);
+        computeRays.setThreadCount(1);
+        computeRays.run(propDataOut);
+        List<PropagationPath> propagationPaths = propDataOut.getPropagationPaths();
+        assertFalse(propagationPaths.isEmpty());
+
+        double[][] singlePass = propDataOut.computeAttenuation(periods, 0, 1.0, 0, propagationPaths);
+        assertEquals(periods.length, singlePass.length);
+        for (int i = 0; i < periods.length; i++) {
+            double[] expected = propDataOut.computeAttenuation(periods[i], 0, 1.0, 0, propagationPaths);
+            assertArrayEquals(expected, singlePass[i], 1e-12);
+        }
+
+        //Conditions with a different sound celerity can not share ground and diffraction terms
+        PropagationProcessPathData hot = new PropagationProcessPathData();
+        hot.setTemperature(TEMPERATURE + 20);
+        assertFalse(ComputeRaysOutAttenuation.isSinglePassCompatible(periods[0], hot));
+    }
+
+    /**
+     * Attenuation evaluated by several threads must be equal to the attenuation evaluated by a single thread
+     */
+    @Test
+    public void testMultiThreadAttenuation() {
+        ProfileBuilder builder = new ProfileBuilder()
+                .addWall(new Coordinate[]{new Coordinate(100, 240, 0), new Coordinate(265, -180, 0)}, 6, -1)
+                .addGroundEffect(0, 50, -250, 250, 0.9)
+                .addGroundEffect(50, 150, -250, 250, 0.5)
+                .addGroundEffect(150, 225, -250, 250, 0.2)
+                .finishFeeding();
+
+        PropagationDataBuilder dataBuilder = new PropagationDataBuilder(builder)
+                .addSource(10.0, 10.0, 1.0)
+                .setGs(0.9)
+                .hEdgeDiff(true)
+                .vEdgeDiff(false);
+        for (int i = 0; i < 40; i++) {
+            dataBuilder.addReceiver(150.0 + i * 2, 50.0 - i, 4.0);
+        }
+        CnossosPropagationData rayData = dataBuilder.build();
+
+        PropagationProcessPathData attData = new PropagationProcessPathData();
+        attData.setHumidity(HUMIDITY);
+        attData.setTemperature(TEMPERATURE);
+
+        Map<Long, double[]> expectedLevels = new HashMap<>();
+        ComputeRaysOutAttenuation propDataOut = new ComputeRaysOutAttenuation(false, attData, rayData);
+        ComputeCnossosRays computeRays = new ComputeCnossosRays(rayData);
+        computeRays.setThreadCount(1);
+        computeRays.run(propDataOut);
+        for (ComputeRaysOutAttenuation.VerticeSL v : propDataOut.getVerticesSoundLevel()) {
+            expectedLevels.put(v.receiverId, v.value);
+        }
+        assertEquals(40, expectedLevels.size());
+
+        propDataOut = new ComputeRaysOutAttenuation(false, attData, rayData);
+        computeRays.setThreadCount(4);
+        computeRays.run(propDataOut);
+        List<ComputeRaysOutAttenuation.VerticeSL> levels = propDataOut.getVerticesSoundLevel();
+        assertEquals(expectedLevels.size(), levels.size());
+        for (ComputeRaysOutAttenuation.VerticeSL v : levels) {
+            assertArrayEquals(expectedLevels.get(v.receiverId), v.value, 1e-12);
+        }
+    }
+
     /**
      * Test NaN regression issue
      * ByteArrayOutputStream bos = new ByteArrayOutputStream();
@@ -5876,8 +5980,7 @@ public class EvaluateAttenuationCnossosTest {
         propPath.readStream(new DataInputStream(new ByteArrayInputStream(Base64.getDecoder().decode(path))));
 
         PropagationProcessPathData pathData = new PropagationProcessPathData();
-        EvaluateAttenuationCnossos.evaluate(propPath, pathData);
-        double[] aGlobalMeteoHom = EvaluateAttenuationCnossos.getaGlobal();
+        double[] aGlobalMeteoHom = EvaluateAttenuationCnossos.evaluate(propPath, pathData);
         for (int i = 0; i < aGlobalMeteoHom.length; i++) {
             assertFalse(String.format("freq %d Hz with nan value", pathData.freq_lvl.get(i)),
                     Double.isNaN(aGlobalMeteoHom[i]));
@@ -9,18 +9,27 @@ import org.h2gis.functions.io.dbf.DBFRead;
 import org.h2gis.functions.io.shp.SHPDriverFunction;
 import org.h2gis.functions.io.shp.SHPRead;
 import org.h2gis.utilities.JDBCUtilities;
+import org.h2gis.utilities.SpatialResultSet;
+import org.h2gis.utilities.TableLocation;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
 import org.locationtech.jts.geom.LineString;
 import org.noise_planet.noisemodelling.emission.LineSource;
 import org.noise_planet.noisemodelling.emission.railway.RailWayParameters;
 import org.noise_planet.noisemodelling.emission.railway.cnossos.RailwayCnossos;
 import org.noise_planet.noisemodelling.emission.utils.Utils;
+import org.noise_planet.noisemodelling.jdbc.utils.ColumnarResultReader;
 import org.noise_planet.noisemodelling.jdbc.utils.MakeLWTable;
+import org.noise_planet.noisemodelling.pathfinder.CnossosPropagationData;
+import org.noise_planet.noisemodelling.pathfinder.GroundRaster;
 import org.noise_planet.noisemodelling.pathfinder.IComputeRaysOut;
 import org.noise_planet.noisemodelling.pathfinder.ProfileBuilder;
+import org.noise_planet.noisemodelling.pathfinder.RasterTopography;
 import org.noise_planet.noisemodelling.pathfinder.RootProgressVisitor;
 import org.noise_planet.noisemodelling.pathfinder.utils.KMLDocument;
 import org.noise_planet.noisemodelling.propagation.ComputeRaysOutAttenuation;
@@ -28,11 +37,13 @@ import org.noise_planet.noisemodelling.propagation.PropagationProcessPathData;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.sql.DataSource;
 import javax.xml.stream.XMLStreamException;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
@@ -41,6 +52,7 @@ import java.util.*;
 import static org.junit.Assert.*;
 import static org.noise_planet.noisemodelling.pathfinder.utils.PowerUtils.sumArray;
 import static org.noise_planet.noisemodelling.pathfinder.utils.PowerUtils.sumDbArray;
+import static org.noise_planet.noisemodelling.pathfinder.utils.PowerUtils.wToDba;
 
 public class LDENPointNoiseMapFactoryTest {
 
@@ -62,6 +74,45 @@ public class LDENPointNoiseMapFactoryTest {
         }
     }
 
+    @Test
+    public void testResultQueueBackpressure() throws Exception {
+        LDENConfig ldenConfig = new LDENConfig(LDENConfig.INPUT_MODE.INPUT_MODE_TRAFFIC_FLOW);
+        ldenConfig.setOutputMaximumQueue(10);
+        LDENComputeRaysOut.LdenData ldenData = new LDENComputeRaysOut.LdenData();
+        final int pushCount = 1000;
+        Thread producer = new Thread(() -> {
+            for(int i = 0; i < pushCount; i++) {
+                if(!ldenData.waitForCapacity(ldenConfig)) {
+                    return;
+                }
+                ldenData.lDenLevels.add(new ComputeRaysOutAttenuation.VerticeSL(i, -1, new double[0]));
+                ldenData.queueSize.incrementAndGet();
+                ldenData.notifyPush();
+            }
+        });
+        producer.start();
+        int popCount = 0;
+        long lastId = -1;
+        while(popCount < pushCount) {
+            if(ldenData.isEmpty()) {
+                ldenData.waitForResults(ldenConfig);
+            }
+            while(!ldenData.lDenLevels.isEmpty()) {
+                // the queue never exceeds the maximum size plus one element per producer
+                assertTrue(ldenData.queueSize.get() <= 11);
+                ComputeRaysOutAttenuation.VerticeSL row = ldenData.lDenLevels.pop();
+                ldenData.queueSize.decrementAndGet();
+                assertEquals(lastId + 1, row.receiverId);
+                lastId = row.receiverId;
+                popCount++;
+            }
+            ldenData.notifyPop();
+        }
+        producer.join(10000);
+        assertFalse(producer.isAlive());
+        assertEquals(0, ldenData.queueSize.get());
+    }
+
     @Test
     public void testNoiseEmission() throws SQLException, IOException {
         SHPRead.importTable(connection, LDENPointNoiseMapFactoryTest.class.getResource("roads_traff.shp").getFile());
@@ -113,6 +164,93 @@ public class LDENPointNoiseMapFactoryTest {
         }
     }
 
+    /**
+     * The road slope is read on the topography of the cell, the emission of the other cells must not be reused
+     */
+    @Test
+    public void testEmissionCacheWithDem() throws SQLException, IOException {
+        SHPRead.importTable(connection, LDENPointNoiseMapFactoryTest.class.getResource("roads_traff.shp").getFile());
+        LDENConfig ldenConfig = new LDENConfig(LDENConfig.INPUT_MODE.INPUT_MODE_TRAFFIC_FLOW);
+        ldenConfig.setPropagationProcessPathData(LDENConfig.TIME_PERIOD.DAY, new PropagationProcessPathData());
+        ldenConfig.setPropagationProcessPathData(LDENConfig.TIME_PERIOD.EVENING, new PropagationProcessPathData());
+        ldenConfig.setPropagationProcessPathData(LDENConfig.TIME_PERIOD.NIGHT, new PropagationProcessPathData());
+        SourceEmissionCache emissionCache = new SourceEmissionCache(16, 3,
+                ldenConfig.propagationProcessPathDataDay.freq_lvl.size());
+        int pkIndex = JDBCUtilities.getIntegerPrimaryKey(connection, TableLocation.parse("ROADS_TRAFF"));
+        try(Statement st = connection.createStatement();
+            SpatialResultSet rs = st.executeQuery("SELECT * FROM ROADS_TRAFF LIMIT 1").unwrap(SpatialResultSet.class)) {
+            assertTrue(rs.next());
+            Geometry road = rs.getGeometry();
+            Envelope envelope = road.getEnvelopeInternal();
+            envelope.expandBy(10);
+            // The same road on a flat ground then on a steep ground
+            List<double[]> emissions = new ArrayList<>();
+            for(double slope : new double[] {0, 0.1}) {
+                ProfileBuilder profileBuilder = new ProfileBuilder();
+                for(Coordinate corner : new Coordinate[] {new Coordinate(envelope.getMinX(), envelope.getMinY()),
+                        new Coordinate(envelope.getMaxX(), envelope.getMinY()),
+                        new Coordinate(envelope.getMaxX(), envelope.getMaxY()),
+                        new Coordinate(envelope.getMinX(), envelope.getMaxY())}) {
+                    corner.z = (corner.x - envelope.getMinX() + corner.y - envelope.getMinY()) * slope;
+                    profileBuilder.addTopographicPoint(corner);
+                }
+                profileBuilder.finishFeeding();
+                LDENPropagationProcessData process = new LDENPropagationProcessData(profileBuilder, ldenConfig);
+                process.setEmissionCache(emissionCache);
+                process.addSource((long) rs.getInt(pkIndex), road, rs);
+                assertArrayEquals(process.computeLw(rs)[0], process.wjSourcesD.get(0), 1e-12);
+                emissions.add(process.wjSourcesD.get(0));
+            }
+            assertNotEquals(sumArray(emissions.get(0)), sumArray(emissions.get(1)), 1e-6);
+            assertEquals(0, emissionCache.getHitCount());
+        }
+    }
+
+    /**
+     * The road emission table generated by blocks must match the emission computed for each road source
+     */
+    @Test
+    public void testMakeRoadLWTable() throws SQLException, IOException {
+        SHPRead.importTable(connection, LDENPointNoiseMapFactoryTest.class.getResource("roads_traff.shp").getFile());
+        try(Statement st = connection.createStatement()) {
+            // mix old and new traffic fields
+            st.execute("ALTER TABLE ROADS_TRAFF ADD COLUMN MV_D double precision");
+            st.execute("UPDATE ROADS_TRAFF SET MV_D = HV_D / 3");
+        }
+        MakeLWTable.makeRoadLWTable(connection, "ROADS_TRAFF", "LW_ROADS", 2, 3);
+        LDENConfig ldenConfig = new LDENConfig(LDENConfig.INPUT_MODE.INPUT_MODE_TRAFFIC_FLOW);
+        ldenConfig.setPropagationProcessPathData(LDENConfig.TIME_PERIOD.DAY, new PropagationProcessPathData());
+        ldenConfig.setPropagationProcessPathData(LDENConfig.TIME_PERIOD.EVENING, new PropagationProcessPathData());
+        ldenConfig.setPropagationProcessPathData(LDENConfig.TIME_PERIOD.NIGHT, new PropagationProcessPathData());
+        LDENPropagationProcessData process = new LDENPropagationProcessData(null, ldenConfig);
+        int pkIndex = JDBCUtilities.getIntegerPrimaryKey(connection, TableLocation.parse("ROADS_TRAFF"));
+        List<Integer> frequencies = ldenConfig.propagationProcessPathDataDay.freq_lvl;
+        int roadCount = 0;
+        try(Statement st = connection.createStatement();
+            SpatialResultSet rs = st.executeQuery("SELECT * FROM ROADS_TRAFF").unwrap(SpatialResultSet.class);
+            PreparedStatement lwSt = connection.prepareStatement("SELECT * FROM LW_ROADS WHERE PK = ?")) {
+            while (rs.next()) {
+                double[][] expected = process.computeLw(rs);
+                lwSt.setInt(1, rs.getInt(pkIndex));
+                try(ResultSet lwRs = lwSt.executeQuery()) {
+                    assertTrue(lwRs.next());
+                    for(int period = 0; period < RoadEmissionBlock.PERIODS.length; period++) {
+                        for (int idFreq = 0; idFreq < frequencies.size(); idFreq++) {
+                            assertEquals(wToDba(expected[period][idFreq]), lwRs.getDouble("LW" +
+                                    RoadEmissionBlock.PERIODS[period] + frequencies.get(idFreq)), 1e-9);
+                        }
+                    }
+                }
+                roadCount++;
+            }
+        }
+        assertTrue(roadCount > 0);
+        try(ResultSet rs = connection.createStatement().executeQuery("SELECT COUNT(*) FROM LW_ROADS")) {
+            assertTrue(rs.next());
+            assertEquals(roadCount, rs.getInt(1));
+        }
+    }
+
     @Test
     public void testNoiseEmissionRailWay() throws SQLException, IOException {
         SHPRead.importTable(connection, LDENPointNoiseMapFactoryTest.class.getResource("RailTrack.shp").getFile());
@@ -535,6 +673,10 @@ public class LDENPointNoiseMapFactoryTest {
         }
         connection.commit();
 
+        // The sources of the expanded cells envelope are shared by the neighbouring cells
+        assertNotNull(factory.getEmissionCache());
+        assertTrue(factory.getEmissionCache().getHitCount() > 0);
+
         // Check table creation
         assertTrue(JDBCUtilities.tableExists(connection, ldenConfig.lDayTable));
         assertTrue(JDBCUtilities.tableExists(connection, ldenConfig.lEveningTable));
@@ -641,6 +783,199 @@ public class LDENPointNoiseMapFactoryTest {
     }
 
 
+    private void computeLden(LDENConfig ldenConfig) throws SQLException, IOException {
+        computeLden(ldenConfig, null);
+    }
+
+    private void computeLden(LDENConfig ldenConfig, AttenuationCache attenuationCache) throws SQLException, IOException {
+        computeLden(ldenConfig, attenuationCache, null);
+    }
+
+    private void computeLden(LDENConfig ldenConfig, AttenuationCache attenuationCache, DataSource writerDataSource)
+            throws SQLException, IOException {
+        LDENPointNoiseMapFactory factory = new LDENPointNoiseMapFactory(connection, ldenConfig);
+        factory.setWriterDataSource(writerDataSource);
+        PointNoiseMap pointNoiseMap = new PointNoiseMap("BUILDINGS", "ROADS_TRAFF", "RECEIVERS");
+        pointNoiseMap.setAttenuationCache(attenuationCache);
+        pointNoiseMap.setComputeRaysOutFactory(factory);
+        pointNoiseMap.setPropagationProcessDataFactory(factory);
+        pointNoiseMap.setMaximumPropagationDistance(100.0);
+        pointNoiseMap.setComputeHorizontalDiffraction(false);
+        pointNoiseMap.setComputeVerticalDiffraction(false);
+        pointNoiseMap.setSoundReflectionOrder(0);
+        Set<Long> receivers = new HashSet<>();
+        try {
+            pointNoiseMap.initialize(connection, new EmptyProgressVisitor());
+            factory.start();
+            pointNoiseMap.setGridDim(4);
+            Map<PointNoiseMap.CellIndex, Integer> cells = pointNoiseMap.searchPopulatedCells(connection);
+            for(PointNoiseMap.CellIndex cellIndex : new TreeSet<>(cells.keySet())) {
+                pointNoiseMap.evaluateCell(connection, cellIndex.getLatitudeIndex(), cellIndex.getLongitudeIndex(), null, receivers);
+            }
+        } finally {
+            factory.stop();
+        }
+    }
+
+    @Test
+    public void testParallelResultWriter() throws SQLException, IOException {
+        SHPRead.importTable(connection, LDENPointNoiseMapFactoryTest.class.getResource("roads_traff.shp").getFile());
+        SHPRead.importTable(connection, LDENPointNoiseMapFactoryTest.class.getResource("buildings.shp").getFile());
+        SHPRead.importTable(connection, LDENPointNoiseMapFactoryTest.class.getResource("receivers.shp").getFile());
+
+        String[] tables = new String[] {"LDAY", "LEVENING", "LNIGHT", "LDEN", "RAYS"};
+        DataSource writerDataSource = H2GISDBFactory.createDataSource(
+                LDENPointNoiseMapFactoryTest.class.getSimpleName(), false, "");
+        // reference with a single writer, then 3 writers with database (without and with DataSource), sql file and
+        // binary file output
+        for(int[] run : new int[][] {{1, 0}, {3, 0}, {3, 3}, {3, 1}, {3, 2}}) {
+            int threadCount = run[0];
+            boolean sqlFile = run[1] == 1;
+            boolean binaryFile = run[1] == 2;
+            boolean dataSource = run[1] == 3;
+            String prefix = "W" + threadCount + (sqlFile ? "F_" : binaryFile ? "B_" : dataSource ? "D_" : "_");
+            LDENConfig ldenConfig = new LDENConfig(LDENConfig.INPUT_MODE.INPUT_MODE_TRAFFIC_FLOW);
+            ldenConfig.setComputeLDay(true);
+            ldenConfig.setComputeLEvening(true);
+            ldenConfig.setComputeLNight(true);
+            ldenConfig.setComputeLDEN(true);
+            ldenConfig.setExportRaysMethod(LDENConfig.ExportRaysMethods.TO_RAYS_TABLE);
+            ldenConfig.setlDayTable(prefix + tables[0]);
+            ldenConfig.setlEveningTable(prefix + tables[1]);
+            ldenConfig.setlNightTable(prefix + tables[2]);
+            ldenConfig.setlDenTable(prefix + tables[3]);
+            ldenConfig.setRaysTable(prefix + tables[4]);
+            ldenConfig.setResultWriterThreadCount(threadCount);
+            File sqlOutputFile = null;
+            if(sqlFile) {
+                sqlOutputFile = new File("target/" + prefix + "results.sql.gz");
+                ldenConfig.setSqlOutputFile(sqlOutputFile);
+            }
+            File binaryOutputFile = new File("target/" + prefix + "results.bin");
+            if(binaryFile) {
+                ldenConfig.setBinaryOutputFile(binaryOutputFile);
+            }
+            computeLden(ldenConfig, null, dataSource ? writerDataSource : null);
+            if(binaryFile) {
+                assertFalse(JDBCUtilities.tableExists(connection, prefix + tables[0]));
+                ColumnarResultReader.importFile(connection, binaryOutputFile, true);
+                assertFalse(new File(binaryOutputFile.getAbsolutePath() + ".0.part").exists());
+            }
+            if(sqlFile) {
+                try(Statement st = connection.createStatement()) {
+                    st.execute("RUNSCRIPT FROM '" + sqlOutputFile.getAbsolutePath() + "' COMPRESSION GZIP");
+                }
+                assertFalse(new File(sqlOutputFile.getAbsolutePath() + ".0.part").exists());
+            }
+        }
+        for(String table : tables) {
+            String query = table.equals("RAYS") ? "SELECT COUNT(*), SUM(IDRECEIVER), SUM(ST_LENGTH(THE_GEOM)) FROM " :
+                    "SELECT COUNT(*), SUM(IDRECEIVER), SUM(LAEQ) FROM ";
+            double[] expected = null;
+            for(String prefix : new String[] {"W1_", "W3_", "W3D_", "W3F_", "W3B_"}) {
+                try(ResultSet rs = connection.createStatement().executeQuery(query + prefix + table)) {
+                    assertTrue(rs.next());
+                    double[] values = new double[] {rs.getDouble(1), rs.getDouble(2), rs.getDouble(3)};
+                    assertTrue(values[0] > 0);
+                    if(expected == null) {
+                        expected = values;
+                    } else {
+                        // binary file levels are quantized to 0.01 dB
+                        assertArrayEquals(prefix + table, expected, values, prefix.equals("W3B_") ? 0.1 : 1e-6);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testAttenuationCache() throws SQLException, IOException {
+        SHPRead.importTable(connection, LDENPointNoiseMapFactoryTest.class.getResource("roads_traff.shp").getFile());
+        SHPRead.importTable(connection, LDENPointNoiseMapFactoryTest.class.getResource("buildings.shp").getFile());
+        SHPRead.importTable(connection, LDENPointNoiseMapFactoryTest.class.getResource("receivers.shp").getFile());
+
+        File cacheFolder = new File("target/attenuationCache");
+        if(cacheFolder.exists()) {
+            for(File file : Objects.requireNonNull(cacheFolder.listFiles())) {
+                assertTrue(file.delete());
+            }
+        }
+        AttenuationCache attenuationCache = new AttenuationCache(cacheFolder);
+        String[] tables = new String[] {"LDAY", "LEVENING", "LNIGHT", "LDEN"};
+        // first run fill the cache, then the traffic is changed and the computation is done with and without cache
+        for(String prefix : new String[] {"CACHE1_", "UPDATE", "NOCACHE_", "CACHE2_"}) {
+            if(prefix.equals("UPDATE")) {
+                try(Statement st = connection.createStatement()) {
+                    st.execute("UPDATE ROADS_TRAFF SET TV_D = TV_D * 2, HV_E = HV_E + 10, LV_SPD_N = LV_SPD_N / 2");
+                }
+                continue;
+            }
+            LDENConfig ldenConfig = new LDENConfig(LDENConfig.INPUT_MODE.INPUT_MODE_TRAFFIC_FLOW);
+            ldenConfig.setComputeLDay(true);
+            ldenConfig.setComputeLEvening(true);
+            ldenConfig.setComputeLNight(true);
+            ldenConfig.setComputeLDEN(true);
+            ldenConfig.setlDayTable(prefix + tables[0]);
+            ldenConfig.setlEveningTable(prefix + tables[1]);
+            ldenConfig.setlNightTable(prefix + tables[2]);
+            ldenConfig.setlDenTable(prefix + tables[3]);
+            computeLden(ldenConfig, prefix.equals("NOCACHE_") ? null : attenuationCache);
+        }
+        assertTrue(attenuationCache.getMissCount() > 0);
+        // all cells of the second run are read from the cache
+        assertEquals(attenuationCache.getMissCount(), attenuationCache.getHitCount());
+        for(String table : tables) {
+            String query = "SELECT COUNT(*), SUM(IDRECEIVER), SUM(LAEQ) FROM ";
+            double[][] values = new double[3][];
+            String[] prefixes = new String[] {"CACHE1_", "NOCACHE_", "CACHE2_"};
+            for(int idPrefix = 0; idPrefix < prefixes.length; idPrefix++) {
+                try(ResultSet rs = connection.createStatement().executeQuery(query + prefixes[idPrefix] + table)) {
+                    assertTrue(rs.next());
+                    values[idPrefix] = new double[] {rs.getDouble(1), rs.getDouble(2), rs.getDouble(3)};
+                }
+            }
+            assertTrue(values[0][0] > 0);
+            assertNotEquals(table, values[0][2], values[1][2], 1e-3);
+            assertArrayEquals(table, values[1], values[2], 1e-6);
+        }
+    }
+
+    /**
+     * The cache key must change with the content of the DEM and ground factor rasters, and the cache must not be
+     * used with clustered sources
+     */
+    @Test
+    public void testAttenuationCacheKeyRasters() throws IOException {
+        float[] heights = new float[] {0, 1, 2, 3};
+        float[] coefficients = new float[] {0, 0.5f, 1, 0.5f};
+        String[] keys = new String[5];
+        for(int i = 0; i < keys.length; i++) {
+            ProfileBuilder profileBuilder = new ProfileBuilder();
+            if(i == 1) {
+                profileBuilder.setTopographicRaster(new RasterTopography(0, 10, 5, 2, 2, heights));
+            } else if(i == 2) {
+                heights[3] = 4;
+                profileBuilder.setTopographicRaster(new RasterTopography(0, 10, 5, 2, 2, heights));
+            } else if(i == 3) {
+                profileBuilder.setGroundRaster(new GroundRaster(0, 10, 5, 2, 2, coefficients));
+            } else if(i == 4) {
+                coefficients[0] = 1;
+                profileBuilder.setGroundRaster(new GroundRaster(0, 10, 5, 2, 2, coefficients));
+            }
+            profileBuilder.finishFeeding();
+            CnossosPropagationData data = new CnossosPropagationData(profileBuilder);
+            data.addReceiver(new Coordinate(2, 2, 4));
+            data.addSource(new GeometryFactory().createPoint(new Coordinate(8, 8, 1)));
+            keys[i] = AttenuationCache.computeKey(data, false, false, new PropagationProcessPathData(false));
+            for(int j = 0; j < i; j++) {
+                assertNotEquals(keys[j], keys[i]);
+            }
+            assertTrue(AttenuationCache.isEmissionIndependent(data));
+            data.sourceClusteringDistance = 100;
+            assertFalse(AttenuationCache.isEmissionIndependent(data));
+        }
+    }
+
     @Test
     public void testTableGenerationFromTrafficNightOnly() throws SQLException, IOException {
         SHPRead.importTable(connection, LDENPointNoiseMapFactoryTest.class.getResource("roads_traff.shp").getFile());
@@ -862,6 +1197,150 @@ public class LDENPointNoiseMapFactoryTest {
         assertEquals(1000, (int)ldenConfig.propagationProcessPathDataDay.freq_lvl.get(0));
     }
 
+    /**
+     * Run the computation of two point sources and return the levels of each period table
+     * indexed by receiver and source identifier
+     * @param mergeSources True to sum the sources, the source identifier of the index is then 0
+     * @param eveningNightData Meteorological data of the evening and night periods, null to use the day data
+     */
+    private Map<String, double[]>[] computePeriodLevels(boolean mergeSources, PropagationProcessPathData eveningNightData) throws SQLException, IOException {
+        LDENConfig ldenConfig = new LDENConfig(LDENConfig.INPUT_MODE.INPUT_MODE_LW_DEN);
+        try(Statement st = connection.createStatement()) {
+            st.execute("DROP TABLE IF EXISTS " + ldenConfig.lDayTable + ", " + ldenConfig.lEveningTable + ", " +
+                    ldenConfig.lNightTable + ", " + ldenConfig.lDenTable);
+        }
+        ldenConfig.setComputeLDay(true);
+        ldenConfig.setComputeLEvening(true);
+        ldenConfig.setComputeLNight(true);
+        ldenConfig.setComputeLDEN(false);
+        ldenConfig.setMergeSources(mergeSources);
+        LDENPointNoiseMapFactory factory = new LDENPointNoiseMapFactory(connection, ldenConfig);
+        PointNoiseMap pointNoiseMap = new PointNoiseMap("BUILDINGS", "LW_SOURCES", "RECEIVERS");
+        pointNoiseMap.setComputeRaysOutFactory(factory);
+        pointNoiseMap.setPropagationProcessDataFactory(factory);
+        pointNoiseMap.setMaximumPropagationDistance(500.0);
+        pointNoiseMap.setComputeHorizontalDiffraction(false);
+        pointNoiseMap.setComputeVerticalDiffraction(false);
+        // The reflection on the building gives two paths for each source and receiver to merge
+        pointNoiseMap.setSoundReflectionOrder(1);
+        if(eveningNightData != null) {
+            pointNoiseMap.setPropagationProcessPathData(LDENConfig.TIME_PERIOD.EVENING, eveningNightData);
+            pointNoiseMap.setPropagationProcessPathData(LDENConfig.TIME_PERIOD.NIGHT, eveningNightData);
+        }
+        if(eveningNightData != null) {
+            pointNoiseMap.setPropagationProcessPathData(LDENConfig.TIME_PERIOD.EVENING, eveningNightData);
+            pointNoiseMap.setPropagationProcessPathData(LDENConfig.TIME_PERIOD.NIGHT, eveningNightData);
+        }
+        Set<Long> receivers = new HashSet<>();
+        try {
+            pointNoiseMap.initialize(connection, new EmptyProgressVisitor());
+            factory.start();
+            Map<PointNoiseMap.CellIndex, Integer> cells = pointNoiseMap.searchPopulatedCells(connection);
+            for(PointNoiseMap.CellIndex cellIndex : new TreeSet<>(cells.keySet())) {
+                pointNoiseMap.evaluateCell(connection, cellIndex.getLatitudeIndex(), cellIndex.getLongitudeIndex(),
+                        new EmptyProgressVisitor(), receivers);
+            }
+        } finally {
+            factory.stop();
+        }
+        String[] tables = new String[] {ldenConfig.lDayTable, ldenConfig.lEveningTable, ldenConfig.lNightTable};
+        @SuppressWarnings("unchecked")
+        Map<String, double[]>[] levels = new Map[tables.length];
+        List<Integer> frequencies = ldenConfig.getPropagationProcessPathData(LDENConfig.TIME_PERIOD.DAY).freq_lvl;
+        for(int idTable = 0; idTable < tables.length; idTable++) {
+            levels[idTable] = new HashMap<>();
+            try(ResultSet rs = connection.createStatement().executeQuery("SELECT * FROM " + tables[idTable])) {
+                while (rs.next()) {
+                    double[] values = new double[frequencies.size()];
+                    for(int idFreq = 0; idFreq < values.length; idFreq++) {
+                        values[idFreq] = rs.getDouble("HZ" + frequencies.get(idFreq));
+                    }
+                    levels[idTable].put(rs.getLong("IDRECEIVER") + "_" + (mergeSources ? 0 : rs.getLong("IDSOURCE")),
+                            values);
+                }
+            }
+        }
+        return levels;
+    }
+
+    /**
+     * Per source levels with different day, evening and night emissions. Each period must keep its own attenuation.
+     * Levels are rounded to 0.01 dB in the result tables.
+     */
+    @Test
+    public void testPerSourceTimePeriodLevels() throws SQLException, IOException {
+        int[] frequencies = new int[] {63, 125, 250, 500, 1000, 2000, 4000, 8000};
+        StringBuilder columns = new StringBuilder();
+        StringBuilder values = new StringBuilder();
+        for(String period : new String[] {"D", "E", "N"}) {
+            for (int idFreq = 0; idFreq < frequencies.length; idFreq++) {
+                columns.append(", LW").append(period).append(frequencies[idFreq]).append(" DOUBLE");
+            }
+        }
+        try(Statement st = connection.createStatement()) {
+            st.execute("CREATE TABLE BUILDINGS(PK SERIAL PRIMARY KEY, THE_GEOM GEOMETRY(POLYGON, 2154), HEIGHT DOUBLE)");
+            st.execute("INSERT INTO BUILDINGS(THE_GEOM, HEIGHT) VALUES (ST_SETSRID(" +
+                    "'POLYGON((20 200, 240 200, 240 210, 20 210, 20 200))'::geometry, 2154), 15)");
+            st.execute("CREATE TABLE LW_SOURCES(PK SERIAL PRIMARY KEY, THE_GEOM GEOMETRY(POINTZ, 2154)" + columns + ")");
+            st.execute("CREATE TABLE RECEIVERS(PK SERIAL PRIMARY KEY, THE_GEOM GEOMETRY(POINTZ, 2154))");
+            for(int idSource = 0; idSource < 2; idSource++) {
+                values.setLength(0);
+                for (int idFreq = 0; idFreq < frequencies.length; idFreq++) {
+                    values.append(", ").append(90 + idSource);
+                }
+                for (int idFreq = 0; idFreq < frequencies.length; idFreq++) {
+                    values.append(", ").append(85 - idFreq);
+                }
+                for (int idFreq = 0; idFreq < frequencies.length; idFreq++) {
+                    values.append(", ").append(70 + idFreq - 3 * idSource);
+                }
+                st.execute("INSERT INTO LW_SOURCES VALUES (DEFAULT, ST_SETSRID('POINTZ(" + (100 + 60 * idSource) +
+                        " 100 1)'::geometry, 2154)" + values + ")");
+            }
+            st.execute("INSERT INTO RECEIVERS(THE_GEOM) VALUES (ST_SETSRID('POINTZ(130 150 4)'::geometry, 2154))," +
+                    " (ST_SETSRID('POINTZ(40 60 4)'::geometry, 2154)), (ST_SETSRID('POINTZ(200 20 4)'::geometry, 2154))");
+        }
+
+        // Same meteorological data for all periods, the attenuation is the same for all periods
+        Map<String, double[]>[] levels = computePeriodLevels(false, null);
+        assertEquals(6, levels[0].size());
+        // The sum of the sources is equal to the merged sources levels
+        Map<String, double[]>[] mergedLevels = computePeriodLevels(true, null);
+        assertEquals(3, mergedLevels[0].size());
+        for(int idTable = 0; idTable < mergedLevels.length; idTable++) {
+            for (Map.Entry<String, double[]> entry : mergedLevels[idTable].entrySet()) {
+                String receiver = entry.getKey().split("_")[0];
+                double[] sum = sumDbArray(levels[idTable].get(receiver + "_1"), levels[idTable].get(receiver + "_2"));
+                assertArrayEquals(entry.getValue(), sum, 0.011);
+            }
+        }
+        for(Map.Entry<String, double[]> entry : levels[0].entrySet()) {
+            int idSource = Integer.parseInt(entry.getKey().split("_")[1]) - 1;
+            double[] day = entry.getValue();
+            double[] evening = levels[1].get(entry.getKey());
+            double[] night = levels[2].get(entry.getKey());
+            for (int idFreq = 0; idFreq < frequencies.length; idFreq++) {
+                assertEquals((85 - idFreq) - (90 + idSource), evening[idFreq] - day[idFreq], 0.011);
+                assertEquals((70 + idFreq - 3 * idSource) - (90 + idSource), night[idFreq] - day[idFreq], 0.011);
+            }
+        }
+
+        // Warmer evening and night, each period is evaluated separately but the day levels must not change
+        Map<String, double[]>[] warmLevels = computePeriodLevels(false,
+                new PropagationProcessPathData().setTemperature(30));
+        assertEquals(levels[0].size(), warmLevels[0].size());
+        for(Map.Entry<String, double[]> entry : levels[0].entrySet()) {
+            assertArrayEquals(entry.getValue(), warmLevels[0].get(entry.getKey()), 1e-9);
+            // Evening and night are still evaluated with their own emission
+            double[] evening = warmLevels[1].get(entry.getKey());
+            double[] night = warmLevels[2].get(entry.getKey());
+            for (int idFreq = 0; idFreq < frequencies.length; idFreq++) {
+                assertEquals(levels[1].get(entry.getKey())[idFreq] - levels[2].get(entry.getKey())[idFreq],
+                        evening[idFreq] - night[idFreq], 0.011);
+            }
+        }
+    }
+
     @Test
     public void testNoDemBuildingsZ() throws SQLException, IOException {
         SHPRead.importTable(connection, LDENPointNoiseMapFactoryTest.class.getResource("lw_roads.shp").getFile());
@@ -13,18 +13,22 @@ import org.locationtech.jts.geom.GeometryFactory;
 import org.locationtech.jts.io.WKTWriter;
 import org.noise_planet.noisemodelling.jdbc.Utils.JDBCComputeRaysOut;
 import org.noise_planet.noisemodelling.jdbc.Utils.JDBCPropagationData;
+import org.noise_planet.noisemodelling.jdbc.utils.BuildingTileStore;
 import org.noise_planet.noisemodelling.pathfinder.*;
+import org.noise_planet.noisemodelling.pathfinder.utils.PowerUtils;
 import org.noise_planet.noisemodelling.propagation.ComputeRaysOutAttenuation;
 import org.noise_planet.noisemodelling.propagation.PropagationProcessPathData;
 
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.*;
@@ -141,6 +145,230 @@ public class PointNoiseMapTest {
         }
     }
 
+    /**
+     * Cells evaluated through the prefetch pipeline and concurrently must give the same levels than cell by cell
+     */
+    @Test
+    public void testEvaluateCells() throws Exception {
+        try(Statement st = connection.createStatement()) {
+            PointNoiseMap pointNoiseMap = createLandcoverNoiseMap(st, false, 0);
+            Map<PointNoiseMap.CellIndex, Integer> cells = pointNoiseMap.searchPopulatedCells(connection);
+            assertTrue(cells.size() > 1);
+
+            // Reference, cell by cell
+            Map<Long, Double> expectedLevels = computeReceiverAttenuation(pointNoiseMap);
+
+            // Pipeline with concurrent cells
+            pointNoiseMap.setThreadCount(4);
+            pointNoiseMap.setCellPrefetchCount(2);
+            pointNoiseMap.setMinimumReceiversPerThread(1000);
+            Map<Long, Double> levels = new ConcurrentHashMap<>();
+            Set<PointNoiseMap.CellIndex> computedCells = Collections.synchronizedSet(new HashSet<>());
+            pointNoiseMap.evaluateCells(connection, new TreeSet<>(cells.keySet()), null, new HashSet<>(),
+                    (cellIndex, out) -> {
+                        computedCells.add(cellIndex);
+                        addReceiverAttenuation((ComputeRaysOutAttenuation) out, levels);
+                    });
+            assertEquals(cells.keySet(), computedCells);
+            assertSameLevels(expectedLevels, levels, 1e-6);
+        }
+    }
+
+    @Test
+    public void testProfileBuilderCache() throws Exception {
+        try(Statement st = connection.createStatement()) {
+            PointNoiseMap pointNoiseMap = createLandcoverNoiseMap(st, false, 0);
+            Map<PointNoiseMap.CellIndex, Integer> cells = pointNoiseMap.searchPopulatedCells(connection);
+            assertTrue(cells.size() > 1);
+
+            Map<Long, Double> expectedLevels = computeReceiverAttenuation(pointNoiseMap);
+
+            // Tiny budget, only the last used tile is kept
+            ProfileBuilderCache cache = new ProfileBuilderCache(2, 1);
+            pointNoiseMap.setProfileBuilderCache(cache);
+            Map<Long, Double> levels = computeReceiverAttenuation(pointNoiseMap);
+            assertEquals(cells.size(), cache.getHitCount() + cache.getMissCount());
+            assertTrue(cache.getMissCount() < cells.size());
+            assertEquals(1, cache.getTileCount());
+            assertSameLevels(expectedLevels, levels, 1e-6);
+        }
+    }
+
+    @Test
+    public void testBuildingTileStore() throws Exception {
+        try(Statement st = connection.createStatement()) {
+            PointNoiseMap pointNoiseMap = createLandcoverNoiseMap(st, true, 1);
+            Map<PointNoiseMap.CellIndex, Integer> cells = pointNoiseMap.searchPopulatedCells(connection);
+            assertTrue(cells.size() > 1);
+            Map<Long, Double> expectedLevels = computeReceiverAttenuation(pointNoiseMap);
+
+            File storeFile = File.createTempFile("buildings", ".bin");
+            storeFile.deleteOnExit();
+            assertTrue(BuildingTileStore.build(connection, "BUILDINGS", "HEIGHT", pointNoiseMap.getAlphaFieldName(),
+                    pointNoiseMap.getWallAbsorption(), pointNoiseMap.getPropagationProcessPathDataDay().freq_lvl_exact,
+                    100, storeFile) > 0);
+            try(BuildingTileStore store = BuildingTileStore.open(storeFile)) {
+                pointNoiseMap.setBuildingTileStore(store);
+                assertSameLevels(expectedLevels, computeReceiverAttenuation(pointNoiseMap), 1e-6);
+            } finally {
+                pointNoiseMap.setBuildingTileStore(null);
+            }
+            // Same band count but other frequencies
+            List<Double> otherFrequencies = new ArrayList<>();
+            for(double frequency : pointNoiseMap.getPropagationProcessPathDataDay().freq_lvl_exact) {
+                otherFrequencies.add(frequency * 2);
+            }
+            assertTrue(BuildingTileStore.build(connection, "BUILDINGS", "HEIGHT", pointNoiseMap.getAlphaFieldName(),
+                    pointNoiseMap.getWallAbsorption(), otherFrequencies, 100, storeFile) > 0);
+            try(BuildingTileStore store = BuildingTileStore.open(storeFile)) {
+                pointNoiseMap.setBuildingTileStore(store);
+                PointNoiseMap.CellIndex cellIndex = cells.keySet().iterator().next();
+                pointNoiseMap.evaluateCell(connection, cellIndex.getLatitudeIndex(), cellIndex.getLongitudeIndex(),
+                        null, new HashSet<>());
+                fail("The frequency bands of the building tiles must match the computation frequency bands");
+            } catch (SQLException ex) {
+                // expected
+            } finally {
+                pointNoiseMap.setBuildingTileStore(null);
+            }
+        }
+    }
+
+    /**
+     * Import the landcover scene and create a noise map of its roads and receivers, evaluated on one thread
+     */
+    private PointNoiseMap createLandcoverNoiseMap(Statement st, boolean horizontalDiffraction, int reflectionOrder)
+            throws Exception {
+        st.execute(String.format("CALL SHPREAD('%s', 'LANDCOVER2000')", PointNoiseMapTest.class.getResource("landcover2000.shp").getFile()));
+        st.execute(getRunScriptRes("scene_with_landcover.sql"));
+        PointNoiseMap pointNoiseMap = new PointNoiseMap("BUILDINGS", "ROADS_GEOM", "RECEIVERS");
+        pointNoiseMap.setComputeHorizontalDiffraction(horizontalDiffraction);
+        pointNoiseMap.setComputeVerticalDiffraction(true);
+        pointNoiseMap.setSoundReflectionOrder(reflectionOrder);
+        pointNoiseMap.setHeightField("HEIGHT");
+        pointNoiseMap.setSoilTableName("LAND_G");
+        pointNoiseMap.setMaximumPropagationDistance(100);
+        pointNoiseMap.setMaximumReflectionDistance(100);
+        pointNoiseMap.initialize(connection, new EmptyProgressVisitor());
+        pointNoiseMap.setComputeRaysOutFactory(new JDBCComputeRaysOut(false));
+        pointNoiseMap.setPropagationProcessDataFactory(new JDBCPropagationData());
+        pointNoiseMap.setThreadCount(1);
+        return pointNoiseMap;
+    }
+
+    /**
+     * Compare the levels in dB of each receiver
+     * @param expectedLevels Expected attenuation of the receivers, in W
+     * @param levels Attenuation of the receivers, in W
+     * @param delta Maximum difference in dB
+     */
+    private static void assertSameLevels(Map<Long, Double> expectedLevels, Map<Long, Double> levels, double delta) {
+        assertFalse(expectedLevels.isEmpty());
+        assertEquals(expectedLevels.keySet(), levels.keySet());
+        for(Map.Entry<Long, Double> entry : expectedLevels.entrySet()) {
+            assertEquals(PowerUtils.wToDba(entry.getValue()), PowerUtils.wToDba(levels.get(entry.getKey())), delta);
+        }
+    }
+
+    /**
+     * Evaluate all the cells and sum the attenuation of the sources for each receiver
+     */
+    private Map<Long, Double> computeReceiverAttenuation(PointNoiseMap pointNoiseMap) throws Exception {
+        Map<Long, Double> levels = new HashMap<>();
+        Map<PointNoiseMap.CellIndex, Integer> cells = pointNoiseMap.searchPopulatedCells(connection);
+        Set<Long> receivers = new HashSet<>();
+        for (PointNoiseMap.CellIndex cellIndex : new TreeSet<>(cells.keySet())) {
+            IComputeRaysOut out = pointNoiseMap.evaluateCell(connection, cellIndex.getLatitudeIndex(),
+                    cellIndex.getLongitudeIndex(), null, receivers);
+            addReceiverAttenuation((ComputeRaysOutAttenuation) out, levels);
+        }
+        return levels;
+    }
+
+    /**
+     * Add the attenuation of the sources, in W, to the receivers of the cell
+     */
+    private static void addReceiverAttenuation(ComputeRaysOutAttenuation out, Map<Long, Double> levels) {
+        for (ComputeRaysOutAttenuation.VerticeSL v : out.getVerticesSoundLevel()) {
+            levels.merge(v.receiverId, PowerUtils.sumArray(PowerUtils.dbaToW(v.value)), Double::sum);
+        }
+    }
+
+    @Test
+    public void testGroundRaster() throws Exception {
+        try(Statement st = connection.createStatement()) {
+            st.execute("CREATE TABLE BUILDINGS(PK SERIAL PRIMARY KEY, THE_GEOM GEOMETRY(POLYGON), HEIGHT DOUBLE)");
+            st.execute("INSERT INTO BUILDINGS(THE_GEOM, HEIGHT) VALUES ('POLYGON((40 20, 70 20, 70 35, 40 35, 40 20))', 8)," +
+                    " ('POLYGON((180 25, 195 25, 195 60, 180 60, 180 25))', 12)");
+            st.execute("CREATE TABLE ROADS_GEOM(PK SERIAL PRIMARY KEY, THE_GEOM GEOMETRY(LINESTRINGZ), DB_M63 DOUBLE," +
+                    " DB_M125 DOUBLE, DB_M250 DOUBLE, DB_M500 DOUBLE, DB_M1000 DOUBLE, DB_M2000 DOUBLE, DB_M4000 DOUBLE," +
+                    " DB_M8000 DOUBLE)");
+            st.execute("INSERT INTO ROADS_GEOM(THE_GEOM, DB_M63, DB_M125, DB_M250, DB_M500, DB_M1000, DB_M2000, DB_M4000," +
+                    " DB_M8000) VALUES ('LINESTRINGZ(10 10 0, 310 10 0)', 80, 80, 80, 80, 80, 80, 80, 80)");
+            st.execute("CREATE TABLE RECEIVERS(PK SERIAL PRIMARY KEY, THE_GEOM GEOMETRY(POINTZ))");
+            st.execute("INSERT INTO RECEIVERS(THE_GEOM) SELECT ST_MAKEPOINT(10 + X * 40, 15 + Y * 25, 4)" +
+                    " FROM (SELECT X FROM SYSTEM_RANGE(0, 7)) A, (SELECT X Y FROM SYSTEM_RANGE(1, 3)) B");
+            // The whole area is covered by a soil with G = 1, not split by the ground surface squares
+            st.execute("CREATE TABLE LAND_G(THE_GEOM GEOMETRY, G DOUBLE)");
+            st.execute("INSERT INTO LAND_G VALUES ('POLYGON((1 1, 1999 1, 1999 1999, 1 1999, 1 1))', 1)");
+            st.execute("CREATE TABLE LAND_G_HOLE(THE_GEOM GEOMETRY, G DOUBLE)");
+            st.execute("INSERT INTO LAND_G_HOLE VALUES ('POLYGON((-50 6.3, 150.7 6.3, 150.7 120, -50 120, -50 6.3))', 1)," +
+                    " ('POLYGON((150.7 3.2, 350 12.1, 350 150, 150.7 150, 150.7 3.2), (200.4 40.2, 262.1 48.9, 255.5 100," +
+                    " 210.2 95.3, 200.4 40.2))', 0.5)");
+            PointNoiseMap pointNoiseMap = new PointNoiseMap("BUILDINGS", "ROADS_GEOM", "RECEIVERS");
+            pointNoiseMap.setComputeHorizontalDiffraction(false);
+            pointNoiseMap.setComputeVerticalDiffraction(true);
+            pointNoiseMap.setSoundReflectionOrder(0);
+            pointNoiseMap.setHeightField("HEIGHT");
+            pointNoiseMap.setMaximumPropagationDistance(100);
+            pointNoiseMap.setMaximumReflectionDistance(100);
+            pointNoiseMap.initialize(connection, new EmptyProgressVisitor());
+            pointNoiseMap.setComputeRaysOutFactory((threadData, pathDataDay, pathDataEvening, pathDataNight) ->
+                    new ComputeRaysOutAttenuation(false, pathDataDay, threadData));
+            pointNoiseMap.setPropagationProcessDataFactory(new JDBCPropagationData());
+            pointNoiseMap.setThreadCount(1);
+
+            // Reference with the soil polygons, sources and receivers are all inside the same soil area
+            pointNoiseMap.setSoilTableName("LAND_G");
+            pointNoiseMap.setGroundSurfaceSplitSideLength(2000);
+            Map<Long, Double> expectedLevels = computeReceiverAttenuation(pointNoiseMap);
+
+            pointNoiseMap.setSoilTableName("LAND_G_HOLE");
+            GroundRaster groundRaster = pointNoiseMap.rasterizeSoilTable(connection, 0.5);
+            assertEquals(1, groundRaster.getG(-10, 50, 0), 0);
+            assertEquals(0.5, groundRaster.getG(300, 50, 0), 0);
+            // Hole and outside of the soil areas
+            assertEquals(0, groundRaster.getG(230, 70, 0), 0);
+            assertEquals(0, groundRaster.getG(20, 2, 0), 0);
+
+            pointNoiseMap.setSoilTableName("LAND_G");
+            pointNoiseMap.setGroundRaster(pointNoiseMap.rasterizeSoilTable(connection, 0.5));
+            Map<Long, Double> levels = computeReceiverAttenuation(pointNoiseMap);
+            assertEquals(24, expectedLevels.size());
+            for(double level : expectedLevels.values()) {
+                assertTrue(Double.isFinite(PowerUtils.wToDba(level)));
+            }
+            assertSameLevels(expectedLevels, levels, 1e-6);
+
+            // Soil transitions and a hole, the raster cells crossed by the soil boundaries change the mean G of
+            // the paths by less than the cell size over the path length, the levels must stay within 0.02 dB
+            pointNoiseMap.setSoilTableName("LAND_G_HOLE");
+            pointNoiseMap.setGroundRaster(null);
+            pointNoiseMap.setGroundSurfaceSplitSideLength(25);
+            Map<Long, Double> expectedHoleLevels = computeReceiverAttenuation(pointNoiseMap);
+            pointNoiseMap.setGroundRaster(groundRaster);
+            Map<Long, Double> holeLevels = computeReceiverAttenuation(pointNoiseMap);
+            assertSameLevels(expectedHoleLevels, holeLevels, 0.02);
+            // The ground factor changes the levels of the receivers beyond the road soil area
+            double maximumDifference = 0;
+            for(Map.Entry<Long, Double> entry : expectedLevels.entrySet()) {
+                maximumDifference = Math.max(maximumDifference, Math.abs(PowerUtils.wToDba(entry.getValue()) -
+                        PowerUtils.wToDba(holeLevels.get(entry.getKey()))));
+            }
+            assertTrue(maximumDifference > 1);
+        }
+    }
+
     @Test
     public void testNoiseMapBuilding() throws Exception {
         try(Statement st = connection.createStatement()) {
@@ -0,0 +1,70 @@
+package org.noise_planet.noisemodelling.jdbc;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+
+public class SourceEmissionCacheTest {
+
+    private static double[][] emission(long pk) {
+        double[][] emission = new double[3][8];
+        for(int period = 0; period < emission.length; period++) {
+            for(int band = 0; band < emission[period].length; band++) {
+                emission[period][band] = pk * 100 + period * 10 + band;
+            }
+        }
+        return emission;
+    }
+
+    @Test
+    public void testGetPut() {
+        SourceEmissionCache cache = new SourceEmissionCache(100, 3, 8);
+        for(long pk = 1; pk <= 50; pk++) {
+            assertNull(cache.get(pk));
+            cache.put(pk, emission(pk));
+        }
+        int found = 0;
+        for(long pk = 1; pk <= 50; pk++) {
+            double[][] cached = cache.get(pk);
+            if(cached != null) {
+                found++;
+                for(int period = 0; period < cached.length; period++) {
+                    assertArrayEquals(emission(pk)[period], cached[period], 0);
+                }
+                // each get return a new copy
+                assertNotSame(cached, cache.get(pk));
+            }
+        }
+        // 128 slots for 50 sources, few collisions
+        assertEquals(found * 2, cache.getHitCount());
+        assertEquals(50 + 50 - found, cache.getMissCount());
+        assertEquals(50, found, 10);
+    }
+
+    @Test
+    public void testBoundedMemory() {
+        SourceEmissionCache cache = new SourceEmissionCache(16, 3, 8);
+        for(long pk = 0; pk < 10000; pk++) {
+            cache.put(pk, emission(pk));
+        }
+        int found = 0;
+        for(long pk = 0; pk < 10000; pk++) {
+            double[][] cached = cache.get(pk);
+            if(cached != null) {
+                found++;
+                assertArrayEquals(emission(pk)[2], cached[2], 0);
+            }
+        }
+        // Older sources have been replaced by the most recent sources
+        assertEquals(16, found, 6);
+        assertArrayEquals(emission(9999)[0], cache.get(9999)[0], 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testWrongBandCount() {
+        new SourceEmissionCache(16, 3, 8).put(1, new double[3][4]);
+    }
+}
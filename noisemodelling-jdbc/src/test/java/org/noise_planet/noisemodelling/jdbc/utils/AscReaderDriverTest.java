@@ -29,6 +29,7 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.locationtech.jts.geom.Envelope;
+import org.noise_planet.noisemodelling.pathfinder.RasterTopography;
 
 import java.io.File;
 import java.io.IOException;
@@ -234,6 +235,33 @@ public class AscReaderDriverTest {
             assertFalse(rs.next());
         }
     }
+    @Test
+    public void testReadRaster() throws IOException {
+        AscReaderDriver reader = new AscReaderDriver();
+        RasterTopography raster = reader.readRaster(new File(AscReaderDriverTest.class.getResource("precip30min_center.asc").getPath()));
+        assertEquals(15, raster.getColumns());
+        assertEquals(20, raster.getRows());
+        assertEquals(0.5, raster.getCellSize(), 1e-12);
+        assertEquals(-180, raster.getMinX(), 1e-12);
+        assertEquals(-80.5, raster.getMaxY(), 1e-12);
+        // first and last read cells
+        assertEquals(234, raster.getZ(-180, -80.5), 1e-6);
+        assertEquals(114, raster.getZ(-173, -90), 1e-6);
+        // nodata cell
+        assertTrue(Double.isNaN(raster.getCellZ(5, 8)));
+        // outside of the grid
+        assertTrue(Double.isNaN(raster.getZ(-181, -85)));
+        // interpolated between the two first cells of the second row
+        assertEquals((196 + 172) / 2.0, raster.getZ(-179.75, -81), 1e-6);
+
+        reader.setDownScale(2);
+        raster = reader.readRaster(new File(AscReaderDriverTest.class.getResource("precip30min_center.asc").getPath()));
+        assertEquals(8, raster.getColumns());
+        assertEquals(10, raster.getRows());
+        assertEquals(1, raster.getCellSize(), 1e-12);
+        assertEquals(234, raster.getZ(-180, -80.5), 1e-6);
+    }
+
     @Test
     public void testReadPrecipPoint() throws IOException, SQLException {
         AscReaderDriver reader = new AscReaderDriver();
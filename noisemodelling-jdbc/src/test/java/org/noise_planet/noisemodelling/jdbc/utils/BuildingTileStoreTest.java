@@ -0,0 +1,157 @@
+package org.noise_planet.noisemodelling.jdbc.utils;
+
+import org.h2gis.functions.factory.H2GISDBFactory;
+import org.h2gis.utilities.JDBCUtilities;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Polygon;
+import org.locationtech.jts.io.WKTReader;
+import org.noise_planet.noisemodelling.pathfinder.ProfileBuilder;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.noise_planet.noisemodelling.pathfinder.utils.AlphaUtils.getWallAlpha;
+
+public class BuildingTileStoreTest {
+    private static final List<Double> FREQUENCIES = Arrays.asList(63.0957, 125.8925, 251.1886, 501.1872, 1000.0,
+            1995.2623, 3981.0717, 7943.2823);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Connection connection;
+
+    @Before
+    public void tearUp() throws Exception {
+        connection = JDBCUtilities.wrapConnection(H2GISDBFactory.createSpatialDataBase(BuildingTileStoreTest.class.getSimpleName(), true, ""));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if(connection != null) {
+            connection.close();
+        }
+    }
+
+    @Test
+    public void testFetchEnvelope() throws Exception {
+        try(Statement st = connection.createStatement()) {
+            st.execute("DROP TABLE IF EXISTS BUILDINGS");
+            st.execute("CREATE TABLE BUILDINGS(PK SERIAL PRIMARY KEY, THE_GEOM GEOMETRY(POLYGON, 2154), HEIGHT DOUBLE, G DOUBLE)");
+            // A grid of buildings of various size, some of them overlap several tiles
+            st.execute("INSERT INTO BUILDINGS(THE_GEOM, HEIGHT, G) SELECT ST_SETSRID(ST_MAKEENVELOPE(X * 30, Y * 25," +
+                    " X * 30 + 5 + MOD(X * Y, 4) * 10, Y * 25 + 12), 2154), 5 + X, MOD(X, 3) * 0.1 " +
+                    "FROM (SELECT X FROM SYSTEM_RANGE(0, 19)) A, (SELECT X Y FROM SYSTEM_RANGE(0, 14)) B");
+        }
+        File storeFile = folder.newFile("buildings.bin");
+        assertEquals(300, BuildingTileStore.build(connection, "BUILDINGS", "HEIGHT", "G", 100000, FREQUENCIES, 40,
+                storeFile));
+
+        Envelope[] envelopes = new Envelope[] {
+                new Envelope(-10, 60, 30, 95),
+                new Envelope(-1000, 1000, -1000, 1000),
+                new Envelope(281, 289, 201, 209),
+                new Envelope(1000, 2000, 1000, 2000)};
+        try(BuildingTileStore store = BuildingTileStore.open(storeFile)) {
+            assertEquals(300, store.getBuildingCount());
+            assertEquals(FREQUENCIES.size(), store.getFrequencies().length);
+            for (Envelope envelope : envelopes) {
+                List<ProfileBuilder.Building> buildings = new ArrayList<>();
+                int count = store.fetch(envelope, false, buildings);
+                assertEquals(buildings.size(), count);
+                Map<Integer, ProfileBuilder.Building> fetched = new HashMap<>();
+                for(ProfileBuilder.Building building : buildings) {
+                    fetched.put(building.getPrimaryKey(), building);
+                }
+                assertEquals(count, fetched.size());
+                try(Statement st = connection.createStatement()) {
+                    try(ResultSet rs = st.executeQuery("SELECT PK, ST_AREA(THE_GEOM), HEIGHT, G FROM BUILDINGS " +
+                            "WHERE THE_GEOM && ST_MAKEENVELOPE(" + envelope.getMinX() + ", " + envelope.getMinY() +
+                            ", " + envelope.getMaxX() + ", " + envelope.getMaxY() + ", 2154)")) {
+                        int expectedCount = 0;
+                        while (rs.next()) {
+                            ProfileBuilder.Building building = fetched.get(rs.getInt(1));
+                            assertTrue(building != null);
+                            // Buildings are not cut by the envelope
+                            assertEquals(rs.getDouble(2), building.getGeometry().getArea(), 1e-6);
+                            assertEquals(rs.getDouble(3), building.getHeight(), 1e-12);
+                            for(int idFreq = 0; idFreq < FREQUENCIES.size(); idFreq++) {
+                                assertEquals(getWallAlpha(rs.getDouble(4), FREQUENCIES.get(idFreq)),
+                                        building.getAlphas().get(idFreq), 1e-12);
+                            }
+                            expectedCount++;
+                        }
+                        assertEquals(expectedCount, count);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testMultiPolygonAndHoles() throws Exception {
+        try(Statement st = connection.createStatement()) {
+            st.execute("DROP TABLE IF EXISTS BUILDINGS");
+            st.execute("CREATE TABLE BUILDINGS(PK SERIAL PRIMARY KEY, THE_GEOM GEOMETRY)");
+            st.execute("INSERT INTO BUILDINGS(THE_GEOM) VALUES " +
+                    "('MULTIPOLYGON(((0 0, 10 0, 10 10, 0 10, 0 0)), ((20 0, 30 0, 30 10, 20 10, 20 0)))'), " +
+                    "('POLYGON((50 0, 90 0, 90 40, 50 40, 50 0), (60 10, 80 10, 80 30, 60 30, 60 10))'), " +
+                    // Self intersecting bow tie, repaired into two triangles
+                    "('POLYGON((100 0, 110 10, 110 0, 100 10, 100 0))')");
+        }
+        File storeFile = folder.newFile("buildings.bin");
+        assertEquals(5, BuildingTileStore.build(connection, "BUILDINGS", "", "G", 0.5, FREQUENCIES, 15,
+                storeFile));
+        try(BuildingTileStore store = BuildingTileStore.open(storeFile)) {
+            List<ProfileBuilder.Building> buildings = new ArrayList<>();
+            assertEquals(5, store.fetch(new Envelope(-10, 120, -10, 50), false, buildings));
+            Set<Integer> keys = new HashSet<>();
+            double area = 0;
+            for(ProfileBuilder.Building building : buildings) {
+                keys.add(building.getPrimaryKey());
+                assertEquals(Double.MAX_VALUE, building.getHeight(), 0);
+                assertEquals(getWallAlpha(0.5, FREQUENCIES.get(0)), building.getAlphas().get(0), 1e-12);
+                area += building.getGeometry().getArea();
+            }
+            assertEquals(new HashSet<>(Arrays.asList(1, 2, 3)), keys);
+            assertEquals(100 + 100 + 1600 - 400 + 50, area, 1e-6);
+            Polygon expectedHole = (Polygon) new WKTReader().read(
+                    "POLYGON((50 0, 90 0, 90 40, 50 40, 50 0), (60 10, 80 10, 80 30, 60 30, 60 10))");
+            for(ProfileBuilder.Building building : buildings) {
+                if(building.getPrimaryKey() == 2) {
+                    assertTrue(expectedHole.equalsExact(building.getGeometry()));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testEmptyTable() throws Exception {
+        try(Statement st = connection.createStatement()) {
+            st.execute("DROP TABLE IF EXISTS BUILDINGS");
+            st.execute("CREATE TABLE BUILDINGS(PK SERIAL PRIMARY KEY, THE_GEOM GEOMETRY(POLYGON, 2154), HEIGHT DOUBLE)");
+        }
+        File storeFile = folder.newFile("buildings.bin");
+        assertEquals(0, BuildingTileStore.build(connection, "BUILDINGS", "HEIGHT", "G", 100000, FREQUENCIES, 100,
+                storeFile));
+        try(BuildingTileStore store = BuildingTileStore.open(storeFile)) {
+            assertEquals(0, store.fetch(new Envelope(0, 100, 0, 100), false, new ArrayList<>()));
+        }
+    }
+}
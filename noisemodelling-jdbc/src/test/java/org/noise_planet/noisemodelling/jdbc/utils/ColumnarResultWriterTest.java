@@ -0,0 +1,114 @@
+package org.noise_planet.noisemodelling.jdbc.utils;
+
+import org.h2gis.functions.factory.H2GISDBFactory;
+import org.h2gis.utilities.JDBCUtilities;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.noise_planet.noisemodelling.propagation.ComputeRaysOutAttenuation;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ColumnarResultWriterTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Connection connection;
+
+    @Before
+    public void tearUp() throws Exception {
+        connection = JDBCUtilities.wrapConnection(H2GISDBFactory.createSpatialDataBase(ColumnarResultWriterTest.class.getSimpleName(), true, ""));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if(connection != null) {
+            connection.close();
+        }
+    }
+
+    @Test
+    public void testVarLong() throws Exception {
+        long[] values = new long[] {0, 1, -1, 63, -64, 64, 300, -300, Integer.MAX_VALUE, Long.MIN_VALUE, Long.MAX_VALUE};
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        for(long value : values) {
+            ColumnarResultWriter.writeVarLong(out, value);
+        }
+        out.flush();
+        // small values use a single byte
+        ByteArrayOutputStream small = new ByteArrayOutputStream();
+        ColumnarResultWriter.writeVarLong(new DataOutputStream(small), -64);
+        assertEquals(1, small.size());
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        for(long value : values) {
+            assertEquals(value, ColumnarResultWriter.readVarLong(in));
+        }
+    }
+
+    @Test
+    public void testImportLevels() throws Exception {
+        List<Integer> frequencies = Arrays.asList(63, 125, 250, 500, 1000, 2000, 4000, 8000);
+        List<Double> aWeighting = Arrays.asList(-26.2, -16.1, -8.6, -3.2, 0.0, 1.2, 1.0, -1.1);
+        File file = folder.newFile("levels.bin");
+        List<ComputeRaysOutAttenuation.VerticeSL> rows = new ArrayList<>();
+        for(int idRow = 0; idRow < 10000; idRow++) {
+            double[] levels = new double[frequencies.size()];
+            for(int idBand = 0; idBand < levels.length; idBand++) {
+                levels[idBand] = 30 + (idRow % 97) * 0.25 + idBand;
+            }
+            rows.add(new ComputeRaysOutAttenuation.VerticeSL(idRow * 3 + 1, idRow % 7, levels));
+        }
+        rows.get(5).value[2] = Double.NEGATIVE_INFINITY;
+        try(ColumnarResultWriter writer = new ColumnarResultWriter(new FileOutputStream(file))) {
+            writer.writeHeader(2154, false, false, frequencies, aWeighting);
+            writer.writeLevels("LDAY_BIN", rows.subList(0, 4000));
+            writer.writeLevels("LNIGHT_BIN", rows.subList(0, 10));
+            writer.writeLevels("LDAY_BIN", rows.subList(4000, rows.size()));
+        }
+        // 8 bands quantized and delta encoded, compressed receiver and source identifiers
+        assertTrue(file.length() < rows.size() * 8);
+        assertEquals(rows.size() + 10, ColumnarResultReader.importFile(connection, file, true));
+        try(Statement st = connection.createStatement()) {
+            try(ResultSet rs = st.executeQuery("SELECT COUNT(*), SUM(IDRECEIVER), SUM(IDSOURCE) FROM LDAY_BIN")) {
+                assertTrue(rs.next());
+                assertEquals(rows.size(), rs.getInt(1));
+                long receiverSum = 0;
+                long sourceSum = 0;
+                for(ComputeRaysOutAttenuation.VerticeSL row : rows) {
+                    receiverSum += row.receiverId;
+                    sourceSum += row.sourceId;
+                }
+                assertEquals(receiverSum, rs.getLong(2));
+                assertEquals(sourceSum, rs.getLong(3));
+            }
+            try(ResultSet rs = st.executeQuery("SELECT HZ63, HZ250, HZ8000, LEQ FROM LDAY_BIN WHERE IDRECEIVER = 16")) {
+                assertTrue(rs.next());
+                assertEquals(rows.get(5).value[0], rs.getDouble(1), 1e-9);
+                assertEquals(-99, rs.getDouble(2), 1e-9);
+                assertEquals(rows.get(5).value[7], rs.getDouble(3), 1e-9);
+                assertFalse(rs.next());
+            }
+            try(ResultSet rs = st.executeQuery("SELECT COUNT(*) FROM LNIGHT_BIN")) {
+                assertTrue(rs.next());
+                assertEquals(10, rs.getInt(1));
+            }
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package org.noise_planet.noisemodelling.jdbc.utils;
+
+import org.h2gis.functions.factory.H2GISDBFactory;
+import org.h2gis.utilities.JDBCUtilities;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Envelope;
+import org.noise_planet.noisemodelling.pathfinder.ProfileBuilder;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DemTileStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Connection connection;
+
+    @Before
+    public void tearUp() throws Exception {
+        connection = JDBCUtilities.wrapConnection(H2GISDBFactory.createSpatialDataBase(DemTileStoreTest.class.getSimpleName(), true, ""));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if(connection != null) {
+            connection.close();
+        }
+    }
+
+    @Test
+    public void testFetchEnvelope() throws Exception {
+        try(Statement st = connection.createStatement()) {
+            st.execute("DROP TABLE IF EXISTS DEM");
+            st.execute("CREATE TABLE DEM(PK SERIAL PRIMARY KEY, THE_GEOM GEOMETRY(POINTZ, 2154))");
+            st.execute("INSERT INTO DEM(THE_GEOM) SELECT ST_SETSRID(ST_MAKEPOINT(-50 + X * 3.5, 20 + Y * 2.5, X + Y / 10.0), 2154) " +
+                    "FROM (SELECT X FROM SYSTEM_RANGE(0, 99)) A, (SELECT X Y FROM SYSTEM_RANGE(0, 79)) B");
+        }
+        File storeFile = folder.newFile("dem.bin");
+        assertEquals(8000, DemTileStore.build(connection, "DEM", 17, storeFile));
+
+        Envelope[] envelopes = new Envelope[] {
+                new Envelope(-10, 60, 30, 95),
+                new Envelope(-1000, 1000, -1000, 1000),
+                new Envelope(280, 290, 200, 210),
+                new Envelope(1000, 2000, 1000, 2000)};
+        try(DemTileStore store = DemTileStore.open(storeFile)) {
+            assertEquals(8000, store.getPointCount());
+            for (Envelope envelope : envelopes) {
+                Map<Coordinate, Double> fetched = new HashMap<>();
+                ProfileBuilder builder = new ProfileBuilder() {
+                    @Override
+                    public ProfileBuilder addTopographicPoint(Coordinate point) {
+                        fetched.put(point, point.z);
+                        return super.addTopographicPoint(point);
+                    }
+                };
+                int count = store.fetch(envelope, builder);
+                assertEquals(fetched.size(), count);
+                try(Statement st = connection.createStatement()) {
+                    try(ResultSet rs = st.executeQuery("SELECT ST_X(THE_GEOM), ST_Y(THE_GEOM), ST_Z(THE_GEOM) FROM DEM " +
+                            "WHERE THE_GEOM && ST_MAKEENVELOPE(" + envelope.getMinX() + ", " + envelope.getMinY() +
+                            ", " + envelope.getMaxX() + ", " + envelope.getMaxY() + ", 2154)")) {
+                        int expectedCount = 0;
+                        while (rs.next()) {
+                            Coordinate expected = new Coordinate(rs.getDouble(1), rs.getDouble(2), rs.getDouble(3));
+                            assertTrue(fetched.containsKey(expected));
+                            assertEquals(expected.z, fetched.get(expected), 1e-12);
+                            expectedCount++;
+                        }
+                        assertEquals(expectedCount, count);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testEmptyTable() throws Exception {
+        try(Statement st = connection.createStatement()) {
+            st.execute("DROP TABLE IF EXISTS DEM");
+            st.execute("CREATE TABLE DEM(PK SERIAL PRIMARY KEY, THE_GEOM GEOMETRY(POINTZ, 2154))");
+        }
+        File storeFile = folder.newFile("dem.bin");
+        assertEquals(0, DemTileStore.build(connection, "DEM", 100, storeFile));
+        try(DemTileStore store = DemTileStore.open(storeFile)) {
+            assertEquals(0, store.fetch(new Envelope(0, 100, 0, 100), new ProfileBuilder()));
+        }
+    }
+}
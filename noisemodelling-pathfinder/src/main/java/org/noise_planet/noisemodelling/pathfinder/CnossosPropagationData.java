@@ -56,6 +56,7 @@ public class CnossosPropagationData {
     public static final double DEFAULT_MAXIMUM_REF_DIST = 700;
     public static final double DEFAULT_RECEIVER_DIST = 1.0;
     public static final double DEFAULT_GS = 0.0;
+    public static final double DEFAULT_SOURCE_CLUSTERING_RATIO = 0.05;
     public static final String YAW_DATABASE_FIELD = "YAW";
     public static final String PITCH_DATABASE_FIELD = "PITCH";
     public static final String ROLL_DATABASE_FIELD = "ROLL";
@@ -121,6 +122,29 @@ public class CnossosPropagationData {
     /** stop calculation if the sum of further sources contributions are smaller than this value */
     public double noiseFloor = Double.NEGATIVE_INFINITY;
 
+    /**
+     * Lowest atmospheric absorption coefficient (dB/km) of all the meteorological conditions for each frequency band.
+     * Optional, used to tighten the maximal source contribution when {@link #maximumError} or {@link #noiseFloor}
+     * is set.
+     */
+    public double[] minimalAtmosphericAbsorption = null;
+
+    /**
+     * If true, when {@link #maximumError} or {@link #noiseFloor} is set, the maximal source contribution is lowered by
+     * the minimal diffraction attenuation if a building higher than the source and the receiver cut the direct path.
+     * The reflected paths may go around the building so the bound is not guaranteed.
+     */
+    public boolean obstacleAttenuationBound = false;
+
+    /**
+     * Omnidirectional sources farther than this distance from the receiver are merged into clusters that share the
+     * propagation paths of the source closest to the cluster centroid. 0 to compute all the sources (default).
+     */
+    public double sourceClusteringDistance = 0;
+
+    /** Maximal ratio between the size of a source cluster and its distance to the receiver */
+    public double sourceClusteringRatio = DEFAULT_SOURCE_CLUSTERING_RATIO;
+
 
     /** cellId only used in output data */
     public int cellId;
@@ -278,6 +302,13 @@ public class CnossosPropagationData {
         return isComputeHEdgeDiffraction() || isComputeVEdgeDiffraction();
     }
 
+    /**
+     * @return True if the sources of a receiver may be skipped using {@link #maximumError} or {@link #noiseFloor}
+     */
+    public boolean isEarlyTerminationEnabled() {
+        return maximumError > 0 || noiseFloor > Double.NEGATIVE_INFINITY;
+    }
+
     /**
      * Return directivity attenuation. Default implementation define only omnidirectional sources.
      * @param srcIndex Source index in the list sourceGeometries
@@ -37,14 +37,14 @@ import org.apache.commons.math3.geometry.euclidean.threed.Line;
 import org.apache.commons.math3.geometry.euclidean.threed.Plane;
 import org.h2gis.api.ProgressVisitor;
 import org.locationtech.jts.algorithm.*;
+import org.locationtech.jts.algorithm.locate.SimplePointInAreaLocator;
 import org.locationtech.jts.geom.*;
 import org.locationtech.jts.geom.impl.CoordinateArraySequence;
-import org.locationtech.jts.geom.prep.PreparedLineString;
-import org.locationtech.jts.index.ItemVisitor;
 import org.locationtech.jts.math.Vector2D;
 import org.locationtech.jts.math.Vector3D;
 import org.locationtech.jts.simplify.DouglasPeuckerSimplifier;
 import org.locationtech.jts.triangulate.quadedge.Vertex;
+import org.noise_planet.noisemodelling.pathfinder.utils.ObstacleCacheMetric;
 import org.noise_planet.noisemodelling.pathfinder.utils.ProfilerThread;
 import org.noise_planet.noisemodelling.pathfinder.utils.ReceiverStatsMetric;
 import org.slf4j.Logger;
@@ -77,6 +77,9 @@ public class ComputeCnossosRays {
     private static final double wideAngleTranslationEpsilon = 0.01;
     private static final double epsilon = 1e-7;
     private static final double MAX_RATIO_HULL_DIRECT_PATH = 4;
+    /** Lowest diffraction attenuation of a path blocked by an obstacle 10 log10(3), Eq. 2.5.21 with delta = 0 */
+    private static final double MINIMAL_DIFFRACTION_ATTENUATION = 10 * Math.log10(3);
+    private static final int MAX_SOURCE_CLUSTER_DEPTH = 16;
     private static final Logger LOGGER = LoggerFactory.getLogger(ComputeCnossosRays.class);
 
     private static final GeometryFactory GEOMETRY_FACTORY = new GeometryFactory();
@@ -87,6 +90,8 @@ public class ComputeCnossosRays {
     /** Number of thread used for ray computation. */
     private int threadCount ;
     private ProfilerThread profilerThread;
+    /** Buffers of the side hull computation, one per thread */
+    private final ThreadLocal<SideHullWorkspace> sideHullWorkspace = ThreadLocal.withInitial(SideHullWorkspace::new);
 
     /**
      * Create new instance from the propagation data.
@@ -125,28 +130,26 @@ public class ComputeCnossosRays {
 
     /**
      * Run computation and store the results in the given output.
+     * Receivers are not split in fixed ranges, each worker pull chunks of receivers from a shared cursor. The chunk
+     * size decrease with the number of remaining receivers so that all workers end at nearly the same time.
      * @param computeRaysOut Result output.
      */
     public void run(IComputeRaysOut computeRaysOut) {
         ProgressVisitor visitor = data.cellProg;
-        ThreadPool threadManager = new ThreadPool(threadCount, threadCount + 1, Long.MAX_VALUE, TimeUnit.SECONDS);
-        int maximumReceiverBatch = (int) Math.ceil(data.receivers.size() / (double) threadCount);
-        int endReceiverRange = 0;
-        //Launch execution of computation by batch
-        while (endReceiverRange < data.receivers.size()) {
+        ReceiverChunkCursor cursor = new ReceiverChunkCursor(data.receivers.size(), threadCount);
+        int workerCount = Math.max(1, Math.min(threadCount, data.receivers.size()));
+        if(workerCount == 1) {
+            new RangeReceiversComputation(cursor, this, visitor, computeRaysOut, data).run();
+            return;
+        }
+        ThreadPool threadManager = new ThreadPool(workerCount, workerCount + 1, Long.MAX_VALUE, TimeUnit.SECONDS);
+        //Launch workers, they will stop when there is no more receivers to compute
+        for(int idWorker = 0; idWorker < workerCount; idWorker++) {
             //Break if the progress visitor is cancelled
             if (visitor != null && visitor.isCanceled()) {
                 break;
             }
-            int newEndReceiver = Math.min(endReceiverRange + maximumReceiverBatch, data.receivers.size());
-            RangeReceiversComputation batchThread = new RangeReceiversComputation(endReceiverRange, newEndReceiver,
-                    this, visitor, computeRaysOut, data);
-            if (threadCount != 1) {
-                threadManager.executeBlocking(batchThread);
-            } else {
-                batchThread.run();
-            }
-            endReceiverRange = newEndReceiver;
+            threadManager.execute(new RangeReceiversComputation(cursor, this, visitor, computeRaysOut, data));
         }
         //Once the execution ends, shutdown the thread manager and await termination
         threadManager.shutdown();
@@ -172,8 +175,8 @@ public class ComputeCnossosRays {
             Envelope receiverPropagationEnvelope = new Envelope(rcv.getCoord());
             receiverPropagationEnvelope.expandBy(data.maxSrcDist);
             List<ProfileBuilder.Wall> buildWalls = data.profileBuilder.getWallsIn(receiverPropagationEnvelope);
-            receiverMirrorIndex = new MirrorReceiverResultIndex(buildWalls, rcv.position, data.reflexionOrder,
-                    data.maxSrcDist, data.maxRefDist);
+            receiverMirrorIndex = new MirrorReceiverResultIndex(data.profileBuilder, buildWalls, rcv.position,
+                    data.reflexionOrder, data.maxSrcDist, data.maxRefDist);
         }
 
         //Compute the source search area
@@ -223,12 +226,22 @@ public class ComputeCnossosRays {
                 }
             }
         }
+        if (data.sourceClusteringDistance > 0) {
+            sourceList = clusterFarSources(rcv.getCoord(), sourceList);
+        }
         // Sort sources by power contribution descending
         Collections.sort(sourceList);
         double powerAtSource = 0;
         // For each Pt Source - Pt Receiver
         AtomicInteger raysCount = new AtomicInteger(0);
+        int processedSources = 0;
         for (SourcePointInfo src : sourceList) {
+            // If the delta between already received power and maximal potential power received is inferior than than
+            // data.maximumError or if the remaining power is below data.noiseFloor
+            if ((visitor != null && visitor.isCanceled()) || canSkipRemainingSources(powerAtSource, totalPowerRemaining)) {
+                break; //Stop looking for more rays
+            }
+            processedSources++;
             double[] power = rcvSrcPropagation(src, src.li, rcv, dataOut, raysCount, receiverMirrorIndex);
             double global = sumArray(power.length, dbaToW(power));
             totalPowerRemaining -= src.globalWj;
@@ -238,16 +251,21 @@ public class ComputeCnossosRays {
                 powerAtSource += src.globalWj;
             }
             totalPowerRemaining = max(0, totalPowerRemaining);
-            // If the delta between already received power and maximal potential power received is inferior than than data.maximumError
-            if ((visitor != null && visitor.isCanceled()) || (data.maximumError > 0 &&
-                            wToDba(powerAtSource + totalPowerRemaining) - wToDba(powerAtSource) < data.maximumError)) {
-                break; //Stop looking for more rays
-            }
         }
 
         if(profilerThread != null &&
                 profilerThread.getMetric(ReceiverStatsMetric.class) != null) {
-            profilerThread.getMetric(ReceiverStatsMetric.class).onReceiverRays(rcv.getId(), raysCount.get());
+            ReceiverStatsMetric receiverStatsMetric = profilerThread.getMetric(ReceiverStatsMetric.class);
+            receiverStatsMetric.onReceiverRays(rcv.getId(), raysCount.get());
+            int skippedSources = sourceList.size() - processedSources;
+            double errorBound = skippedSources > 0 ?
+                    wToDba(powerAtSource + totalPowerRemaining) - wToDba(powerAtSource) : 0;
+            receiverStatsMetric.onReceiverSkippedSources(rcv.getId(), skippedSources, errorBound);
+        }
+        data.profileBuilder.finishReceiverProfiles();
+        if(profilerThread != null &&
+                profilerThread.getMetric(ObstacleCacheMetric.class) != null) {
+            data.profileBuilder.flushObstacleCacheStatistics(profilerThread.getMetric(ObstacleCacheMetric.class));
         }
 
         // No more rays for this receiver
@@ -281,12 +299,101 @@ public class ComputeCnossosRays {
                 if(raysCount != null) {
                     raysCount.addAndGet(propagationPaths.size());
                 }
+                if (src.clusterSources != null) {
+                    return addClusterPropagationPaths(src, rcv, dataOut, propagationPaths);
+                }
                 return dataOut.addPropagationPaths(src.getId(), srcLi, rcv.getId(), propagationPaths);
             }
         }
         return new double[0];
     }
 
+    /**
+     * Push the propagation paths of the cluster representative source for each source of the cluster
+     * @return Energetic sum of the levels returned by the output, empty if the output does not return levels
+     */
+    private double[] addClusterPropagationPaths(SourcePointInfo cluster, ReceiverPointInfo rcv,
+                                                IComputeRaysOut dataOut, List<PropagationPath> propagationPaths) {
+        double[] clusterLevels = null;
+        boolean hasLevels = true;
+        for (SourcePointInfo src : cluster.clusterSources) {
+            List<PropagationPath> sourcePaths = new ArrayList<>(propagationPaths.size());
+            for (PropagationPath propagationPath : propagationPaths) {
+                PropagationPath sourcePath = new PropagationPath(propagationPath);
+                sourcePath.idSource = src.getId();
+                sourcePath.setSourceOrientation(src.getOrientation());
+                sourcePaths.add(sourcePath);
+            }
+            double[] levels = dataOut.addPropagationPaths(src.getId(), src.li, rcv.getId(), sourcePaths);
+            if (levels == null || levels.length == 0) {
+                hasLevels = false;
+            } else if (clusterLevels == null) {
+                clusterLevels = levels.clone();
+            } else {
+                sumDbArray(clusterLevels, levels, clusterLevels);
+            }
+        }
+        return hasLevels && clusterLevels != null ? clusterLevels : new double[0];
+    }
+
+    /**
+     * Merge the far omnidirectional sources into clusters. The sources are split using a quadtree until the
+     * size of the quadtree cell is lower than {@link CnossosPropagationData#sourceClusteringRatio} times the distance
+     * between the cell and the receiver.
+     * @param receiver Receiver position
+     * @param sources Sources in the receiver range
+     * @return Near sources and clusters of far sources
+     */
+    private List<SourcePointInfo> clusterFarSources(Coordinate receiver, List<SourcePointInfo> sources) {
+        List<SourcePointInfo> clusteredSources = new ArrayList<>(sources.size());
+        List<SourcePointInfo> farSources = new ArrayList<>();
+        Envelope farSourcesEnvelope = new Envelope();
+        for (SourcePointInfo src : sources) {
+            if (src.getCoord().distance(receiver) > data.sourceClusteringDistance &&
+                    data.isOmnidirectional(src.getId())) {
+                farSources.add(src);
+                farSourcesEnvelope.expandToInclude(src.getCoord());
+            } else {
+                clusteredSources.add(src);
+            }
+        }
+        if (!farSources.isEmpty()) {
+            double size = max(farSourcesEnvelope.getWidth(), farSourcesEnvelope.getHeight());
+            clusterSources(receiver, farSources, farSourcesEnvelope.getMinX(), farSourcesEnvelope.getMinY(), size,
+                    0, clusteredSources);
+        }
+        return clusteredSources;
+    }
+
+    private void clusterSources(Coordinate receiver, List<SourcePointInfo> sources, double minX, double minY,
+                                double size, int depth, List<SourcePointInfo> clusteredSources) {
+        if (sources.size() == 1) {
+            clusteredSources.add(sources.get(0));
+            return;
+        }
+        double dx = max(0, max(minX - receiver.x, receiver.x - (minX + size)));
+        double dy = max(0, max(minY - receiver.y, receiver.y - (minY + size)));
+        if (size <= data.sourceClusteringRatio * Math.sqrt(dx * dx + dy * dy) || depth >= MAX_SOURCE_CLUSTER_DEPTH) {
+            clusteredSources.add(new SourcePointInfo(sources));
+            return;
+        }
+        double halfSize = size / 2;
+        List<List<SourcePointInfo>> quadrants = new ArrayList<>(4);
+        for (int i = 0; i < 4; i++) {
+            quadrants.add(new ArrayList<>());
+        }
+        for (SourcePointInfo src : sources) {
+            int quadrant = (src.getCoord().x >= minX + halfSize ? 1 : 0) + (src.getCoord().y >= minY + halfSize ? 2 : 0);
+            quadrants.get(quadrant).add(src);
+        }
+        for (int i = 0; i < 4; i++) {
+            if (!quadrants.get(i).isEmpty()) {
+                clusterSources(receiver, quadrants.get(i), minX + (i & 1) * halfSize, minY + (i >> 1) * halfSize,
+                        halfSize, depth + 1, clusteredSources);
+            }
+        }
+    }
+
     /**
      * Direct Path computation.
      * @param src Source point.
@@ -943,75 +1050,55 @@ public class ComputeCnossosRays {
             return new ArrayList<>();
         }
 
+        SideHullWorkspace workspace = sideHullWorkspace.get();
         // Intersection test cache
-        Set<LineSegment> freeFieldSegments = new HashSet<>();
-
-        List<Coordinate> input = new ArrayList<>();
-
-        Coordinate[] coordinates = new Coordinate[0];
-        int indexp1 = 0;
-        int indexp2 = 0;
-
-        boolean convexHullIntersects = true;
+        workspace.freeFieldSegmentCount = 0;
 
+        IncrementalConvexHull input = workspace.input;
+        input.clear();
         input.add(p1);
         input.add(p2);
 
-        Set<Integer> buildingInHull = new HashSet<>();
-        Set<Integer> wallInHull = new HashSet<>();
-
         Plane cutPlane = computeZeroRadPlane(p1, p2);
 
-        BuildingIntersectionRayVisitor buildingIntersectionRayVisitor = new BuildingIntersectionRayVisitor(
-                profileBuilder.getBuildings(), p1, p2, profileBuilder, input, buildingInHull, cutPlane);
-
+        BuildingIntersectionRayVisitor buildingIntersectionRayVisitor = workspace.buildingIntersectionRayVisitor;
+        buildingIntersectionRayVisitor.init(profileBuilder, input, cutPlane);
+        buildingIntersectionRayVisitor.reset(p1, p2);
         data.profileBuilder.getBuildingsOnPath(p1, p2, buildingIntersectionRayVisitor);
 
-        WallIntersectionRayVisitor wallIntersectionRayVisitor = new WallIntersectionRayVisitor(
-                profileBuilder.getWalls(), p1, p2, profileBuilder, input, wallInHull, cutPlane);
-
+        WallIntersectionRayVisitor wallIntersectionRayVisitor = workspace.wallIntersectionRayVisitor;
+        wallIntersectionRayVisitor.init(profileBuilder, input, cutPlane);
+        wallIntersectionRayVisitor.reset(p1, p2);
         data.profileBuilder.getWallsOnPath(p1, p2, wallIntersectionRayVisitor);
 
-        int k;
+        Coordinate segmentStart = workspace.segmentStart;
+        Coordinate segmentEnd = workspace.segmentEnd;
+        int hullSize = 0;
+        int indexp2 = 0;
+        boolean convexHullIntersects = true;
         while (convexHullIntersects) {
-            ConvexHull convexHull = new ConvexHull(input.toArray(new Coordinate[0]), GEOMETRY_FACTORY);
-            Geometry convexhull = convexHull.getConvexHull();
+            hullSize = input.compute();
 
-            if (convexhull.getLength() / p1.distance(p2) > MAX_RATIO_HULL_DIRECT_PATH) {
+            if (input.getLength() / p1.distance(p2) > MAX_RATIO_HULL_DIRECT_PATH) {
                 return new ArrayList<>();
             }
 
             convexHullIntersects = false;
-            coordinates = convexhull.getCoordinates();
-
-            input.clear();
-            input.addAll(Arrays.asList(coordinates));
-
-            indexp1 = -1;
-            for (int i = 0; i < coordinates.length - 1; i++) {
-                if (coordinates[i].equals(p1)) {
-                    indexp1 = i;
-                    break;
-                }
+            if (hullSize < 3) {
+                // All points are aligned, there is no side path
+                return new ArrayList<>();
             }
+            int indexp1 = input.indexOfHullVertex(p1.x, p1.y);
             if (indexp1 == -1) {
                 // P1 does not belong to convex vertices, cannot compute diffraction
                 // TODO handle concave path
                 return new ArrayList<>();
             }
-            // Transform array to set p1 at index=0
-            Coordinate[] coordinatesShifted = new Coordinate[coordinates.length];
-            // Copy from P1 to end in beginning of new array
-            int len = (coordinates.length - 1) - indexp1;
-            System.arraycopy(coordinates, indexp1, coordinatesShifted, 0, len);
-            // Copy from 0 to P1 in the end of array
-            System.arraycopy(coordinates, 0, coordinatesShifted, len, coordinates.length - len - 1);
-            coordinatesShifted[coordinatesShifted.length - 1] = coordinatesShifted[0];
-            coordinates = coordinatesShifted;
-            indexp1 = 0;
+            // Keep only the hull vertices, with p1 at index=0
+            input.retainHull(indexp1);
             indexp2 = -1;
-            for (int i = 1; i < coordinates.length - 1; i++) {
-                if (coordinates[i].equals(p2)) {
+            for (int i = 1; i < hullSize; i++) {
+                if (input.getX(i) == p2.x && input.getY(i) == p2.y) {
                     indexp2 = i;
                     break;
                 }
@@ -1021,23 +1108,27 @@ public class ComputeCnossosRays {
                 // TODO handle concave path
                 return new ArrayList<>();
             }
-            for (k = 0; k < coordinates.length - 1; k++) {
-                LineSegment freeFieldTestSegment = new LineSegment(coordinates[k], coordinates[k + 1]);
+            for (int k = 0; k < hullSize; k++) {
                 // Ignore intersection if iterating over other side (not parts of what is returned)
                 if (left && k < indexp2 || !left && k >= indexp2) {
-                    if (!freeFieldSegments.contains(freeFieldTestSegment)) {
+                    int next = (k + 1) % hullSize;
+                    segmentStart.setX(input.getX(k));
+                    segmentStart.setY(input.getY(k));
+                    segmentStart.setZ(input.getZ(k));
+                    segmentEnd.setX(input.getX(next));
+                    segmentEnd.setY(input.getY(next));
+                    segmentEnd.setZ(input.getZ(next));
+                    if (!workspace.isFreeFieldSegment(segmentStart, segmentEnd)) {
                         // Check if we still are in the propagation domain
-                        buildingIntersectionRayVisitor = new BuildingIntersectionRayVisitor(profileBuilder.getBuildings(),
-                                coordinates[k], coordinates[k + 1], profileBuilder, input, buildingInHull, cutPlane);
-                        profileBuilder.getBuildingsOnPath(coordinates[k], coordinates[k + 1], buildingIntersectionRayVisitor);
-                        wallIntersectionRayVisitor = new WallIntersectionRayVisitor(profileBuilder.getWalls(),
-                                coordinates[k], coordinates[k + 1], profileBuilder, input, wallInHull, cutPlane);
-                        profileBuilder.getWallsOnPath(coordinates[k], coordinates[k + 1], wallIntersectionRayVisitor);
+                        buildingIntersectionRayVisitor.reset(segmentStart, segmentEnd);
+                        profileBuilder.getBuildingsOnPath(segmentStart, segmentEnd, buildingIntersectionRayVisitor);
+                        wallIntersectionRayVisitor.reset(segmentStart, segmentEnd);
+                        profileBuilder.getWallsOnPath(segmentStart, segmentEnd, wallIntersectionRayVisitor);
                         if (!buildingIntersectionRayVisitor.doContinue() || !wallIntersectionRayVisitor.doContinue()) {
                             convexHullIntersects = true;
                         }
                         if (!convexHullIntersects) {
-                            freeFieldSegments.add(freeFieldTestSegment);
+                            workspace.addFreeFieldSegment(segmentStart, segmentEnd);
                         } else {
                             break;
                         }
@@ -1046,19 +1137,24 @@ public class ComputeCnossosRays {
             }
         }
         // Check for invalid coordinates
-        for (Coordinate p : coordinates) {
-            if (p.z < 0) {
+        for (int i = 0; i < hullSize; i++) {
+            if (input.getZ(i) < 0) {
                 return new ArrayList<>();
             }
         }
 
+        List<Coordinate> path = new ArrayList<>();
         if (left) {
-            return Arrays.asList(Arrays.copyOfRange(coordinates, indexp1, indexp2 + 1));
+            for (int i = 0; i <= indexp2; i++) {
+                path.add(input.getCoordinate(i));
+            }
         } else {
-            List<Coordinate> inversePath = Arrays.asList(Arrays.copyOfRange(coordinates, indexp2, coordinates.length));
-            Collections.reverse(inversePath);
-            return inversePath;
+            path.add(input.getCoordinate(0));
+            for (int i = hullSize - 1; i >= indexp2; i--) {
+                path.add(input.getCoordinate(i));
+            }
         }
+        return path;
     }
 
     public static Plane computeZeroRadPlane(Coordinate p0, Coordinate p1) {
@@ -1076,115 +1172,253 @@ public class ComputeCnossosRays {
     }
 
 
-    private static final class BuildingIntersectionRayVisitor implements ItemVisitor {
-        Set<Integer> itemProcessed = new HashSet<>();
+    /**
+     * @return True if the segment p1 p2 intersects the polygon
+     */
+    private static boolean intersects(LineIntersector lineIntersector, Coordinate p1, Coordinate p2, Polygon polygon) {
+        if (!polygon.getEnvelopeInternal().intersects(p1, p2)) {
+            return false;
+        }
+        if (intersects(lineIntersector, p1, p2, polygon.getExteriorRing())) {
+            return true;
+        }
+        for (int i = 0; i < polygon.getNumInteriorRing(); i++) {
+            if (intersects(lineIntersector, p1, p2, polygon.getInteriorRingN(i))) {
+                return true;
+            }
+        }
+        // The segment does not cross the boundary, so it is inside the polygon if p1 is inside
+        if (PointLocation.locateInRing(p1, polygon.getExteriorRing().getCoordinates()) != Location.INTERIOR) {
+            return false;
+        }
+        for (int i = 0; i < polygon.getNumInteriorRing(); i++) {
+            if (PointLocation.locateInRing(p1, polygon.getInteriorRingN(i).getCoordinates()) == Location.INTERIOR) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return True if the segment p1 p2 intersects the line
+     */
+    private static boolean intersects(LineIntersector lineIntersector, Coordinate p1, Coordinate p2, LineString line) {
+        if (!line.getEnvelopeInternal().intersects(p1, p2)) {
+            return false;
+        }
+        Coordinate[] coordinates = line.getCoordinates();
+        for (int i = 0; i < coordinates.length - 1; i++) {
+            lineIntersector.computeIntersection(p1, p2, coordinates[i], coordinates[i + 1]);
+            if (lineIntersector.hasIntersection()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return Next stamp value, stamps array is cleared on overflow
+     */
+    private static int nextStamp(int[] stamps, int stamp) {
+        if (stamp == Integer.MAX_VALUE) {
+            Arrays.fill(stamps, 0);
+            return 1;
+        }
+        return stamp + 1;
+    }
+
+    /**
+     * Buffers of the side hull computation, reused by each call in the same thread
+     */
+    private static final class SideHullWorkspace {
+        final IncrementalConvexHull input = new IncrementalConvexHull();
+        final BuildingIntersectionRayVisitor buildingIntersectionRayVisitor = new BuildingIntersectionRayVisitor();
+        final WallIntersectionRayVisitor wallIntersectionRayVisitor = new WallIntersectionRayVisitor();
+        final Coordinate segmentStart = new Coordinate();
+        final Coordinate segmentEnd = new Coordinate();
+        /** Hull segments without intersection, 4 values per segment (x0, y0, x1, y1) */
+        double[] freeFieldSegments = new double[64];
+        int freeFieldSegmentCount = 0;
+
+        boolean isFreeFieldSegment(Coordinate p0, Coordinate p1) {
+            for (int i = 0; i < freeFieldSegmentCount * 4; i += 4) {
+                if (freeFieldSegments[i] == p0.x && freeFieldSegments[i + 1] == p0.y &&
+                        freeFieldSegments[i + 2] == p1.x && freeFieldSegments[i + 3] == p1.y) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        void addFreeFieldSegment(Coordinate p0, Coordinate p1) {
+            int i = freeFieldSegmentCount * 4;
+            if (i == freeFieldSegments.length) {
+                freeFieldSegments = Arrays.copyOf(freeFieldSegments, i * 2);
+            }
+            freeFieldSegments[i] = p0.x;
+            freeFieldSegments[i + 1] = p0.y;
+            freeFieldSegments[i + 2] = p1.x;
+            freeFieldSegments[i + 3] = p1.y;
+            freeFieldSegmentCount++;
+        }
+    }
+
+    private static final class BuildingIntersectionRayVisitor implements PackedRTree.ItemVisitor {
+        private final LineIntersector lineIntersector = new RobustLineIntersector();
+        /** Buildings already tested with the current segment */
+        private int[] itemProcessed = new int[0];
+        private int segmentStamp = 0;
+        /** Buildings already added in the hull */
+        private int[] buildingsInIntersection = new int[0];
+        private int hullStamp = 0;
         List<ProfileBuilder.Building> buildings;
         Coordinate p1;
         Coordinate p2;
-        PreparedLineString seg;
-        Set<Integer> buildingsInIntersection;
         ProfileBuilder profileBuilder;
         Plane cutPlane;
-        List<Coordinate> input;
+        IncrementalConvexHull input;
         boolean foundIntersection = false;
 
-        public BuildingIntersectionRayVisitor(List<ProfileBuilder.Building> buildings, Coordinate p1,
-                                              Coordinate p2, ProfileBuilder profileBuilder, List<Coordinate> input, Set<Integer> buildingsInIntersection, Plane cutPlane) {
+        /**
+         * Start a new side hull computation
+         */
+        void init(ProfileBuilder profileBuilder, IncrementalConvexHull input, Plane cutPlane) {
             this.profileBuilder = profileBuilder;
             this.input = input;
-            this.buildingsInIntersection = buildingsInIntersection;
             this.cutPlane = cutPlane;
-            this.buildings = buildings;
+            this.buildings = profileBuilder.getBuildings();
+            if (itemProcessed.length < buildings.size() + 1) {
+                itemProcessed = new int[buildings.size() + 1];
+                buildingsInIntersection = new int[buildings.size() + 1];
+                segmentStamp = 0;
+                hullStamp = 0;
+            }
+            hullStamp = nextStamp(buildingsInIntersection, hullStamp);
+        }
+
+        /**
+         * Look for the buildings intersecting a new segment
+         */
+        void reset(Coordinate p1, Coordinate p2) {
             this.p1 = p1;
             this.p2 = p2;
-            seg = new PreparedLineString(GEOMETRY_FACTORY.createLineString(new Coordinate[]{p1, p2}));
+            foundIntersection = false;
+            segmentStamp = nextStamp(itemProcessed, segmentStamp);
         }
 
         @Override
-        public void visitItem(Object item) {
-            int id = (Integer) item;
-            if(!itemProcessed.contains(id)) {
-                itemProcessed.add(id);
+        public boolean visitItem(int id) {
+            if(itemProcessed[id] != segmentStamp) {
+                itemProcessed[id] = segmentStamp;
                 final ProfileBuilder.Building b = buildings.get(id - 1);
-                RectangleLineIntersector rect = new RectangleLineIntersector(b.getGeometry().getEnvelopeInternal());
-                if (rect.intersects(p1, p2) && seg.intersects(b.getGeometry())) {
-                    addItem(id);
+                if (intersects(lineIntersector, p1, p2, b.getGeometry())) {
+                    return addItem(id);
                 }
             }
+            return true;
         }
 
-        public void addItem(int id) {
-            if (buildingsInIntersection.contains(id)) {
-                return;
+        /**
+         * @return False if the building has been added to the hull, the iteration must stop
+         */
+        public boolean addItem(int id) {
+            if (buildingsInIntersection[id] == hullStamp) {
+                return true;
             }
             List<Coordinate> roofPoints = profileBuilder.getPrecomputedWideAnglePoints(id);
             // Create a cut of the building volume
             roofPoints = cutRoofPointsWithPlane(cutPlane, roofPoints);
             if (!roofPoints.isEmpty()) {
-                input.addAll(roofPoints.subList(0, roofPoints.size() - 1));
-                buildingsInIntersection.add(id);
+                for (int i = 0; i < roofPoints.size() - 1; i++) {
+                    input.add(roofPoints.get(i));
+                }
+                buildingsInIntersection[id] = hullStamp;
                 foundIntersection = true;
                 // Stop iterating bounding boxes
-                throw new IllegalStateException();
+                return false;
             }
+            return true;
         }
 
         public boolean doContinue() {
             return !foundIntersection;
         }
     }
-    private static final class WallIntersectionRayVisitor implements ItemVisitor {
-        Set<Integer> itemProcessed = new HashSet<>();
+    private static final class WallIntersectionRayVisitor implements PackedRTree.ItemVisitor {
+        private final LineIntersector lineIntersector = new RobustLineIntersector();
+        /** Walls already tested with the current segment */
+        private int[] itemProcessed = new int[0];
+        private int segmentStamp = 0;
+        /** Walls already added in the hull */
+        private int[] wallsInIntersection = new int[0];
+        private int hullStamp = 0;
         List<ProfileBuilder.Wall> walls;
         Coordinate p1;
         Coordinate p2;
-        PreparedLineString seg;
-        Set<Integer> wallsInIntersection;
         ProfileBuilder profileBuilder;
         Plane cutPlane;
-        List<Coordinate> input;
+        IncrementalConvexHull input;
         boolean foundIntersection = false;
 
-        public WallIntersectionRayVisitor(List<ProfileBuilder.Wall> walls, Coordinate p1,
-                                              Coordinate p2, ProfileBuilder profileBuilder, List<Coordinate> input,
-                                          Set<Integer> wallsInIntersection, Plane cutPlane) {
+        /**
+         * Start a new side hull computation
+         */
+        void init(ProfileBuilder profileBuilder, IncrementalConvexHull input, Plane cutPlane) {
             this.profileBuilder = profileBuilder;
             this.input = input;
-            this.wallsInIntersection = wallsInIntersection;
             this.cutPlane = cutPlane;
-            this.walls = walls;
+            this.walls = profileBuilder.getWalls();
+            if (itemProcessed.length < walls.size() + 1) {
+                itemProcessed = new int[walls.size() + 1];
+                wallsInIntersection = new int[walls.size() + 1];
+                segmentStamp = 0;
+                hullStamp = 0;
+            }
+            hullStamp = nextStamp(wallsInIntersection, hullStamp);
+        }
+
+        /**
+         * Look for the walls intersecting a new segment
+         */
+        void reset(Coordinate p1, Coordinate p2) {
             this.p1 = p1;
             this.p2 = p2;
-            seg = new PreparedLineString(GEOMETRY_FACTORY.createLineString(new Coordinate[]{p1, p2}));
+            foundIntersection = false;
+            segmentStamp = nextStamp(itemProcessed, segmentStamp);
         }
 
         @Override
-        public void visitItem(Object item) {
-            int id = (Integer) item;
-            if(!itemProcessed.contains(id)) {
-                itemProcessed.add(id);
+        public boolean visitItem(int id) {
+            if(itemProcessed[id] != segmentStamp) {
+                itemProcessed[id] = segmentStamp;
                 final ProfileBuilder.Wall w = walls.get(id-1);
-                RectangleLineIntersector rect = new RectangleLineIntersector(w.getLine().getEnvelopeInternal());
-                if (rect.intersects(p1, p2) && seg.intersects(w.getLine())) {
-                    addItem(id);
+                if (intersects(lineIntersector, p1, p2, w.getLine())) {
+                    return addItem(id);
                 }
             }
+            return true;
         }
 
-        public void addItem(int id) {
-            if (wallsInIntersection.contains(id)) {
-                return;
+        /**
+         * @return False if the wall has been added to the hull, the iteration must stop
+         */
+        public boolean addItem(int id) {
+            if (wallsInIntersection[id] == hullStamp) {
+                return true;
             }
             List<Coordinate> roofPoints = Arrays.asList(profileBuilder.getWall(id-1).getLine().getCoordinates());
             // Create a cut of the building volume
             roofPoints = cutRoofPointsWithPlane(cutPlane, roofPoints);
             if (!roofPoints.isEmpty()) {
-                input.addAll(roofPoints);
-                wallsInIntersection.add(id);
+                for (Coordinate roofPoint : roofPoints) {
+                    input.add(roofPoint);
+                }
+                wallsInIntersection[id] = hullStamp;
                 foundIntersection = true;
                 // Stop iterating bounding boxes
-                throw new IllegalStateException();
+                return false;
             }
+            return true;
         }
 
         public boolean doContinue() {
@@ -1620,28 +1854,128 @@ public class ComputeCnossosRays {
         data.receivers = Arrays.asList(sequence.toCoordinateArray());
     }
 
-    private static double insertPtSource(Coordinate source, Coordinate receiverPos, Integer sourceId,
+    private double insertPtSource(Coordinate source, Coordinate receiverPos, Integer sourceId,
                                          List<SourcePointInfo> sourceList, double[] wj, double li, Orientation orientation) {
         // Compute maximal power at freefield at the receiver position with reflective ground
-        double aDiv = -getADiv(CGAlgorithms3D.distance(receiverPos, source));
+        double distance = CGAlgorithms3D.distance(receiverPos, source);
+        double aDiv = -getADiv(distance);
         double[] srcWJ = new double[wj.length];
         for (int idFreq = 0; idFreq < srcWJ.length; idFreq++) {
             srcWJ[idFreq] = wj[idFreq] * li * dbaToW(aDiv) * dbaToW(3);
         }
+        if (data.isEarlyTerminationEnabled()) {
+            // Tighter bound, the sources order is only used by the early termination
+            double[] aAtmLowerBound = data.minimalAtmosphericAbsorption;
+            if (aAtmLowerBound != null && aAtmLowerBound.length == srcWJ.length) {
+                for (int idFreq = 0; idFreq < srcWJ.length; idFreq++) {
+                    srcWJ[idFreq] *= dbaToW(-aAtmLowerBound[idFreq] * distance / 1000);
+                }
+            }
+            if (data.obstacleAttenuationBound && isDirectPathBlocked(source, receiverPos)) {
+                double obstacleAttenuation = dbaToW(-MINIMAL_DIFFRACTION_ATTENUATION);
+                for (int idFreq = 0; idFreq < srcWJ.length; idFreq++) {
+                    srcWJ[idFreq] *= obstacleAttenuation;
+                }
+            }
+        }
         sourceList.add(new SourcePointInfo(srcWJ, sourceId, source, li, orientation));
         return sumArray(srcWJ.length, srcWJ);
     }
 
-    private static double insertPtSource(Point source, Coordinate receiverPos, Integer sourceId,
+    private double insertPtSource(Point source, Coordinate receiverPos, Integer sourceId,
                                          List<SourcePointInfo> sourceList, double[] wj, double li, Orientation orientation) {
-        // Compute maximal power at freefield at the receiver position with reflective ground
-        double aDiv = -getADiv(CGAlgorithms3D.distance(receiverPos, source.getCoordinate()));
-        double[] srcWJ = new double[wj.length];
-        for (int idFreq = 0; idFreq < srcWJ.length; idFreq++) {
-            srcWJ[idFreq] = wj[idFreq] * li * dbaToW(aDiv) * dbaToW(3);
+        return insertPtSource(source.getCoordinate(), receiverPos, sourceId, sourceList, wj, li, orientation);
+    }
+
+    /**
+     * @param source Source position
+     * @param receiver Receiver position
+     * @return True if a building crossed by the source-receiver line is higher than both the source and the receiver
+     */
+    private boolean isDirectPathBlocked(Coordinate source, Coordinate receiver) {
+        double maxZ = max(source.z, receiver.z);
+        if (isNaN(maxZ)) {
+            return false;
         }
-        sourceList.add(new SourcePointInfo(srcWJ, sourceId, source.getCoordinate(), li, orientation));
-        return sumArray(srcWJ.length, srcWJ);
+        final boolean[] blocked = new boolean[] {false};
+        data.profileBuilder.getBuildingsOnPath(source, receiver, id -> {
+            ProfileBuilder.Building building = data.profileBuilder.getBuilding(id - 1);
+            if (building.getZ() > maxZ && intersects(building.getGeometry(), source, receiver)) {
+                blocked[0] = true;
+                return false;
+            }
+            return true;
+        });
+        return blocked[0];
+    }
+
+    /**
+     * Same result as {@link Geometry#intersects(Geometry)} with the segment p0 p1, without creating the segment
+     * geometry.
+     * @return True if the segment intersects the interior or the boundary of the polygon
+     */
+    static boolean intersects(Polygon polygon, Coordinate p0, Coordinate p1) {
+        if (!polygon.getEnvelopeInternal().intersects(p0, p1)) {
+            return false;
+        }
+        // A segment starting inside the polygon intersects it, otherwise it has to cross the boundary
+        if (SimplePointInAreaLocator.locate(p0, polygon) != Location.EXTERIOR) {
+            return true;
+        }
+        if (p0.equals2D(p1)) {
+            return false;
+        }
+        if (intersects(polygon.getExteriorRing().getCoordinateSequence(), p0, p1)) {
+            return true;
+        }
+        for (int i = 0; i < polygon.getNumInteriorRing(); i++) {
+            if (intersects(polygon.getInteriorRingN(i).getCoordinateSequence(), p0, p1)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return True if a segment of the ring intersects the segment p0 p1
+     */
+    private static boolean intersects(CoordinateSequence ring, Coordinate p0, Coordinate p1) {
+        for (int i = 1; i < ring.size(); i++) {
+            Coordinate q0 = ring.getCoordinate(i - 1);
+            Coordinate q1 = ring.getCoordinate(i);
+            int o0 = org.locationtech.jts.algorithm.Orientation.index(p0, p1, q0);
+            int o1 = org.locationtech.jts.algorithm.Orientation.index(p0, p1, q1);
+            if (o0 * o1 > 0) {
+                continue;
+            }
+            if (o0 == 0 && o1 == 0) {
+                // collinear segments
+                if (Envelope.intersects(p0, p1, q0, q1)) {
+                    return true;
+                }
+                continue;
+            }
+            int o2 = org.locationtech.jts.algorithm.Orientation.index(q0, q1, p0);
+            int o3 = org.locationtech.jts.algorithm.Orientation.index(q0, q1, p1);
+            if (o2 * o3 <= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param receivedPower Power already received from the computed sources
+     * @param remainingPower Maximal power of the remaining sources
+     * @return True if the remaining sources are not significant, according to {@link CnossosPropagationData#maximumError}
+     * and {@link CnossosPropagationData#noiseFloor}
+     */
+    private boolean canSkipRemainingSources(double receivedPower, double remainingPower) {
+        if (data.maximumError > 0 &&
+                wToDba(receivedPower + remainingPower) - wToDba(receivedPower) < data.maximumError) {
+            return true;
+        }
+        return remainingPower > 0 && wToDba(remainingPower) < data.noiseFloor;
     }
 
     private double addLineSource(LineString source, Coordinate receiverCoord, int srcIndex, List<SourcePointInfo> sourceList, double[] wj) {
@@ -1680,19 +2014,55 @@ public class ComputeCnossosRays {
         return totalPowerRemaining;
     }
 
+    /**
+     * Shared cursor over the receivers list. Each call to {@link #next(int[])} return a new range of receivers.
+     * The range size is proportional to the remaining receivers (guided scheduling), so the first chunks are
+     * large (low contention) and the last chunks contain only one receiver (no idle worker at the end).
+     */
+    static final class ReceiverChunkCursor {
+        /** Number of chunks per worker for the remaining receivers */
+        private static final int CHUNK_PER_THREAD = 4;
+        private final AtomicInteger nextReceiver = new AtomicInteger(0);
+        private final int receiverCount;
+        private final int threadCount;
+
+        ReceiverChunkCursor(int receiverCount, int threadCount) {
+            this.receiverCount = receiverCount;
+            this.threadCount = Math.max(1, threadCount);
+        }
+
+        /**
+         * @param range Output range [start included, end excluded]
+         * @return False if there is no more receivers to compute
+         */
+        boolean next(int[] range) {
+            while (true) {
+                int start = nextReceiver.get();
+                if (start >= receiverCount) {
+                    return false;
+                }
+                int chunkSize = Math.max(1, (receiverCount - start) / (threadCount * CHUNK_PER_THREAD));
+                int end = Math.min(receiverCount, start + chunkSize);
+                if (nextReceiver.compareAndSet(start, end)) {
+                    range[0] = start;
+                    range[1] = end;
+                    return true;
+                }
+            }
+        }
+    }
+
     private static final class RangeReceiversComputation implements Runnable {
-        private final int startReceiver; // Included
-        private final int endReceiver; // Excluded
+        private final ReceiverChunkCursor cursor;
         private final ComputeCnossosRays propagationProcess;
         private final ProgressVisitor visitor;
         private final IComputeRaysOut dataOut;
         private final CnossosPropagationData data;
 
-        public RangeReceiversComputation(int startReceiver, int endReceiver, ComputeCnossosRays propagationProcess,
+        public RangeReceiversComputation(ReceiverChunkCursor cursor, ComputeCnossosRays propagationProcess,
                                          ProgressVisitor visitor, IComputeRaysOut dataOut,
                                          CnossosPropagationData data) {
-            this.startReceiver = startReceiver;
-            this.endReceiver = endReceiver;
+            this.cursor = cursor;
             this.propagationProcess = propagationProcess;
             this.visitor = visitor;
             this.dataOut = dataOut.subProcess();
@@ -1702,30 +2072,45 @@ public class ComputeCnossosRays {
         @Override
         public void run() {
             try {
-                for (int idReceiver = startReceiver; idReceiver < endReceiver; idReceiver++) {
-                    if (visitor != null) {
-                        if (visitor.isCanceled()) {
-                            break;
-                        }
+                ReceiverStatsMetric receiverStatsMetric = null;
+                if(propagationProcess.profilerThread != null) {
+                    receiverStatsMetric = propagationProcess.profilerThread.getMetric(ReceiverStatsMetric.class);
+                }
+                int[] range = new int[2];
+                while (cursor.next(range)) {
+                    long chunkStart = 0;
+                    if(receiverStatsMetric != null) {
+                        chunkStart = propagationProcess.profilerThread.timeTracker.get();
                     }
-                    ReceiverPointInfo rcv = new ReceiverPointInfo(idReceiver, data.receivers.get(idReceiver));
+                    for (int idReceiver = range[0]; idReceiver < range[1]; idReceiver++) {
+                        if (visitor != null) {
+                            if (visitor.isCanceled()) {
+                                return;
+                            }
+                        }
+                        ReceiverPointInfo rcv = new ReceiverPointInfo(idReceiver, data.receivers.get(idReceiver));
 
-                    long start = 0;
-                    if(propagationProcess.profilerThread != null) {
-                        start = propagationProcess.profilerThread.timeTracker.get();
-                    }
+                        long start = 0;
+                        if (receiverStatsMetric != null) {
+                            start = propagationProcess.profilerThread.timeTracker.get();
+                        }
 
-                    propagationProcess.computeRaysAtPosition(rcv, dataOut, visitor);
+                        propagationProcess.computeRaysAtPosition(rcv, dataOut, visitor);
 
-                    // Save computation time for this receiver
-                    if(propagationProcess.profilerThread != null &&
-                            propagationProcess.profilerThread.getMetric(ReceiverStatsMetric.class) != null) {
-                        propagationProcess.profilerThread.getMetric(ReceiverStatsMetric.class).onEndComputation(idReceiver,
-                                (int) (propagationProcess.profilerThread.timeTracker.get() - start));
-                    }
+                        // Save computation time for this receiver
+                        if (receiverStatsMetric != null) {
+                            receiverStatsMetric.onEndComputation(idReceiver,
+                                    (int) (propagationProcess.profilerThread.timeTracker.get() - start));
+                        }
 
-                    if (visitor != null) {
-                        visitor.endStep();
+                        if (visitor != null) {
+                            visitor.endStep();
+                        }
+                    }
+                    // Save computation time for this chunk of receivers
+                    if(receiverStatsMetric != null) {
+                        receiverStatsMetric.onEndChunk(range[1] - range[0],
+                                (int) (propagationProcess.profilerThread.timeTracker.get() - chunkStart));
                     }
                 }
             } catch (Exception ex) {
@@ -1763,6 +2148,8 @@ public class ComputeCnossosRays {
         private Coordinate position;
         private final double globalWj;
         private Orientation orientation;
+        /** Sources sharing the propagation paths of this source, null if this source is not a cluster */
+        private final List<SourcePointInfo> clusterSources;
 
         /**
          * @param wj               Maximum received power from this source
@@ -1778,6 +2165,44 @@ public class ComputeCnossosRays {
             this.globalWj = sumArray(wj.length, wj);
             this.li = li;
             this.orientation = orientation;
+            this.clusterSources = null;
+        }
+
+        /**
+         * Cluster of far sources, the paths are computed from the source closest to the centroid of the cluster.
+         * The representative depends only on the source positions, so the propagation paths do not change with
+         * the emission of the sources.
+         * @param clusterSources Sources of the cluster
+         */
+        public SourcePointInfo(List<SourcePointInfo> clusterSources) {
+            double clusterWj = 0;
+            double centroidX = 0;
+            double centroidY = 0;
+            for (SourcePointInfo src : clusterSources) {
+                clusterWj += src.globalWj;
+                centroidX += src.position.x;
+                centroidY += src.position.y;
+            }
+            centroidX /= clusterSources.size();
+            centroidY /= clusterSources.size();
+            SourcePointInfo representative = null;
+            double representativeDistance = Double.POSITIVE_INFINITY;
+            for (SourcePointInfo src : clusterSources) {
+                double dx = src.position.x - centroidX;
+                double dy = src.position.y - centroidY;
+                double distance = dx * dx + dy * dy;
+                if (distance < representativeDistance || (distance == representativeDistance &&
+                        src.sourcePrimaryKey < representative.sourcePrimaryKey)) {
+                    representative = src;
+                    representativeDistance = distance;
+                }
+            }
+            this.sourcePrimaryKey = representative.sourcePrimaryKey;
+            this.position = representative.position;
+            this.li = representative.li;
+            this.orientation = representative.orientation;
+            this.globalWj = clusterWj;
+            this.clusterSources = clusterSources;
         }
 
         public Orientation getOrientation() {
@@ -0,0 +1,299 @@
+/**
+ * NoiseModelling is an open-source tool designed to produce environmental noise maps on very large urban areas. It can be used as a Java library or be controlled through a user friendly web interface.
+ *
+ * This version is developed by the DECIDE team from the Lab-STICC (CNRS) and by the Mixt Research Unit in Environmental Acoustics (Université Gustave Eiffel).
+ * <http://noise-planet.org/noisemodelling.html>
+ *
+ * NoiseModelling is distributed under GPL 3 license. You can read a copy of this License in the file LICENCE provided with this software.
+ *
+ * Contact: contact@noise-planet.org
+ *
+ */
+package org.noise_planet.noisemodelling.pathfinder;
+
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.LineString;
+import org.locationtech.jts.geom.Polygon;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Ground factor G given as a regular grid, used by {@link ProfileBuilder} instead of the ground effect polygons.
+ * The ground factor is constant inside each grid cell. The G path of a profile is the integral of the ground factor
+ * along the segment, computed by visiting the grid cells crossed by the segment (DDA traversal), so the profiles do
+ * not contain ground effect cut points.
+ *
+ * Coefficients are stored row by row, the first row is the northern one (same order than {@link RasterTopography}).
+ * NaN coefficients are unknown values, replaced by the default ground factor of the computation.
+ * @author Nicolas Fortin
+ */
+public final class GroundRaster {
+    private static final int MAGIC = 0x4E4D4752; // NMGR
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 2 * Integer.BYTES + 3 * Double.BYTES + 2 * Integer.BYTES;
+
+    private final double minX;
+    private final double maxY;
+    private final double cellSize;
+    private final int columns;
+    private final int rows;
+    private final FloatBuffer coefficients;
+
+    /**
+     * @param minX X coordinate of the western edge of the grid
+     * @param maxY Y coordinate of the northern edge of the grid
+     * @param cellSize Size of the square cells
+     * @param columns Number of columns
+     * @param rows Number of rows
+     * @param coefficients Ground factor of the cells, row by row from the north, NaN for unknown values
+     */
+    public GroundRaster(double minX, double maxY, double cellSize, int columns, int rows, FloatBuffer coefficients) {
+        if(columns < 1 || rows < 1 || !(cellSize > 0)) {
+            throw new IllegalArgumentException("Raster must contain at least one cell with a positive size");
+        }
+        if(coefficients.capacity() < (long) columns * rows) {
+            throw new IllegalArgumentException("Expected " + (long) columns * rows + " coefficients, got " +
+                    coefficients.capacity());
+        }
+        this.minX = minX;
+        this.maxY = maxY;
+        this.cellSize = cellSize;
+        this.columns = columns;
+        this.rows = rows;
+        this.coefficients = coefficients;
+    }
+
+    /**
+     * @see #GroundRaster(double, double, double, int, int, FloatBuffer)
+     */
+    public GroundRaster(double minX, double maxY, double cellSize, int columns, int rows, float[] coefficients) {
+        this(minX, maxY, cellSize, columns, rows, FloatBuffer.wrap(coefficients));
+    }
+
+    /**
+     * Create a raster covering the envelope where all the coefficients are unknown
+     * @param envelope Area covered by the raster
+     * @param cellSize Size of the square cells
+     * @return New raster, to be filled with {@link #fill(Geometry, double)}
+     */
+    public static GroundRaster create(Envelope envelope, double cellSize) {
+        if(!(cellSize > 0)) {
+            throw new IllegalArgumentException("Cell size must be greater than 0");
+        }
+        int columns = Math.max(1, (int) Math.ceil(envelope.getWidth() / cellSize));
+        int rows = Math.max(1, (int) Math.ceil(envelope.getHeight() / cellSize));
+        if((long) columns * rows > Integer.MAX_VALUE / Float.BYTES) {
+            throw new IllegalArgumentException("Too many cells, cell size must be increased");
+        }
+        float[] coefficients = new float[columns * rows];
+        Arrays.fill(coefficients, Float.NaN);
+        return new GroundRaster(envelope.getMinX(), envelope.getMaxY(), cellSize, columns, rows, coefficients);
+    }
+
+    /**
+     * Open a raster written by {@link #save(File)}. The coefficients are memory mapped and not loaded in the java heap.
+     * @param file Raster file
+     * @return Read only raster
+     */
+    public static GroundRaster open(File file) throws IOException {
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+             FileChannel channel = randomAccessFile.getChannel()) {
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+            if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+                throw new IOException("Unexpected raster file format " + file.getAbsolutePath());
+            }
+            double minX = header.getDouble();
+            double maxY = header.getDouble();
+            double cellSize = header.getDouble();
+            int columns = header.getInt();
+            int rows = header.getInt();
+            long size = (long) columns * rows * Float.BYTES;
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Raster too large to be mapped " + file.getAbsolutePath());
+            }
+            FloatBuffer coefficients = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE, size).asFloatBuffer();
+            return new GroundRaster(minX, maxY, cellSize, columns, rows, coefficients);
+        }
+    }
+
+    /**
+     * Write the raster in a file that can be memory mapped with {@link #open(File)}
+     * @param file Destination file
+     */
+    public void save(File file) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeDouble(minX);
+            out.writeDouble(maxY);
+            out.writeDouble(cellSize);
+            out.writeInt(columns);
+            out.writeInt(rows);
+            for (int i = 0; i < columns * rows; i++) {
+                out.writeFloat(coefficients.get(i));
+            }
+        }
+    }
+
+    public double getMinX() {
+        return minX;
+    }
+
+    public double getMaxY() {
+        return maxY;
+    }
+
+    public double getCellSize() {
+        return cellSize;
+    }
+
+    public int getColumns() {
+        return columns;
+    }
+
+    public int getRows() {
+        return rows;
+    }
+
+    /**
+     * @return Area covered by the cells
+     */
+    public Envelope getEnvelope() {
+        return new Envelope(minX, minX + columns * cellSize, maxY - rows * cellSize, maxY);
+    }
+
+    /**
+     * @param column Column index
+     * @param row Row index, 0 is the northern row
+     * @return Ground factor of the cell, NaN if unknown
+     */
+    public double getCellG(int column, int row) {
+        return coefficients.get(row * columns + column);
+    }
+
+    /**
+     * Set the ground factor of the cells whose center is inside the polygons of the geometry. Holes are excluded.
+     * @param geometry Polygon or MultiPolygon
+     * @param coefficient Ground factor
+     */
+    public void fill(Geometry geometry, double coefficient) {
+        for (int idPoly = 0; idPoly < geometry.getNumGeometries(); idPoly++) {
+            Geometry polygon = geometry.getGeometryN(idPoly);
+            if (polygon instanceof Polygon && !polygon.isEmpty()) {
+                fill((Polygon) polygon, (float) coefficient);
+            }
+        }
+    }
+
+    private void fill(Polygon polygon, float coefficient) {
+        Coordinate[][] rings = new Coordinate[polygon.getNumInteriorRing() + 1][];
+        rings[0] = polygon.getExteriorRing().getCoordinates();
+        for (int idHole = 0; idHole < polygon.getNumInteriorRing(); idHole++) {
+            LineString hole = polygon.getInteriorRingN(idHole);
+            rings[idHole + 1] = hole.getCoordinates();
+        }
+        Envelope envelope = polygon.getEnvelopeInternal();
+        int firstRow = Math.max(0, (int) Math.floor((maxY - envelope.getMaxY()) / cellSize - 0.5));
+        int lastRow = Math.min(rows - 1, (int) Math.ceil((maxY - envelope.getMinY()) / cellSize - 0.5));
+        double[] crossings = new double[polygon.getNumPoints()];
+        for (int row = firstRow; row <= lastRow; row++) {
+            // Scan line at the center of the cells, the cell is inside if the center is between two crossings
+            double y = maxY - (row + 0.5) * cellSize;
+            int crossingCount = 0;
+            for (Coordinate[] ring : rings) {
+                for (int i = 0; i < ring.length - 1; i++) {
+                    Coordinate a = ring[i];
+                    Coordinate b = ring[i + 1];
+                    if ((a.y > y) != (b.y > y)) {
+                        crossings[crossingCount++] = a.x + (y - a.y) * (b.x - a.x) / (b.y - a.y);
+                    }
+                }
+            }
+            Arrays.sort(crossings, 0, crossingCount);
+            for (int i = 0; i + 1 < crossingCount; i += 2) {
+                int firstColumn = Math.max(0, (int) Math.ceil((crossings[i] - minX) / cellSize - 0.5));
+                int lastColumn = Math.min(columns - 1, (int) Math.ceil((crossings[i + 1] - minX) / cellSize - 0.5) - 1);
+                for (int column = firstColumn; column <= lastColumn; column++) {
+                    coefficients.put(row * columns + column, coefficient);
+                }
+            }
+        }
+    }
+
+    /**
+     * @param x X coordinate
+     * @param y Y coordinate
+     * @param defaultG Ground factor outside of the raster or in unknown cells
+     * @return Ground factor at this location
+     */
+    public double getG(double x, double y, double defaultG) {
+        double fx = Math.floor((x - minX) / cellSize);
+        double fy = Math.floor((maxY - y) / cellSize);
+        if (fx < 0 || fy < 0 || fx >= columns || fy >= rows) {
+            return defaultG;
+        }
+        double g = getCellG((int) fx, (int) fy);
+        return Double.isNaN(g) ? defaultG : g;
+    }
+
+    /**
+     * Mean ground factor along the segment, weighted by the length of the segment inside each cell
+     * @param x0 X coordinate of the first point
+     * @param y0 Y coordinate of the first point
+     * @param x1 X coordinate of the last point
+     * @param y1 Y coordinate of the last point
+     * @param defaultG Ground factor outside of the raster or in unknown cells
+     * @return Mean ground factor, the ground factor at the first point if the segment is a point
+     */
+    public double getMeanG(double x0, double y0, double x1, double y1, double defaultG) {
+        // Position in grid units, column index increase with x, row index increase toward the south
+        double fx0 = (x0 - minX) / cellSize;
+        double fy0 = (maxY - y0) / cellSize;
+        double dfx = (x1 - x0) / cellSize;
+        double dfy = (y0 - y1) / cellSize;
+        double tx = nextCrossing(fx0, dfx);
+        double ty = nextCrossing(fy0, dfy);
+        double stepX = dfx != 0 ? 1 / Math.abs(dfx) : Double.POSITIVE_INFINITY;
+        double stepY = dfy != 0 ? 1 / Math.abs(dfy) : Double.POSITIVE_INFINITY;
+        double t = 0;
+        double sum = 0;
+        while (t < 1) {
+            double next = Math.min(1, Math.min(tx, ty));
+            // The cell is identified at the middle of the portion of segment
+            double middle = (t + next) / 2;
+            sum += (next - t) * getG(x0 + (x1 - x0) * middle, y0 + (y1 - y0) * middle, defaultG);
+            if (tx <= next) {
+                tx += stepX;
+            }
+            if (ty <= next) {
+                ty += stepY;
+            }
+            t = next;
+        }
+        return sum;
+    }
+
+    /**
+     * @param f0 Position in grid units at t = 0
+     * @param df Variation of the position between t = 0 and t = 1
+     * @return Segment position of the first integer grid position strictly after t = 0
+     */
+    private static double nextCrossing(double f0, double df) {
+        if (df == 0) {
+            return Double.POSITIVE_INFINITY;
+        }
+        double next = df > 0 ? Math.floor(f0) + 1 : Math.ceil(f0) - 1;
+        return (next - f0) / df;
+    }
+}
@@ -0,0 +1,273 @@
+/**
+ * NoiseModelling is an open-source tool designed to produce environmental noise maps on very large urban areas. It can be used as a Java library or be controlled through a user friendly web interface.
+ *
+ * This version is developed by the DECIDE team from the Lab-STICC (CNRS) and by the Mixt Research Unit in Environmental Acoustics (Université Gustave Eiffel).
+ * <http://noise-planet.org/noisemodelling.html>
+ *
+ * NoiseModelling is distributed under GPL 3 license. You can read a copy of this License in the file LICENCE provided with this software.
+ *
+ * Contact: contact@noise-planet.org
+ *
+ */
+package org.noise_planet.noisemodelling.pathfinder;
+
+import org.locationtech.jts.algorithm.CGAlgorithmsDD;
+import org.locationtech.jts.algorithm.Orientation;
+import org.locationtech.jts.geom.Coordinate;
+
+import java.util.Arrays;
+
+/**
+ * 2D convex hull of a growing set of points stored in primitive arrays (monotone chain algorithm).
+ * The points are added between two computations of the hull, the buffers are reused so the computation does not
+ * allocate once the buffers are large enough.
+ *
+ * The hull is the same than the one of {@link org.locationtech.jts.algorithm.ConvexHull}: duplicated points keep the
+ * first added altitude, collinear points are removed and the vertices are in clockwise order.
+ * @author Nicolas Fortin
+ */
+final class IncrementalConvexHull {
+    private double[] x = new double[16];
+    private double[] y = new double[16];
+    private double[] z = new double[16];
+    private int size = 0;
+    /** Buffers used when the hull vertices replace the points */
+    private double[] swapX = new double[16];
+    private double[] swapY = new double[16];
+    private double[] swapZ = new double[16];
+    private int[] order = new int[16];
+    private int[] sortBuffer = new int[16];
+    /** Index of the hull vertices, clockwise */
+    private int[] hull = new int[17];
+    private int hullSize = 0;
+    /** Position in hull of the vertex with the lowest y (then lowest x) */
+    private int hullStart = 0;
+
+    /**
+     * Remove all points
+     */
+    void clear() {
+        size = 0;
+        hullSize = 0;
+    }
+
+    /**
+     * @return Number of points
+     */
+    int size() {
+        return size;
+    }
+
+    void add(Coordinate coordinate) {
+        add(coordinate.x, coordinate.y, coordinate.z);
+    }
+
+    void add(double px, double py, double pz) {
+        if(size == x.length) {
+            int capacity = size * 2;
+            x = Arrays.copyOf(x, capacity);
+            y = Arrays.copyOf(y, capacity);
+            z = Arrays.copyOf(z, capacity);
+        }
+        x[size] = px;
+        y[size] = py;
+        z[size] = pz;
+        size++;
+    }
+
+    double getX(int index) {
+        return x[index];
+    }
+
+    double getY(int index) {
+        return y[index];
+    }
+
+    double getZ(int index) {
+        return z[index];
+    }
+
+    Coordinate getCoordinate(int index) {
+        return new Coordinate(x[index], y[index], z[index]);
+    }
+
+    /**
+     * Compute the convex hull of the points
+     * @return Number of hull vertices, lower than 3 if all the points are aligned
+     */
+    int compute() {
+        if(order.length < size) {
+            order = new int[x.length];
+            sortBuffer = new int[x.length];
+            hull = new int[x.length + 1];
+        }
+        for(int i = 0; i < size; i++) {
+            order[i] = i;
+        }
+        sort(0, size);
+        // Remove duplicates, keep the first added point
+        int uniqueCount = 0;
+        for(int i = 0; i < size; i++) {
+            int point = order[i];
+            if(uniqueCount == 0 || x[order[uniqueCount - 1]] != x[point] || y[order[uniqueCount - 1]] != y[point]) {
+                order[uniqueCount++] = point;
+            }
+        }
+        if(uniqueCount < 3) {
+            hullSize = uniqueCount;
+            hullStart = 0;
+            System.arraycopy(order, 0, hull, 0, uniqueCount);
+            return hullSize;
+        }
+        // Lower then upper chain, counter-clockwise, only strict left turns are kept
+        int count = 0;
+        for(int i = 0; i < uniqueCount; i++) {
+            int point = order[i];
+            while(count >= 2 && !isLeftTurn(hull[count - 2], hull[count - 1], point)) {
+                count--;
+            }
+            hull[count++] = point;
+        }
+        int lowerCount = count + 1;
+        for(int i = uniqueCount - 2; i >= 0; i--) {
+            int point = order[i];
+            while(count >= lowerCount && !isLeftTurn(hull[count - 2], hull[count - 1], point)) {
+                count--;
+            }
+            hull[count++] = point;
+        }
+        // The last point is the first one
+        count--;
+        // Clockwise order
+        for(int i = 0, j = count - 1; i < j; i++, j--) {
+            int tmp = hull[i];
+            hull[i] = hull[j];
+            hull[j] = tmp;
+        }
+        hullSize = count;
+        hullStart = 0;
+        for(int i = 1; i < hullSize; i++) {
+            int point = hull[i];
+            int start = hull[hullStart];
+            if(y[point] < y[start] || (y[point] == y[start] && x[point] < x[start])) {
+                hullStart = i;
+            }
+        }
+        return hullSize;
+    }
+
+    private boolean isLeftTurn(int a, int b, int c) {
+        return CGAlgorithmsDD.orientationIndex(x[a], y[a], x[b], y[b], x[c], y[c]) == Orientation.COUNTERCLOCKWISE;
+    }
+
+    /**
+     * Stable merge sort of order by x then y
+     */
+    private void sort(int from, int to) {
+        if(to - from < 2) {
+            return;
+        }
+        int middle = (from + to) >>> 1;
+        sort(from, middle);
+        sort(middle, to);
+        if(compare(order[middle - 1], order[middle]) <= 0) {
+            return;
+        }
+        System.arraycopy(order, from, sortBuffer, from, to - from);
+        int left = from;
+        int right = middle;
+        for(int i = from; i < to; i++) {
+            if(right >= to || (left < middle && compare(sortBuffer[left], sortBuffer[right]) <= 0)) {
+                order[i] = sortBuffer[left++];
+            } else {
+                order[i] = sortBuffer[right++];
+            }
+        }
+    }
+
+    private int compare(int a, int b) {
+        if(x[a] != x[b]) {
+            return x[a] < x[b] ? -1 : 1;
+        }
+        return y[a] < y[b] ? -1 : (y[a] == y[b] ? 0 : 1);
+    }
+
+    /**
+     * @return Number of vertices of the last computed hull
+     */
+    int getHullSize() {
+        return hullSize;
+    }
+
+    /**
+     * @param position Hull position, 0 is the first vertex of {@link #retainHull(int)}
+     * @return Point index of this hull vertex
+     */
+    int getHullVertex(int position) {
+        return hull[(hullStart + position) % hullSize];
+    }
+
+    /**
+     * @return Hull position of the vertex located at x,y or -1 if not found
+     */
+    int indexOfHullVertex(double px, double py) {
+        for(int i = 0; i < hullSize; i++) {
+            int point = getHullVertex(i);
+            if(x[point] == px && y[point] == py) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return Perimeter of the hull, or length of the line when all points are aligned
+     */
+    double getLength() {
+        if(hullSize < 2) {
+            return 0;
+        }
+        double length = 0;
+        int last = hullSize < 3 ? hullSize - 1 : hullSize;
+        for(int i = 0; i < last; i++) {
+            int a = getHullVertex(i);
+            int b = getHullVertex(i + 1);
+            double dx = x[b] - x[a];
+            double dy = y[b] - y[a];
+            length += Math.sqrt(dx * dx + dy * dy);
+        }
+        return length;
+    }
+
+    /**
+     * Keep only the hull vertices. The points are then the hull vertices in clockwise order.
+     * @param firstVertex Hull position of the vertex that become the first point
+     */
+    void retainHull(int firstVertex) {
+        if(swapX.length < x.length) {
+            swapX = new double[x.length];
+            swapY = new double[x.length];
+            swapZ = new double[x.length];
+        }
+        for(int i = 0; i < hullSize; i++) {
+            int point = getHullVertex((firstVertex + i) % hullSize);
+            swapX[i] = x[point];
+            swapY[i] = y[point];
+            swapZ[i] = z[point];
+        }
+        double[] tmp = x;
+        x = swapX;
+        swapX = tmp;
+        tmp = y;
+        y = swapY;
+        swapY = tmp;
+        tmp = z;
+        z = swapZ;
+        swapZ = tmp;
+        size = hullSize;
+        hullStart = 0;
+        for(int i = 0; i < hullSize; i++) {
+            hull[i] = i;
+        }
+    }
+}
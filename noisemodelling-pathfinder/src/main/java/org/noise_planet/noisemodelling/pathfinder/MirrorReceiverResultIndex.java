@@ -47,10 +47,20 @@ import org.locationtech.jts.math.Vector2D;
 import org.locationtech.jts.triangulate.quadedge.Vertex;
 
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.List;
 
+/**
+ * Tree of the image receivers of one receiver, queried with the source position.
+ * The walls are taken from the wall index shared by all receivers ({@link ProfileBuilder#getWallsIn(Envelope)}), and
+ * from the second reflection order the walls that can be seen from the parent wall are taken from the wall
+ * visibility table shared by all receivers. The image positions and their visibility cones depend on the receiver
+ * position, so this tree is built for each receiver.
+ */
 public class MirrorReceiverResultIndex {
     private static final double DEFAULT_CIRCLE_POINT_ANGLE = Math.PI / 24;
+    /** Sinus of the angular tolerance used when rejecting a wall outside of a visibility cone */
+    private static final double CONE_EPSILON = 1e-6;
     STRtree mirrorReceiverTree;
     public static final int DEFAULT_MIRROR_RECEIVER_CAPACITY = 50000;
     private int mirrorReceiverCapacity = DEFAULT_MIRROR_RECEIVER_CAPACITY;
@@ -107,8 +117,124 @@ public class MirrorReceiverResultIndex {
             return factory.createPolygon();
         }
     }
+
+    /**
+     * Compute the envelope of the polygon returned by
+     * {@link #createWallReflectionVisibilityCone(Coordinate, LineSegment, double, double)}, without creating it.
+     * @param envelope Envelope to expand
+     * @return False if the visibility cone is empty
+     */
+    public static boolean expandToWallReflectionVisibilityCone(Coordinate receiverImage, LineSegment wall,
+                                                               double maximumPropagationDistance,
+                                                               double maximumDistanceFromWall, Envelope envelope) {
+        double distanceMin = wall.distance(receiverImage);
+        if(distanceMin > maximumPropagationDistance) {
+            return false;
+        }
+        Vector2D rP0 = new Vector2D(receiverImage, wall.p0).normalize();
+        Vector2D rP1 = new Vector2D(receiverImage, wall.p1).normalize();
+        double angleSign = rP0.angleTo(rP1) >= 0 ? 1 : -1;
+        int numberOfStep = Math.max(1, (int)(Math.abs(rP0.angleTo(rP1)) / DEFAULT_CIRCLE_POINT_ANGLE));
+        Coordinate newPoint = new Coordinate();
+        boolean empty = true;
+        double lastX = 0, lastY = 0;
+        for(int angleStep = 0 ; angleStep <= numberOfStep; angleStep++) {
+            double vx, vy;
+            if(angleStep == numberOfStep) {
+                vx = rP1.getX();
+                vy = rP1.getY();
+            } else if(angleStep == 0) {
+                vx = rP0.getX();
+                vy = rP0.getY();
+            } else {
+                // same as Vector2D#rotate
+                double angle = DEFAULT_CIRCLE_POINT_ANGLE * angleSign * angleStep;
+                double cos = Math.cos(angle);
+                double sin = Math.sin(angle);
+                vx = rP0.getX() * cos - rP0.getY() * sin;
+                vy = rP0.getX() * sin + rP0.getY() * cos;
+            }
+            newPoint.x = receiverImage.x + vx;
+            newPoint.y = receiverImage.y + vy;
+            Coordinate wallIntersectionPoint = Intersection.intersection(wall.p0, wall.p1, receiverImage, newPoint);
+            if(wallIntersectionPoint != null) {
+                double wallIntersectionPointDistance = wallIntersectionPoint.distance(receiverImage);
+                if (wallIntersectionPointDistance < maximumPropagationDistance) {
+                    double vectorLength = Math.min(wallIntersectionPointDistance + maximumDistanceFromWall, maximumPropagationDistance);
+                    if (empty) {
+                        envelope.expandToInclude(wallIntersectionPoint.x, wallIntersectionPoint.y);
+                        empty = false;
+                    }
+                    lastX = wallIntersectionPoint.x;
+                    lastY = wallIntersectionPoint.y;
+                    envelope.expandToInclude(receiverImage.x + vx * vectorLength, receiverImage.y + vy * vectorLength);
+                }
+            }
+        }
+        if(!empty) {
+            envelope.expandToInclude(lastX, lastY);
+        }
+        return !empty;
+    }
+
+    /**
+     * Check if a wall can be seen through the visibility cone of a receiver image. The cone is delimited by two
+     * half-planes passing by the receiver image and each end of the reflection wall.
+     * @param cone Apex and border vectors of the cone (ax, ay, e0x, e0y, e1x, e1y), the borders are oriented
+     *             counter-clockwise
+     * @return True if the wall is entirely outside one of the two half-planes, so no reflection path can go
+     * from the cone to the wall
+     */
+    static boolean isOutsideVisibilityCone(double[] cone, double q0x, double q0y, double q1x, double q1y) {
+        final double ax = cone[0], ay = cone[1];
+        return (isOutsideHalfPlane(cone[2], cone[3], q0x - ax, q0y - ay) &&
+                isOutsideHalfPlane(cone[2], cone[3], q1x - ax, q1y - ay)) ||
+                (isOutsideHalfPlane(-cone[4], -cone[5], q0x - ax, q0y - ay) &&
+                isOutsideHalfPlane(-cone[4], -cone[5], q1x - ax, q1y - ay));
+    }
+
+    /**
+     * @return True if the vector q is on the right of the vector e, with an angular tolerance
+     */
+    private static boolean isOutsideHalfPlane(double ex, double ey, double qx, double qy) {
+        double cross = ex * qy - ey * qx;
+        return cross < 0 && cross * cross > CONE_EPSILON * CONE_EPSILON * (ex * ex + ey * ey) * (qx * qx + qy * qy);
+    }
+
     /**
-     * Generate all image receivers from the provided list of walls
+     * Compute the visibility cone of the receiver image through the wall, the wall is the border of the cone
+     * @param cone Cone to update, see {@link #isOutsideVisibilityCone(double[], double, double, double, double)}
+     * @return False if the receiver image is aligned with the wall
+     */
+    static boolean computeVisibilityCone(Coordinate receiverImage, LineSegment wall, double[] cone) {
+        double e0x = wall.p0.x - receiverImage.x;
+        double e0y = wall.p0.y - receiverImage.y;
+        double e1x = wall.p1.x - receiverImage.x;
+        double e1y = wall.p1.y - receiverImage.y;
+        double cross = e0x * e1y - e0y * e1x;
+        if(!(cross * cross > CONE_EPSILON * CONE_EPSILON * (e0x * e0x + e0y * e0y) * (e1x * e1x + e1y * e1y))) {
+            return false;
+        }
+        cone[0] = receiverImage.x;
+        cone[1] = receiverImage.y;
+        if(cross > 0) {
+            cone[2] = e0x;
+            cone[3] = e0y;
+            cone[4] = e1x;
+            cone[5] = e1y;
+        } else {
+            cone[2] = e1x;
+            cone[3] = e1y;
+            cone[4] = e0x;
+            cone[5] = e0y;
+        }
+        return true;
+    }
+
+    /**
+     * Generate all image receivers from the provided list of walls.
+     * The walls that are entirely outside of the visibility cone of the parent receiver image are skipped, as the
+     * reflection point on these walls could not be seen through the parent wall.
      * @param buildWalls
      * @param receiverCoordinates
      * @param reflectionOrder
@@ -116,11 +242,39 @@ public class MirrorReceiverResultIndex {
     public MirrorReceiverResultIndex(List<ProfileBuilder.Wall> buildWalls, Coordinate receiverCoordinates,
                                      int reflectionOrder, double maximumPropagationDistance,
                                      double maximumDistanceFromWall) {
+        this(null, buildWalls, receiverCoordinates, reflectionOrder, maximumPropagationDistance,
+                maximumDistanceFromWall);
+    }
+
+    /**
+     * Generate all image receivers from the provided list of walls.
+     * From the second reflection order, the walls of a parent image are taken from the wall visibility table of the
+     * profile builder. This table does not depend on the receiver, it removes the walls that are farther than the
+     * maximum propagation distance from the parent wall or that can't face the parent wall.
+     * @param profileBuilder Profile builder of the walls, if null all the walls are tested for each parent image
+     * @param buildWalls Walls of the profile builder around the receiver
+     * @param receiverCoordinates
+     * @param reflectionOrder
+     */
+    public MirrorReceiverResultIndex(ProfileBuilder profileBuilder, List<ProfileBuilder.Wall> buildWalls,
+                                     Coordinate receiverCoordinates, int reflectionOrder,
+                                     double maximumPropagationDistance, double maximumDistanceFromWall) {
         this.receiverCoordinate = receiverCoordinates;
         this.buildWalls = buildWalls;
         this.maximumDistanceFromWall = maximumDistanceFromWall;
         this.maximumPropagationDistance = maximumPropagationDistance;
         mirrorReceiverTree = new STRtree();
+        WallVisibilityTable visibilityTable = null;
+        BitSet buildWallsIndex = null;
+        if(profileBuilder != null && reflectionOrder > 1) {
+            visibilityTable = profileBuilder.getWallVisibilityTable(maximumPropagationDistance);
+            buildWallsIndex = new BitSet(profileBuilder.getProcessedWalls().size());
+            for (ProfileBuilder.Wall wall : buildWalls) {
+                buildWallsIndex.set(wall.getProcessedWallIndex());
+            }
+        }
+        double[] cone = new double[6];
+        Envelope coneEnvelope = new Envelope();
         ArrayList<MirrorReceiverResult> parentsToProcess = new ArrayList<>();
         for(int currentDepth = 0; currentDepth < reflectionOrder; currentDepth++) {
             if(currentDepth == 0) {
@@ -128,35 +282,45 @@ public class MirrorReceiverResultIndex {
             }
             ArrayList<MirrorReceiverResult> nextParentsToProcess = new ArrayList<>();
             for(MirrorReceiverResult parent : parentsToProcess) {
-                for (ProfileBuilder.Wall wall : buildWalls) {
-                    Coordinate receiverImage;
-                    if (parent != null) {
-                        if(wall == parent.getWall()) {
-                            continue;
-                        } else {
-                            receiverImage = parent.getReceiverPos();
+                if(parent == null) {
+                    for (ProfileBuilder.Wall wall : buildWalls) {
+                        if(!addReceiverImage(null, wall, receiverCoordinates, coneEnvelope, nextParentsToProcess)) {
+                            return;
                         }
-                    } else {
-                        receiverImage = receiverCoordinates;
                     }
-                    //Calculate the coordinate of projection
-                    Coordinate proj = wall.getLineSegment().project(receiverImage);
-                    Coordinate rcvMirror = new Coordinate(2 * proj.x - receiverImage.x,
-                            2 * proj.y - receiverImage.y, receiverImage.z);
-                    if(wall.getLineSegment().distance(rcvMirror) > maximumPropagationDistance) {
-                        // wall is too far from the receiver image, there is no receiver image
-                        continue;
+                    continue;
+                }
+                boolean hasCone = computeVisibilityCone(parent.getReceiverPos(), parent.getWall().getLineSegment(),
+                        cone);
+                if(visibilityTable != null) {
+                    int parentWallIndex = parent.getWall().getProcessedWallIndex();
+                    for(int i = visibilityTable.getRowStart(parentWallIndex);
+                        i < visibilityTable.getRowEnd(parentWallIndex); i++) {
+                        int wallIndex = visibilityTable.getVisibleWall(i);
+                        if(!buildWallsIndex.get(wallIndex)) {
+                            continue;
+                        }
+                        ProfileBuilder.Wall wall = profileBuilder.getProcessedWalls().get(wallIndex);
+                        if(hasCone && isOutsideVisibilityCone(cone, wall.p0.x, wall.p0.y, wall.p1.x, wall.p1.y)) {
+                            // this wall can't be seen through the parent wall
+                            continue;
+                        }
+                        if(!addReceiverImage(parent, wall, parent.getReceiverPos(), coneEnvelope,
+                                nextParentsToProcess)) {
+                            return;
+                        }
                     }
-                    MirrorReceiverResult receiverResult = new MirrorReceiverResult(rcvMirror, parent, wall,
-                            wall.getOriginId(), wall.getType());
-                    // create the visibility cone of this receiver image
-                    Polygon imageReceiverVisibilityCone = createWallReflectionVisibilityCone(rcvMirror,
-                            wall.getLineSegment(), maximumPropagationDistance, maximumDistanceFromWall);
-                    mirrorReceiverTree.insert(imageReceiverVisibilityCone.getEnvelopeInternal(), receiverResult);
-                    nextParentsToProcess.add(receiverResult);
-                    numberOfImageReceivers++;
-                    if(numberOfImageReceivers >= mirrorReceiverCapacity) {
-                        return;
+                } else {
+                    for (ProfileBuilder.Wall wall : buildWalls) {
+                        if(wall == parent.getWall() || (hasCone && isOutsideVisibilityCone(cone, wall.p0.x,
+                                wall.p0.y, wall.p1.x, wall.p1.y))) {
+                            // this wall can't be seen through the parent wall
+                            continue;
+                        }
+                        if(!addReceiverImage(parent, wall, parent.getReceiverPos(), coneEnvelope,
+                                nextParentsToProcess)) {
+                            return;
+                        }
                     }
                 }
             }
@@ -165,6 +329,32 @@ public class MirrorReceiverResultIndex {
         mirrorReceiverTree.build();
     }
 
+    /**
+     * Compute the image of the receiver image through the wall and insert it in the tree
+     * @return False if the maximum number of image receivers is reached
+     */
+    private boolean addReceiverImage(MirrorReceiverResult parent, ProfileBuilder.Wall wall, Coordinate receiverImage,
+                                     Envelope coneEnvelope, List<MirrorReceiverResult> nextParentsToProcess) {
+        //Calculate the coordinate of projection
+        Coordinate proj = wall.getLineSegment().project(receiverImage);
+        Coordinate rcvMirror = new Coordinate(2 * proj.x - receiverImage.x,
+                2 * proj.y - receiverImage.y, receiverImage.z);
+        if(wall.getLineSegment().distance(rcvMirror) > maximumPropagationDistance) {
+            // wall is too far from the receiver image, there is no receiver image
+            return true;
+        }
+        MirrorReceiverResult receiverResult = new MirrorReceiverResult(rcvMirror, parent, wall,
+                wall.getOriginId(), wall.getType());
+        // envelope of the visibility cone of this receiver image
+        coneEnvelope.setToNull();
+        expandToWallReflectionVisibilityCone(rcvMirror, wall.getLineSegment(),
+                maximumPropagationDistance, maximumDistanceFromWall, coneEnvelope);
+        mirrorReceiverTree.insert(new Envelope(coneEnvelope), receiverResult);
+        nextParentsToProcess.add(receiverResult);
+        numberOfImageReceivers++;
+        return numberOfImageReceivers < mirrorReceiverCapacity;
+    }
+
     public int getMirrorReceiverCapacity() {
         return mirrorReceiverCapacity;
     }
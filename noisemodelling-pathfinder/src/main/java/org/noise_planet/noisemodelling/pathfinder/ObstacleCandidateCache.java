@@ -0,0 +1,251 @@
+/**
+ * NoiseModelling is an open-source tool designed to produce environmental noise maps on very large urban areas. It can be used as a Java library or be controlled through a user friendly web interface.
+ *
+ * This version is developed by the DECIDE team from the Lab-STICC (CNRS) and by the Mixt Research Unit in Environmental Acoustics (Université Gustave Eiffel).
+ * <http://noise-planet.org/noisemodelling.html>
+ *
+ * NoiseModelling is distributed under GPL 3 license. You can read a copy of this License in the file LICENCE provided with this software.
+ *
+ * Contact: contact@noise-planet.org
+ *
+ */
+package org.noise_planet.noisemodelling.pathfinder;
+
+import java.util.Arrays;
+
+/**
+ * Cache of the walls R-Tree query results (building walls, free walls and ground effect borders), used by a single
+ * thread. The R-Tree is queried with the envelope of the profile part expanded by a margin, the profiles of the
+ * neighbouring receivers toward the same source reuse this result instead of querying the R-Tree again.
+ *
+ * The queries are keyed by the cell of the profile origin, on a grid of the margin size, and the index of the profile
+ * part. The line sources are discretised again for each receiver so the origin moves slightly from one receiver to
+ * the next one, it usually stays in the same cell. The table is 4-way set associative with a least recently used
+ * eviction, it is grown to hold twice the number of queries of a receiver.
+ *
+ * The cached items are filtered with the exact envelope. As the R-Tree traversal order does not depend on the query
+ * envelope, the result contains the same items in the same order than a direct query.
+ * @author Nicolas Fortin
+ */
+final class ObstacleCandidateCache {
+    /** Number of slots of a set */
+    static final int WAYS = 4;
+    /** Maximum number of slots of the table */
+    static final int MAX_SLOT_COUNT = 1 << 16;
+    /** Query key and expanded envelope of each slot, 6 values per slot (keyX, keyY, minX, minY, maxX, maxY) */
+    private double[] slotBounds;
+    private int[] slotKeyIndex;
+    private int[][] slotItems;
+    private int[] slotItemCount;
+    /** Last use of each slot, used to find the least recently used slot of a set */
+    private long[] slotUse;
+    private int setMask;
+    private long clock = 0;
+    private int receiverQueries = 0;
+    private long hits = 0;
+    private long misses = 0;
+    /** Items of the current profile */
+    private int[] result = new int[64];
+    private int resultSize = 0;
+    /** Used to remove duplicates items found in several profile parts */
+    private int[] itemStamp = new int[0];
+    private int stamp = 0;
+
+    /**
+     * @param slotCount Initial number of cached queries, rounded up to a power of two
+     */
+    ObstacleCandidateCache(int slotCount) {
+        allocate(Math.min(MAX_SLOT_COUNT, Math.max(WAYS, Integer.highestOneBit(Math.max(1, slotCount - 1)) << 1)));
+    }
+
+    private void allocate(int slotCount) {
+        setMask = slotCount / WAYS - 1;
+        slotBounds = new double[slotCount * 6];
+        slotKeyIndex = new int[slotCount];
+        Arrays.fill(slotKeyIndex, -1);
+        slotItems = new int[slotCount][];
+        slotItemCount = new int[slotCount];
+        slotUse = new long[slotCount];
+    }
+
+    /**
+     * Called when all the profiles of a receiver have been fetched. If the table does not hold twice the number of
+     * queries of this receiver it is grown, the cached queries are kept.
+     */
+    void finishReceiver() {
+        int required = receiverQueries * 2;
+        receiverQueries = 0;
+        int slotCount = slotKeyIndex.length;
+        if(required <= slotCount || slotCount >= MAX_SLOT_COUNT) {
+            return;
+        }
+        int newSlotCount = Math.min(MAX_SLOT_COUNT, Integer.highestOneBit(required - 1) << 1);
+        double[] oldBounds = slotBounds;
+        int[] oldKeyIndex = slotKeyIndex;
+        int[][] oldItems = slotItems;
+        int[] oldItemCount = slotItemCount;
+        long[] oldUse = slotUse;
+        allocate(newSlotCount);
+        for(int oldSlot = 0; oldSlot < oldKeyIndex.length; oldSlot++) {
+            if(oldKeyIndex[oldSlot] == -1) {
+                continue;
+            }
+            int oldBound = oldSlot * 6;
+            int slot = findVictim(hash(oldBounds[oldBound], oldBounds[oldBound + 1], oldKeyIndex[oldSlot]) & setMask,
+                    oldBounds[oldBound], oldBounds[oldBound + 1], oldKeyIndex[oldSlot]);
+            System.arraycopy(oldBounds, oldBound, slotBounds, slot * 6, 6);
+            slotKeyIndex[slot] = oldKeyIndex[oldSlot];
+            slotItems[slot] = oldItems[oldSlot];
+            slotItemCount[slot] = oldItemCount[oldSlot];
+            slotUse[slot] = oldUse[oldSlot];
+        }
+    }
+
+    /**
+     * Clear the result, before fetching the items of a new profile
+     * @param itemCount Number of items in the R-Tree
+     */
+    void startProfile(int itemCount) {
+        resultSize = 0;
+        if(itemStamp.length < itemCount) {
+            itemStamp = new int[itemCount];
+            stamp = 0;
+        }
+        stamp++;
+        if(stamp == Integer.MAX_VALUE) {
+            Arrays.fill(itemStamp, 0);
+            stamp = 1;
+        }
+    }
+
+    /**
+     * Append to the result the items of the R-Tree that intersects the envelope, the items already in the result are
+     * skipped.
+     * @param rtree R-Tree of the items
+     * @param itemEnvelopes Envelope of each item of the R-Tree, 4 values per item (minX, minY, maxX, maxY)
+     * @param originX X coordinate of the profile origin
+     * @param originY Y coordinate of the profile origin
+     * @param keyIndex Index of the profile part
+     * @param margin Expansion of the envelope used when the R-Tree is queried, and size of the origin cells
+     */
+    void query(PackedRTree rtree, double[] itemEnvelopes, double originX, double originY, int keyIndex, double margin,
+               double minX, double minY, double maxX, double maxY) {
+        receiverQueries++;
+        double keyX = margin > 0 ? Math.floor(originX / margin) : originX;
+        double keyY = margin > 0 ? Math.floor(originY / margin) : originY;
+        int set = hash(keyX, keyY, keyIndex) & setMask;
+        int slot = -1;
+        for(int way = set * WAYS; way < set * WAYS + WAYS; way++) {
+            int bounds = way * 6;
+            if(slotKeyIndex[way] == keyIndex && slotBounds[bounds] == keyX && slotBounds[bounds + 1] == keyY &&
+                    slotBounds[bounds + 2] <= minX && slotBounds[bounds + 3] <= minY &&
+                    slotBounds[bounds + 4] >= maxX && slotBounds[bounds + 5] >= maxY) {
+                slot = way;
+                break;
+            }
+        }
+        if(slot >= 0) {
+            hits++;
+        } else {
+            misses++;
+            slot = findVictim(set, keyX, keyY, keyIndex);
+            int bounds = slot * 6;
+            slotKeyIndex[slot] = keyIndex;
+            slotBounds[bounds] = keyX;
+            slotBounds[bounds + 1] = keyY;
+            slotBounds[bounds + 2] = minX - margin;
+            slotBounds[bounds + 3] = minY - margin;
+            slotBounds[bounds + 4] = maxX + margin;
+            slotBounds[bounds + 5] = maxY + margin;
+            slotItemCount[slot] = 0;
+            if(slotItems[slot] == null) {
+                slotItems[slot] = new int[16];
+            }
+            final int filledSlot = slot;
+            rtree.query(minX - margin, minY - margin, maxX + margin, maxY + margin, item -> {
+                int count = slotItemCount[filledSlot];
+                if(count == slotItems[filledSlot].length) {
+                    slotItems[filledSlot] = Arrays.copyOf(slotItems[filledSlot], count * 2);
+                }
+                slotItems[filledSlot][count] = item;
+                slotItemCount[filledSlot] = count + 1;
+                return true;
+            });
+        }
+        slotUse[slot] = ++clock;
+        // Keep only the items intersecting the exact envelope
+        final int[] items = slotItems[slot];
+        for(int i = 0; i < slotItemCount[slot]; i++) {
+            int item = items[i];
+            int env = item * 4;
+            if(itemStamp[item] != stamp && itemEnvelopes[env] <= maxX && itemEnvelopes[env + 2] >= minX &&
+                    itemEnvelopes[env + 1] <= maxY && itemEnvelopes[env + 3] >= minY) {
+                itemStamp[item] = stamp;
+                if(resultSize == result.length) {
+                    result = Arrays.copyOf(result, resultSize * 2);
+                }
+                result[resultSize++] = item;
+            }
+        }
+    }
+
+    /**
+     * @return The slot of the set holding the same key, else an empty slot, else the least recently used slot
+     */
+    private int findVictim(int set, double keyX, double keyY, int keyIndex) {
+        int victim = set * WAYS;
+        for(int way = set * WAYS; way < set * WAYS + WAYS; way++) {
+            if(slotKeyIndex[way] == -1 || (slotKeyIndex[way] == keyIndex && slotBounds[way * 6] == keyX &&
+                    slotBounds[way * 6 + 1] == keyY)) {
+                return way;
+            }
+            if(slotUse[way] < slotUse[victim]) {
+                victim = way;
+            }
+        }
+        return victim;
+    }
+
+    private static int hash(double keyX, double keyY, int keyIndex) {
+        int h = Double.hashCode(keyX);
+        h = 31 * h + Double.hashCode(keyY);
+        h = 31 * h + keyIndex;
+        // The origin cells are small integers, mix the bits used by the set index
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * @return Number of items found for the current profile
+     */
+    int getResultSize() {
+        return resultSize;
+    }
+
+    /**
+     * @param index Result index
+     * @return Item
+     */
+    int getResult(int index) {
+        return result[index];
+    }
+
+    /**
+     * @return Number of queries answered by the cache since the last {@link #resetStatistics()}
+     */
+    long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return Number of R-Tree queries since the last {@link #resetStatistics()}
+     */
+    long getMisses() {
+        return misses;
+    }
+
+    void resetStatistics() {
+        hits = 0;
+        misses = 0;
+    }
+}
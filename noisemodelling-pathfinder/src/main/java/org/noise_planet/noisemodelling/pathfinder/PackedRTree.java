@@ -0,0 +1,382 @@
+/**
+ * NoiseModelling is an open-source tool designed to produce environmental noise maps on very large urban areas. It can be used as a Java library or be controlled through a user friendly web interface.
+ *
+ * This version is developed by the DECIDE team from the Lab-STICC (CNRS) and by the Mixt Research Unit in Environmental Acoustics (Université Gustave Eiffel).
+ * <http://noise-planet.org/noisemodelling.html>
+ *
+ * NoiseModelling is distributed under GPL 3 license. You can read a copy of this License in the file LICENCE provided with this software.
+ *
+ * Contact: contact@noise-planet.org
+ *
+ */
+package org.noise_planet.noisemodelling.pathfinder;
+
+import org.locationtech.jts.geom.Envelope;
+
+import java.util.Arrays;
+
+/**
+ * Immutable R-Tree of integer items, packed in primitive arrays.
+ *
+ * The tree is built with the Sort-Tile-Recursive algorithm of {@link org.locationtech.jts.index.strtree.STRtree}, so
+ * a query visit the items in the same order than a JTS STRtree filled in the same order. The node bounds are stored
+ * in float, relative to the lower left corner of the items, and rounded outward. A query may then visit items whose
+ * envelope is slightly outside of the query envelope, the visitor has to check the exact geometry.
+ * @author Nicolas Fortin
+ */
+public final class PackedRTree {
+    private final int nodeCapacity;
+    /** Items inserted before the build, 4 values per item (minX, minY, maxX, maxY) */
+    private double[] itemEnvelopes = new double[64];
+    private int[] itemIds = new int[16];
+    private int itemCount = 0;
+    private volatile boolean built = false;
+    private double originX = 0;
+    private double originY = 0;
+    /** Bounds of the tree entries relative to the origin, 4 values per entry. Items first then the nodes, level by
+     * level, the root is the last entry */
+    private float[] bounds = new float[0];
+    /** Item of a leaf entry or first child entry of a node entry */
+    private int[] entryStart = new int[0];
+    /** End of the children entries of a node entry */
+    private int[] entryEnd = new int[0];
+    private int root = -1;
+
+    /**
+     * Visit the items found by a query
+     */
+    public interface ItemVisitor {
+        /**
+         * @param item Item found by the query
+         * @return False to stop the query
+         */
+        boolean visitItem(int item);
+    }
+
+    /**
+     * @param nodeCapacity Maximum number of children of a node
+     */
+    public PackedRTree(int nodeCapacity) {
+        if(nodeCapacity < 2) {
+            throw new IllegalArgumentException("Node capacity must be greater than 1");
+        }
+        this.nodeCapacity = nodeCapacity;
+    }
+
+    /**
+     * @param envelope Item envelope, null envelopes are ignored
+     * @param item Item
+     */
+    public void insert(Envelope envelope, int item) {
+        if(envelope.isNull()) {
+            return;
+        }
+        insert(envelope.getMinX(), envelope.getMinY(), envelope.getMaxX(), envelope.getMaxY(), item);
+    }
+
+    public void insert(double minX, double minY, double maxX, double maxY, int item) {
+        if(built) {
+            throw new IllegalStateException("Cannot insert items into a packed R-tree after it has been built.");
+        }
+        if(itemCount == itemIds.length) {
+            itemIds = Arrays.copyOf(itemIds, itemCount * 2);
+            itemEnvelopes = Arrays.copyOf(itemEnvelopes, itemCount * 8);
+        }
+        itemIds[itemCount] = item;
+        itemEnvelopes[itemCount * 4] = minX;
+        itemEnvelopes[itemCount * 4 + 1] = minY;
+        itemEnvelopes[itemCount * 4 + 2] = maxX;
+        itemEnvelopes[itemCount * 4 + 3] = maxY;
+        itemCount++;
+    }
+
+    /**
+     * @return Number of items
+     */
+    public int size() {
+        return itemCount;
+    }
+
+    public boolean isEmpty() {
+        return itemCount == 0;
+    }
+
+    /**
+     * Build the tree, items can't be inserted after this call. Called by the first query if not done before.
+     */
+    public synchronized void build() {
+        if(built) {
+            return;
+        }
+        if(itemCount > 0) {
+            pack();
+        }
+        itemEnvelopes = null;
+        itemIds = null;
+        built = true;
+    }
+
+    private void pack() {
+        double maxAbs = 0;
+        originX = Double.POSITIVE_INFINITY;
+        originY = Double.POSITIVE_INFINITY;
+        for(int i = 0; i < itemCount; i++) {
+            originX = Math.min(originX, itemEnvelopes[i * 4]);
+            originY = Math.min(originY, itemEnvelopes[i * 4 + 1]);
+            for(int j = 0; j < 4; j++) {
+                maxAbs = Math.max(maxAbs, Math.abs(itemEnvelopes[i * 4 + j]));
+            }
+        }
+        // Cover the rounding of the subtraction of the origin, here and in the queries
+        final double margin = Math.ulp(maxAbs) * 4;
+        int capacity = itemCount * 2 + 1;
+        bounds = new float[capacity * 4];
+        entryStart = new int[capacity];
+        entryEnd = new int[capacity];
+        int entryCount = 0;
+        // Entries of the current level, in double precision
+        double[] levelEnvelopes = Arrays.copyOf(itemEnvelopes, itemCount * 4);
+        int[] levelStart = Arrays.copyOf(itemIds, itemCount);
+        int[] levelEnd = new int[itemCount];
+        int levelCount = itemCount;
+        int[] order = new int[itemCount];
+        int[] sortBuffer = new int[itemCount];
+        double[] key = new double[itemCount];
+        while(true) {
+            // Sort the entries by x, split them in vertical slices, sort each slice by y then group by node capacity
+            for(int i = 0; i < levelCount; i++) {
+                order[i] = i;
+                key[i] = (levelEnvelopes[i * 4] + levelEnvelopes[i * 4 + 2]) / 2d;
+            }
+            sort(order, sortBuffer, key, 0, levelCount);
+            int minLeafCount = (int) Math.ceil(levelCount / (double) nodeCapacity);
+            int sliceCount = (int) Math.ceil(Math.sqrt(minLeafCount));
+            int sliceCapacity = (int) Math.ceil(levelCount / (double) sliceCount);
+            for(int i = 0; i < levelCount; i++) {
+                key[i] = (levelEnvelopes[i * 4 + 1] + levelEnvelopes[i * 4 + 3]) / 2d;
+            }
+            int parentCount = 0;
+            for(int sliceStart = 0; sliceStart < levelCount; sliceStart += sliceCapacity) {
+                int sliceEnd = Math.min(levelCount, sliceStart + sliceCapacity);
+                sort(order, sortBuffer, key, sliceStart, sliceEnd);
+                parentCount += (sliceEnd - sliceStart + nodeCapacity - 1) / nodeCapacity;
+            }
+            // Write the entries of this level in the final order
+            int levelFirstEntry = entryCount;
+            if(entryCount + levelCount + parentCount > entryStart.length) {
+                int newCapacity = Math.max(entryStart.length * 2, entryCount + levelCount + parentCount);
+                bounds = Arrays.copyOf(bounds, newCapacity * 4);
+                entryStart = Arrays.copyOf(entryStart, newCapacity);
+                entryEnd = Arrays.copyOf(entryEnd, newCapacity);
+            }
+            for(int i = 0; i < levelCount; i++) {
+                int entry = order[i];
+                bounds[entryCount * 4] = roundDown(levelEnvelopes[entry * 4] - originX - margin);
+                bounds[entryCount * 4 + 1] = roundDown(levelEnvelopes[entry * 4 + 1] - originY - margin);
+                bounds[entryCount * 4 + 2] = roundUp(levelEnvelopes[entry * 4 + 2] - originX + margin);
+                bounds[entryCount * 4 + 3] = roundUp(levelEnvelopes[entry * 4 + 3] - originY + margin);
+                entryStart[entryCount] = levelStart[entry];
+                entryEnd[entryCount] = levelEnd[entry];
+                entryCount++;
+            }
+            // Create the parent nodes
+            double[] parentEnvelopes = new double[parentCount * 4];
+            int[] parentStart = new int[parentCount];
+            int[] parentEnd = new int[parentCount];
+            int parent = 0;
+            for(int sliceStart = 0; sliceStart < levelCount; sliceStart += sliceCapacity) {
+                int sliceEnd = Math.min(levelCount, sliceStart + sliceCapacity);
+                for(int first = sliceStart; first < sliceEnd; first += nodeCapacity) {
+                    int last = Math.min(sliceEnd, first + nodeCapacity);
+                    parentStart[parent] = levelFirstEntry + first;
+                    parentEnd[parent] = levelFirstEntry + last;
+                    double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY;
+                    double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+                    for(int i = first; i < last; i++) {
+                        int entry = order[i];
+                        minX = Math.min(minX, levelEnvelopes[entry * 4]);
+                        minY = Math.min(minY, levelEnvelopes[entry * 4 + 1]);
+                        maxX = Math.max(maxX, levelEnvelopes[entry * 4 + 2]);
+                        maxY = Math.max(maxY, levelEnvelopes[entry * 4 + 3]);
+                    }
+                    parentEnvelopes[parent * 4] = minX;
+                    parentEnvelopes[parent * 4 + 1] = minY;
+                    parentEnvelopes[parent * 4 + 2] = maxX;
+                    parentEnvelopes[parent * 4 + 3] = maxY;
+                    parent++;
+                }
+            }
+            levelEnvelopes = parentEnvelopes;
+            levelStart = parentStart;
+            levelEnd = parentEnd;
+            levelCount = parentCount;
+            if(parentCount == 1) {
+                bounds[entryCount * 4] = roundDown(levelEnvelopes[0] - originX - margin);
+                bounds[entryCount * 4 + 1] = roundDown(levelEnvelopes[1] - originY - margin);
+                bounds[entryCount * 4 + 2] = roundUp(levelEnvelopes[2] - originX + margin);
+                bounds[entryCount * 4 + 3] = roundUp(levelEnvelopes[3] - originY + margin);
+                entryStart[entryCount] = levelStart[0];
+                entryEnd[entryCount] = levelEnd[0];
+                root = entryCount;
+                entryCount++;
+                break;
+            }
+        }
+        bounds = Arrays.copyOf(bounds, entryCount * 4);
+        entryStart = Arrays.copyOf(entryStart, entryCount);
+        entryEnd = Arrays.copyOf(entryEnd, entryCount);
+    }
+
+    private static float roundDown(double value) {
+        float f = (float) value;
+        return f > value ? Math.nextDown(f) : f;
+    }
+
+    private static float roundUp(double value) {
+        float f = (float) value;
+        return f < value ? Math.nextUp(f) : f;
+    }
+
+    /**
+     * Stable merge sort of the entries by key
+     */
+    private static void sort(int[] order, int[] buffer, double[] key, int from, int to) {
+        if(to - from < 2) {
+            return;
+        }
+        int middle = (from + to) >>> 1;
+        sort(order, buffer, key, from, middle);
+        sort(order, buffer, key, middle, to);
+        if(key[order[middle - 1]] <= key[order[middle]]) {
+            return;
+        }
+        System.arraycopy(order, from, buffer, from, to - from);
+        int left = from;
+        int right = middle;
+        for(int i = from; i < to; i++) {
+            if(right >= to || (left < middle && key[buffer[left]] <= key[buffer[right]])) {
+                order[i] = buffer[left++];
+            } else {
+                order[i] = buffer[right++];
+            }
+        }
+    }
+
+    /**
+     * Visit the items whose envelope intersects the query envelope
+     * @return False if the visitor stopped the query
+     */
+    public boolean query(Envelope envelope, ItemVisitor visitor) {
+        if(envelope.isNull()) {
+            return true;
+        }
+        return query(envelope.getMinX(), envelope.getMinY(), envelope.getMaxX(), envelope.getMaxY(), visitor);
+    }
+
+    /**
+     * Visit the items whose envelope intersects the query envelope
+     * @return False if the visitor stopped the query
+     */
+    public boolean query(double minX, double minY, double maxX, double maxY, ItemVisitor visitor) {
+        if(!built) {
+            build();
+        }
+        if(root < 0) {
+            return true;
+        }
+        double qMinX = minX - originX;
+        double qMinY = minY - originY;
+        double qMaxX = maxX - originX;
+        double qMaxY = maxY - originY;
+        if(!intersects(root, qMinX, qMinY, qMaxX, qMaxY)) {
+            return true;
+        }
+        return queryNode(root, qMinX, qMinY, qMaxX, qMaxY, visitor);
+    }
+
+    private boolean queryNode(int node, double qMinX, double qMinY, double qMaxX, double qMaxY, ItemVisitor visitor) {
+        final int end = entryEnd[node];
+        for(int child = entryStart[node]; child < end; child++) {
+            if(intersects(child, qMinX, qMinY, qMaxX, qMaxY)) {
+                if(isLeaf(child)) {
+                    if(!visitor.visitItem(entryStart[child])) {
+                        return false;
+                    }
+                } else if(!queryNode(child, qMinX, qMinY, qMaxX, qMaxY, visitor)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Visit the items whose envelope intersects the segment, in the same order than {@link #query(Envelope, ItemVisitor)}
+     * with the envelope of the segment
+     * @return False if the visitor stopped the query
+     */
+    public boolean querySegment(double x0, double y0, double x1, double y1, ItemVisitor visitor) {
+        if(!built) {
+            build();
+        }
+        if(root < 0) {
+            return true;
+        }
+        double sx0 = x0 - originX;
+        double sy0 = y0 - originY;
+        double sx1 = x1 - originX;
+        double sy1 = y1 - originY;
+        if(!intersectsSegment(root, sx0, sy0, sx1, sy1)) {
+            return true;
+        }
+        return querySegmentNode(root, sx0, sy0, sx1, sy1, visitor);
+    }
+
+    private boolean querySegmentNode(int node, double sx0, double sy0, double sx1, double sy1, ItemVisitor visitor) {
+        final int end = entryEnd[node];
+        for(int child = entryStart[node]; child < end; child++) {
+            if(intersectsSegment(child, sx0, sy0, sx1, sy1)) {
+                if(isLeaf(child)) {
+                    if(!visitor.visitItem(entryStart[child])) {
+                        return false;
+                    }
+                } else if(!querySegmentNode(child, sx0, sy0, sx1, sy1, visitor)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private boolean isLeaf(int entry) {
+        return entry < itemCount;
+    }
+
+    private boolean intersects(int entry, double qMinX, double qMinY, double qMaxX, double qMaxY) {
+        final int i = entry * 4;
+        return !(qMinX > bounds[i + 2] || qMaxX < bounds[i] || qMinY > bounds[i + 3] || qMaxY < bounds[i + 1]);
+    }
+
+    private boolean intersectsSegment(int entry, double sx0, double sy0, double sx1, double sy1) {
+        if(!intersects(entry, Math.min(sx0, sx1), Math.min(sy0, sy1), Math.max(sx0, sx1), Math.max(sy0, sy1))) {
+            return false;
+        }
+        // The box is outside of the segment if its corners are strictly on the same side of the line
+        final int i = entry * 4;
+        final double dx = sx1 - sx0;
+        final double dy = sy1 - sy0;
+        final double minX = bounds[i] - sx0;
+        final double minY = bounds[i + 1] - sy0;
+        final double maxX = bounds[i + 2] - sx0;
+        final double maxY = bounds[i + 3] - sy0;
+        double a = minX * dy - minY * dx;
+        double b = maxX * dy - minY * dx;
+        double c = maxX * dy - maxY * dx;
+        double d = minX * dy - maxY * dx;
+        // Tolerance far above the rounding errors, the test must not reject an intersecting box
+        double tolerance = 1e-12 * (Math.abs(dx) + Math.abs(dy)) *
+                (Math.max(Math.abs(minX), Math.abs(maxX)) + Math.max(Math.abs(minY), Math.abs(maxY)));
+        return !((a > tolerance && b > tolerance && c > tolerance && d > tolerance) ||
+                (a < -tolerance && b < -tolerance && c < -tolerance && d < -tolerance));
+    }
+}
@@ -47,10 +47,7 @@ import org.locationtech.jts.geom.LinearRing;
 import org.locationtech.jts.geom.MultiPolygon;
 import org.locationtech.jts.geom.Point;
 import org.locationtech.jts.geom.Polygon;
-import org.locationtech.jts.index.ItemVisitor;
-import org.locationtech.jts.index.strtree.STRtree;
-import org.locationtech.jts.operation.distance.DistanceOp;
-import org.locationtech.jts.triangulate.quadedge.Vertex;
+import org.noise_planet.noisemodelling.pathfinder.utils.ObstacleCacheMetric;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -65,9 +62,8 @@ import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
 import java.util.Stack;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static java.lang.Double.NaN;
 import static java.lang.Double.isNaN;
@@ -95,6 +91,10 @@ public class ProfileBuilder {
     /** {@link Geometry} factory. */
     private static final GeometryFactory FACTORY = new GeometryFactory();
     private static final double DELTA = 1e-3;
+    /** Default expansion in meters of the walls RTree queries, see {@link #setObstacleCacheMargin(double)} */
+    public static final double DEFAULT_OBSTACLE_CACHE_MARGIN = 10;
+    /** Initial number of walls RTree queries kept by each thread, grown with the number of queries of a receiver */
+    private static final int OBSTACLE_CACHE_SIZE = 4096;
 
     /** If true, no more data can be add. */
     private boolean isFeedingFinished = false;
@@ -102,7 +102,7 @@ public class ProfileBuilder {
     private Map<Integer, ArrayList<Coordinate>> buildingsWideAnglePoints = new HashMap<>();
     /** Building RTree node capacity. */
     private int buildingNodeCapacity = TREE_NODE_CAPACITY;
-    /** Topographic RTree node capacity. */
+    /** Topographic RTree node capacity, not used since the topography is indexed by {@link TopographyMesh}. */
     private int topoNodeCapacity = TREE_NODE_CAPACITY;
     /** Ground RTree node capacity. */
     private int groundNodeCapacity = TREE_NODE_CAPACITY;
@@ -111,17 +111,27 @@ public class ProfileBuilder {
      * @see ProfileBuilder#getProfile(Coordinate, Coordinate)
      */
     private double maxLineLength = 60;
+    /**
+     * Expansion of the profile part envelope used to query the walls RTree, the result is reused for the profiles of
+     * the neighbouring receivers.
+     * @see ProfileBuilder#setObstacleCacheMargin(double)
+     */
+    private double obstacleCacheMargin = DEFAULT_OBSTACLE_CACHE_MARGIN;
     /** List of buildings. */
     private final List<Building> buildings = new ArrayList<>();
     /** List of walls. */
     private final List<Wall> walls = new ArrayList<>();
     /** Building RTree. */
-    private final STRtree buildingTree;
+    private final PackedRTree buildingTree;
     /** Building RTree. */
-    private final STRtree wallTree = new STRtree(TREE_NODE_CAPACITY);
+    private final PackedRTree wallTree = new PackedRTree(TREE_NODE_CAPACITY);
     /** Global RTree. */
-    private STRtree rtree;
-    private STRtree groundEffectsRtree = new STRtree(TREE_NODE_CAPACITY);
+    private PackedRTree rtree;
+    /** Envelope of the items of {@link #rtree} (minX, minY, maxX, maxY) */
+    private double[] wallEnvelopes = new double[0];
+    /** Walls that can be seen from each wall, see {@link #getWallVisibilityTable(double)} */
+    private WallVisibilityTable wallVisibilityTable;
+    private PackedRTree groundEffectsRtree = new PackedRTree(TREE_NODE_CAPACITY);
 
 
     /** List of topographic points. */
@@ -134,8 +144,14 @@ public class ProfileBuilder {
     private List<Triangle> topoNeighbors = new ArrayList<>();
     /** Topographic Vertices .*/
     private List<Coordinate> vertices = new ArrayList<>();
-    /** Topographic RTree. */
-    private STRtree topoTree;
+    /** Topographic triangles index or raster. */
+    private Topography topography;
+    /** Working buffers of {@link #getProfile(Coordinate, Coordinate, double)}, one instance per thread */
+    private final ThreadLocal<ProfileWorkspace> profileWorkspace = ThreadLocal.withInitial(ProfileWorkspace::new);
+    /** Regular grid digital elevation model, used instead of the triangulation of the topographic points. */
+    private RasterTopography topographicRaster;
+    /** Ground factor raster used instead of the ground effect polygons, null if not set */
+    private GroundRaster groundRaster;
 
     /** List of ground effects. */
     private final List<GroundEffect> groundEffects = new ArrayList<>();
@@ -166,7 +182,7 @@ public class ProfileBuilder {
      * Main empty constructor.
      */
     public ProfileBuilder() {
-        buildingTree = new STRtree(buildingNodeCapacity);
+        buildingTree = new PackedRTree(buildingNodeCapacity);
     }
 
     //TODO : when a source/receiver are underground, should an offset be applied ?
@@ -182,7 +198,7 @@ public class ProfileBuilder {
         this.topoNodeCapacity = topoNodeCapacity;
         this.groundNodeCapacity = groundNodeCapacity;
         this.maxLineLength = maxLineLength;
-        buildingTree = new STRtree(buildingNodeCapacity);
+        buildingTree = new PackedRTree(buildingNodeCapacity);
     }
 
     /**
@@ -542,6 +558,79 @@ public class ProfileBuilder {
         return addWall(FACTORY.createLineString(coords), 0.0, alphas, id);
     }
 
+    /**
+     * @return Expansion in meters of the walls RTree queries
+     */
+    public double getObstacleCacheMargin() {
+        return obstacleCacheMargin;
+    }
+
+    /**
+     * The walls, buildings and ground effects crossed by a profile are fetched with RTree queries expanded by this
+     * margin. The result is kept by the thread and reused while the following profiles from the same origin stay in the
+     * expanded envelope, this is the case for the receivers close to each other (ex. building facades).
+     * @param obstacleCacheMargin Expansion in meters, the distance between neighbouring receivers
+     */
+    public void setObstacleCacheMargin(double obstacleCacheMargin) {
+        this.obstacleCacheMargin = obstacleCacheMargin;
+    }
+
+    /**
+     * Called by the current thread when all the profiles of a receiver have been fetched, the walls RTree cache is
+     * grown if it can't hold the queries of the receiver.
+     */
+    public void finishReceiverProfiles() {
+        profileWorkspace.get().obstacleCache.finishReceiver();
+    }
+
+    /**
+     * Add the walls RTree cache statistics of the current thread to the metric, then reset them
+     * @param metric Metric to feed
+     */
+    public void flushObstacleCacheStatistics(ObstacleCacheMetric metric) {
+        ObstacleCandidateCache obstacleCache = profileWorkspace.get().obstacleCache;
+        metric.onObstacleCacheQueries(obstacleCache.getHits(), obstacleCache.getMisses());
+        obstacleCache.resetStatistics();
+    }
+
+    /**
+     * Use a regular grid digital elevation model. The topographic points and lines are then ignored and the
+     * topography is not triangulated. The raster is read only, so it can be shared between profile builders.
+     * @param topographicRaster Digital elevation model
+     */
+    public ProfileBuilder setTopographicRaster(RasterTopography topographicRaster) {
+        if(!isFeedingFinished) {
+            this.topographicRaster = topographicRaster;
+        }
+        return this;
+    }
+
+    /**
+     * @return Regular grid digital elevation model, null if the topography is triangulated
+     */
+    public RasterTopography getTopographicRaster() {
+        return topographicRaster;
+    }
+
+    /**
+     * Use a ground factor raster. The ground effect polygons are then ignored and the profiles do not contain
+     * ground effect cut points. The raster is read only, so it can be shared between profile builders.
+     * @param groundRaster Ground factor raster
+     */
+    public ProfileBuilder setGroundRaster(GroundRaster groundRaster) {
+        if(!isFeedingFinished) {
+            this.groundRaster = groundRaster;
+        }
+        return this;
+    }
+
+    /**
+     * @return Ground factor raster, null if the ground effect polygons are used
+     */
+    public GroundRaster getGroundRaster() {
+        return groundRaster;
+    }
+
     /**
      * Add the topographic point in the data, to complete the topographic data.
      * @param point Topographic point.
@@ -756,7 +845,7 @@ public class ProfileBuilder {
      * Finish the data feeding. Once called, no more data can be added and process it in order to prepare the
      * profile retrieving.
      * The building are processed to include each facets into a RTree
-     * The topographic points and lines are meshed using delaunay and triangles facets are included into a RTree
+     * The topographic points and lines are meshed using delaunay, unless a topographic raster has been set
      *
      * @return True if the finishing has been successfully done, false otherwise.
      */
@@ -764,7 +853,9 @@ public class ProfileBuilder {
         isFeedingFinished = true;
 
         //Process topographic points and lines
-        if(topoPoints.size()+topoLines.size() > 1) {
+        if(topographicRaster != null) {
+            topography = topographicRaster;
+        } else if(topoPoints.size()+topoLines.size() > 1) {
             //Feed the Delaunay layer
             LayerDelaunay layerDelaunay = new LayerTinfour();
             layerDelaunay.setRetrieveNeighbors(true);
@@ -805,8 +896,6 @@ public class ProfileBuilder {
                 LOGGER.error("Error while getting triangles", e);
                 return null;
             }
-            //Feed the RTree
-            topoTree = new STRtree(topoNodeCapacity);
             try {
                 vertices = layerDelaunay.getVertices();
             } catch (LayerDelaunayError e) {
@@ -820,14 +909,8 @@ public class ProfileBuilder {
                 wallIndex.add(new IntegerTuple(tri.getA(), tri.getB(), i));
                 wallIndex.add(new IntegerTuple(tri.getB(), tri.getC(), i));
                 wallIndex.add(new IntegerTuple(tri.getC(), tri.getA(), i));
-                // Insert triangle in rtree
-                Coordinate vA = vertices.get(tri.getA());
-                Coordinate vB = vertices.get(tri.getB());
-                Coordinate vC = vertices.get(tri.getC());
-                Envelope env = FACTORY.createLineString(new Coordinate[]{vA, vB, vC}).getEnvelopeInternal();
-                topoTree.insert(env, i);
-            }
-            topoTree.build();
+            }
+            topography = new TopographyMesh(vertices, topoTriangles, topoNeighbors);
             //TODO : Seems to be useless, to check
             /*for (IntegerTuple wallId : wallIndex) {
                 Coordinate vA = vertices.get(wallId.nodeIndexA);
@@ -837,7 +920,7 @@ public class ProfileBuilder {
             }*/
         }
         //Update building z
-        if(topoTree != null) {
+        if(topography != null) {
             for (Building b : buildings) {
                 if(isNaN(b.poly.getCoordinate().z) || b.poly.getCoordinate().z == 0.0 || !zBuildings) {
                     b.poly2D_3D();
@@ -873,7 +956,7 @@ public class ProfileBuilder {
             }
         }
         //Process buildings
-        rtree = new STRtree(buildingNodeCapacity);
+        rtree = new PackedRTree(buildingNodeCapacity);
         buildingsWideAnglePoints.clear();
         for (int j = 0; j < buildings.size(); j++) {
             Building building = buildings.get(j);
@@ -887,7 +970,7 @@ public class ProfileBuilder {
                 walls.add(w);
                 w.setAlpha(building.alphas);
                 processedWalls.add(w);
-                rtree.insert(lineSegment.toGeometry(FACTORY).getEnvelopeInternal(), processedWalls.size()-1);
+                rtree.insert(new Envelope(lineSegment.p0, lineSegment.p1), processedWalls.size()-1);
             }
             building.setWalls(walls);
         }
@@ -899,12 +982,12 @@ public class ProfileBuilder {
                 Wall w = new Wall(lineSegment, j, IntersectionType.WALL).setProcessedWallIndex(processedWalls.size());
                 w.setAlpha(wall.alphas);
                 processedWalls.add(w);
-                rtree.insert(lineSegment.toGeometry(FACTORY).getEnvelopeInternal(), processedWalls.size()-1);
+                rtree.insert(new Envelope(lineSegment.p0, lineSegment.p1), processedWalls.size()-1);
             }
         }
         //Process the ground effects
-        groundEffectsRtree = new STRtree(TREE_NODE_CAPACITY);
-        for (int j = 0; j < groundEffects.size(); j++) {
+        groundEffectsRtree = new PackedRTree(TREE_NODE_CAPACITY);
+        for (int j = 0; groundRaster == null && j < groundEffects.size(); j++) {
             GroundEffect effect = groundEffects.get(j);
             List<Polygon> polygons = new ArrayList<>();
             if (effect.geom instanceof Polygon) {
@@ -926,36 +1009,64 @@ public class ProfileBuilder {
                 }
             }
         }
-        rtree.build();
-        groundEffectsRtree.build();
+        // The trees are independent, pack them in parallel
+        Stream.of(buildingTree, wallTree, rtree, groundEffectsRtree).parallel().forEach(PackedRTree::build);
+        wallEnvelopes = new double[processedWalls.size() * 4];
+        for (int i = 0; i < processedWalls.size(); i++) {
+            Wall wall = processedWalls.get(i);
+            wallEnvelopes[i * 4] = Math.min(wall.p0.x, wall.p1.x);
+            wallEnvelopes[i * 4 + 1] = Math.min(wall.p0.y, wall.p1.y);
+            wallEnvelopes[i * 4 + 2] = Math.max(wall.p0.x, wall.p1.x);
+            wallEnvelopes[i * 4 + 3] = Math.max(wall.p0.y, wall.p1.y);
+        }
         return this;
     }
 
     public double getZ(Coordinate reflectionPt) {
-        List<Integer> ids = buildingTree.query(new Envelope(reflectionPt));
-        if(ids.isEmpty()) {
-            return getZGround(reflectionPt);
-        }
-        else {
-            for(Integer id : ids) {
-                Geometry buildingGeometry =  buildings.get(id - 1).getGeometry();
-                if(buildingGeometry.getEnvelopeInternal().intersects(reflectionPt)) {
-                    return buildingGeometry.getCoordinate().z;
-                }
+        final Geometry[] building = new Geometry[1];
+        buildingTree.query(reflectionPt.x, reflectionPt.y, reflectionPt.x, reflectionPt.y, id -> {
+            Geometry buildingGeometry =  buildings.get(id - 1).getGeometry();
+            if(buildingGeometry.getEnvelopeInternal().intersects(reflectionPt)) {
+                building[0] = buildingGeometry;
+                return false;
             }
-            return getZGround(reflectionPt);
+            return true;
+        });
+        return building[0] == null ? getZGround(reflectionPt) : building[0].getCoordinate().z;
+    }
+
+    /**
+     * @return RTree of the processed walls, the items are the indexes in {@link #getProcessedWalls()}
+     */
+    PackedRTree getWallsIndex() {
+        return rtree;
+    }
+
+    /**
+     * Walls that can be seen from each building wall or free wall, computed on the first call then shared by all the
+     * receivers.
+     * @param maximumDistance Maximum distance between two walls of the same reflection path
+     * @return Wall visibility table
+     */
+    synchronized WallVisibilityTable getWallVisibilityTable(double maximumDistance) {
+        if(wallVisibilityTable == null || wallVisibilityTable.getMaximumDistance() != maximumDistance) {
+            wallVisibilityTable = new WallVisibilityTable(this, maximumDistance);
         }
+        return wallVisibilityTable;
     }
 
     public List<Wall> getWallsIn(Envelope env) {
         List<Wall> list = new ArrayList<>();
-        List<Integer> indexes = rtree.query(env);
-        for(int i : indexes) {
+        rtree.query(env, i -> {
             Wall w = getProcessedWalls().get(i);
-            if(w.getType().equals(BUILDING) || w.getType().equals(WALL)) {
+            // The tree bounds are rounded, check the exact envelope
+            if((w.getType().equals(BUILDING) || w.getType().equals(WALL)) && wallEnvelopes[i * 4] <= env.getMaxX() &&
+                    wallEnvelopes[i * 4 + 2] >= env.getMinX() && wallEnvelopes[i * 4 + 1] <= env.getMaxY() &&
+                    wallEnvelopes[i * 4 + 3] >= env.getMinY()) {
                 list.add(w);
             }
-        }
+            return true;
+        });
         return list;
     }
 
@@ -1018,13 +1129,13 @@ public class ProfileBuilder {
     public CutProfile getProfile(CutPoint c0, CutPoint c1, double gS) {
         CutProfile profile = getProfile(c0.getCoordinate(), c1.getCoordinate(), gS);
 
-        profile.source.buildingId = c0.buildingId;
-        profile.source.groundCoef = c0.groundCoef;
-        profile.source.wallAlpha = c0.wallAlpha;
+        profile.buildingId[profile.sourceIndex] = c0.buildingId;
+        profile.groundCoef[profile.sourceIndex] = c0.groundCoef;
+        profile.wallAlpha[profile.sourceIndex] = c0.wallAlpha;
 
-        profile.receiver.buildingId = c1.buildingId;
-        profile.receiver.groundCoef = c1.groundCoef;
-        profile.receiver.wallAlpha = c1.wallAlpha;
+        profile.buildingId[profile.receiverIndex] = c1.buildingId;
+        profile.groundCoef[profile.receiverIndex] = c1.groundCoef;
+        profile.wallAlpha[profile.receiverIndex] = c1.wallAlpha;
 
         return profile;
     }
@@ -1057,11 +1168,14 @@ public class ProfileBuilder {
      * @return Cutting profile.
      */
     public CutProfile getProfile(Coordinate c0, Coordinate c1, double gS) {
-        CutProfile profile = new CutProfile();
+        // Cut points are collected in a buffer reused by the thread
+        ProfileWorkspace workspace = profileWorkspace.get();
+        CutProfile cutPoints = workspace.cutPoints;
+        cutPoints.clear();
 
         //Topography
-        if(topoTree != null) {
-            addTopoCutPts(c0, c1, profile);
+        if(topography != null) {
+            addTopoCutPts(c0, c1, cutPoints, workspace.topographyPoints);
         }
         // Split line into segments for structures based on RTree in order to limit the number of queries
         // (for large area of the line segment envelope)
@@ -1070,82 +1184,88 @@ public class ProfileBuilder {
 
         //Buildings and Ground effect
         if(rtree != null) {
-            addGroundBuildingCutPts(lines, fullLine, profile);
+            addGroundBuildingCutPts(lines, fullLine, cutPoints, workspace.obstacleCache);
         }
 
         //Sort all the cut point in order to set the ground coefficients.
-        profile.sort(c0, c1);
-        //Add base cut for buildings
-        addBuildingBaseCutPts(profile, c0, c1);
-
-
-        //If ordering puts source at last position, reverse the list
-        if(profile.pts.get(0) != profile.source) {
-            if(profile.pts.get(profile.pts.size()-1) != profile.source && profile.pts.get(0) != profile.source) {
-                LOGGER.error("The source have to be first or last cut point");
-            }
-            if(profile.pts.get(profile.pts.size()-1) != profile.receiver && profile.pts.get(0) != profile.receiver) {
-                LOGGER.error("The receiver have to be first or last cut point");
-            }
-            profile.reverse();
-        }
-
+        cutPoints.sort(c0, c1);
+        //Add base cut for buildings, source and receiver
+        CutProfile profile = addBuildingBaseCutPts(cutPoints, c0, c1);
 
         //Sets the ground effects
-        //Check is source is inside ground
-        setGroundEffects(profile, c0, gS);
+        if(groundRaster != null) {
+            setRasterGroundEffects(profile, gS);
+        } else {
+            //Check is source is inside ground
+            setGroundEffects(profile, c0, gS);
+        }
 
 
         return profile;
     }
 
+    /**
+     * Set the ground factor of the cut points from the ground raster, the G path is then integrated in the raster
+     */
+    private void setRasterGroundEffects(CutProfile profile, double gS) {
+        for (int i = 0; i < profile.size; i++) {
+            profile.groundCoef[i] = groundRaster.getG(profile.x[i], profile.y[i], gS);
+        }
+        profile.groundRaster = groundRaster;
+        profile.defaultGroundCoef = gS;
+    }
+
     private void setGroundEffects(CutProfile profile, Coordinate c0, double gS) {
         Stack<List<Integer>> stack = new Stack<>();
         GroundEffect currentGround = null;
         int currGrdI = -1;
         Point p0 = FACTORY.createPoint(c0);
-        List<Integer> groundEffectsResult = (List<Integer>)groundEffectsRtree.query(new Envelope(c0));
-        for(Integer groundEffectIndex : groundEffectsResult) {
+        final GroundEffect[] sourceGround = new GroundEffect[1];
+        groundEffectsRtree.query(c0.x, c0.y, c0.x, c0.y, groundEffectIndex -> {
             GroundEffect ground = groundEffects.get(groundEffectIndex);
             if(ground.geom.contains(p0)) {
-                currentGround = ground;
-                break;
+                sourceGround[0] = ground;
+                return false;
             }
-        }
+            return true;
+        });
+        currentGround = sourceGround[0];
         List<Integer> currGrounds = new ArrayList<>();
         List<Integer> nextGrounds = new ArrayList<>();
         boolean first = true;
-        List<CutPoint> pts = profile.pts;
+        final int size = profile.size;
+        final double[] groundCoef = profile.groundCoef;
+        final byte groundEffectType = (byte) GROUND_EFFECT.ordinal();
         //Loop on each cut points
-        for (int i = 0; i < pts.size(); i++) {
-            CutPoint cut = pts.get(i);
+        for (int i = 0; i < size; i++) {
+            int cut = i;
             //If the cut point is not a Ground effect, simply apply the current ground coef
-            if (cut.type != GROUND_EFFECT) {
-                cut.groundCoef = currentGround != null ? currentGround.coef : gS;
+            if (profile.type[cut] != groundEffectType) {
+                groundCoef[cut] = currentGround != null ? currentGround.coef : gS;
             } else {
                 int j=i;
-                CutPoint next = pts.get(j);
+                int next = j;
                 //Pass all the cut points located at the same position as the current point.
-                while(cut.coordinate.equals2D(next.coordinate)){
+                while(profile.equals2D(cut, next)){
                     //If the current ground effect list has never been filled, fill it.
-                    if(first && next.type == GROUND_EFFECT){
-                        currGrounds.add(next.id);
+                    if(first && profile.type[next] == groundEffectType){
+                        currGrounds.add(profile.id[next]);
                     }
                     //Apply the current ground effect tfor the case that the current cut point is at the same position as the receiver point.
-                    next.groundCoef = currentGround != null ? currentGround.coef : gS;
-                    if(j+1==pts.size()){
+                    groundCoef[next] = currentGround != null ? currentGround.coef : gS;
+                    if(j+1==size){
                         break;
                     }
-                    next = pts.get(++j);
+                    next = ++j;
                 }
                 first = false;
                 //Try to find the next ground effect cut point
-                while((next = pts.get(j)).type != GROUND_EFFECT && j<pts.size()-1){
-                    next.groundCoef = currentGround != null ? currentGround.coef : gS;
+                while(profile.type[next = j] != groundEffectType && j<size-1){
+                    groundCoef[next] = currentGround != null ? currentGround.coef : gS;
                     j++;
                 }
                 //If there is no more ground effect, exit loop
-                if(j==pts.size()-1){
+                if(j==size-1){
                     //Use the current ground effect for the remaining cut point
                     for(int idx : currGrounds) {
                         if(currentGround != null && currentGround.coef != groundEffects.get(idx).coef){
@@ -1154,18 +1274,18 @@ public class ProfileBuilder {
                     }
                     continue;
                 }
-                CutPoint nextNext = pts.get(j);
+                int nextNext = j;
                 //Fill the next ground effect list
-                while(next.coordinate.equals2D(nextNext.coordinate)){
-                    if(nextNext.type == GROUND_EFFECT){
-                        nextGrounds.add(nextNext.id);
+                while(profile.equals2D(next, nextNext)){
+                    if(profile.type[nextNext] == groundEffectType){
+                        nextGrounds.add(profile.id[nextNext]);
                     }
-                    if(j+1==pts.size()){
+                    if(j+1==size){
                         break;
                     }
-                    nextNext = pts.get(++j);
+                    nextNext = ++j;
                 }
-                nextNext = pts.get(j-1);
+                nextNext = j-1;
 
                 boolean found = false;
                 //Find the ground effect which will be applied from current position to next
@@ -1185,17 +1305,17 @@ public class ProfileBuilder {
                 if(currGrdI != -1) {
                     currentGround = groundEffects.get(currGrdI);
                 }
-                CutPoint cutPt = pts.get(i);
+                int cutPt = i;
                 //Apply the ground effect after the current coint up to the next ground effect
-                while(!nextNext.coordinate.equals2D(cutPt.coordinate)){
+                while(!profile.equals2D(nextNext, cutPt)){
                     if(found){
-                        cutPt.groundCoef = currentGround != null ? currentGround.coef : gS;
+                        groundCoef[cutPt] = currentGround != null ? currentGround.coef : gS;
                     }
                     i++;
-                    if(i==pts.size()){
+                    if(i==size){
                         break;
                     }
-                    cutPt = pts.get(i);
+                    cutPt = i;
                 }
                 i--;
                 currGrounds = nextGrounds;
@@ -1225,66 +1345,78 @@ public class ProfileBuilder {
         }
     }
 
-    private void addBuildingBaseCutPts(CutProfile profile, Coordinate c0, Coordinate c1) {
-        ArrayList<CutPoint> pts = new ArrayList<>(profile.pts.size());
+    /**
+     * Copy the sorted cut points into a new profile, add the ground points at the base of the buildings, the source
+     * and the receiver.
+     * @param cutPoints Sorted cut points
+     * @return New profile
+     */
+    private CutProfile addBuildingBaseCutPts(CutProfile cutPoints, Coordinate c0, Coordinate c1) {
+        final byte buildingType = (byte) BUILDING.ordinal();
+        // Count the ground points to add, in order to allocate the exact size
+        int baseCount = 0;
         int buildId = -1;
-        CutPoint lastBuild = null;
-        for(int i=0; i<profile.pts.size(); i++) {
-            ProfileBuilder.CutPoint cut = profile.pts.get(i);
-            if(cut.getType().equals(BUILDING)) {
+        for(int i = 0; i < cutPoints.size; i++) {
+            if(cutPoints.type[i] == buildingType && cutPoints.id[i] != buildId) {
+                baseCount += buildId == -1 ? 1 : 2;
+                buildId = cutPoints.id[i];
+            }
+        }
+        if(buildId != -1) {
+            baseCount++;
+        }
+        CutProfile profile = new CutProfile(cutPoints.size + baseCount + 2);
+        profile.hasBuildingInter = cutPoints.hasBuildingInter;
+        profile.hasTopographyInter = cutPoints.hasTopographyInter;
+        profile.hasGroundEffectInter = cutPoints.hasGroundEffectInter;
+        profile.sourceIndex = profile.add(c0.x, c0.y, c0.z, SOURCE, -1, false);
+        buildId = -1;
+        int lastBuild = -1;
+        for(int i=0; i<cutPoints.size; i++) {
+            if(cutPoints.type[i] == buildingType) {
                 if (buildId == -1) {
-                    buildId = cut.getId();
-                    CutPoint grd = new CutPoint(cut);
-                    grd.getCoordinate().z = getZGround(cut);
-                    pts.add(grd);
-                    pts.add(cut);
+                    buildId = cutPoints.id[i];
+                    int grd = profile.add(cutPoints, i);
+                    profile.z[grd] = getZGround(cutPoints, i);
+                    lastBuild = profile.add(cutPoints, i);
                 }
-                else if(buildId == cut.getId()) {
-                    pts.add(cut);
+                else if(buildId == cutPoints.id[i]) {
+                    lastBuild = profile.add(cutPoints, i);
                 }
                 else {
-                    CutPoint grd0 = new CutPoint(lastBuild);
-                    grd0.getCoordinate().z = getZGround(grd0);
-                    pts.add(pts.indexOf(lastBuild)+1, grd0);
-                    CutPoint grd1 = new CutPoint(cut);
-                    grd1.getCoordinate().z = getZGround(grd1);
-                    pts.add(grd1);
-                    pts.add(cut);
-                    buildId = cut.getId();
+                    profile.insertCopy(lastBuild + 1, lastBuild);
+                    profile.z[lastBuild + 1] = getZGround(profile, lastBuild + 1);
+                    int grd1 = profile.add(cutPoints, i);
+                    profile.z[grd1] = getZGround(profile, grd1);
+                    lastBuild = profile.add(cutPoints, i);
+                    buildId = cutPoints.id[i];
                 }
-                lastBuild = cut;
-            }
-            else if(cut.getType().equals(RECEIVER)) {
-                if(buildId != -1) {
-                    buildId = -1;
-                    CutPoint grd0 = new CutPoint(pts.get(pts.size()-1));
-                    grd0.getCoordinate().z = getZGround(grd0);
-                    pts.add(grd0);
-                }
-                pts.add(cut);
             }
             else {
-                pts.add(cut);
+                profile.add(cutPoints, i);
             }
         }
         if(buildId != -1) {
-            CutPoint grd0 = new CutPoint(lastBuild);
-            grd0.getCoordinate().z = getZGround(grd0);
-            pts.add(pts.indexOf(lastBuild)+1, grd0);
+            profile.insertCopy(lastBuild + 1, lastBuild);
+            profile.z[lastBuild + 1] = getZGround(profile, lastBuild + 1);
         }
-        profile.pts = pts;
-        profile.addSource(c0);
-        profile.addReceiver(c1);
+        profile.receiverIndex = profile.add(c1.x, c1.y, c1.z, RECEIVER, -1, false);
+        return profile;
     }
 
-    private void addGroundBuildingCutPts(List<LineSegment> lines, LineSegment fullLine, CutProfile profile) {
-        List<Integer> indexes = new ArrayList<>();
-        for (LineSegment line : lines) {
-            indexes.addAll(rtree.query(new Envelope(line.p0, line.p1)));
+    private void addGroundBuildingCutPts(List<LineSegment> lines, LineSegment fullLine, CutProfile profile,
+                                         ObstacleCandidateCache obstacleCache) {
+        // Fetch the walls of each line part, the cache key is the cell of the profile origin and the part index
+        obstacleCache.startProfile(processedWalls.size());
+        for (int lineIndex = 0; lineIndex < lines.size(); lineIndex++) {
+            LineSegment line = lines.get(lineIndex);
+            obstacleCache.query(rtree, wallEnvelopes, fullLine.p0.x, fullLine.p0.y, lineIndex, obstacleCacheMargin,
+                    Math.min(line.p0.x, line.p1.x), Math.min(line.p0.y, line.p1.y),
+                    Math.max(line.p0.x, line.p1.x), Math.max(line.p0.y, line.p1.y));
         }
-        indexes = indexes.stream().distinct().collect(Collectors.toList());
         Map<Integer, Coordinate> processedGround = new HashMap<>();
-        for (int i : indexes) {
+        for (int resultIndex = 0; resultIndex < obstacleCache.getResultSize(); resultIndex++) {
+            int i = obstacleCache.getResult(resultIndex);
             Wall facetLine = processedWalls.get(i);
             Coordinate intersection = fullLine.intersection(facetLine.ls);
             if (intersection != null) {
@@ -1297,7 +1429,7 @@ public class ProfileBuilder {
                         intersection.z = facetLine.p0.z + ((intersection.x - facetLine.p0.x) / (facetLine.p1.x - facetLine.p0.x) * (facetLine.p1.z - facetLine.p0.z));
                     }
                 }
-                else if(topoTree == null) {
+                else if(topography == null) {
                     intersection.z = NaN;
                 }
                 else {
@@ -1333,90 +1465,6 @@ public class ProfileBuilder {
         }
     }
 
-    /**
-     * Compute the next triangle index.Find the shortest intersection point of
-     * triIndex segments to the p1 coordinate
-     *
-     * @param triIndex        Triangle index
-     * @param propagationLine Propagation line
-     * @return Next triangle to the specified direction, -1 if there is no
-     * triangle neighbor.
-     */
-    private int getNextTri(final int triIndex,
-                           final LineSegment propagationLine,
-                           HashSet<Integer> navigationHistory, final Coordinate segmentIntersection) {
-        final Triangle tri = topoTriangles.get(triIndex);
-        final Triangle triNeighbors = topoNeighbors.get(triIndex);
-        int nearestIntersectionSide = -1;
-        int idNeighbor;
-
-        double nearestIntersectionPtDist = Double.MAX_VALUE;
-        // Find intersection pt
-        final Coordinate aTri = this.vertices.get(tri.getA());
-        final Coordinate bTri = this.vertices.get(tri.getB());
-        final Coordinate cTri = this.vertices.get(tri.getC());
-        double distline_line;
-        // Intersection First Side
-        idNeighbor = triNeighbors.get(2);
-        if (!navigationHistory.contains(idNeighbor)) {
-            LineSegment triSegment = new LineSegment(aTri, bTri);
-            Coordinate[] closestPoints = propagationLine.closestPoints(triSegment);
-            Coordinate intersectionTest = null;
-            if(closestPoints.length == 2 && closestPoints[0].distance(closestPoints[1]) < JTSUtility.TRIANGLE_INTERSECTION_EPSILON) {
-                intersectionTest = new Coordinate(closestPoints[0].x, closestPoints[0].y, Vertex.interpolateZ(closestPoints[0], triSegment.p0, triSegment.p1));
-            }
-            if(intersectionTest != null) {
-                distline_line = propagationLine.p1.distance(intersectionTest);
-                if (distline_line < nearestIntersectionPtDist) {
-                    segmentIntersection.setCoordinate(intersectionTest);
-                    nearestIntersectionPtDist = distline_line;
-                    nearestIntersectionSide = 2;
-                }
-            }
-        }
-        // Intersection Second Side
-        idNeighbor = triNeighbors.get(0);
-        if (!navigationHistory.contains(idNeighbor)) {
-            LineSegment triSegment = new LineSegment(bTri, cTri);
-            Coordinate[] closestPoints = propagationLine.closestPoints(triSegment);
-            Coordinate intersectionTest = null;
-            if(closestPoints.length == 2 && closestPoints[0].distance(closestPoints[1]) < JTSUtility.TRIANGLE_INTERSECTION_EPSILON) {
-                intersectionTest = new Coordinate(closestPoints[0].x, closestPoints[0].y, Vertex.interpolateZ(closestPoints[0], triSegment.p0, triSegment.p1));
-            }
-            if(intersectionTest != null) {
-                distline_line = propagationLine.p1.distance(intersectionTest);
-                if (distline_line < nearestIntersectionPtDist) {
-                    segmentIntersection.setCoordinate(intersectionTest);
-                    nearestIntersectionPtDist = distline_line;
-                    nearestIntersectionSide = 0;
-                }
-            }
-        }
-        // Intersection Third Side
-        idNeighbor = triNeighbors.get(1);
-        if (!navigationHistory.contains(idNeighbor)) {
-            LineSegment triSegment = new LineSegment(cTri, aTri);
-            Coordinate[] closestPoints = propagationLine.closestPoints(triSegment);
-            Coordinate intersectionTest = null;
-            if(closestPoints.length == 2 && closestPoints[0].distance(closestPoints[1]) < JTSUtility.TRIANGLE_INTERSECTION_EPSILON) {
-                intersectionTest = new Coordinate(closestPoints[0].x, closestPoints[0].y, Vertex.interpolateZ(closestPoints[0], triSegment.p0, triSegment.p1));
-            }
-            if(intersectionTest != null) {
-                distline_line = propagationLine.p1.distance(intersectionTest);
-                if (distline_line < nearestIntersectionPtDist) {
-                    segmentIntersection.setCoordinate(intersectionTest);
-                    nearestIntersectionSide = 1;
-                }
-            }
-        }
-        if(nearestIntersectionSide > -1) {
-            return triNeighbors.get(nearestIntersectionSide);
-        } else {
-            return -1;
-        }
-    }
-
-
     /**
      * Get coordinates of triangle vertices
      * @param triIndex Index of triangle
@@ -1430,142 +1478,93 @@ public class ProfileBuilder {
 
 
     /**
-     * Return the triangle id from a point coordinate inside the triangle
+     * Return the triangle id from a point coordinate inside the triangle, or the nearest triangle if the point is
+     * less than {@link TopographyMesh#START_SEARCH_DISTANCE} from the mesh
      *
      * @param pt Point test
      * @return Triangle Id, Or -1 if no triangle has been found
      */
 
     public int getTriangleIdByCoordinate(Coordinate pt) {
-        Envelope ptEnv = new Envelope(pt);
-        ptEnv.expandBy(1);
-        List res = topoTree.query(new Envelope(ptEnv));
-        double minDistance = Double.MAX_VALUE;
-        int minDistanceTriangle = -1;
-        for(Object objInd : res) {
-            int triId = (Integer) objInd;
-            Coordinate[] tri = getTriangle(triId);
-            AtomicReference<Double> err = new AtomicReference<>(0.);
-            JTSUtility.dotInTri(pt, tri[0], tri[1], tri[2], err);
-            if (err.get() < minDistance) {
-                minDistance = err.get();
-                minDistanceTriangle = triId;
-            }
+        if(!(topography instanceof TopographyMesh)) {
+            return -1;
         }
-        return minDistanceTriangle;
+        return ((TopographyMesh) topography).getNearestTriangle(pt.x, pt.y, TopographyMesh.START_SEARCH_DISTANCE);
     }
 
     public void addTopoCutPts(Coordinate p1, Coordinate p2, CutProfile profile) {
-        List<Coordinate> coordinates = getTopographicProfile(p1, p2);
+        addTopoCutPts(p1, p2, profile, new Topography.ProfilePoints());
+    }
+
+    private void addTopoCutPts(Coordinate p1, Coordinate p2, CutProfile profile, Topography.ProfilePoints points) {
+        if(topography == null) {
+            return;
+        }
+        points.clear();
+        topography.walk(p1.x, p1.y, p2.x, p2.y, points);
         // Remove unnecessary points
-        ArrayList<Coordinate> retainedCoordinates = new ArrayList<>(coordinates.size());
-        for(int i =0; i < coordinates.size(); i++) {
-            // Always add first and last points
-            Coordinate previous;
-            Coordinate current = coordinates.get(i);
-            Coordinate next;
-            if(retainedCoordinates.isEmpty()) {
-                previous = new Coordinate(p1.x, p1.y, getZGround(p1));
-            } else {
-                previous = retainedCoordinates.get(retainedCoordinates.size() - 1);
-            }
-            if(i == coordinates.size() - 1) {
-                next = new Coordinate(p2.x, p2.y, getZGround(p2));
+        double previousX = p1.x, previousY = p1.y, previousZ = getZGround(p1);
+        final double lastZ = getZGround(p2);
+        profile.reservePoints(points.size());
+        int id = 0;
+        for(int i = 0; i < points.size(); i++) {
+            double nextX, nextY, nextZ;
+            if(i == points.size() - 1) {
+                nextX = p2.x;
+                nextY = p2.y;
+                nextZ = lastZ;
             } else {
-                next = coordinates.get(i + 1);
+                nextX = points.getX(i + 1);
+                nextY = points.getY(i + 1);
+                nextZ = points.getZ(i + 1);
             }
             // Do not add topographic points which are simply the linear interpolation between two points
-            if(CGAlgorithms3D.distancePointSegment(current, previous, next) >= DELTA) {
-                retainedCoordinates.add(coordinates.get(i));
-            }
-        }
-        // Feed profile
-        profile.reservePoints(retainedCoordinates.size());
-        for(int i =0; i < retainedCoordinates.size(); i++) {
-            profile.addTopoCutPt(retainedCoordinates.get(i), i);
-        }
-    }
-
-    /**
-     * Find closest triangle that intersects with segment
-     * @param segment Segment to intersects will all triangles
-     * @param intersection Found closest intersection point with p0
-     * @param intersectionTriangle Found closest intersection triangle
-     * @return True if at least one triangle as been found on intersection
-     */
-    boolean findClosestTriangleIntersection(LineSegment segment, final Coordinate intersection, AtomicInteger intersectionTriangle) {
-        Envelope queryEnvelope = new Envelope(segment.p0);
-        queryEnvelope.expandToInclude(segment.p1);
-        if(queryEnvelope.getHeight() < 1.0 || queryEnvelope.getWidth() < 1) {
-            queryEnvelope.expandBy(1.0);
-        }
-        List res = topoTree.query(queryEnvelope);
-        double minDistance = Double.MAX_VALUE;
-        int minDistanceTriangle = -1;
-        GeometryFactory factory = new GeometryFactory();
-        LineString lineString = factory.createLineString(new Coordinate[]{segment.p0, segment.p1});
-        Coordinate intersectionPt = null;
-        for(Object objInd : res) {
-            int triId = (Integer) objInd;
-            Coordinate[] tri = getTriangle(triId);
-            Geometry triangleGeometry = factory.createPolygon(new Coordinate[]{ tri[0], tri[1], tri[2], tri[0]});
-            if(triangleGeometry.intersects(lineString)) {
-                Coordinate[] nearestCoordinates = DistanceOp.nearestPoints(triangleGeometry, lineString);
-                for (Coordinate nearestCoordinate : nearestCoordinates) {
-                    double distance = nearestCoordinate.distance(segment.p0);
-                    if (distance < minDistance) {
-                        minDistance = distance;
-                        minDistanceTriangle = triId;
-                        intersectionPt = nearestCoordinate;
-                    }
-                }
+            if(distancePointSegment(points.getX(i), points.getY(i), points.getZ(i), previousX, previousY, previousZ,
+                    nextX, nextY, nextZ) >= DELTA) {
+                previousX = points.getX(i);
+                previousY = points.getY(i);
+                previousZ = points.getZ(i);
+                profile.addTopoCutPt(previousX, previousY, previousZ, id++);
             }
         }
-        if(minDistanceTriangle != -1) {
-            Coordinate[] tri = getTriangle(minDistanceTriangle);
-            // Compute interpolated Z of the intersected point on the nearest triangle
-            intersectionPt.setZ(Vertex.interpolateZ(intersectionPt, tri[0], tri[1], tri[2]));
-            intersection.setCoordinate(intersectionPt);
-            intersectionTriangle.set(minDistanceTriangle);
-            return true;
-        } else {
-            return false;
+    }
+
+    /**
+     * 3D distance between a point and a segment, same as {@link CGAlgorithms3D#distancePointSegment}
+     */
+    private static double distancePointSegment(double px, double py, double pz, double ax, double ay, double az,
+                                               double bx, double by, double bz) {
+        double len2 = (bx - ax) * (bx - ax) + (by - ay) * (by - ay) + (bz - az) * (bz - az);
+        if (len2 == 0) {
+            return distance3D(px, py, pz, ax, ay, az);
+        }
+        double r = ((px - ax) * (bx - ax) + (py - ay) * (by - ay) + (pz - az) * (bz - az)) / len2;
+        if (r <= 0.0) {
+            return distance3D(px, py, pz, ax, ay, az);
+        }
+        if (r >= 1.0) {
+            return distance3D(px, py, pz, bx, by, bz);
         }
+        return distance3D(px, py, pz, ax + r * (bx - ax), ay + r * (by - ay), az + r * (bz - az));
     }
 
+    private static double distance3D(double ax, double ay, double az, double bx, double by, double bz) {
+        return Math.sqrt((bx - ax) * (bx - ax) + (by - ay) * (by - ay) + (bz - az) * (bz - az));
+    }
+
+    /**
+     * Points where the segment p1 p2 crosses the edges of the topographic triangles or the raster grid lines,
+     * from p1 to p2. If p1 is outside of the topography, the first point is the entry point of the segment.
+     * @param p1 First point
+     * @param p2 Last point
+     * @return Crossing points with the ground altitude
+     */
     public List<Coordinate> getTopographicProfile(Coordinate p1, Coordinate p2) {
-        if(topoTree == null) {
-            return new ArrayList<>();
-        }
         List<Coordinate> outputPoints = new ArrayList<>();
-        //get origin triangle id
-        int curTriP1 = getTriangleIdByCoordinate(p1);
-        LineSegment propaLine = new LineSegment(p1, p2);
-        if(curTriP1 == -1) {
-            // we are outside the bounds of the triangles
-            // Find the closest triangle to p1
-            Coordinate intersectionPt = new Coordinate();
-            AtomicInteger minDistanceTriangle = new AtomicInteger();
-            if(findClosestTriangleIntersection(propaLine, intersectionPt, minDistanceTriangle)) {
-                outputPoints.add(intersectionPt);
-                curTriP1 = minDistanceTriangle.get();
-            } else {
-                return outputPoints;
-            }
-        }
-        HashSet<Integer> navigationHistory = new HashSet<Integer>();
-        int navigationTri = curTriP1;
-        while (navigationTri != -1) {
-            navigationHistory.add(navigationTri);
-            Coordinate intersectionPt = new Coordinate();
-            int propaTri = this.getNextTri(navigationTri, propaLine, navigationHistory, intersectionPt);
-            // Found next triangle (if propaTri >= 0)
-            // extract X,Y,Z values of intersection with triangle segment
-            if(!Double.isNaN(intersectionPt.z)) {
-                outputPoints.add(intersectionPt);
-            }
-            navigationTri = propaTri;
+        if(topography == null) {
+            return outputPoints;
         }
+        topography.walk(p1.x, p1.y, p2.x, p2.y, (x, y, z) -> outputPoints.add(new Coordinate(x, y, z)));
         return outputPoints;
     }
 
@@ -1576,39 +1575,43 @@ public class ProfileBuilder {
      */
     @Deprecated
     public double getZGround(Coordinate c) {
-        return getZGround(new CutPoint(c, TOPOGRAPHY, -1));
+        if(topography == null) {
+            return 0.0;
+        }
+        double z = topography.getZ(c.x, c.y);
+        return Double.isNaN(z) ? 0.0 : z;
+    }
+
+    /**
+     * Same as {@link #getZGround(CutPoint)} for the cut point stored in the profile arrays
+     */
+    private double getZGround(CutProfile profile, int index) {
+        if(!Double.isNaN(profile.zGround[index])) {
+            return profile.zGround[index];
+        }
+        double z = topography == null ? NaN : topography.getZ(profile.x[index], profile.y[index]);
+        profile.zGround[index] = z;
+        return Double.isNaN(z) ? 0.0 : z;
     }
 
     /**
      * @return True if digital elevation model has been added
      */
     public boolean hasDem() {
-        return topoTree != null && topoTree.size() > 0;
+        return topography != null && !topography.isEmpty();
     }
 
     public double getZGround(CutPoint cut) {
         if(!Double.isNaN(cut.zGround)) {
             return cut.zGround;
         }
-        if(topoTree == null) {
+        if(topography == null) {
             cut.zGround = NaN;
             return 0.0;
         }
-        Envelope env = new Envelope(cut.coordinate);
-        List<Integer> list = (List<Integer>)topoTree.query(env);
-        for (int i : list) {
-            final Triangle tri = topoTriangles.get(i);
-            final Coordinate p1 = vertices.get(tri.getA());
-            final Coordinate p2 = vertices.get(tri.getB());
-            final Coordinate p3 = vertices.get(tri.getC());
-            if(JTSUtility.dotInTri(cut.coordinate, p1, p2, p3)) {
-                double z = Vertex.interpolateZ(cut.coordinate, p1, p2, p3);
-                cut.zGround = z;
-                return z;
-            }
-        }
-        cut.zGround = NaN;
-        return 0.0;
+        double z = topography.getZ(cut.coordinate.x, cut.coordinate.y);
+        cut.zGround = z;
+        return Double.isNaN(z) ? 0.0 : z;
     }
 
     /**
@@ -1631,14 +1634,41 @@ public class ProfileBuilder {
 
     /**
      * Cutting profile containing all th cut points with there x,y,z position.
+     * The cut points are stored in parallel primitive arrays, {@link CutPoint} instances are only created when
+     * {@link #getCutPoints()}, {@link #getSource()} or {@link #getReceiver()} are called. These instances are read
+     * only views of the arrays, they are discarded when the profile is modified.
      */
     public static class CutProfile {
-        /** List of cut points. */
-        private ArrayList<CutPoint> pts = new ArrayList<>();
-        /** Source cut point. */
-        private CutPoint source;
-        /** Receiver cut point. */
-        private CutPoint receiver;
+        private static final int DEFAULT_CAPACITY = 16;
+        /** Below this size the points are sorted using insertion sort */
+        private static final int INSERTION_SORT_THRESHOLD = 32;
+        private static final IntersectionType[] TYPES = IntersectionType.values();
+        /** Number of cut points. */
+        private int size = 0;
+        private double[] x;
+        private double[] y;
+        private double[] z;
+        private double[] zGround;
+        private double[] groundCoef;
+        private double[] height;
+        /** Ordinal of the {@link IntersectionType} */
+        private byte[] type;
+        private int[] id;
+        private int[] buildingId;
+        private int[] wallId;
+        private boolean[] corner;
+        /** Wall alpha, null if there is no coefficient. */
+        private List<Double>[] wallAlpha;
+        /** Index of the source cut point, -1 if not set. */
+        private int sourceIndex = -1;
+        /** Index of the receiver cut point, -1 if not set. */
+        private int receiverIndex = -1;
+        /** Cut points instances, created on demand. */
+        private List<CutPoint> pts = null;
+        // Sort working arrays, allocated on the first sort
+        private double[] position;
+        private int[] order;
+        private int[] mergeBuffer;
         //TODO cache has intersection properties
         /** True if contains a building cutting point. */
         private Boolean hasBuildingInter = false;
@@ -1649,14 +1679,198 @@ public class ProfileBuilder {
         private Boolean isFreeField;
         private double distanceToSR = 0;
         private Orientation srcOrientation;
+        /** Ground factor raster used to compute the G path, null if the ground effects are cut points */
+        private GroundRaster groundRaster;
+        /** Ground factor outside of the ground raster */
+        private double defaultGroundCoef = 0;
+
+        public CutProfile() {
+            this(DEFAULT_CAPACITY);
+        }
+
+        /**
+         * @param capacity Initial number of cut points that can be stored without reallocation
+         */
+        @SuppressWarnings("unchecked")
+        public CutProfile(int capacity) {
+            // one more slot is used as temporary storage when moving cut points
+            capacity = Math.max(1, capacity + 1);
+            x = new double[capacity];
+            y = new double[capacity];
+            z = new double[capacity];
+            zGround = new double[capacity];
+            groundCoef = new double[capacity];
+            height = new double[capacity];
+            type = new byte[capacity];
+            id = new int[capacity];
+            buildingId = new int[capacity];
+            wallId = new int[capacity];
+            corner = new boolean[capacity];
+            wallAlpha = new List[capacity];
+        }
+
+        private void ensureCapacity(int capacity) {
+            // keep a free slot for swap operations
+            capacity++;
+            if(capacity <= x.length) {
+                return;
+            }
+            int newCapacity = Math.max(capacity, x.length + (x.length >> 1));
+            x = Arrays.copyOf(x, newCapacity);
+            y = Arrays.copyOf(y, newCapacity);
+            z = Arrays.copyOf(z, newCapacity);
+            zGround = Arrays.copyOf(zGround, newCapacity);
+            groundCoef = Arrays.copyOf(groundCoef, newCapacity);
+            height = Arrays.copyOf(height, newCapacity);
+            type = Arrays.copyOf(type, newCapacity);
+            id = Arrays.copyOf(id, newCapacity);
+            buildingId = Arrays.copyOf(buildingId, newCapacity);
+            wallId = Arrays.copyOf(wallId, newCapacity);
+            corner = Arrays.copyOf(corner, newCapacity);
+            wallAlpha = Arrays.copyOf(wallAlpha, newCapacity);
+        }
+
+        /**
+         * Called before any modification of the arrays, the {@link CutPoint} views are discarded.
+         */
+        private void beforeUpdate() {
+            pts = null;
+            isFreeField = null;
+        }
+
+        /**
+         * Remove all cut points and reset the profile properties, the allocated arrays are kept.
+         */
+        void clear() {
+            Arrays.fill(wallAlpha, 0, size, null);
+            size = 0;
+            sourceIndex = -1;
+            receiverIndex = -1;
+            pts = null;
+            hasBuildingInter = false;
+            hasTopographyInter = false;
+            hasGroundEffectInter = false;
+            isFreeField = null;
+            distanceToSR = 0;
+            srcOrientation = null;
+            groundRaster = null;
+        }
+
+        /**
+         * Append a cut point
+         * @return Index of the new cut point
+         */
+        int add(double x, double y, double z, IntersectionType type, int id, boolean corner) {
+            beforeUpdate();
+            ensureCapacity(size + 1);
+            int index = size++;
+            this.x[index] = x;
+            this.y[index] = y;
+            this.z[index] = z;
+            this.type[index] = (byte) type.ordinal();
+            this.id[index] = id;
+            this.corner[index] = corner;
+            this.zGround[index] = NaN;
+            this.groundCoef[index] = 0;
+            this.height[index] = 0;
+            this.buildingId[index] = -1;
+            this.wallId[index] = -1;
+            this.wallAlpha[index] = null;
+            return index;
+        }
+
+        /**
+         * Append a copy of a cut point of another profile
+         * @return Index of the new cut point
+         */
+        int add(CutProfile other, int otherIndex) {
+            beforeUpdate();
+            ensureCapacity(size + 1);
+            copy(other, otherIndex, size);
+            return size++;
+        }
+
+        /**
+         * Insert a copy of a cut point of this profile
+         * @param index Insertion index
+         * @param sourceIndex Index of the cut point to copy, before insertion
+         */
+        void insertCopy(int index, int sourceIndex) {
+            beforeUpdate();
+            ensureCapacity(size + 1);
+            for(int i = size; i > index; i--) {
+                copy(this, i - 1, i);
+            }
+            size++;
+            copy(this, sourceIndex < index ? sourceIndex : sourceIndex + 1, index);
+            if(this.sourceIndex >= index) {
+                this.sourceIndex++;
+            }
+            if(receiverIndex >= index) {
+                receiverIndex++;
+            }
+        }
+
+        private void copy(CutProfile from, int fromIndex, int toIndex) {
+            x[toIndex] = from.x[fromIndex];
+            y[toIndex] = from.y[fromIndex];
+            z[toIndex] = from.z[fromIndex];
+            zGround[toIndex] = from.zGround[fromIndex];
+            groundCoef[toIndex] = from.groundCoef[fromIndex];
+            height[toIndex] = from.height[fromIndex];
+            type[toIndex] = from.type[fromIndex];
+            id[toIndex] = from.id[fromIndex];
+            buildingId[toIndex] = from.buildingId[fromIndex];
+            wallId[toIndex] = from.wallId[fromIndex];
+            corner[toIndex] = from.corner[fromIndex];
+            wallAlpha[toIndex] = from.wallAlpha[fromIndex];
+        }
+
+        private void set(int index, CutPoint cut) {
+            x[index] = cut.coordinate.x;
+            y[index] = cut.coordinate.y;
+            z[index] = cut.coordinate.z;
+            zGround[index] = cut.zGround;
+            groundCoef[index] = cut.groundCoef;
+            height[index] = cut.height;
+            type[index] = (byte) cut.type.ordinal();
+            id[index] = cut.id;
+            buildingId[index] = cut.buildingId;
+            wallId[index] = cut.wallId;
+            corner[index] = cut.corner;
+            wallAlpha[index] = cut.wallAlpha;
+        }
+
+        /**
+         * @return True if the two cut points have the same x and y
+         */
+        boolean equals2D(int i, int j) {
+            return x[i] == x[j] && y[i] == y[j];
+        }
+
+        private void swap(int i, int j) {
+            int tmp = size;
+            copy(this, i, tmp);
+            copy(this, j, i);
+            copy(this, tmp, j);
+        }
 
         /**
          * Add the source point.
          * @param coord Coordinate of the source point.
          */
         public void addSource(Coordinate coord) {
-            source = new CutPoint(coord, SOURCE, -1);
-            pts.add(0, source);
+            int last = add(coord.x, coord.y, coord.z, SOURCE, -1, false);
+            // move the source at the first position
+            copy(this, last, size);
+            for(int i = last; i > 0; i--) {
+                copy(this, i - 1, i);
+            }
+            copy(this, size, 0);
+            sourceIndex = 0;
+            if(receiverIndex >= 0) {
+                receiverIndex++;
+            }
         }
 
         /**
@@ -1664,8 +1878,7 @@ public class ProfileBuilder {
          * @param coord Coordinate of the receiver point.
          */
         public void addReceiver(Coordinate coord) {
-            receiver = new CutPoint(coord, RECEIVER, -1);
-            pts.add(receiver);
+            receiverIndex = add(coord.x, coord.y, coord.z, RECEIVER, -1, false);
         }
 
         /**
@@ -1674,10 +1887,9 @@ public class ProfileBuilder {
          * @param buildingId Id of the cut building.
          */
         public void addBuildingCutPt(Coordinate coord, int buildingId, int wallId, boolean corner) {
-            CutPoint cut = new CutPoint(coord, IntersectionType.BUILDING, buildingId, corner);
-            cut.wallId = wallId;
-            pts.add(cut);
-            pts.get(pts.size()-1).buildingId = buildingId;
+            int index = add(coord.x, coord.y, coord.z, IntersectionType.BUILDING, buildingId, corner);
+            this.wallId[index] = wallId;
+            this.buildingId[index] = buildingId;
             hasBuildingInter = true;
         }
 
@@ -1687,8 +1899,8 @@ public class ProfileBuilder {
          * @param id    Id of the cut building.
          */
         public void addWallCutPt(Coordinate coord, int id, boolean corner) {
-            pts.add(new CutPoint(coord, IntersectionType.WALL, id, corner));
-            pts.get(pts.size()-1).wallId = id;
+            int index = add(coord.x, coord.y, coord.z, IntersectionType.WALL, id, corner);
+            wallId[index] = id;
             hasBuildingInter = true;
         }
 
@@ -1698,9 +1910,9 @@ public class ProfileBuilder {
          * @param id    Id of the cut building.
          */
         public void addWallCutPt(Coordinate coord, int id, boolean corner, List<Double> alphas) {
-            pts.add(new CutPoint(coord, IntersectionType.WALL, id, corner));
-            pts.get(pts.size()-1).wallId = id;
-            pts.get(pts.size()-1).setWallAlpha(alphas);
+            int index = add(coord.x, coord.y, coord.z, IntersectionType.WALL, id, corner);
+            wallId[index] = id;
+            wallAlpha[index] = alphas;
             hasBuildingInter = true;
         }
 
@@ -1710,7 +1922,15 @@ public class ProfileBuilder {
          * @param id    Id of the cut topography.
          */
         public void addTopoCutPt(Coordinate coord, int id) {
-            pts.add(new CutPoint(coord, TOPOGRAPHY, id));
+            addTopoCutPt(coord.x, coord.y, coord.z, id);
+        }
+
+        /**
+         * Add a topographic cutting point.
+         * @param id    Id of the cut topography.
+         */
+        public void addTopoCutPt(double x, double y, double z, int id) {
+            add(x, y, z, TOPOGRAPHY, id, false);
             hasTopographyInter = true;
         }
 
@@ -1719,7 +1939,7 @@ public class ProfileBuilder {
          * @param numberOfPointsToBePushed
          */
         public void reservePoints(int numberOfPointsToBePushed) {
-            pts.ensureCapacity(pts.size() + numberOfPointsToBePushed);
+            ensureCapacity(size + numberOfPointsToBePushed);
         }
 
         /**
@@ -1728,16 +1948,50 @@ public class ProfileBuilder {
          * @param id    Id of the cut topography.
          */
         public void addGroundCutPt(Coordinate coord, int id) {
-            pts.add(new CutPoint(coord, IntersectionType.GROUND_EFFECT, id));
+            add(coord.x, coord.y, coord.z, IntersectionType.GROUND_EFFECT, id, false);
             hasGroundEffectInter = true;
         }
 
+        /**
+         * @return Number of cut points
+         */
+        public int size() {
+            return size;
+        }
+
+        public double getX(int index) {
+            return x[index];
+        }
+
+        public double getY(int index) {
+            return y[index];
+        }
+
+        public double getZ(int index) {
+            return z[index];
+        }
+
+        public IntersectionType getType(int index) {
+            return TYPES[type[index]];
+        }
+
+        public double getGroundCoef(int index) {
+            return groundCoef[index];
+        }
+
         /**
          * Retrieve the cutting points.
          * @return The cutting points.
          */
         public List<CutPoint> getCutPoints() {
-            return Collections.unmodifiableList(pts);
+            if(pts == null) {
+                ArrayList<CutPoint> cutPoints = new ArrayList<>(size);
+                for(int i = 0; i < size; i++) {
+                    cutPoints.add(new CutPoint(this, i));
+                }
+                pts = Collections.unmodifiableList(cutPoints);
+            }
+            return pts;
         }
 
         /**
@@ -1745,7 +1999,7 @@ public class ProfileBuilder {
          * @return The profile source.
          */
         public CutPoint getSource() {
-            return source;
+            return sourceIndex >= 0 ? getCutPoints().get(sourceIndex) : null;
         }
 
         /**
@@ -1758,27 +2012,97 @@ public class ProfileBuilder {
          * @return The profile receiver.
          */
         public CutPoint getReceiver() {
-            return receiver;
+            return receiverIndex >= 0 ? getCutPoints().get(receiverIndex) : null;
         }
 
         /**
-         * Sort the CutPoints by there coordinates
+         * Sort in place the CutPoints by there position along the segment c0 c1. Cut points at the same position
+         * keep their insertion order.
          */
         public void sort(Coordinate c0, Coordinate c1) {
-            if(c0.x<=c1.x){
-                if(c0.y<=c1.y){
-                    pts.sort(CutPoint::compareTox01y01);
+            beforeUpdate();
+            if(size < 2) {
+                return;
+            }
+            if(order == null || order.length < size) {
+                position = new double[x.length];
+                order = new int[x.length];
+                mergeBuffer = new int[x.length];
+            }
+            double dx = c1.x - c0.x;
+            double dy = c1.y - c0.y;
+            double length2 = dx * dx + dy * dy;
+            for(int i = 0; i < size; i++) {
+                position[i] = length2 > 0 ? ((x[i] - c0.x) * dx + (y[i] - c0.y) * dy) / length2 : 0;
+                order[i] = i;
+            }
+            mergeSort(0, size);
+            // order[k] is now the index of the cut point to move at the position k
+            for(int k = 0; k < size; k++) {
+                if(order[k] == sourceIndex) {
+                    mergeBuffer[0] = k;
                 }
-                else {
-                    pts.sort(CutPoint::compareTox01y10);
+                if(order[k] == receiverIndex) {
+                    mergeBuffer[1] = k;
                 }
             }
-            if(c0.x>c1.x){
-                if(c0.y<=c1.y){
-                    pts.sort(CutPoint::compareTox10y01);
+            if(sourceIndex >= 0) {
+                sourceIndex = mergeBuffer[0];
+            }
+            if(receiverIndex >= 0) {
+                receiverIndex = mergeBuffer[1];
+            }
+            // Apply the permutation by following its cycles, the last slot is used as temporary storage
+            int tmp = size;
+            for(int start = 0; start < size; start++) {
+                if(order[start] == start) {
+                    continue;
                 }
-                else {
-                    pts.sort(CutPoint::compareTox10y10);
+                copy(this, start, tmp);
+                int current = start;
+                while(true) {
+                    int next = order[current];
+                    order[current] = current;
+                    if(next == start) {
+                        copy(this, tmp, current);
+                        break;
+                    }
+                    copy(this, next, current);
+                    current = next;
+                }
+            }
+        }
+
+        /**
+         * Stable sort of order[from, to) using position values
+         */
+        private void mergeSort(int from, int to) {
+            if(to - from <= INSERTION_SORT_THRESHOLD) {
+                for(int i = from + 1; i < to; i++) {
+                    int value = order[i];
+                    int j = i - 1;
+                    while(j >= from && position[order[j]] > position[value]) {
+                        order[j + 1] = order[j];
+                        j--;
+                    }
+                    order[j + 1] = value;
+                }
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            mergeSort(from, middle);
+            mergeSort(middle, to);
+            if(position[order[middle - 1]] <= position[order[middle]]) {
+                return;
+            }
+            System.arraycopy(order, from, mergeBuffer, from, to - from);
+            int left = from;
+            int right = middle;
+            for(int k = from; k < to; k++) {
+                if(right >= to || (left < middle && position[mergeBuffer[left]] <= position[mergeBuffer[right]])) {
+                    order[k] = mergeBuffer[left++];
+                } else {
+                    order[k] = mergeBuffer[right++];
                 }
             }
         }
@@ -1788,14 +2112,25 @@ public class ProfileBuilder {
          * @param cutPoint CutPoint to add.
          */
         public void addCutPt(CutPoint cutPoint) {
-            pts.add(cutPoint);
+            beforeUpdate();
+            ensureCapacity(size + 1);
+            set(size++, cutPoint);
         }
 
         /**
          * Reverse the order of the CutPoints.
          */
         public void reverse() {
-            Collections.reverse(pts);
+            beforeUpdate();
+            for(int i = 0; i < size / 2; i++) {
+                swap(i, size - 1 - i);
+            }
+            if(sourceIndex >= 0) {
+                sourceIndex = size - 1 - sourceIndex;
+            }
+            if(receiverIndex >= 0) {
+                receiverIndex = size - 1 - receiverIndex;
+            }
         }
 
         public void setSrcOrientation(Orientation srcOrientation){
@@ -1819,6 +2154,11 @@ public class ProfileBuilder {
         }
 
         public double getGPath(CutPoint p0, CutPoint p1) {
+            if(groundRaster != null) {
+                Coordinate c0 = p0.getCoordinate();
+                Coordinate c1 = p1.getCoordinate();
+                return groundRaster.getMeanG(c0.x, c0.y, c1.x, c1.y, defaultGroundCoef);
+            }
             CutPoint current = p0;
             double totLength = dist2D(p0.getCoordinate(), p1.getCoordinate());
             double rsLength = 0.0;
@@ -1851,32 +2191,24 @@ public class ProfileBuilder {
         public boolean isFreeField() {
             if(isFreeField == null) {
                 isFreeField = true;
-                Coordinate s = getSource().getCoordinate();
-                Coordinate r = getReceiver().getCoordinate();
-                List<CutPoint> tmp = new ArrayList<>();
+                final double sx = x[sourceIndex], sy = y[sourceIndex], sz = z[sourceIndex];
+                final double rx = x[receiverIndex], ry = y[receiverIndex], rz = z[receiverIndex];
                 boolean allMatch = true;
-                for(CutPoint cut : pts) {
-                    if(cut.getType() == BUILDING || cut.getType() == WALL) {
-                        tmp.add(cut);
-                    }
-                    else if(cut.getType() == TOPOGRAPHY) {
-                        tmp.add(cut);
-                    }
-                    if(!(cut.getCoordinate().equals(s) || cut.getCoordinate().equals(r))) {
+                for(int i = 0; i < size; i++) {
+                    if(!((x[i] == sx && y[i] == sy) || (x[i] == rx && y[i] == ry))) {
                         allMatch = false;
+                        break;
                     }
                 }
                 if(allMatch) {
                     return true;
                 }
-                List<CutPoint> ptsWithouGroundEffect = pts.stream()
-                        .filter(cut -> !cut.getType().equals(GROUND_EFFECT))
-                        .collect(Collectors.toList());
-                for(CutPoint pt : ptsWithouGroundEffect) {
-                    double frac = (pt.coordinate.x-s.x)/(r.x-s.x);
-                    double z = source.getCoordinate().z + frac * (receiver.getCoordinate().z-source.getCoordinate().z);
-                    double[] distanceSRpt = distance3D(source.getCoordinate(), receiver.getCoordinate(), pt.getCoordinate());
-                    if(distanceSRpt[0]>0 && distanceSRpt[1]>0 && !pt.isCorner()) {
+                for(int i = 0; i < size; i++) {
+                    if(type[i] == GROUND_EFFECT.ordinal()) {
+                        continue;
+                    }
+                    double[] distanceSRpt = distance3D(sx, sy, sz, rx, ry, rz, x[i], y[i], z[i]);
+                    if(distanceSRpt[0]>0 && distanceSRpt[1]>0 && !corner[i]) {
                         isFreeField = false;
                         distanceToSR = distanceSRpt[0];
                         break;
@@ -1888,24 +2220,11 @@ public class ProfileBuilder {
 
         /**
          * Get distance between a segment (p1,p2) and a point (point) with point perpendicular to (p1,p2)
-         * @param p1
-         * @param p2
-         * @param point
          * @return distance in meters
          */
-        private static double[] distance3D(Coordinate p1, Coordinate p2, Coordinate point) {
+        private static double[] distance3D(double x1, double y1, double z1, double x2, double y2, double z2,
+                                           double x0, double y0, double z0) {
             double[] DistanceInfo = new double[2];
-            double x1 = p1.getX();
-            double y1 = p1.getY();
-            double z1 = p1.getZ();
-
-            double x2 = p2.getX();
-            double y2 = p2.getY();
-            double z2 = p2.getZ();
-
-            double x0 = point.getX();
-            double y0 = point.getY();
-            double z0 = point.getZ();
 
             // Vector representing the LineSegment
             double dx = x2 - x1;
@@ -1940,13 +2259,23 @@ public class ProfileBuilder {
 
         @Override
         public String toString() {
-            return "CutProfile{" + "pts=" + pts + ", source=" + source + ", receiver=" + receiver + ", " +
+            return "CutProfile{" + "pts=" + getCutPoints() + ", source=" + getSource() + ", receiver=" + getReceiver() + ", " +
                     "hasBuildingInter=" + hasBuildingInter + ", hasTopographyInter=" + hasTopographyInter + ", " +
                     "hasGroundEffectInter=" + hasGroundEffectInter + ", isFreeField=" + isFreeField + ", " +
                     "srcOrientation=" + srcOrientation + '}';
         }
     }
 
+    /**
+     * Buffers reused by a thread when computing profiles
+     */
+    private static final class ProfileWorkspace {
+        /** Unsorted cut points */
+        final CutProfile cutPoints = new CutProfile();
+        final Topography.ProfilePoints topographyPoints = new Topography.ProfilePoints();
+        final ObstacleCandidateCache obstacleCache = new ObstacleCandidateCache(OBSTACLE_CACHE_SIZE);
+    }
+
     /**
      * Profile cutting point.
      */
@@ -1970,6 +2299,8 @@ public class ProfileBuilder {
         /** Wall alpha. NaN if there is no coefficient. */
         private List<Double> wallAlpha = Collections.emptyList();
         private boolean corner;
+        /** True if this cut point is a view of a {@link CutProfile} */
+        private boolean readOnly = false;
 
         /**
          * Constructor using a {@link Coordinate}.
@@ -1996,6 +2327,31 @@ public class ProfileBuilder {
             coordinate = new Coordinate();
         }
 
+        /**
+         * Create a read only view of the cut point stored at the given index of the profile. The coordinate is a copy
+         * of the profile values.
+         */
+        private CutPoint(CutProfile profile, int index) {
+            this.coordinate = new Coordinate(profile.x[index], profile.y[index], profile.z[index]);
+            this.type = CutProfile.TYPES[profile.type[index]];
+            this.id = profile.id[index];
+            this.buildingId = profile.buildingId[index];
+            this.wallId = profile.wallId[index];
+            this.groundCoef = profile.groundCoef[index];
+            this.wallAlpha = profile.wallAlpha[index] != null ?
+                    Collections.unmodifiableList(profile.wallAlpha[index]) : Collections.emptyList();
+            this.height = profile.height[index];
+            this.zGround = profile.zGround[index];
+            this.corner = profile.corner[index];
+            this.readOnly = true;
+        }
+
+        private void checkWritable() {
+            if(readOnly) {
+                throw new UnsupportedOperationException("Cut point of a CutProfile can't be modified");
+            }
+        }
+
         /**
          * Copy constructor
          * @param cut
@@ -2014,14 +2370,17 @@ public class ProfileBuilder {
         }
 
         public void setType(IntersectionType type) {
+            checkWritable();
             this.type = type;
         }
 
         public void setId(int id) {
+            checkWritable();
             this.id = id;
         }
 
         public void setCoordinate(Coordinate coordinate) {
+            checkWritable();
             this.coordinate = coordinate;
         }
 
@@ -2030,6 +2389,7 @@ public class ProfileBuilder {
          * @param buildingId Id of the building containing the point.
          */
         public void setBuildingId(int buildingId) {
+            checkWritable();
             this.buildingId = buildingId;
             this.wallId = -1;
         }
@@ -2039,6 +2399,7 @@ public class ProfileBuilder {
          * @param wallId Id of the wall containing the point.
          */
         public void setWallId(int wallId) {
+            checkWritable();
             this.wallId = wallId;
             this.buildingId = -1;
         }
@@ -2048,6 +2409,7 @@ public class ProfileBuilder {
          * @param groundCoef The ground coefficient of this point.
          */
         public void setGroundCoef(double groundCoef) {
+            checkWritable();
             this.groundCoef = groundCoef;
         }
 
@@ -2056,6 +2418,7 @@ public class ProfileBuilder {
          * @param height The building height.
          */
         public void setHeight(double height) {
+            checkWritable();
             this.height = height;
         }
 
@@ -2064,6 +2427,7 @@ public class ProfileBuilder {
          * @param zGround The topographic height.
          */
         public void setzGround(double zGround) {
+            checkWritable();
             this.zGround = zGround;
         }
 
@@ -2072,6 +2436,7 @@ public class ProfileBuilder {
          * @param wallAlpha The wall alpha.
          */
         public void setWallAlpha(List<Double> wallAlpha) {
+            checkWritable();
             this.wallAlpha = wallAlpha;
         }
 
@@ -2635,25 +3000,24 @@ public class ProfileBuilder {
      * @param visitor Iterate over found buildings
      * @return Building identifier (1-n) intersected by the line
      */
-    public void getBuildingsOnPath(Coordinate p1, Coordinate p2, ItemVisitor visitor) {
-        try {
-            List<LineSegment> lines = splitSegment(p1, p2, maxLineLength);
-            for(LineSegment segment : lines) {
-                Envelope pathEnv = new Envelope(segment.p0, segment.p1);
-                    buildingTree.query(pathEnv, visitor);
+    public void getBuildingsOnPath(Coordinate p1, Coordinate p2, PackedRTree.ItemVisitor visitor) {
+        List<LineSegment> lines = splitSegment(p1, p2, maxLineLength);
+        for(LineSegment segment : lines) {
+            if(!buildingTree.query(Math.min(segment.p0.x, segment.p1.x), Math.min(segment.p0.y, segment.p1.y),
+                    Math.max(segment.p0.x, segment.p1.x), Math.max(segment.p0.y, segment.p1.y), visitor)) {
+                break;
             }
-        } catch (IllegalStateException ex) {
-            //Ignore
         }
     }
 
-    public void getWallsOnPath(Coordinate p1, Coordinate p2, ItemVisitor visitor) {
-        Envelope pathEnv = new Envelope(p1, p2);
-        try {
-            wallTree.query(pathEnv, visitor);
-        } catch (IllegalStateException ex) {
-            //Ignore
-        }
+    /**
+     * Find the walls whose envelope intersects the line p1->p2
+     * @param p1 first point of line
+     * @param p2 second point of line
+     * @param visitor Iterate over found walls, identifier (1-n)
+     */
+    public void getWallsOnPath(Coordinate p1, Coordinate p2, PackedRTree.ItemVisitor visitor) {
+        wallTree.querySegment(p1.x, p1.y, p2.x, p2.y, visitor);
     }
 
 
@@ -0,0 +1,305 @@
+/**
+ * NoiseModelling is an open-source tool designed to produce environmental noise maps on very large urban areas. It can be used as a Java library or be controlled through a user friendly web interface.
+ *
+ * This version is developed by the DECIDE team from the Lab-STICC (CNRS) and by the Mixt Research Unit in Environmental Acoustics (Université Gustave Eiffel).
+ * <http://noise-planet.org/noisemodelling.html>
+ *
+ * NoiseModelling is distributed under GPL 3 license. You can read a copy of this License in the file LICENCE provided with this software.
+ *
+ * Contact: contact@noise-planet.org
+ *
+ */
+package org.noise_planet.noisemodelling.pathfinder;
+
+import org.locationtech.jts.geom.Envelope;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Digital elevation model given as a regular grid of altitudes, used by {@link ProfileBuilder} without triangulation.
+ * The altitude is known at the center of each grid cell and bilinearly interpolated between the centers.
+ * Profiles are extracted by visiting the grid lines crossed by the segment (DDA traversal).
+ *
+ * Altitudes are stored row by row, the first row is the northern one (same order than ESRI ASCII grids).
+ * NaN altitudes are unknown values.
+ * @author Nicolas Fortin
+ */
+public final class RasterTopography implements Topography {
+    private static final int MAGIC = 0x4E4D4452; // NMDR
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 2 * Integer.BYTES + 3 * Double.BYTES + 2 * Integer.BYTES;
+    // Tolerance on the position of a point outside of the grid, in cell size units
+    private static final double EPSILON = 1e-9;
+
+    private final double minX;
+    private final double maxY;
+    private final double cellSize;
+    private final int columns;
+    private final int rows;
+    private final FloatBuffer heights;
+
+    /**
+     * @param minX X coordinate of the center of the western cells
+     * @param maxY Y coordinate of the center of the northern cells
+     * @param cellSize Size of the square cells
+     * @param columns Number of columns
+     * @param rows Number of rows
+     * @param heights Altitude of the cells, row by row from the north, NaN for unknown values
+     */
+    public RasterTopography(double minX, double maxY, double cellSize, int columns, int rows, FloatBuffer heights) {
+        if(columns < 1 || rows < 1 || !(cellSize > 0)) {
+            throw new IllegalArgumentException("Raster must contain at least one cell with a positive size");
+        }
+        if(heights.capacity() < (long) columns * rows) {
+            throw new IllegalArgumentException("Expected " + (long) columns * rows + " altitudes, got " +
+                    heights.capacity());
+        }
+        this.minX = minX;
+        this.maxY = maxY;
+        this.cellSize = cellSize;
+        this.columns = columns;
+        this.rows = rows;
+        this.heights = heights;
+    }
+
+    /**
+     * @see #RasterTopography(double, double, double, int, int, FloatBuffer)
+     */
+    public RasterTopography(double minX, double maxY, double cellSize, int columns, int rows, float[] heights) {
+        this(minX, maxY, cellSize, columns, rows, FloatBuffer.wrap(heights));
+    }
+
+    /**
+     * Open a raster written by {@link #save(File)}. The altitudes are memory mapped and not loaded in the java heap.
+     * @param file Raster file
+     * @return Read only raster
+     */
+    public static RasterTopography open(File file) throws IOException {
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+             FileChannel channel = randomAccessFile.getChannel()) {
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+            if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+                throw new IOException("Unexpected raster file format " + file.getAbsolutePath());
+            }
+            double minX = header.getDouble();
+            double maxY = header.getDouble();
+            double cellSize = header.getDouble();
+            int columns = header.getInt();
+            int rows = header.getInt();
+            long size = (long) columns * rows * Float.BYTES;
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Raster too large to be mapped " + file.getAbsolutePath());
+            }
+            FloatBuffer heights = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE, size).asFloatBuffer();
+            return new RasterTopography(minX, maxY, cellSize, columns, rows, heights);
+        }
+    }
+
+    /**
+     * Write the raster in a file that can be memory mapped with {@link #open(File)}
+     * @param file Destination file
+     */
+    public void save(File file) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeDouble(minX);
+            out.writeDouble(maxY);
+            out.writeDouble(cellSize);
+            out.writeInt(columns);
+            out.writeInt(rows);
+            for (int i = 0; i < columns * rows; i++) {
+                out.writeFloat(heights.get(i));
+            }
+        }
+    }
+
+    public double getMinX() {
+        return minX;
+    }
+
+    public double getMaxY() {
+        return maxY;
+    }
+
+    public double getCellSize() {
+        return cellSize;
+    }
+
+    public int getColumns() {
+        return columns;
+    }
+
+    public int getRows() {
+        return rows;
+    }
+
+    /**
+     * @return Envelope of the cell centers, where the altitude is defined
+     */
+    public Envelope getEnvelope() {
+        return new Envelope(minX, minX + (columns - 1) * cellSize, maxY - (rows - 1) * cellSize, maxY);
+    }
+
+    /**
+     * @param column Column index
+     * @param row Row index, 0 is the northern row
+     * @return Altitude of the cell, NaN if unknown
+     */
+    public double getCellZ(int column, int row) {
+        return heights.get(row * columns + column);
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return false;
+    }
+
+    @Override
+    public double getZ(double x, double y) {
+        double fx = (x - minX) / cellSize;
+        double fy = (maxY - y) / cellSize;
+        if (fx < -EPSILON || fy < -EPSILON || fx > columns - 1 + EPSILON || fy > rows - 1 + EPSILON) {
+            return Double.NaN;
+        }
+        fx = Math.max(0, Math.min(columns - 1, fx));
+        fy = Math.max(0, Math.min(rows - 1, fy));
+        int column = Math.min((int) fx, Math.max(0, columns - 2));
+        int row = Math.min((int) fy, Math.max(0, rows - 2));
+        double tx = fx - column;
+        double ty = fy - row;
+        int nextColumn = Math.min(column + 1, columns - 1);
+        int nextRow = Math.min(row + 1, rows - 1);
+        // Weighted sum of the known altitudes of the 4 surrounding cells
+        double z = 0;
+        double weight = 0;
+        double w = (1 - tx) * (1 - ty);
+        double h = getCellZ(column, row);
+        if (w > 0 && !Double.isNaN(h)) {
+            z += w * h;
+            weight += w;
+        }
+        w = tx * (1 - ty);
+        h = getCellZ(nextColumn, row);
+        if (w > 0 && !Double.isNaN(h)) {
+            z += w * h;
+            weight += w;
+        }
+        w = (1 - tx) * ty;
+        h = getCellZ(column, nextRow);
+        if (w > 0 && !Double.isNaN(h)) {
+            z += w * h;
+            weight += w;
+        }
+        w = tx * ty;
+        h = getCellZ(nextColumn, nextRow);
+        if (w > 0 && !Double.isNaN(h)) {
+            z += w * h;
+            weight += w;
+        }
+        return weight > 0 ? z / weight : Double.NaN;
+    }
+
+    /**
+     * Visit the points where the segment crosses the lines joining the cell centers. If p0 is outside of the raster,
+     * the first visited point is the entry point in the raster. If p1 is outside of the raster, the last visited point
+     * is the exit point.
+     */
+    @Override
+    public int walk(double x0, double y0, double x1, double y1, ProfileVisitor visitor) {
+        // Position in grid units, column index increase with x, row index increase toward the south
+        double fx0 = (x0 - minX) / cellSize;
+        double fy0 = (maxY - y0) / cellSize;
+        double dfx = (x1 - x0) / cellSize;
+        double dfy = (y0 - y1) / cellSize;
+        // Clip the segment with the grid extent (Liang-Barsky)
+        double[] range = new double[] {0, 1};
+        if (!clip(-dfx, fx0, range) || !clip(dfx, columns - 1 - fx0, range) || !clip(-dfy, fy0, range)
+                || !clip(dfy, rows - 1 - fy0, range) || range[0] > range[1]) {
+            return 0;
+        }
+        double tEnter = range[0];
+        double tExit = range[1];
+        int count = 0;
+        if (tEnter > 0) {
+            count += visit(x0, y0, x1, y1, tEnter, visitor);
+        }
+        double tx = nextCrossing(fx0, dfx, tEnter);
+        double ty = nextCrossing(fy0, dfy, tEnter);
+        double stepX = dfx != 0 ? 1 / Math.abs(dfx) : Double.POSITIVE_INFINITY;
+        double stepY = dfy != 0 ? 1 / Math.abs(dfy) : Double.POSITIVE_INFINITY;
+        double t = Math.min(tx, ty);
+        while (t < tExit - EPSILON) {
+            count += visit(x0, y0, x1, y1, t, visitor);
+            // both lines are crossed at the same time on a cell center
+            if (tx <= t + EPSILON) {
+                tx += stepX;
+            }
+            if (ty <= t + EPSILON) {
+                ty += stepY;
+            }
+            t = Math.min(tx, ty);
+        }
+        if (tExit < 1 && tExit > tEnter) {
+            count += visit(x0, y0, x1, y1, tExit, visitor);
+        }
+        return count;
+    }
+
+    private int visit(double x0, double y0, double x1, double y1, double t, ProfileVisitor visitor) {
+        double x = x0 + (x1 - x0) * t;
+        double y = y0 + (y1 - y0) * t;
+        double z = getZ(x, y);
+        if (Double.isNaN(z)) {
+            return 0;
+        }
+        visitor.visit(x, y, z);
+        return 1;
+    }
+
+    /**
+     * @param f0 Position in grid units at t = 0
+     * @param df Variation of the position between t = 0 and t = 1
+     * @param t Current segment position
+     * @return Segment position of the next integer grid position strictly after t
+     */
+    private static double nextCrossing(double f0, double df, double t) {
+        if (df == 0) {
+            return Double.POSITIVE_INFINITY;
+        }
+        double f = f0 + df * t;
+        double next = df > 0 ? Math.floor(f + EPSILON) + 1 : Math.ceil(f - EPSILON) - 1;
+        return (next - f0) / df;
+    }
+
+    /**
+     * Liang-Barsky clipping step, restrict the range of t where p * t <= q
+     * @return False if the segment is outside of the boundary
+     */
+    private static boolean clip(double p, double q, double[] range) {
+        if (p == 0) {
+            return q >= -EPSILON;
+        }
+        double r = q / p;
+        if (p < 0) {
+            if (r > range[1]) {
+                return false;
+            }
+            range[0] = Math.max(range[0], r);
+        } else {
+            if (r < range[0]) {
+                return false;
+            }
+            range[1] = Math.min(range[1], r);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,99 @@
+/**
+ * NoiseModelling is an open-source tool designed to produce environmental noise maps on very large urban areas. It can be used as a Java library or be controlled through a user friendly web interface.
+ *
+ * This version is developed by the DECIDE team from the Lab-STICC (CNRS) and by the Mixt Research Unit in Environmental Acoustics (Université Gustave Eiffel).
+ * <http://noise-planet.org/noisemodelling.html>
+ *
+ * NoiseModelling is distributed under GPL 3 license. You can read a copy of this License in the file LICENCE provided with this software.
+ *
+ * Contact: contact@noise-planet.org
+ *
+ */
+package org.noise_planet.noisemodelling.pathfinder;
+
+import java.util.Arrays;
+
+/**
+ * Read only digital elevation model used by {@link ProfileBuilder}.
+ * @author Nicolas Fortin
+ */
+public interface Topography {
+
+    /**
+     * Receive the points where a segment crosses the edges of the topography elements
+     */
+    interface ProfileVisitor {
+        /**
+         * @param x X coordinate of the crossing point
+         * @param y Y coordinate of the crossing point
+         * @param z Altitude of the ground at the crossing point
+         */
+        void visit(double x, double y, double z);
+    }
+
+    /**
+     * Growable buffer of profile points
+     */
+    final class ProfilePoints implements ProfileVisitor {
+        private double[] xyz = new double[48];
+        private int size = 0;
+
+        @Override
+        public void visit(double x, double y, double z) {
+            if (size * 3 == xyz.length) {
+                xyz = Arrays.copyOf(xyz, xyz.length * 2);
+            }
+            xyz[size * 3] = x;
+            xyz[size * 3 + 1] = y;
+            xyz[size * 3 + 2] = z;
+            size++;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public double getX(int index) {
+            return xyz[index * 3];
+        }
+
+        public double getY(int index) {
+            return xyz[index * 3 + 1];
+        }
+
+        public double getZ(int index) {
+            return xyz[index * 3 + 2];
+        }
+
+        /**
+         * Remove all points, the buffer can be used for another profile
+         */
+        public void clear() {
+            size = 0;
+        }
+    }
+
+    /**
+     * @param x X coordinate
+     * @param y Y coordinate
+     * @return Altitude of the ground, NaN if the point is outside of the topography
+     */
+    double getZ(double x, double y);
+
+    /**
+     * Visit the ground points of the segment p0 p1 where the slope of the ground can change, from p0 to p1.
+     * The first and last points of the segment are not visited.
+     * @param x0 X of the first point of the segment
+     * @param y0 Y of the first point of the segment
+     * @param x1 X of the last point of the segment
+     * @param y1 Y of the last point of the segment
+     * @param visitor Receive the ground points
+     * @return Number of visited points
+     */
+    int walk(double x0, double y0, double x1, double y1, ProfileVisitor visitor);
+
+    /**
+     * @return True if the topography does not contain any altitude
+     */
+    boolean isEmpty();
+}
@@ -0,0 +1,447 @@
+/**
+ * NoiseModelling is an open-source tool designed to produce environmental noise maps on very large urban areas. It can be used as a Java library or be controlled through a user friendly web interface.
+ *
+ * This version is developed by the DECIDE team from the Lab-STICC (CNRS) and by the Mixt Research Unit in Environmental Acoustics (Université Gustave Eiffel).
+ * <http://noise-planet.org/noisemodelling.html>
+ *
+ * NoiseModelling is distributed under GPL 3 license. You can read a copy of this License in the file LICENCE provided with this software.
+ *
+ * Contact: contact@noise-planet.org
+ *
+ */
+package org.noise_planet.noisemodelling.pathfinder;
+
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Envelope;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Read only triangulated digital elevation model stored in primitive arrays.
+ * Triangles are located with a regular grid, each grid cell references the triangles that overlap its extent, so
+ * the ground altitude of a point is found in constant time. Profiles are extracted by walking from a triangle to its
+ * neighbour through the edge crossed by the segment, without object allocation.
+ *
+ * Neighbour k of a triangle is the triangle on the other side of the edge opposite to the vertex k
+ * (same convention as {@link LayerDelaunay#getNeighbors()}), -1 if the
+ * edge is on the border of the mesh.
+ * @author Nicolas Fortin
+ */
+public final class TopographyMesh implements Topography {
+    private static final double EPSILON = JTSUtility.TRIANGLE_INTERSECTION_EPSILON;
+    // Average number of triangles referenced by a grid cell
+    private static final double TRIANGLES_PER_CELL = 2.0;
+    private static final int MAXIMUM_CELL_COUNT = 1 << 22;
+    /** The profile of a point located outside of the mesh begins with the nearest triangle at this distance */
+    public static final double START_SEARCH_DISTANCE = 1.0;
+
+    private final double[] vertexX;
+    private final double[] vertexY;
+    private final double[] vertexZ;
+    /** Vertex indices of triangle i at 3 * i, 3 * i + 1, 3 * i + 2 */
+    private final int[] triangleVertices;
+    /** Neighbour triangles of triangle i at 3 * i, 3 * i + 1, 3 * i + 2 */
+    private final int[] triangleNeighbors;
+    private final int triangleCount;
+    // Grid spatial hash, the triangles of cell c are cellTriangles[cellStart[c]] to cellTriangles[cellStart[c + 1] - 1]
+    private final double gridMinX;
+    private final double gridMinY;
+    private final double cellSize;
+    private final int columns;
+    private final int rows;
+    private final int[] cellStart;
+    private final int[] cellTriangles;
+
+    /**
+     * @param vertices Vertices of the triangulation
+     * @param triangles Triangles
+     * @param neighbors Neighbours of the triangles, same order than triangles
+     */
+    public TopographyMesh(List<Coordinate> vertices, List<Triangle> triangles, List<Triangle> neighbors) {
+        int vertexCount = vertices.size();
+        vertexX = new double[vertexCount];
+        vertexY = new double[vertexCount];
+        vertexZ = new double[vertexCount];
+        Envelope envelope = new Envelope();
+        for (int i = 0; i < vertexCount; i++) {
+            Coordinate vertex = vertices.get(i);
+            vertexX[i] = vertex.x;
+            vertexY[i] = vertex.y;
+            vertexZ[i] = vertex.z;
+            envelope.expandToInclude(vertex.x, vertex.y);
+        }
+        triangleCount = triangles.size();
+        triangleVertices = new int[triangleCount * 3];
+        triangleNeighbors = new int[triangleCount * 3];
+        for (int i = 0; i < triangleCount; i++) {
+            Triangle triangle = triangles.get(i);
+            Triangle neighbor = neighbors.get(i);
+            for (int k = 0; k < 3; k++) {
+                triangleVertices[i * 3 + k] = triangle.get(k);
+                triangleNeighbors[i * 3 + k] = neighbor.get(k);
+            }
+        }
+        // Build the grid
+        if (triangleCount == 0 || envelope.isNull()) {
+            gridMinX = 0;
+            gridMinY = 0;
+            cellSize = 1;
+            columns = 1;
+            rows = 1;
+            cellStart = new int[2];
+            cellTriangles = new int[0];
+            return;
+        }
+        double area = Math.max(envelope.getArea(), 1.0);
+        double size = Math.sqrt(area * TRIANGLES_PER_CELL / triangleCount);
+        size = Math.max(size, Math.sqrt(area / MAXIMUM_CELL_COUNT));
+        size = Math.max(size, Math.max(envelope.getWidth(), envelope.getHeight()) / MAXIMUM_CELL_COUNT);
+        if (!(size > 0)) {
+            size = 1;
+        }
+        cellSize = size;
+        gridMinX = envelope.getMinX();
+        gridMinY = envelope.getMinY();
+        columns = Math.max(1, (int) Math.ceil(envelope.getWidth() / cellSize) + 1);
+        rows = Math.max(1, (int) Math.ceil(envelope.getHeight() / cellSize) + 1);
+        // Count then fill the triangles of each cell
+        cellStart = new int[columns * rows + 1];
+        for (int i = 0; i < triangleCount; i++) {
+            int minColumn = getColumn(minOf(i, vertexX));
+            int maxColumn = getColumn(maxOf(i, vertexX));
+            int minRow = getRow(minOf(i, vertexY));
+            int maxRow = getRow(maxOf(i, vertexY));
+            for (int row = minRow; row <= maxRow; row++) {
+                for (int column = minColumn; column <= maxColumn; column++) {
+                    cellStart[row * columns + column + 1]++;
+                }
+            }
+        }
+        for (int cell = 0; cell < columns * rows; cell++) {
+            cellStart[cell + 1] += cellStart[cell];
+        }
+        cellTriangles = new int[cellStart[columns * rows]];
+        int[] cellFill = Arrays.copyOf(cellStart, columns * rows);
+        for (int i = 0; i < triangleCount; i++) {
+            int minColumn = getColumn(minOf(i, vertexX));
+            int maxColumn = getColumn(maxOf(i, vertexX));
+            int minRow = getRow(minOf(i, vertexY));
+            int maxRow = getRow(maxOf(i, vertexY));
+            for (int row = minRow; row <= maxRow; row++) {
+                for (int column = minColumn; column <= maxColumn; column++) {
+                    cellTriangles[cellFill[row * columns + column]++] = i;
+                }
+            }
+        }
+    }
+
+    private double minOf(int triangle, double[] values) {
+        return Math.min(values[triangleVertices[triangle * 3]], Math.min(values[triangleVertices[triangle * 3 + 1]],
+                values[triangleVertices[triangle * 3 + 2]]));
+    }
+
+    private double maxOf(int triangle, double[] values) {
+        return Math.max(values[triangleVertices[triangle * 3]], Math.max(values[triangleVertices[triangle * 3 + 1]],
+                values[triangleVertices[triangle * 3 + 2]]));
+    }
+
+    private int getColumn(double x) {
+        return Math.max(0, Math.min(columns - 1, (int) Math.floor((x - gridMinX) / cellSize)));
+    }
+
+    private int getRow(double y) {
+        return Math.max(0, Math.min(rows - 1, (int) Math.floor((y - gridMinY) / cellSize)));
+    }
+
+    /**
+     * @return Number of triangles
+     */
+    public int getTriangleCount() {
+        return triangleCount;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return triangleCount == 0;
+    }
+
+    /**
+     * @return Number of cells of the spatial hash grid
+     */
+    public int getCellCount() {
+        return columns * rows;
+    }
+
+    /**
+     * Barycentric coordinates test, see {@link JTSUtility#dotInTri(Coordinate, Coordinate, Coordinate, Coordinate)}
+     * @return Distance to the triangle in barycentric units, 0 if the point is inside
+     */
+    private double triangleError(int triangle, double x, double y) {
+        int a = triangleVertices[triangle * 3];
+        int b = triangleVertices[triangle * 3 + 1];
+        int c = triangleVertices[triangle * 3 + 2];
+        double v0x = vertexX[c] - vertexX[a];
+        double v0y = vertexY[c] - vertexY[a];
+        double v1x = vertexX[b] - vertexX[a];
+        double v1y = vertexY[b] - vertexY[a];
+        double v2x = x - vertexX[a];
+        double v2y = y - vertexY[a];
+        double dot00 = v0x * v0x + v0y * v0y;
+        double dot01 = v0x * v1x + v0y * v1y;
+        double dot02 = v0x * v2x + v0y * v2y;
+        double dot11 = v1x * v1x + v1y * v1y;
+        double dot12 = v1x * v2x + v1y * v2y;
+        double invDenom = 1 / (dot00 * dot11 - dot01 * dot01);
+        double u = (dot11 * dot02 - dot01 * dot12) * invDenom;
+        double v = (dot00 * dot12 - dot01 * dot02) * invDenom;
+        if (Double.isNaN(u) || Double.isNaN(v)) {
+            // degenerated triangle
+            return Double.MAX_VALUE;
+        }
+        return Math.max(0, -u) + Math.max(0, -v) + Math.max(0, u + v - 1);
+    }
+
+    /**
+     * @param x X coordinate
+     * @param y Y coordinate
+     * @return Index of the triangle that contains the point, -1 if the point is outside of the mesh
+     */
+    public int getTriangle(double x, double y) {
+        return findTriangle(x, y, 0, EPSILON);
+    }
+
+    /**
+     * @param x X coordinate
+     * @param y Y coordinate
+     * @param searchDistance Search triangles whose envelope is at this distance from the point
+     * @return Index of the triangle that contains the point or the nearest triangle, -1 if no triangle is found
+     */
+    public int getNearestTriangle(double x, double y, double searchDistance) {
+        return findTriangle(x, y, searchDistance, Double.MAX_VALUE);
+    }
+
+    private int findTriangle(double x, double y, double searchDistance, double maximumError) {
+        if (triangleCount == 0 || x < gridMinX - cellSize - searchDistance || y < gridMinY - cellSize - searchDistance
+                || x > gridMinX + columns * cellSize + searchDistance
+                || y > gridMinY + rows * cellSize + searchDistance) {
+            return -1;
+        }
+        int nearestTriangle = -1;
+        double nearestError = Double.MAX_VALUE;
+        int maxRow = getRow(y + searchDistance);
+        int maxColumn = getColumn(x + searchDistance);
+        for (int row = getRow(y - searchDistance); row <= maxRow; row++) {
+            for (int column = getColumn(x - searchDistance); column <= maxColumn; column++) {
+                int cell = row * columns + column;
+                for (int i = cellStart[cell]; i < cellStart[cell + 1]; i++) {
+                    int triangle = cellTriangles[i];
+                    if (searchDistance > 0 && (minOf(triangle, vertexX) > x + searchDistance
+                            || maxOf(triangle, vertexX) < x - searchDistance
+                            || minOf(triangle, vertexY) > y + searchDistance
+                            || maxOf(triangle, vertexY) < y - searchDistance)) {
+                        continue;
+                    }
+                    double error = triangleError(triangle, x, y);
+                    if (error == 0) {
+                        return triangle;
+                    } else if (error < nearestError) {
+                        nearestError = error;
+                        nearestTriangle = triangle;
+                    }
+                }
+            }
+        }
+        return nearestError < maximumError ? nearestTriangle : -1;
+    }
+
+    /**
+     * Planar interpolation of the altitude, same as
+     * {@link org.locationtech.jts.triangulate.quadedge.Vertex#interpolateZ(Coordinate, Coordinate, Coordinate, Coordinate)}
+     */
+    private double interpolateZ(int triangle, double x, double y) {
+        int v0 = triangleVertices[triangle * 3];
+        int v1 = triangleVertices[triangle * 3 + 1];
+        int v2 = triangleVertices[triangle * 3 + 2];
+        double x0 = vertexX[v0];
+        double y0 = vertexY[v0];
+        double a = vertexX[v1] - x0;
+        double b = vertexX[v2] - x0;
+        double c = vertexY[v1] - y0;
+        double d = vertexY[v2] - y0;
+        double det = a * d - b * c;
+        double dx = x - x0;
+        double dy = y - y0;
+        double t = (d * dx - b * dy) / det;
+        double u = (-c * dx + a * dy) / det;
+        return vertexZ[v0] + t * (vertexZ[v1] - vertexZ[v0]) + u * (vertexZ[v2] - vertexZ[v0]);
+    }
+
+    /**
+     * @param x X coordinate
+     * @param y Y coordinate
+     * @return Altitude of the ground, NaN if the point is outside of the mesh
+     */
+    @Override
+    public double getZ(double x, double y) {
+        int triangle = getTriangle(x, y);
+        if (triangle == -1) {
+            return Double.NaN;
+        }
+        return interpolateZ(triangle, x, y);
+    }
+
+    /**
+     * Intersection of the segment p0 p1 with the triangle edge a b
+     * @return Position of the intersection on the segment p0 p1 (0 at p0, 1 at p1), NaN if there is no intersection
+     */
+    private double edgeIntersection(double x0, double y0, double dx, double dy, double length, int a, int b) {
+        double ax = vertexX[a];
+        double ay = vertexY[a];
+        double ex = vertexX[b] - ax;
+        double ey = vertexY[b] - ay;
+        double denominator = dx * ey - dy * ex;
+        double edgeLength = Math.sqrt(ex * ex + ey * ey);
+        if (Math.abs(denominator) <= EPSILON * length * edgeLength) {
+            // parallel
+            return Double.NaN;
+        }
+        double wx = ax - x0;
+        double wy = ay - y0;
+        double s = (wx * ey - wy * ex) / denominator;
+        double u = (wx * dy - wy * dx) / denominator;
+        double segmentTolerance = length > 0 ? EPSILON / length : EPSILON;
+        double edgeTolerance = edgeLength > 0 ? EPSILON / edgeLength : EPSILON;
+        if (s < -segmentTolerance || s > 1 + segmentTolerance || u < -edgeTolerance || u > 1 + edgeTolerance) {
+            return Double.NaN;
+        }
+        return Math.max(0, Math.min(1, s));
+    }
+
+    /**
+     * Visit the intersections of the segment with the edges of the triangles, from p0 to p1.
+     * If p0 is outside of the mesh but less than {@link #START_SEARCH_DISTANCE} from a triangle, the walk begins in
+     * the nearest triangle. Otherwise the walk begins at the first intersection with the mesh.
+     * @param x0 X of the first point of the segment
+     * @param y0 Y of the first point of the segment
+     * @param x1 X of the last point of the segment
+     * @param y1 Y of the last point of the segment
+     * @param visitor Receive the crossing points
+     * @return Number of visited points
+     */
+    @Override
+    public int walk(double x0, double y0, double x1, double y1, ProfileVisitor visitor) {
+        if (triangleCount == 0) {
+            return 0;
+        }
+        double dx = x1 - x0;
+        double dy = y1 - y0;
+        double length = Math.sqrt(dx * dx + dy * dy);
+        int count = 0;
+        int triangle = getNearestTriangle(x0, y0, START_SEARCH_DISTANCE);
+        int entryEdge = -1;
+        double lastPosition = 0;
+        if (triangle == -1) {
+            // Search the first border edge crossed by the segment
+            double firstPosition = Double.MAX_VALUE;
+            int firstTriangle = -1;
+            int firstEdge = -1;
+            int minColumn = getColumn(Math.min(x0, x1));
+            int maxColumn = getColumn(Math.max(x0, x1));
+            int minRow = getRow(Math.min(y0, y1));
+            int maxRow = getRow(Math.max(y0, y1));
+            double halfDiagonal = cellSize * Math.sqrt(0.5);
+            for (int row = minRow; row <= maxRow; row++) {
+                for (int column = minColumn; column <= maxColumn; column++) {
+                    // skip cells far from the segment
+                    double cx = gridMinX + (column + 0.5) * cellSize - x0;
+                    double cy = gridMinY + (row + 0.5) * cellSize - y0;
+                    if (length > 0 && Math.abs(cx * dy - cy * dx) / length > halfDiagonal) {
+                        continue;
+                    }
+                    int cell = row * columns + column;
+                    for (int i = cellStart[cell]; i < cellStart[cell + 1]; i++) {
+                        int candidate = cellTriangles[i];
+                        for (int k = 0; k < 3; k++) {
+                            if (triangleNeighbors[candidate * 3 + k] != -1) {
+                                continue;
+                            }
+                            double position = edgeIntersection(x0, y0, dx, dy, length,
+                                    triangleVertices[candidate * 3 + (k + 1) % 3],
+                                    triangleVertices[candidate * 3 + (k + 2) % 3]);
+                            if (position < firstPosition) {
+                                firstPosition = position;
+                                firstTriangle = candidate;
+                                firstEdge = k;
+                            }
+                        }
+                    }
+                }
+            }
+            if (firstTriangle == -1) {
+                return 0;
+            }
+            triangle = firstTriangle;
+            entryEdge = firstEdge;
+            lastPosition = firstPosition;
+            count += visitEdge(triangle, entryEdge, x0 + dx * firstPosition, y0 + dy * firstPosition, visitor);
+        }
+        // Walk through the neighbours, the number of steps is bounded in case of degenerated geometry
+        for (int step = 0; step < triangleCount && triangle != -1; step++) {
+            double exitPosition = Double.NaN;
+            int exitEdge = -1;
+            for (int k = 0; k < 3; k++) {
+                if (k == entryEdge) {
+                    continue;
+                }
+                double position = edgeIntersection(x0, y0, dx, dy, length,
+                        triangleVertices[triangle * 3 + (k + 1) % 3], triangleVertices[triangle * 3 + (k + 2) % 3]);
+                // keep the intersection nearest to p1
+                if (position >= lastPosition && (exitEdge == -1 || position > exitPosition)) {
+                    exitPosition = position;
+                    exitEdge = k;
+                }
+            }
+            if (exitEdge == -1) {
+                break;
+            }
+            // a segment that passes through a vertex crosses several edges at the same position
+            if (count == 0 || exitPosition > lastPosition) {
+                count += visitEdge(triangle, exitEdge, x0 + dx * exitPosition, y0 + dy * exitPosition, visitor);
+            }
+            int next = triangleNeighbors[triangle * 3 + exitEdge];
+            if (next == -1 || exitPosition >= 1) {
+                break;
+            }
+            entryEdge = -1;
+            for (int k = 0; k < 3; k++) {
+                if (triangleNeighbors[next * 3 + k] == triangle) {
+                    entryEdge = k;
+                    break;
+                }
+            }
+            lastPosition = exitPosition;
+            triangle = next;
+        }
+        return count;
+    }
+
+    /**
+     * Interpolate the altitude of a point located on the edge opposite to the vertex k, see
+     * {@link org.locationtech.jts.triangulate.quadedge.Vertex#interpolateZ(Coordinate, Coordinate, Coordinate)}
+     */
+    private int visitEdge(int triangle, int k, double x, double y, ProfileVisitor visitor) {
+        int a = triangleVertices[triangle * 3 + (k + 1) % 3];
+        int b = triangleVertices[triangle * 3 + (k + 2) % 3];
+        double segmentLength = Math.sqrt((vertexX[b] - vertexX[a]) * (vertexX[b] - vertexX[a]) +
+                (vertexY[b] - vertexY[a]) * (vertexY[b] - vertexY[a]));
+        double pointLength = Math.sqrt((x - vertexX[a]) * (x - vertexX[a]) + (y - vertexY[a]) * (y - vertexY[a]));
+        double z = segmentLength > 0 ? vertexZ[a] + (vertexZ[b] - vertexZ[a]) * (pointLength / segmentLength)
+                : vertexZ[a];
+        if (Double.isNaN(z)) {
+            return 0;
+        }
+        visitor.visit(x, y, z);
+        return 1;
+    }
+}
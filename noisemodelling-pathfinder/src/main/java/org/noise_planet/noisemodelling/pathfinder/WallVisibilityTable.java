@@ -0,0 +1,165 @@
+/**
+ * NoiseModelling is an open-source tool designed to produce environmental noise maps on very large urban areas. It can be used as a Java library or be controlled through a user friendly web interface.
+ *
+ * This version is developed by the DECIDE team from the Lab-STICC (CNRS) and by the Mixt Research Unit in Environmental Acoustics (Université Gustave Eiffel).
+ * <http://noise-planet.org/noisemodelling.html>
+ *
+ * NoiseModelling is distributed under GPL 3 license. You can read a copy of this License in the file LICENCE provided with this software.
+ *
+ * Contact: contact@noise-planet.org
+ *
+ */
+package org.noise_planet.noisemodelling.pathfinder;
+
+import org.locationtech.jts.geom.Polygon;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.noise_planet.noisemodelling.pathfinder.ProfileBuilder.IntersectionType.BUILDING;
+import static org.noise_planet.noisemodelling.pathfinder.ProfileBuilder.IntersectionType.WALL;
+
+/**
+ * Walls that can be seen from each reflecting wall of a {@link ProfileBuilder}, stored in compressed rows. It does not
+ * depend on the receiver, so it is computed once and shared by the image receivers of all receivers
+ * ({@link MirrorReceiverResultIndex}).
+ *
+ * A reflection path can go from a wall A to a wall B when they are closer than the maximum propagation distance, B is
+ * not entirely behind the reflecting side of A and A is not entirely behind the reflecting side of B. The reflecting
+ * side of a building wall is the outside of the building, the sources and receivers being outside of the buildings.
+ * The free walls, and the walls of the buildings with holes or with a non simple exterior ring, reflect on both sides.
+ * @author Nicolas Fortin
+ */
+final class WallVisibilityTable {
+    /** Sinus of the angular tolerance used when rejecting a wall behind another wall */
+    private static final double SIDE_EPSILON = 1e-6;
+    private final double maximumDistance;
+    /** First index in {@link #visibleWalls} of each wall row, plus the end of the last row */
+    private final int[] rowStart;
+    private final int[] visibleWalls;
+
+    /**
+     * @param profileBuilder Profile builder, feeding must be finished
+     * @param maximumDistance Maximum distance between two walls of the same reflection path
+     */
+    WallVisibilityTable(ProfileBuilder profileBuilder, double maximumDistance) {
+        this.maximumDistance = maximumDistance;
+        List<ProfileBuilder.Wall> walls = profileBuilder.getProcessedWalls();
+        List<ProfileBuilder.Building> buildings = profileBuilder.getBuildings();
+        int[] buildingSide = new int[buildings.size()];
+        for (int i = 0; i < buildings.size(); i++) {
+            buildingSide[i] = computeReflectingSide(buildings.get(i).getGeometry());
+        }
+        int[] reflectingSide = new int[walls.size()];
+        for (int i = 0; i < walls.size(); i++) {
+            ProfileBuilder.Wall wall = walls.get(i);
+            if (wall.getType().equals(BUILDING)) {
+                reflectingSide[i] = buildingSide[wall.getOriginId()];
+            }
+        }
+        rowStart = new int[walls.size() + 1];
+        int[] visible = new int[Math.max(16, walls.size())];
+        int visibleCount = 0;
+        // Visible walls of the current wall
+        final int[][] row = new int[][]{new int[16]};
+        final int[] rowSize = new int[1];
+        for (int i = 0; i < walls.size(); i++) {
+            rowStart[i] = visibleCount;
+            final ProfileBuilder.Wall wall = walls.get(i);
+            if (!isReflecting(wall)) {
+                continue;
+            }
+            final int wallIndex = i;
+            rowSize[0] = 0;
+            profileBuilder.getWallsIndex().query(
+                    Math.min(wall.p0.x, wall.p1.x) - maximumDistance, Math.min(wall.p0.y, wall.p1.y) - maximumDistance,
+                    Math.max(wall.p0.x, wall.p1.x) + maximumDistance, Math.max(wall.p0.y, wall.p1.y) + maximumDistance,
+                    item -> {
+                        ProfileBuilder.Wall other = walls.get(item);
+                        if (item != wallIndex && isReflecting(other) &&
+                                wall.getLineSegment().distance(other.getLineSegment()) <= maximumDistance &&
+                                !isBehind(wall, reflectingSide[wallIndex], other) &&
+                                !isBehind(other, reflectingSide[item], wall)) {
+                            if (rowSize[0] == row[0].length) {
+                                row[0] = Arrays.copyOf(row[0], rowSize[0] * 2);
+                            }
+                            row[0][rowSize[0]++] = item;
+                        }
+                        return true;
+                    });
+            // Sort the row by wall index, the R-Tree order is not kept
+            Arrays.sort(row[0], 0, rowSize[0]);
+            if (visibleCount + rowSize[0] > visible.length) {
+                visible = Arrays.copyOf(visible, Math.max(visible.length * 2, visibleCount + rowSize[0]));
+            }
+            System.arraycopy(row[0], 0, visible, visibleCount, rowSize[0]);
+            visibleCount += rowSize[0];
+        }
+        rowStart[walls.size()] = visibleCount;
+        visibleWalls = Arrays.copyOf(visible, visibleCount);
+    }
+
+    private static boolean isReflecting(ProfileBuilder.Wall wall) {
+        return wall.getType().equals(BUILDING) || wall.getType().equals(WALL);
+    }
+
+    /**
+     * @return -1 if the outside of the building is on the right of its walls, 1 if it is on the left, 0 if unknown
+     */
+    private static int computeReflectingSide(Polygon building) {
+        if (building == null || building.isEmpty() || building.getNumInteriorRing() > 0 ||
+                !building.getExteriorRing().isSimple()) {
+            return 0;
+        }
+        return org.locationtech.jts.algorithm.Orientation.isCCW(building.getExteriorRing().getCoordinates()) ? -1 : 1;
+    }
+
+    /**
+     * @param side Reflecting side of the wall, see {@link #computeReflectingSide(Polygon)}
+     * @return True if the other wall is entirely behind the reflecting side of the wall
+     */
+    static boolean isBehind(ProfileBuilder.Wall wall, int side, ProfileBuilder.Wall other) {
+        return side != 0 && isBehind(wall, side, other.p0.x, other.p0.y) && isBehind(wall, side, other.p1.x,
+                other.p1.y);
+    }
+
+    private static boolean isBehind(ProfileBuilder.Wall wall, int side, double qx, double qy) {
+        double ex = wall.p1.x - wall.p0.x;
+        double ey = wall.p1.y - wall.p0.y;
+        qx -= wall.p0.x;
+        qy -= wall.p0.y;
+        double cross = side * (ex * qy - ey * qx);
+        return cross < 0 && cross * cross > SIDE_EPSILON * SIDE_EPSILON * (ex * ex + ey * ey) * (qx * qx + qy * qy);
+    }
+
+    /**
+     * @return Maximum distance between two walls of the same reflection path
+     */
+    double getMaximumDistance() {
+        return maximumDistance;
+    }
+
+    /**
+     * @param wallIndex Index of the wall in {@link ProfileBuilder#getProcessedWalls()}
+     * @return Index of the first visible wall in {@link #getVisibleWall(int)}
+     */
+    int getRowStart(int wallIndex) {
+        return rowStart[wallIndex];
+    }
+
+    /**
+     * @param wallIndex Index of the wall in {@link ProfileBuilder#getProcessedWalls()}
+     * @return Index after the last visible wall in {@link #getVisibleWall(int)}
+     */
+    int getRowEnd(int wallIndex) {
+        return rowStart[wallIndex + 1];
+    }
+
+    /**
+     * @param index Index in the rows
+     * @return Index of the visible wall in {@link ProfileBuilder#getProcessedWalls()}
+     */
+    int getVisibleWall(int index) {
+        return visibleWalls[index];
+    }
+}
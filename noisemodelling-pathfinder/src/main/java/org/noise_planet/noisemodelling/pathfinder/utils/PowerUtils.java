@@ -1,6 +1,13 @@
 package org.noise_planet.noisemodelling.pathfinder.utils;
 
 public class PowerUtils {
+    private static final double LOG2_10_DIV_10 = Math.log(10) / Math.log(2) / 10;
+    private static final double LN2 = Math.log(2);
+    private static final double TEN_DIV_LN10 = 10 / Math.log(10);
+    private static final double SQRT2 = Math.sqrt(2);
+    private static final long EXPONENT_MASK = 0x7FF0000000000000L;
+    private static final long MANTISSA_MASK = 0x000FFFFFFFFFFFFFL;
+    private static final long EXPONENT_ONE = 0x3FF0000000000000L;
 
     public static double dbaToW(double dBA) {
         return Math.pow(10., dBA / 10.);
@@ -14,6 +21,53 @@ public class PowerUtils {
         return ret;
     }
 
+    /**
+     * Convert dB to energy, in the output buffer
+     * @param dBA Input levels
+     * @param out Output buffer, may be the input array
+     * @return out
+     */
+    public static double[] dbaToW(double[] dBA, double[] out) {
+        for (int i = 0; i < dBA.length; i++) {
+            out[i] = dbaToW(dBA[i]);
+        }
+        return out;
+    }
+
+    /**
+     * Faster version of {@link #dbaToW(double)}. The power of 2 is split into the exponent bits and a polynomial
+     * of the fractional part, the relative error is lower than 1e-8 (less than 1e-7 dB).
+     * Out of range values fall back to {@link #dbaToW(double)}.
+     * @param dBA Level in dB
+     * @return Energy
+     */
+    public static double fastDbaToW(double dBA) {
+        double t = dBA * LOG2_10_DIV_10;
+        if (!(t > -1000 && t < 1000)) {
+            // NaN, infinite or subnormal result
+            return dbaToW(dBA);
+        }
+        double n = Math.floor(t + 0.5);
+        // f in [-0.5, 0.5], 2^f = exp(f * ln2)
+        double f = (t - n) * LN2;
+        double p = 1 + f * (1 + f * (1 / 2. + f * (1 / 6. + f * (1 / 24. + f * (1 / 120. + f * (1 / 720. +
+                f * (1 / 5040.)))))));
+        return p * Double.longBitsToDouble(((long) n + 1023) << 52);
+    }
+
+    /**
+     * Faster version of {@link #dbaToW(double[], double[])}
+     * @param dBA Input levels
+     * @param out Output buffer, may be the input array
+     * @return out
+     */
+    public static double[] fastDbaToW(double[] dBA, double[] out) {
+        for (int i = 0; i < dBA.length; i++) {
+            out[i] = fastDbaToW(dBA[i]);
+        }
+        return out;
+    }
+
     public static double wToDba(double w) {
         return 10 * Math.log10(w);
     }
@@ -27,6 +81,59 @@ public class PowerUtils {
     }
 
 
+    /**
+     * Convert energy to dB, in the output buffer
+     * @param w Input energy
+     * @param out Output buffer, may be the input array
+     * @return out
+     */
+    public static double[] wToDba(double[] w, double[] out) {
+        for (int i = 0; i < w.length; i++) {
+            out[i] = wToDba(w[i]);
+        }
+        return out;
+    }
+
+    /**
+     * Faster version of {@link #wToDba(double)}. The logarithm is the exponent bits plus a series of the mantissa,
+     * the absolute error is lower than 1e-7 dB. Zero, negative, subnormal and non finite values fall back to
+     * {@link #wToDba(double)}.
+     * @param w Energy
+     * @return Level in dB
+     */
+    public static double fastWToDba(double w) {
+        long bits = Double.doubleToRawLongBits(w);
+        long exponentBits = bits & EXPONENT_MASK;
+        if (w <= 0 || exponentBits == 0 || exponentBits == EXPONENT_MASK) {
+            return wToDba(w);
+        }
+        int exponent = (int) (exponentBits >>> 52) - 1023;
+        // mantissa in [1, 2)
+        double m = Double.longBitsToDouble((bits & MANTISSA_MASK) | EXPONENT_ONE);
+        if (m > SQRT2) {
+            m /= 2;
+            exponent++;
+        }
+        // ln(m) = 2 atanh(s) with |s| < 0.172
+        double s = (m - 1) / (m + 1);
+        double s2 = s * s;
+        double lnM = 2 * s * (1 + s2 * (1 / 3. + s2 * (1 / 5. + s2 * (1 / 7. + s2 * (1 / 9.)))));
+        return TEN_DIV_LN10 * (exponent * LN2 + lnM);
+    }
+
+    /**
+     * Faster version of {@link #wToDba(double[], double[])}
+     * @param w Input energy
+     * @param out Output buffer, may be the input array
+     * @return out
+     */
+    public static double[] fastWToDba(double[] w, double[] out) {
+        for (int i = 0; i < w.length; i++) {
+            out[i] = fastWToDba(w[i]);
+        }
+        return out;
+    }
+
     /**
      * Eq 2.5.9
      * The ‘long-term’ sound level along a path starting from a given point source is
@@ -48,6 +155,24 @@ public class PowerUtils {
         return sum;
     }
 
+    /**
+     * Eq 2.5.9 in the output buffer
+     * @param array1 Levels in favourable conditions
+     * @param array2 Levels in homogeneous conditions
+     * @param p the mean occurrence p of favourable conditions in the direction of the path (S,R)
+     * @param out Output buffer, may be one of the input arrays
+     * @return out
+     */
+    public static double[] sumArrayWithPonderation(double[] array1, double[] array2, double p, double[] out) {
+        if (array1.length != array2.length || out.length < array1.length) {
+            throw new IllegalArgumentException("Not same size array");
+        }
+        for (int i = 0; i < array1.length; i++) {
+            out[i] = wToDba(p * dbaToW(array1[i]) + (1 - p) * dbaToW(array2[i]));
+        }
+        return out;
+    }
+
     /**
      * energetic Sum of dBA array
      *
@@ -66,6 +191,24 @@ public class PowerUtils {
         return sum;
     }
 
+    /**
+     * energetic Sum of dBA array in the output buffer
+     *
+     * @param array1 First array
+     * @param array2 Second array
+     * @param out Output buffer, may be one of the input arrays
+     * @return out
+     */
+    public static double[] sumDbArray(double[] array1, double[] array2, double[] out) {
+        if (array1.length != array2.length || out.length < array1.length) {
+            throw new IllegalArgumentException("Not same size array");
+        }
+        for (int i = 0; i < array1.length; i++) {
+            out[i] = wToDba(dbaToW(array1[i]) + dbaToW(array2[i]));
+        }
+        return out;
+    }
+
     public static double sumDbArray(double[] array1) {
 
         double sum = dbaToW(array1[0]);
@@ -94,6 +237,24 @@ public class PowerUtils {
         return sum;
     }
 
+    /**
+     * Multiply component of two same size array in the output buffer
+     *
+     * @param array1 First array
+     * @param array2 Second array
+     * @param out Output buffer, may be one of the input arrays
+     * @return out
+     */
+    public static double[] multArray(double[] array1, double[] array2, double[] out) {
+        if (array1.length != array2.length || out.length < array1.length) {
+            throw new IllegalArgumentException("Not same size array");
+        }
+        for (int i = 0; i < array1.length; i++) {
+            out[i] = array1[i] * array2[i];
+        }
+        return out;
+    }
+
     public static double sumArray(int nbfreq, double energeticSum[]) {
         double globlvl = 0;
         for (int idfreq = 0; idfreq < nbfreq; idfreq++) {
@@ -127,4 +288,42 @@ public class PowerUtils {
         }
         return ret;
     }
+
+    /**
+     * Element wise sum array in the output buffer.
+     *
+     * @param array1 First array
+     * @param array2 Second array
+     * @param out Output buffer, may be one of the input arrays
+     * @return out
+     */
+    public static double[] sumArray(double array1[], double array2[], double[] out) {
+        if (array1.length != array2.length || out.length < array1.length) {
+            throw new IllegalArgumentException("Arrays with different size");
+        }
+        for (int idfreq = 0; idfreq < array1.length; idfreq++) {
+            out[idfreq] = array1[idfreq] + array2[idfreq];
+        }
+        return out;
+    }
+
+    /**
+     * Add the energy of the attenuated source to the receiver energy, in place.
+     * Same as sumArray(levels, dbaToW(sumArray(wToDba(sourceEnergy), attenuation))) without intermediate arrays
+     * and without the logarithm: 10^((10 log10(w) + a) / 10) = w 10^(a / 10)
+     *
+     * @param levels Receiver energy, updated
+     * @param sourceEnergy Source emission energy
+     * @param attenuation Attenuation in dB
+     * @return levels
+     */
+    public static double[] addAttenuatedEnergy(double[] levels, double[] sourceEnergy, double[] attenuation) {
+        if (sourceEnergy.length != attenuation.length || levels.length < sourceEnergy.length) {
+            throw new IllegalArgumentException("Arrays with different size");
+        }
+        for (int idfreq = 0; idfreq < sourceEnergy.length; idfreq++) {
+            levels[idfreq] += sourceEnergy[idfreq] * fastDbaToW(attenuation[idfreq]);
+        }
+        return levels;
+    }
 }
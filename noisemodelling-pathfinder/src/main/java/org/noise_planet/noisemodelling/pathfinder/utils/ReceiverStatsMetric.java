@@ -35,6 +35,7 @@ package org.noise_planet.noisemodelling.pathfinder.utils;
 
 import org.apache.commons.math3.stat.descriptive.DescriptiveStatistics;
 
+import java.util.Locale;
 import java.util.concurrent.ConcurrentLinkedDeque;
 
 /**
@@ -43,8 +44,14 @@ import java.util.concurrent.ConcurrentLinkedDeque;
 public class ReceiverStatsMetric implements ProfilerThread.Metric {
     private ConcurrentLinkedDeque<ReceiverComputationTime> receiverComputationTimes = new ConcurrentLinkedDeque<>();
     private ConcurrentLinkedDeque<ReceiverRays> receiverRaysDeque = new ConcurrentLinkedDeque<>();
+    private ConcurrentLinkedDeque<ChunkComputationTime> chunkComputationTimes = new ConcurrentLinkedDeque<>();
+    private ConcurrentLinkedDeque<ReceiverSkippedSources> receiverSkippedSourcesDeque = new ConcurrentLinkedDeque<>();
     private DescriptiveStatistics computationTime = new DescriptiveStatistics();
     private DescriptiveStatistics computationRays = new DescriptiveStatistics();
+    private DescriptiveStatistics chunkTime = new DescriptiveStatistics();
+    private DescriptiveStatistics chunkSize = new DescriptiveStatistics();
+    private DescriptiveStatistics skippedSources = new DescriptiveStatistics();
+    private DescriptiveStatistics errorBound = new DescriptiveStatistics();
 
     public ReceiverStatsMetric() {
     }
@@ -59,21 +66,53 @@ public class ReceiverStatsMetric implements ProfilerThread.Metric {
             ReceiverRays receiverProfile = receiverRaysDeque.pop();
             computationRays.addValue(receiverProfile.numberOfRays);
         }
+        while (!chunkComputationTimes.isEmpty()) {
+            ChunkComputationTime chunkProfile = chunkComputationTimes.pop();
+            chunkTime.addValue(chunkProfile.computationTime);
+            chunkSize.addValue(chunkProfile.receiverCount);
+        }
+        while (!receiverSkippedSourcesDeque.isEmpty()) {
+            ReceiverSkippedSources receiverProfile = receiverSkippedSourcesDeque.pop();
+            skippedSources.addValue(receiverProfile.skippedSources);
+            // No bound if all sources have been skipped using the noise floor
+            if(Double.isFinite(receiverProfile.errorBound)) {
+                errorBound.addValue(receiverProfile.errorBound);
+            }
+        }
     }
 
     @Override
     public String[] getColumnNames() {
-        return new String[] {"receiver_min","receiver_median","receiver_mean","receiver_max", "receiver_median_rays", "receiver_max_rays"};
+        return new String[] {"receiver_min","receiver_median","receiver_mean","receiver_max", "receiver_median_rays", "receiver_max_rays",
+                "chunk_count", "chunk_median", "chunk_max", "chunk_median_receivers", "receiver_median_skipped_sources",
+                "receiver_max_skipped_sources", "receiver_max_error_db"};
     }
 
     public void onEndComputation(int receiverId, int computationTime) {
         receiverComputationTimes.add(new ReceiverComputationTime(receiverId, computationTime));
     }
 
+    /**
+     * @param receiverCount Number of receivers computed in this chunk
+     * @param computationTime Wall time in milliseconds to compute all the receivers of this chunk
+     */
+    public void onEndChunk(int receiverCount, int computationTime) {
+        chunkComputationTimes.add(new ChunkComputationTime(receiverCount, computationTime));
+    }
+
     public void onReceiverRays(int receiverId, int receiverRays) {
         receiverRaysDeque.add(new ReceiverRays(receiverId, receiverRays));
     }
 
+    /**
+     * @param receiverId Receiver identifier
+     * @param skippedSources Number of source-receiver pairs not computed because of the maximum error or the noise floor
+     * @param errorBound Maximal error in dB due to the skipped sources
+     */
+    public void onReceiverSkippedSources(int receiverId, int skippedSources, double errorBound) {
+        receiverSkippedSourcesDeque.add(new ReceiverSkippedSources(receiverId, skippedSources, errorBound));
+    }
+
     @Override
     public String[] getCurrentValues() {
         String[] res = new String[] {
@@ -82,10 +121,22 @@ public class ReceiverStatsMetric implements ProfilerThread.Metric {
                 Integer.toString((int) computationTime.getMean()),
                 Integer.toString((int) computationTime.getMax()),
                 Integer.toString((int) computationRays.getPercentile(50)),
-                Integer.toString((int) computationRays.getMax())
+                Integer.toString((int) computationRays.getMax()),
+                Long.toString(chunkTime.getN()),
+                Integer.toString((int) chunkTime.getPercentile(50)),
+                Integer.toString((int) chunkTime.getMax()),
+                Integer.toString((int) chunkSize.getPercentile(50)),
+                Integer.toString((int) skippedSources.getPercentile(50)),
+                Integer.toString((int) skippedSources.getMax()),
+                // 0 if no receiver had a finite error bound
+                String.format(Locale.ROOT, "%.2f", errorBound.getN() > 0 ? errorBound.getMax() : 0)
         };
         computationTime.clear();
         computationRays.clear();
+        chunkTime.clear();
+        chunkSize.clear();
+        skippedSources.clear();
+        errorBound.clear();
         return res;
     }
 
@@ -99,6 +150,16 @@ public class ReceiverStatsMetric implements ProfilerThread.Metric {
         }
     }
 
+    private static class ChunkComputationTime {
+        public int receiverCount;
+        public int computationTime;
+
+        public ChunkComputationTime(int receiverCount, int computationTime) {
+            this.receiverCount = receiverCount;
+            this.computationTime = computationTime;
+        }
+    }
+
     private static class ReceiverRays {
         public int receiverId;
         public int numberOfRays;
@@ -108,4 +169,16 @@ public class ReceiverStatsMetric implements ProfilerThread.Metric {
             this.numberOfRays = numberOfRays;
         }
     }
-}
\ No newline at end of file
+
+    private static class ReceiverSkippedSources {
+        public int receiverId;
+        public int skippedSources;
+        public double errorBound;
+
+        public ReceiverSkippedSources(int receiverId, int skippedSources, double errorBound) {
+            this.receiverId = receiverId;
+            this.skippedSources = skippedSources;
+            this.errorBound = errorBound;
+        }
+    }
+}
@@ -0,0 +1,229 @@
+/**
+ * NoiseModelling is an open-source tool designed to produce environmental noise maps on very large urban areas. It can be used as a Java library or be controlled through a user friendly web interface.
+ *
+ * This version is developed by the DECIDE team from the Lab-STICC (CNRS) and by the Mixt Research Unit in Environmental Acoustics (Université Gustave Eiffel).
+ * <http://noise-planet.org/noisemodelling.html>
+ *
+ * NoiseModelling is distributed under GPL 3 license. You can read a copy of this License in the file LICENCE provided with this software.
+ *
+ * Contact: contact@noise-planet.org
+ *
+ */
+package org.noise_planet.noisemodelling.pathfinder;
+
+import org.junit.Test;
+import org.locationtech.jts.algorithm.ConvexHull;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.Polygon;
+import org.locationtech.jts.io.ParseException;
+import org.locationtech.jts.io.WKTReader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class IncrementalConvexHullTest {
+    private static final GeometryFactory FACTORY = new GeometryFactory();
+    private Logger logger = LoggerFactory.getLogger(IncrementalConvexHullTest.class);
+
+    private static Coordinate[] randomPoints(Random random, int count, boolean onGrid) {
+        Coordinate[] points = new Coordinate[count];
+        for(int i = 0; i < count; i++) {
+            if(onGrid) {
+                // many duplicated and aligned points
+                points[i] = new Coordinate(random.nextInt(6), random.nextInt(6), i);
+            } else {
+                points[i] = new Coordinate(random.nextDouble() * 100, random.nextDouble() * 100, i);
+            }
+        }
+        return points;
+    }
+
+    /**
+     * The hull must be the same than the JTS one, with the same vertex order and perimeter
+     */
+    @Test
+    public void testSameHullAsJTS() {
+        Random random = new Random(7);
+        IncrementalConvexHull hull = new IncrementalConvexHull();
+        for(int test = 0; test < 2000; test++) {
+            Coordinate[] points = randomPoints(random, 2 + random.nextInt(80), test % 2 == 0);
+            hull.clear();
+            for(Coordinate point : points) {
+                hull.add(point);
+            }
+            int hullSize = hull.compute();
+            Geometry expected = new ConvexHull(points, FACTORY).getConvexHull();
+            assertEquals(expected.getLength(), hull.getLength(), 0);
+            if(expected instanceof Polygon) {
+                Coordinate[] ring = expected.getCoordinates();
+                assertEquals(ring.length - 1, hullSize);
+                for(int i = 0; i < hullSize; i++) {
+                    int vertex = hull.getHullVertex(i);
+                    assertEquals(ring[i].x, hull.getX(vertex), 0);
+                    assertEquals(ring[i].y, hull.getY(vertex), 0);
+                    assertEquals(ring[i].z, hull.getZ(vertex), 0);
+                }
+            } else {
+                assertTrue(hullSize < 3);
+            }
+        }
+    }
+
+    @Test
+    public void testRetainHull() {
+        IncrementalConvexHull hull = new IncrementalConvexHull();
+        hull.add(0, 0, 1);
+        hull.add(10, 0, 2);
+        hull.add(5, 5, 3);
+        hull.add(10, 10, 4);
+        hull.add(0, 10, 5);
+        hull.add(0, 0, 6);
+        assertEquals(4, hull.compute());
+        int first = hull.indexOfHullVertex(10, 10);
+        hull.retainHull(first);
+        assertEquals(4, hull.size());
+        // clockwise from the first vertex
+        assertEquals(new Coordinate(10, 10, 4), hull.getCoordinate(0));
+        assertEquals(new Coordinate(10, 0, 2), hull.getCoordinate(1));
+        assertEquals(new Coordinate(0, 0, 1), hull.getCoordinate(2));
+        assertEquals(1, hull.getZ(2), 0);
+        assertEquals(new Coordinate(0, 10, 5), hull.getCoordinate(3));
+        hull.add(20, 5, 7);
+        assertEquals(5, hull.compute());
+    }
+
+    /**
+     * Compare the computation time with the JTS convex hull, on a set of points growing like in the lateral
+     * diffraction computation
+     */
+    @Test
+    public void benchmarkConvexHull() {
+        Random random = new Random(42);
+        Coordinate[][] pointSets = new Coordinate[500][];
+        for(int i = 0; i < pointSets.length; i++) {
+            pointSets[i] = randomPoints(random, 10 + random.nextInt(60), false);
+        }
+        IncrementalConvexHull hull = new IncrementalConvexHull();
+        int loops = 20;
+        int startLoop = 10;
+        long jtsTime = 0;
+        long primitiveTime = 0;
+        double checkSum = 0;
+        for(int loop = 0; loop < loops; loop++) {
+            long start = System.nanoTime();
+            for(Coordinate[] points : pointSets) {
+                checkSum += new ConvexHull(points, FACTORY).getConvexHull().getLength();
+            }
+            long jtsEnd = System.nanoTime();
+            for(Coordinate[] points : pointSets) {
+                hull.clear();
+                for(Coordinate point : points) {
+                    hull.add(point);
+                }
+                hull.compute();
+                checkSum -= hull.getLength();
+            }
+            if(loop >= startLoop) {
+                jtsTime += jtsEnd - start;
+                primitiveTime += System.nanoTime() - jtsEnd;
+            }
+        }
+        assertEquals(0, checkSum, 1e-6);
+        logger.info(String.format(Locale.ROOT, "Convex hull in average of %.1f us with JTS, %.1f us with primitive arrays",
+                jtsTime / 1e3 / ((loops - startLoop) * pointSets.length),
+                primitiveTime / 1e3 / ((loops - startLoop) * pointSets.length)));
+    }
+
+    /**
+     * Scene of TestComputeCnossosRays#TestcomputeVerticalEdgeDiffraction and a dense generated city, with the
+     * lateral paths to compute
+     */
+    private static ProfileBuilder createSideHullScene(boolean denseCity) throws ParseException {
+        ProfileBuilder profileBuilder = new ProfileBuilder();
+        if(denseCity) {
+            Random random = new Random(42);
+            for(int row = 0; row < 20; row++) {
+                for(int column = 0; column < 20; column++) {
+                    double x = column * 25 + random.nextDouble() * 5;
+                    double y = row * 25 + random.nextDouble() * 5;
+                    double width = 8 + random.nextDouble() * 10;
+                    double depth = 8 + random.nextDouble() * 10;
+                    profileBuilder.addBuilding(FACTORY.toGeometry(new Envelope(x, x + width, y, y + depth)),
+                            6 + random.nextDouble() * 15, -1);
+                }
+            }
+        } else {
+            WKTReader wktReader = new WKTReader(FACTORY);
+            profileBuilder.addBuilding(wktReader.read("POLYGON((5 6, 6 5, 7 5, 7 8, 6 8, 5 7, 5 6))"), 4, -1);
+            profileBuilder.addBuilding(wktReader.read("POLYGON((9 7, 11 7, 11 11, 9 11, 9 7))"), 4, -1);
+            profileBuilder.addBuilding(wktReader.read("POLYGON((12 8, 13 8, 13 10, 12 10, 12 8))"), 4, -1);
+            profileBuilder.addBuilding(wktReader.read("POLYGON((10 4, 11 4, 11 6, 10 6, 10 4))"), 4, -1);
+        }
+        profileBuilder.finishFeeding();
+        return profileBuilder;
+    }
+
+    /**
+     * Compare the computation time of the lateral diffraction paths with the implementation using a JTS convex hull
+     * and new visitors on each iteration, the paths must be the same
+     */
+    @Test
+    public void benchmarkSideHull() throws ParseException {
+        for(boolean denseCity : new boolean[] {false, true}) {
+            ProfileBuilder profileBuilder = createSideHullScene(denseCity);
+            ComputeCnossosRays computeRays = new ComputeCnossosRays(new CnossosPropagationData(profileBuilder));
+            Random random = new Random(7);
+            double size = denseCity ? 500 : 16;
+            Coordinate[][] paths = new Coordinate[denseCity ? 200 : 500][];
+            for(int i = 0; i < paths.length; i++) {
+                paths[i] = new Coordinate[] {new Coordinate(random.nextDouble() * size, random.nextDouble() * size, 1.6),
+                        new Coordinate(random.nextDouble() * size, random.nextDouble() * size, 4)};
+            }
+            int loops = 20;
+            int startLoop = 10;
+            long referenceTime = 0;
+            long time = 0;
+            int lateralPathCount = 0;
+            for(int loop = 0; loop < loops; loop++) {
+                for(Coordinate[] path : paths) {
+                    for(boolean left : new boolean[] {true, false}) {
+                        long start = System.nanoTime();
+                        List<Coordinate> expected = SideHullReference.computeSideHull(left, path[0], path[1],
+                                profileBuilder);
+                        long referenceEnd = System.nanoTime();
+                        List<Coordinate> sideHull = computeRays.computeSideHull(left, path[0], path[1],
+                                profileBuilder);
+                        if(loop >= startLoop) {
+                            referenceTime += referenceEnd - start;
+                            time += System.nanoTime() - referenceEnd;
+                        }
+                        if(loop == 0) {
+                            assertEquals(expected.size(), sideHull.size());
+                            for(int i = 0; i < expected.size(); i++) {
+                                assertTrue(expected.get(i).equals3D(sideHull.get(i)));
+                            }
+                            if(expected.size() > 2) {
+                                lateralPathCount++;
+                            }
+                        }
+                    }
+                }
+            }
+            assertTrue(lateralPathCount > paths.length / 4);
+            int callCount = (loops - startLoop) * paths.length * 2;
+            logger.info(String.format(Locale.ROOT, "%s: lateral path in average of %.1f us with JTS hull," +
+                            " %.1f us with primitive arrays, %d paths with diffraction edges",
+                    denseCity ? "Dense city" : "Vertical edge diffraction scene", referenceTime / 1e3 / callCount,
+                    time / 1e3 / callCount, lateralPathCount));
+        }
+    }
+}
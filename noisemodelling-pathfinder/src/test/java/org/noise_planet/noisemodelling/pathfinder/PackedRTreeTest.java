@@ -0,0 +1,132 @@
+/**
+ * NoiseModelling is an open-source tool designed to produce environmental noise maps on very large urban areas. It can be used as a Java library or be controlled through a user friendly web interface.
+ *
+ * This version is developed by the DECIDE team from the Lab-STICC (CNRS) and by the Mixt Research Unit in Environmental Acoustics (Université Gustave Eiffel).
+ * <http://noise-planet.org/noisemodelling.html>
+ *
+ * NoiseModelling is distributed under GPL 3 license. You can read a copy of this License in the file LICENCE provided with this software.
+ *
+ * Contact: contact@noise-planet.org
+ *
+ */
+package org.noise_planet.noisemodelling.pathfinder;
+
+import org.junit.Test;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.LineSegment;
+import org.locationtech.jts.index.strtree.STRtree;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PackedRTreeTest {
+
+    /**
+     * Random segments, in projected coordinates, some of them sharing the same center
+     */
+    private static List<Envelope> randomEnvelopes(Random random, int count) {
+        List<Envelope> envelopes = new ArrayList<>(count);
+        for(int i = 0; i < count; i++) {
+            double x = 6.5e6 + random.nextInt(1000) + (i % 3 == 0 ? 0 : random.nextDouble());
+            double y = 2.1e5 + random.nextInt(1000) + (i % 3 == 0 ? 0 : random.nextDouble());
+            envelopes.add(new Envelope(x, x + random.nextDouble() * 20, y, y + random.nextDouble() * 20));
+        }
+        return envelopes;
+    }
+
+    /**
+     * Items of the exact envelope query must be visited in the same order than JTS STRtree
+     */
+    @Test
+    public void testSameOrderAsSTRtree() {
+        Random random = new Random(12);
+        for(int nodeCapacity : new int[] {2, 5, 10}) {
+            for(int itemCount : new int[] {0, 1, 7, 100, 2000}) {
+                List<Envelope> envelopes = randomEnvelopes(random, itemCount);
+                STRtree expectedTree = new STRtree(nodeCapacity);
+                PackedRTree tree = new PackedRTree(nodeCapacity);
+                for(int i = 0; i < envelopes.size(); i++) {
+                    expectedTree.insert(envelopes.get(i), i);
+                    tree.insert(envelopes.get(i), i);
+                }
+                tree.build();
+                assertEquals(itemCount, tree.size());
+                for(int query = 0; query < 50; query++) {
+                    double x = 6.5e6 + random.nextDouble() * 1000;
+                    double y = 2.1e5 + random.nextDouble() * 1000;
+                    Envelope queryEnvelope = new Envelope(x, x + random.nextDouble() * 100, y, y + random.nextDouble() * 100);
+                    List<Integer> expected = new ArrayList<>();
+                    expectedTree.query(queryEnvelope, item -> expected.add((Integer) item));
+                    List<Integer> result = new ArrayList<>();
+                    tree.query(queryEnvelope, item -> {
+                        // keep only the exact result
+                        if(envelopes.get(item).intersects(queryEnvelope)) {
+                            result.add(item);
+                        }
+                        return true;
+                    });
+                    assertEquals(expected, result);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testSegmentQuery() {
+        Random random = new Random(5);
+        List<Envelope> envelopes = randomEnvelopes(random, 3000);
+        PackedRTree tree = new PackedRTree(5);
+        for(int i = 0; i < envelopes.size(); i++) {
+            tree.insert(envelopes.get(i), i);
+        }
+        for(int query = 0; query < 200; query++) {
+            Coordinate p0 = new Coordinate(6.5e6 + random.nextDouble() * 1000, 2.1e5 + random.nextDouble() * 1000);
+            Coordinate p1 = new Coordinate(6.5e6 + random.nextDouble() * 1000, 2.1e5 + random.nextDouble() * 1000);
+            if(query % 10 == 0) {
+                // horizontal segment on the border of an item
+                Envelope item = envelopes.get(random.nextInt(envelopes.size()));
+                p0 = new Coordinate(item.getMinX() - 50, item.getMaxY());
+                p1 = new Coordinate(item.getMaxX() + 50, item.getMaxY());
+            }
+            LineSegment segment = new LineSegment(p0, p1);
+            List<Integer> envelopeResult = new ArrayList<>();
+            tree.query(new Envelope(p0, p1), item -> envelopeResult.add(item));
+            List<Integer> segmentResult = new ArrayList<>();
+            tree.querySegment(p0.x, p0.y, p1.x, p1.y, item -> segmentResult.add(item));
+            // Same order than the envelope query
+            List<Integer> filtered = new ArrayList<>(envelopeResult);
+            filtered.retainAll(segmentResult);
+            assertEquals(segmentResult, filtered);
+            // No item crossed by the segment is missing
+            for(int item : envelopeResult) {
+                Envelope envelope = envelopes.get(item);
+                LineSegment diagonal = new LineSegment(envelope.getMinX(), envelope.getMinY(), envelope.getMaxX(),
+                        envelope.getMaxY());
+                LineSegment otherDiagonal = new LineSegment(envelope.getMinX(), envelope.getMaxY(), envelope.getMaxX(),
+                        envelope.getMinY());
+                if(segment.intersection(diagonal) != null || segment.intersection(otherDiagonal) != null) {
+                    assertTrue(segmentResult.contains(item));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testStopQuery() {
+        PackedRTree tree = new PackedRTree(4);
+        for(int i = 0; i < 100; i++) {
+            tree.insert(new Envelope(i, i + 1, 0, 1), i);
+        }
+        List<Integer> result = new ArrayList<>();
+        assertTrue(!tree.query(new Envelope(0, 100, 0, 1), item -> {
+            result.add(item);
+            return result.size() < 3;
+        }));
+        assertEquals(3, result.size());
+    }
+}
@@ -7,18 +7,23 @@ import org.locationtech.jts.geom.*;
 import org.locationtech.jts.io.ParseException;
 import org.locationtech.jts.io.WKTReader;
 import org.locationtech.jts.io.WKTWriter;
+import org.locationtech.jts.triangulate.quadedge.Vertex;
 import org.noise_planet.noisemodelling.pathfinder.utils.GeoJSONDocument;
 import org.noise_planet.noisemodelling.pathfinder.utils.KMLDocument;
+import org.noise_planet.noisemodelling.pathfinder.utils.ObstacleCacheMetric;
+import org.noise_planet.noisemodelling.pathfinder.utils.ProfilerThread;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.xml.stream.XMLStreamException;
+import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Locale;
+import java.util.Random;
 
 import static org.junit.Assert.*;
 
@@ -405,4 +410,340 @@ public class ProfileBuilderTest {
                 .map(coordinate -> coordinate.z).max(Double::compareTo).get();
         assertEquals(3.05, maxZ, 1e-6);
     }
+
+    /**
+     * Compare the triangle walking and the grid lookup of the topography with a brute force evaluation
+     */
+    @Test
+    public void testTopographyMesh() {
+        ProfileBuilder profileBuilder = new ProfileBuilder();
+        Random random = new Random(42);
+        for(int i = 0; i < 2000; i++) {
+            profileBuilder.addTopographicPoint(new Coordinate(random.nextDouble() * 1000, random.nextDouble() * 800,
+                    random.nextDouble() * 50));
+        }
+        profileBuilder.finishFeeding();
+        List<Triangle> triangles = profileBuilder.getTriangles();
+        List<Coordinate> vertices = profileBuilder.getVertices();
+        for(int i = 0; i < 500; i++) {
+            Coordinate point = new Coordinate(random.nextDouble() * 1100 - 50, random.nextDouble() * 900 - 50);
+            double expected = Double.NaN;
+            for(Triangle triangle : triangles) {
+                Coordinate a = vertices.get(triangle.getA());
+                Coordinate b = vertices.get(triangle.getB());
+                Coordinate c = vertices.get(triangle.getC());
+                if(JTSUtility.dotInTri(point, a, b, c)) {
+                    expected = Vertex.interpolateZ(point, a, b, c);
+                    break;
+                }
+            }
+            double z = profileBuilder.getZGround(new ProfileBuilder.CutPoint(point, ProfileBuilder.IntersectionType.TOPOGRAPHY, -1));
+            if(Double.isNaN(expected)) {
+                assertEquals(0.0, z, 0);
+            } else {
+                assertEquals(expected, z, 1e-6);
+            }
+        }
+        for(int i = 0; i < 100; i++) {
+            Coordinate p1 = new Coordinate(random.nextDouble() * 1000, random.nextDouble() * 800);
+            Coordinate p2 = new Coordinate(random.nextDouble() * 1000, random.nextDouble() * 800);
+            LineSegment segment = new LineSegment(p1, p2);
+            List<Coordinate> profile = profileBuilder.getTopographicProfile(p1, p2);
+            assertFalse(profile.isEmpty());
+            // each triangle edge crossed by the segment produce a point
+            int crossedEdges = 0;
+            for(Triangle triangle : triangles) {
+                for(int k = 0; k < 3; k++) {
+                    LineSegment edge = new LineSegment(vertices.get(triangle.get((k + 1) % 3)),
+                            vertices.get(triangle.get((k + 2) % 3)));
+                    if(edge.intersection(segment) != null) {
+                        crossedEdges++;
+                    }
+                }
+            }
+            // inner edges are shared by two triangles
+            assertEquals(crossedEdges / 2, profile.size(), 1);
+            double lastDistance = 0;
+            for(Coordinate point : profile) {
+                assertEquals(0, segment.distance(point), 1e-6);
+                double distance = point.distance(p1);
+                assertTrue(distance >= lastDistance);
+                lastDistance = distance;
+                assertEquals(profileBuilder.getZGround(new ProfileBuilder.CutPoint(point,
+                        ProfileBuilder.IntersectionType.TOPOGRAPHY, -1)), point.z, 1e-6);
+            }
+        }
+    }
+
+    @Test
+    public void testRasterTopography() throws IOException {
+        // Plane z = 0.02 x + 0.03 y + 5, bilinear interpolation of a plane is exact
+        int columns = 101;
+        int rows = 81;
+        double cellSize = 10;
+        float[] heights = new float[columns * rows];
+        for(int row = 0; row < rows; row++) {
+            for(int column = 0; column < columns; column++) {
+                heights[row * columns + column] = (float) (0.02 * column * cellSize + 0.03 * (800 - row * cellSize) + 5);
+            }
+        }
+        RasterTopography raster = new RasterTopography(0, 800, cellSize, columns, rows, heights);
+        File file = File.createTempFile("dem", ".bin");
+        file.deleteOnExit();
+        raster.save(file);
+        RasterTopography mappedRaster = RasterTopography.open(file);
+        assertEquals(columns, mappedRaster.getColumns());
+        assertEquals(rows, mappedRaster.getRows());
+        assertEquals(raster.getEnvelope(), mappedRaster.getEnvelope());
+
+        ProfileBuilder profileBuilder = new ProfileBuilder();
+        profileBuilder.setTopographicRaster(mappedRaster);
+        profileBuilder.finishFeeding();
+        assertTrue(profileBuilder.hasDem());
+        Random random = new Random(42);
+        for(int i = 0; i < 500; i++) {
+            Coordinate point = new Coordinate(random.nextDouble() * 1000, random.nextDouble() * 800);
+            assertEquals(0.02 * point.x + 0.03 * point.y + 5, profileBuilder.getZGround(
+                    new ProfileBuilder.CutPoint(point, ProfileBuilder.IntersectionType.TOPOGRAPHY, -1)), 1e-3);
+        }
+        for(int i = 0; i < 100; i++) {
+            Coordinate p1 = new Coordinate(random.nextDouble() * 1000, random.nextDouble() * 800);
+            Coordinate p2 = new Coordinate(random.nextDouble() * 1000, random.nextDouble() * 800);
+            LineSegment segment = new LineSegment(p1, p2);
+            List<Coordinate> profile = profileBuilder.getTopographicProfile(p1, p2);
+            // one point for each crossed grid line
+            int crossedLines = Math.abs((int) Math.floor(p2.x / cellSize) - (int) Math.floor(p1.x / cellSize)) +
+                    Math.abs((int) Math.floor(p2.y / cellSize) - (int) Math.floor(p1.y / cellSize));
+            assertEquals(crossedLines, profile.size(), 1);
+            double lastDistance = 0;
+            for(Coordinate point : profile) {
+                assertEquals(0, segment.distance(point), 1e-6);
+                double distance = point.distance(p1);
+                assertTrue(distance >= lastDistance);
+                lastDistance = distance;
+                assertEquals(0.02 * point.x + 0.03 * point.y + 5, point.z, 1e-3);
+            }
+        }
+        // Segment starting outside of the raster begin with the entry point
+        List<Coordinate> profile = profileBuilder.getTopographicProfile(new Coordinate(-100, 400),
+                new Coordinate(95, 400));
+        assertFalse(profile.isEmpty());
+        assertEquals(0, profile.get(0).x, 1e-6);
+    }
+
+    @Test
+    public void testGroundRaster() throws IOException, ParseException {
+        // Ground areas aligned on the raster cells so the rasterisation is exact
+        Geometry[] grounds = new Geometry[] {
+                READER.read("POLYGON((0 0, 40 0, 40 30, 0 30, 0 0))"),
+                READER.read("POLYGON((50 10, 90 10, 90 70, 50 70, 50 10), (60 20, 80 20, 80 40, 60 40, 60 20))"),
+                READER.read("MULTIPOLYGON(((0 50, 30 50, 30 80, 0 80, 0 50)), ((100 0, 120 0, 120 80, 100 80, 100 0)))")};
+        double[] coefficients = new double[] {1, 0.5, 0.25};
+        double gS = 0.1;
+        GroundRaster raster = GroundRaster.create(new Envelope(-10, 130, -10, 90), 2);
+        for(int i = 0; i < grounds.length; i++) {
+            raster.fill(grounds[i], coefficients[i]);
+        }
+        assertEquals(0.5, raster.getG(55, 15, gS), 0);
+        assertEquals(gS, raster.getG(70, 30, gS), 0);
+        assertEquals(gS, raster.getG(-50, 30, gS), 0);
+
+        File file = File.createTempFile("ground", ".bin");
+        file.deleteOnExit();
+        raster.save(file);
+        GroundRaster mappedRaster = GroundRaster.open(file);
+        assertEquals(raster.getEnvelope(), mappedRaster.getEnvelope());
+        ProfileBuilder rasterBuilder = new ProfileBuilder();
+        for(int i = 0; i < grounds.length; i++) {
+            // ignored in raster mode
+            rasterBuilder.addGroundEffect(grounds[i], coefficients[i]);
+        }
+        rasterBuilder.setGroundRaster(mappedRaster);
+        rasterBuilder.finishFeeding();
+
+        Random random = new Random(42);
+        for(int i = 0; i < 200; i++) {
+            Coordinate p1 = new Coordinate(random.nextDouble() * 160 - 20, random.nextDouble() * 120 - 20, 1);
+            Coordinate p2 = new Coordinate(random.nextDouble() * 160 - 20, random.nextDouble() * 120 - 20, 4);
+            ProfileBuilder.CutProfile profile = rasterBuilder.getProfile(p1, p2, gS);
+            for(ProfileBuilder.CutPoint cutPoint : profile.getCutPoints()) {
+                assertNotEquals(ProfileBuilder.IntersectionType.GROUND_EFFECT, cutPoint.getType());
+            }
+            // Exact G path from the length of the segment inside each ground area
+            LineString line = new GeometryFactory().createLineString(new Coordinate[] {p1, p2});
+            double expectedGPath = 0;
+            double groundLength = 0;
+            double sourceG = gS;
+            for(int idGround = 0; idGround < grounds.length; idGround++) {
+                double length = grounds[idGround].intersection(line).getLength();
+                expectedGPath += length * coefficients[idGround];
+                groundLength += length;
+                if(grounds[idGround].contains(line.getStartPoint())) {
+                    sourceG = coefficients[idGround];
+                }
+            }
+            expectedGPath = (expectedGPath + (line.getLength() - groundLength) * gS) / line.getLength();
+            assertEquals(sourceG, profile.getSource().getGroundCoef(), 0);
+            assertEquals(expectedGPath, profile.getGPath(), 1e-9);
+        }
+    }
+
+    @Test
+    public void testCutProfileSort() {
+        ProfileBuilder.CutProfile profile = new ProfileBuilder.CutProfile(2);
+        Coordinate c0 = new Coordinate(100, 0, 1);
+        Coordinate c1 = new Coordinate(0, 50, 4);
+        Random random = new Random(42);
+        for(int i = 0; i < 200; i++) {
+            double t = random.nextInt(50) / 50.0;
+            Coordinate p = new Coordinate(c0.x + (c1.x - c0.x) * t, c0.y + (c1.y - c0.y) * t, i);
+            if(i % 2 == 0) {
+                profile.addTopoCutPt(p, i);
+            } else {
+                profile.addGroundCutPt(p, i);
+            }
+        }
+        profile.addReceiver(c1);
+        profile.addSource(c0);
+        assertEquals(0, profile.getCutPoints().indexOf(profile.getSource()));
+        // the cut points are read only views of the profile
+        try {
+            profile.getCutPoints().get(5).setGroundCoef(0.5);
+            fail();
+        } catch (UnsupportedOperationException ex) {
+            // expected
+        }
+        profile.sort(c0, c1);
+        assertEquals(202, profile.size());
+        assertEquals(ProfileBuilder.IntersectionType.SOURCE, profile.getSource().getType());
+        assertEquals(ProfileBuilder.IntersectionType.RECEIVER, profile.getReceiver().getType());
+        assertEquals(c0, profile.getCutPoints().get(0).getCoordinate());
+        List<ProfileBuilder.CutPoint> points = profile.getCutPoints();
+        for(int i = 1; i < points.size(); i++) {
+            double previous = points.get(i - 1).getCoordinate().distance(c0);
+            double current = points.get(i).getCoordinate().distance(c0);
+            assertTrue(previous <= current);
+            // same position, insertion order is kept
+            if(previous == current && points.get(i - 1).getType() != ProfileBuilder.IntersectionType.SOURCE &&
+                    points.get(i).getType() != ProfileBuilder.IntersectionType.RECEIVER) {
+                assertTrue(points.get(i - 1).getId() < points.get(i).getId());
+            }
+            assertEquals(points.get(i).getCoordinate().x, profile.getX(i), 0);
+        }
+        profile.reverse();
+        assertEquals(c1, profile.getCutPoints().get(0).getCoordinate());
+        assertEquals(ProfileBuilder.IntersectionType.RECEIVER, profile.getType(0));
+        assertEquals(profile.getCutPoints().get(profile.size() - 1), profile.getSource());
+    }
+
+    @Test
+    public void testObstacleCache() {
+        ProfileBuilder cachedBuilder = new ProfileBuilder();
+        ProfileBuilder directBuilder = new ProfileBuilder();
+        directBuilder.setObstacleCacheMargin(0);
+        GeometryFactory factory = new GeometryFactory();
+        Random random = new Random(42);
+        for(int i = 0; i < 20; i++) {
+            for(int j = 0; j < 20; j++) {
+                double size = 5 + random.nextDouble() * 15;
+                Envelope envelope = new Envelope(i * 25, i * 25 + size, j * 25, j * 25 + size);
+                double height = 5 + random.nextDouble() * 20;
+                cachedBuilder.addBuilding(factory.toGeometry(envelope), height);
+                directBuilder.addBuilding(factory.toGeometry(envelope), height);
+            }
+        }
+        cachedBuilder.addGroundEffect(0, 250, 0, 500, 0.5);
+        directBuilder.addGroundEffect(0, 250, 0, 500, 0.5);
+        cachedBuilder.addGroundEffect(100, 400, 200, 300, 1);
+        directBuilder.addGroundEffect(100, 400, 200, 300, 1);
+        cachedBuilder.finishFeeding();
+        directBuilder.finishFeeding();
+        List<Coordinate> sources = Arrays.asList(new Coordinate(22, 22, 0.05), new Coordinate(480, 310, 0.05),
+                new Coordinate(240, 480, 0.05));
+        // receivers along a facade
+        for(int idReceiver = 0; idReceiver < 40; idReceiver++) {
+            Coordinate receiver = new Coordinate(200 + idReceiver * 0.5, 199, 4);
+            for(Coordinate source : sources) {
+                assertEquals(directBuilder.getProfile(source, receiver, 0.2).getCutPoints().toString(),
+                        cachedBuilder.getProfile(source, receiver, 0.2).getCutPoints().toString());
+            }
+        }
+        ObstacleCacheMetric metric = new ObstacleCacheMetric();
+        cachedBuilder.flushObstacleCacheStatistics(metric);
+        long hits = metric.getHits();
+        assertTrue(hits > metric.getMisses() * 10);
+        // statistics of the thread have been reset
+        cachedBuilder.flushObstacleCacheStatistics(metric);
+        assertEquals(hits, metric.getHits());
+        assertEquals(Long.toString(hits), metric.getCurrentValues()[0]);
+    }
+
+    /**
+     * Grid of buildings with a line source along the two streets next to each block
+     */
+    private static CnossosPropagationData createLineSourcesScene(double obstacleCacheMargin) {
+        ProfileBuilder profileBuilder = new ProfileBuilder();
+        profileBuilder.setObstacleCacheMargin(obstacleCacheMargin);
+        GeometryFactory factory = new GeometryFactory();
+        Random random = new Random(42);
+        for(int i = 0; i < 20; i++) {
+            for(int j = 0; j < 20; j++) {
+                double size = 5 + random.nextDouble() * 15;
+                profileBuilder.addBuilding(factory.toGeometry(new Envelope(i * 25, i * 25 + size, j * 25,
+                        j * 25 + size)), 5 + random.nextDouble() * 20);
+            }
+        }
+        profileBuilder.addGroundEffect(0, 250, 0, 500, 0.5);
+        profileBuilder.finishFeeding();
+        CnossosPropagationData data = new CnossosPropagationData(profileBuilder);
+        for(int i = 0; i < 20; i++) {
+            for(int j = 0; j < 20; j++) {
+                // streets between the blocks
+                data.addSource(factory.createLineString(new Coordinate[] {new Coordinate(i * 25, j * 25 + 22.5, 0.05),
+                        new Coordinate(i * 25 + 25, j * 25 + 22.5, 0.05)}));
+                data.addSource(factory.createLineString(new Coordinate[] {new Coordinate(i * 25 + 22.5, j * 25, 0.05),
+                        new Coordinate(i * 25 + 22.5, j * 25 + 25, 0.05)}));
+            }
+        }
+        // receivers along a facade
+        for(int idReceiver = 0; idReceiver < 40; idReceiver++) {
+            data.addReceiver(new Coordinate(230 + idReceiver * 0.5, 245.5, 4));
+        }
+        data.maxSrcDist = 500;
+        data.reflexionOrder = 0;
+        data.setComputeHorizontalDiffraction(false);
+        data.setComputeVerticalDiffraction(false);
+        return data;
+    }
+
+    /**
+     * Hundreds of line sources, discretised for each receiver, seen from a row of receivers along a facade
+     */
+    @Test
+    public void testObstacleCacheLineSources() throws IOException {
+        CnossosPropagationData directData = createLineSourcesScene(0);
+        ComputeCnossosRaysOut directOut = new ComputeCnossosRaysOut(true, directData);
+        ComputeCnossosRays directComputeRays = new ComputeCnossosRays(directData);
+        directComputeRays.setThreadCount(1);
+        directComputeRays.run(directOut);
+
+        CnossosPropagationData data = createLineSourcesScene(ProfileBuilder.DEFAULT_OBSTACLE_CACHE_MARGIN);
+        ComputeCnossosRaysOut out = new ComputeCnossosRaysOut(true, data);
+        ComputeCnossosRays computeRays = new ComputeCnossosRays(data);
+        computeRays.setThreadCount(1);
+        ProfilerThread profilerThread = new ProfilerThread(File.createTempFile("profile", ".csv"));
+        ObstacleCacheMetric metric = new ObstacleCacheMetric();
+        profilerThread.addMetric(metric);
+        computeRays.setProfilerThread(profilerThread);
+        computeRays.run(out);
+
+        assertTrue(directOut.getPropagationPaths().size() > 1000);
+        assertEquals(directOut.getPropagationPaths().size(), out.getPropagationPaths().size());
+        for(int i = 0; i < out.getPropagationPaths().size(); i++) {
+            assertEquals(directOut.getPropagationPaths().get(i).getCutPoints().toString(),
+                    out.getPropagationPaths().get(i).getCutPoints().toString());
+        }
+        double hitRate = metric.getHits() / (double) (metric.getHits() + metric.getMisses());
+        assertTrue(String.format(Locale.ROOT, "Hit rate %.3f", hitRate), hitRate > 0.8);
+    }
 }
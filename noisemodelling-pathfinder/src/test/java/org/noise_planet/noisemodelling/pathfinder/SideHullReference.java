@@ -0,0 +1,285 @@
+/**
+ * NoiseModelling is an open-source tool designed to produce environmental noise maps on very large urban areas. It can be used as a Java library or be controlled through a user friendly web interface.
+ *
+ * This version is developed by the DECIDE team from the Lab-STICC (CNRS) and by the Mixt Research Unit in Environmental Acoustics (Université Gustave Eiffel).
+ * <http://noise-planet.org/noisemodelling.html>
+ *
+ * NoiseModelling is distributed under GPL 3 license. You can read a copy of this License in the file LICENCE provided with this software.
+ *
+ * Contact: contact@noise-planet.org
+ *
+ */
+package org.noise_planet.noisemodelling.pathfinder;
+
+import org.apache.commons.math3.geometry.euclidean.threed.Plane;
+import org.locationtech.jts.algorithm.ConvexHull;
+import org.locationtech.jts.algorithm.RectangleLineIntersector;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.LineSegment;
+import org.locationtech.jts.geom.prep.PreparedLineString;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.noise_planet.noisemodelling.pathfinder.ComputeCnossosRays.computeZeroRadPlane;
+import static org.noise_planet.noisemodelling.pathfinder.ComputeCnossosRays.cutRoofPointsWithPlane;
+
+/**
+ * Lateral diffraction hull computed with a JTS convex hull and new visitors on each iteration, as
+ * {@link ComputeCnossosRays#computeSideHull(boolean, Coordinate, Coordinate, ProfileBuilder)} did before it used
+ * {@link IncrementalConvexHull}. Used as the reference of the side hull benchmark.
+ */
+final class SideHullReference {
+    private static final double MAX_RATIO_HULL_DIRECT_PATH = 4;
+    private static final GeometryFactory GEOMETRY_FACTORY = new GeometryFactory();
+
+    private SideHullReference() {
+    }
+
+    static List<Coordinate> computeSideHull(boolean left, Coordinate p1, Coordinate p2, ProfileBuilder profileBuilder) {
+        if (p1.equals(p2)) {
+            return new ArrayList<>();
+        }
+
+        // Intersection test cache
+        Set<LineSegment> freeFieldSegments = new HashSet<>();
+
+        List<Coordinate> input = new ArrayList<>();
+
+        Coordinate[] coordinates = new Coordinate[0];
+        int indexp1 = 0;
+        int indexp2 = 0;
+
+        boolean convexHullIntersects = true;
+
+        input.add(p1);
+        input.add(p2);
+
+        Set<Integer> buildingInHull = new HashSet<>();
+        Set<Integer> wallInHull = new HashSet<>();
+
+        Plane cutPlane = computeZeroRadPlane(p1, p2);
+
+        BuildingIntersectionRayVisitor buildingIntersectionRayVisitor = new BuildingIntersectionRayVisitor(
+                profileBuilder.getBuildings(), p1, p2, profileBuilder, input, buildingInHull, cutPlane);
+
+        profileBuilder.getBuildingsOnPath(p1, p2, buildingIntersectionRayVisitor);
+
+        WallIntersectionRayVisitor wallIntersectionRayVisitor = new WallIntersectionRayVisitor(
+                profileBuilder.getWalls(), p1, p2, profileBuilder, input, wallInHull, cutPlane);
+
+        profileBuilder.getWallsOnPath(p1, p2, wallIntersectionRayVisitor);
+
+        int k;
+        while (convexHullIntersects) {
+            ConvexHull convexHull = new ConvexHull(input.toArray(new Coordinate[0]), GEOMETRY_FACTORY);
+            Geometry convexhull = convexHull.getConvexHull();
+
+            if (convexhull.getLength() / p1.distance(p2) > MAX_RATIO_HULL_DIRECT_PATH) {
+                return new ArrayList<>();
+            }
+
+            convexHullIntersects = false;
+            coordinates = convexhull.getCoordinates();
+
+            input.clear();
+            input.addAll(Arrays.asList(coordinates));
+
+            indexp1 = -1;
+            for (int i = 0; i < coordinates.length - 1; i++) {
+                if (coordinates[i].equals(p1)) {
+                    indexp1 = i;
+                    break;
+                }
+            }
+            if (indexp1 == -1) {
+                // P1 does not belong to convex vertices, cannot compute diffraction
+                return new ArrayList<>();
+            }
+            // Transform array to set p1 at index=0
+            Coordinate[] coordinatesShifted = new Coordinate[coordinates.length];
+            // Copy from P1 to end in beginning of new array
+            int len = (coordinates.length - 1) - indexp1;
+            System.arraycopy(coordinates, indexp1, coordinatesShifted, 0, len);
+            // Copy from 0 to P1 in the end of array
+            System.arraycopy(coordinates, 0, coordinatesShifted, len, coordinates.length - len - 1);
+            coordinatesShifted[coordinatesShifted.length - 1] = coordinatesShifted[0];
+            coordinates = coordinatesShifted;
+            indexp1 = 0;
+            indexp2 = -1;
+            for (int i = 1; i < coordinates.length - 1; i++) {
+                if (coordinates[i].equals(p2)) {
+                    indexp2 = i;
+                    break;
+                }
+            }
+            if (indexp2 == -1) {
+                // P2 does not belong to convex vertices, cannot compute diffraction
+                return new ArrayList<>();
+            }
+            for (k = 0; k < coordinates.length - 1; k++) {
+                LineSegment freeFieldTestSegment = new LineSegment(coordinates[k], coordinates[k + 1]);
+                // Ignore intersection if iterating over other side (not parts of what is returned)
+                if (left && k < indexp2 || !left && k >= indexp2) {
+                    if (!freeFieldSegments.contains(freeFieldTestSegment)) {
+                        // Check if we still are in the propagation domain
+                        buildingIntersectionRayVisitor = new BuildingIntersectionRayVisitor(profileBuilder.getBuildings(),
+                                coordinates[k], coordinates[k + 1], profileBuilder, input, buildingInHull, cutPlane);
+                        profileBuilder.getBuildingsOnPath(coordinates[k], coordinates[k + 1], buildingIntersectionRayVisitor);
+                        wallIntersectionRayVisitor = new WallIntersectionRayVisitor(profileBuilder.getWalls(),
+                                coordinates[k], coordinates[k + 1], profileBuilder, input, wallInHull, cutPlane);
+                        profileBuilder.getWallsOnPath(coordinates[k], coordinates[k + 1], wallIntersectionRayVisitor);
+                        if (!buildingIntersectionRayVisitor.doContinue() || !wallIntersectionRayVisitor.doContinue()) {
+                            convexHullIntersects = true;
+                        }
+                        if (!convexHullIntersects) {
+                            freeFieldSegments.add(freeFieldTestSegment);
+                        } else {
+                            break;
+                        }
+                    }
+                }
+            }
+        }
+        // Check for invalid coordinates
+        for (Coordinate p : coordinates) {
+            if (p.z < 0) {
+                return new ArrayList<>();
+            }
+        }
+
+        if (left) {
+            return Arrays.asList(Arrays.copyOfRange(coordinates, indexp1, indexp2 + 1));
+        } else {
+            List<Coordinate> inversePath = Arrays.asList(Arrays.copyOfRange(coordinates, indexp2, coordinates.length));
+            Collections.reverse(inversePath);
+            return inversePath;
+        }
+    }
+
+    private static final class BuildingIntersectionRayVisitor implements PackedRTree.ItemVisitor {
+        Set<Integer> itemProcessed = new HashSet<>();
+        List<ProfileBuilder.Building> buildings;
+        Coordinate p1;
+        Coordinate p2;
+        PreparedLineString seg;
+        Set<Integer> buildingsInIntersection;
+        ProfileBuilder profileBuilder;
+        Plane cutPlane;
+        List<Coordinate> input;
+        boolean foundIntersection = false;
+
+        BuildingIntersectionRayVisitor(List<ProfileBuilder.Building> buildings, Coordinate p1, Coordinate p2,
+                                       ProfileBuilder profileBuilder, List<Coordinate> input,
+                                       Set<Integer> buildingsInIntersection, Plane cutPlane) {
+            this.profileBuilder = profileBuilder;
+            this.input = input;
+            this.buildingsInIntersection = buildingsInIntersection;
+            this.cutPlane = cutPlane;
+            this.buildings = buildings;
+            this.p1 = p1;
+            this.p2 = p2;
+            seg = new PreparedLineString(GEOMETRY_FACTORY.createLineString(new Coordinate[]{p1, p2}));
+        }
+
+        @Override
+        public boolean visitItem(int id) {
+            if(!itemProcessed.contains(id)) {
+                itemProcessed.add(id);
+                final ProfileBuilder.Building b = buildings.get(id - 1);
+                RectangleLineIntersector rect = new RectangleLineIntersector(b.getGeometry().getEnvelopeInternal());
+                if (rect.intersects(p1, p2) && seg.intersects(b.getGeometry())) {
+                    return addItem(id);
+                }
+            }
+            return true;
+        }
+
+        boolean addItem(int id) {
+            if (buildingsInIntersection.contains(id)) {
+                return true;
+            }
+            List<Coordinate> roofPoints = profileBuilder.getPrecomputedWideAnglePoints(id);
+            // Create a cut of the building volume
+            roofPoints = cutRoofPointsWithPlane(cutPlane, roofPoints);
+            if (!roofPoints.isEmpty()) {
+                input.addAll(roofPoints.subList(0, roofPoints.size() - 1));
+                buildingsInIntersection.add(id);
+                foundIntersection = true;
+                // Stop iterating bounding boxes
+                return false;
+            }
+            return true;
+        }
+
+        boolean doContinue() {
+            return !foundIntersection;
+        }
+    }
+
+    private static final class WallIntersectionRayVisitor implements PackedRTree.ItemVisitor {
+        Set<Integer> itemProcessed = new HashSet<>();
+        List<ProfileBuilder.Wall> walls;
+        Coordinate p1;
+        Coordinate p2;
+        PreparedLineString seg;
+        Set<Integer> wallsInIntersection;
+        ProfileBuilder profileBuilder;
+        Plane cutPlane;
+        List<Coordinate> input;
+        boolean foundIntersection = false;
+
+        WallIntersectionRayVisitor(List<ProfileBuilder.Wall> walls, Coordinate p1, Coordinate p2,
+                                   ProfileBuilder profileBuilder, List<Coordinate> input,
+                                   Set<Integer> wallsInIntersection, Plane cutPlane) {
+            this.profileBuilder = profileBuilder;
+            this.input = input;
+            this.wallsInIntersection = wallsInIntersection;
+            this.cutPlane = cutPlane;
+            this.walls = walls;
+            this.p1 = p1;
+            this.p2 = p2;
+            seg = new PreparedLineString(GEOMETRY_FACTORY.createLineString(new Coordinate[]{p1, p2}));
+        }
+
+        @Override
+        public boolean visitItem(int id) {
+            if(!itemProcessed.contains(id)) {
+                itemProcessed.add(id);
+                final ProfileBuilder.Wall w = walls.get(id-1);
+                RectangleLineIntersector rect = new RectangleLineIntersector(w.getLine().getEnvelopeInternal());
+                if (rect.intersects(p1, p2) && seg.intersects(w.getLine())) {
+                    return addItem(id);
+                }
+            }
+            return true;
+        }
+
+        boolean addItem(int id) {
+            if (wallsInIntersection.contains(id)) {
+                return true;
+            }
+            List<Coordinate> roofPoints = Arrays.asList(profileBuilder.getWall(id-1).getLine().getCoordinates());
+            // Create a cut of the building volume
+            roofPoints = cutRoofPointsWithPlane(cutPlane, roofPoints);
+            if (!roofPoints.isEmpty()) {
+                input.addAll(roofPoints);
+                wallsInIntersection.add(id);
+                foundIntersection = true;
+                // Stop iterating bounding boxes
+                return false;
+            }
+            return true;
+        }
+
+        boolean doContinue() {
+            return !foundIntersection;
+        }
+    }
+}
@@ -10,15 +10,22 @@ import org.locationtech.jts.io.ParseException;
 import org.locationtech.jts.io.WKTReader;
 import org.noise_planet.noisemodelling.pathfinder.utils.Densifier3D;
 import org.noise_planet.noisemodelling.pathfinder.utils.GeoJSONDocument;
+import org.noise_planet.noisemodelling.pathfinder.utils.PowerUtils;
+import org.noise_planet.noisemodelling.pathfinder.utils.ProfilerThread;
+import org.noise_planet.noisemodelling.pathfinder.utils.ReceiverStatsMetric;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
@@ -70,6 +77,195 @@ public class TestComputeCnossosRays {
         assertEquals(-2.33, intercept, 0.01);
     }
 
+    /**
+     * Receivers range must be distributed exactly once, chunk size must decrease until the last receivers
+     */
+    @Test
+    public void testReceiverChunkCursor() {
+        int receiverCount = 1000;
+        ComputeCnossosRays.ReceiverChunkCursor cursor = new ComputeCnossosRays.ReceiverChunkCursor(receiverCount, 4);
+        int[] range = new int[2];
+        int expectedStart = 0;
+        int lastChunkSize = Integer.MAX_VALUE;
+        while (cursor.next(range)) {
+            assertEquals(expectedStart, range[0]);
+            int chunkSize = range[1] - range[0];
+            Assert.assertTrue(chunkSize >= 1);
+            Assert.assertTrue(chunkSize <= lastChunkSize);
+            lastChunkSize = chunkSize;
+            expectedStart = range[1];
+        }
+        assertEquals(receiverCount, expectedStart);
+        assertEquals(1, lastChunkSize);
+    }
+
+    /**
+     * Each receiver must be finalized only once when computed by multiple threads
+     */
+    @Test
+    public void testMultiThreadReceivers() {
+        ProfileBuilder profileBuilder = new ProfileBuilder().finishFeeding();
+        PropagationDataBuilder builder = new PropagationDataBuilder(profileBuilder).addSource(0, 0, 1);
+        int receiverCount = 500;
+        for(int i = 0; i < receiverCount; i++) {
+            builder.addReceiver(10 + i % 50, 10 + i / 50, 4);
+        }
+        CnossosPropagationData rayData = builder.build();
+        final ConcurrentHashMap<Long, Integer> finalized = new ConcurrentHashMap<>();
+        ComputeCnossosRaysOut propDataOut = new ComputeCnossosRaysOut(false, rayData) {
+            @Override
+            public void finalizeReceiver(long receiverId) {
+                finalized.merge(receiverId, 1, Integer::sum);
+            }
+        };
+        ComputeCnossosRays computeRays = new ComputeCnossosRays(rayData);
+        computeRays.setThreadCount(4);
+        computeRays.run(propDataOut);
+        assertEquals(receiverCount, finalized.size());
+        for(Integer count : finalized.values()) {
+            assertEquals(1, count.intValue());
+        }
+        assertEquals(receiverCount, propDataOut.rayCount.get());
+    }
+
+    /**
+     * Far sources must be skipped when their maximal contribution is below the noise floor
+     */
+    @Test
+    public void testNoiseFloorEarlyTermination() throws IOException {
+        GeometryFactory factory = new GeometryFactory();
+        ProfileBuilder profileBuilder = new ProfileBuilder().finishFeeding();
+        // 100 dB source near the receiver then 20 far 60 dB sources
+        CnossosPropagationData rayData = new CnossosPropagationData(profileBuilder) {
+            @Override
+            public double[] getMaximalSourcePower(int sourceId) {
+                return new double[] {PowerUtils.dbaToW(sourceId == 0 ? 100 : 60)};
+            }
+        };
+        rayData.addSource(factory.createPoint(new Coordinate(10, 0, 1)));
+        for(int i = 0; i < 20; i++) {
+            rayData.addSource(factory.createPoint(new Coordinate(200, i * 5, 1)));
+        }
+        rayData.addReceiver(new Coordinate(0, 0, 4));
+        rayData.setComputeHorizontalDiffraction(false);
+        rayData.setComputeVerticalDiffraction(false);
+        ComputeCnossosRaysOut propDataOut = new ComputeCnossosRaysOut(false, rayData);
+        new ComputeCnossosRays(rayData).run(propDataOut);
+        assertEquals(21, propDataOut.rayCount.get());
+
+        // the 20 far sources contribute at most 6 + 10 log10(20) = 19 dB
+        rayData.noiseFloor = 30;
+        rayData.minimalAtmosphericAbsorption = new double[] {0.1};
+        propDataOut = new ComputeCnossosRaysOut(false, rayData);
+        ComputeCnossosRays computeRays = new ComputeCnossosRays(rayData);
+        ProfilerThread profilerThread = new ProfilerThread(File.createTempFile("profile", ".csv"));
+        ReceiverStatsMetric receiverStatsMetric = new ReceiverStatsMetric();
+        profilerThread.addMetric(receiverStatsMetric);
+        computeRays.setProfilerThread(profilerThread);
+        computeRays.run(propDataOut);
+        assertEquals(1, propDataOut.rayCount.get());
+        receiverStatsMetric.tick(0);
+        String[] columns = receiverStatsMetric.getColumnNames();
+        String[] values = receiverStatsMetric.getCurrentValues();
+        assertEquals("20", values[Arrays.asList(columns).indexOf("receiver_max_skipped_sources")]);
+        // 100 - 20 log10(10) - 11 + 3 = 72 dB received, less than 19 dB remaining
+        double maxError = Double.parseDouble(values[Arrays.asList(columns).indexOf("receiver_max_error_db")]);
+        Assert.assertTrue(maxError >= 0 && maxError < 1e-3);
+    }
+
+    /**
+     * The maximal error is 0 when no receiver had a finite error bound
+     */
+    @Test
+    public void testReceiverStatsMetricNoErrorBound() {
+        ReceiverStatsMetric receiverStatsMetric = new ReceiverStatsMetric();
+        // all sources skipped using the noise floor
+        receiverStatsMetric.onReceiverSkippedSources(0, 10, Double.POSITIVE_INFINITY);
+        receiverStatsMetric.tick(0);
+        String[] columns = receiverStatsMetric.getColumnNames();
+        String[] values = receiverStatsMetric.getCurrentValues();
+        assertEquals("0.00", values[Arrays.asList(columns).indexOf("receiver_max_error_db")]);
+    }
+
+    /**
+     * The segment polygon intersection used for the obstacle attenuation bound must match JTS
+     */
+    @Test
+    public void testSegmentPolygonIntersects() throws ParseException {
+        GeometryFactory factory = new GeometryFactory();
+        Polygon polygon = (Polygon) new WKTReader(factory).read("POLYGON((10 10, 30 10, 30 30, 20 20, 10 30, 10 10)," +
+                " (14 12, 18 12, 18 16, 14 16, 14 12))");
+        Random random = new Random(42);
+        int intersectCount = 0;
+        for(int i = 0; i < 5000; i++) {
+            // integer coordinates to test the segments touching or collinear with the polygon edges
+            Coordinate p0 = new Coordinate(random.nextInt(41), random.nextInt(41));
+            Coordinate p1 = i % 2 == 0 ? new Coordinate(random.nextInt(41), random.nextInt(41)) :
+                    new Coordinate(p0.x + random.nextInt(5) - 2, p0.y + random.nextInt(5) - 2);
+            if(p0.equals2D(p1)) {
+                // JTS does not handle zero length lines
+                continue;
+            }
+            boolean expected = polygon.intersects(factory.createLineString(new Coordinate[] {p0, p1}));
+            assertEquals(p0 + " " + p1, expected, ComputeCnossosRays.intersects(polygon, p0, p1));
+            if(expected) {
+                intersectCount++;
+            }
+        }
+        Assert.assertTrue(intersectCount > 500);
+    }
+
+    /**
+     * @param powerSlope Power increase in dB between consecutive sources
+     * @return Source receiver horizontal distance of the propagation path of each source
+     */
+    private static double[] computeClusteredPathLengths(double powerSlope) {
+        GeometryFactory factory = new GeometryFactory();
+        ProfileBuilder profileBuilder = new ProfileBuilder().finishFeeding();
+        CnossosPropagationData rayData = new CnossosPropagationData(profileBuilder) {
+            @Override
+            public double[] getMaximalSourcePower(int sourceId) {
+                return new double[] {PowerUtils.dbaToW(60 + sourceId * powerSlope)};
+            }
+        };
+        for(int i = 0; i < 40; i++) {
+            rayData.addSource(factory.createPoint(new Coordinate(300, i, 1)));
+        }
+        rayData.addReceiver(new Coordinate(0, 0, 4));
+        rayData.setComputeHorizontalDiffraction(false);
+        rayData.setComputeVerticalDiffraction(false);
+        rayData.sourceClusteringDistance = 100;
+        ComputeCnossosRaysOut propDataOut = new ComputeCnossosRaysOut(true, rayData);
+        ComputeCnossosRays computeRays = new ComputeCnossosRays(rayData);
+        computeRays.setThreadCount(1);
+        computeRays.run(propDataOut);
+        double[] pathLengths = new double[40];
+        for(PropagationPath propagationPath : propDataOut.getPropagationPaths()) {
+            pathLengths[propagationPath.getIdSource()] = propagationPath.getSRSegment().r.x;
+        }
+        return pathLengths;
+    }
+
+    /**
+     * The propagation paths of far sources clusters must not depend on the source emission
+     */
+    @Test
+    public void testSourceClusteringIndependentOfEmission() {
+        double[] uniformPower = computeClusteredPathLengths(0);
+        double[] increasingPower = computeClusteredPathLengths(1);
+        double[] decreasingPower = computeClusteredPathLengths(-1);
+        Assert.assertArrayEquals(uniformPower, increasingPower, 0);
+        Assert.assertArrayEquals(uniformPower, decreasingPower, 0);
+        int sharedPaths = 0;
+        for(int i = 0; i < uniformPower.length; i++) {
+            if(Math.abs(uniformPower[i] - Math.sqrt(300 * 300 + i * i)) > 1e-6) {
+                sharedPaths++;
+            }
+        }
+        // most of the sources use the path of another source of their cluster
+        Assert.assertTrue(sharedPaths > uniformPower.length / 2);
+    }
+
     /**
      * Test vertical edge diffraction ray computation
      *
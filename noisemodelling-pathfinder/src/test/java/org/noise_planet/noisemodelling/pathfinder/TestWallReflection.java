@@ -48,8 +48,10 @@ import java.io.FileWriter;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Random;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 public class TestWallReflection {
@@ -84,6 +86,159 @@ public class TestWallReflection {
         assertTrue(polygon.intersects(factory.createPoint(new Coordinate(100, 145, 0))));
     }
 
+    @Test
+    public void testVisibilityConeEnvelope() {
+        Random random = new Random(42);
+        for(int i = 0; i < 500; i++) {
+            Coordinate receiverImage = new Coordinate(random.nextDouble() * 200, random.nextDouble() * 200);
+            LineSegment wall = new LineSegment(new Coordinate(random.nextDouble() * 200, random.nextDouble() * 200),
+                    new Coordinate(random.nextDouble() * 200, random.nextDouble() * 200));
+            double maximumPropagationDistance = 20 + random.nextDouble() * 200;
+            double maximumDistanceFromWall = random.nextDouble() * 100;
+            Envelope expected = MirrorReceiverResultIndex.createWallReflectionVisibilityCone(receiverImage, wall,
+                    maximumPropagationDistance, maximumDistanceFromWall).getEnvelopeInternal();
+            Envelope envelope = new Envelope();
+            assertEquals(!expected.isNull(), MirrorReceiverResultIndex.expandToWallReflectionVisibilityCone(
+                    receiverImage, wall, maximumPropagationDistance, maximumDistanceFromWall, envelope));
+            assertEquals(expected, envelope);
+        }
+    }
+
+    @Test
+    public void testVisibilityConeCulling() {
+        List<ProfileBuilder.Wall> buildWalls = new ArrayList<>();
+        // in front of the receiver
+        buildWalls.add(new ProfileBuilder.Wall(new Coordinate(-1, 10, 5), new Coordinate(1, 10, 5), 0,
+                ProfileBuilder.IntersectionType.WALL));
+        // on the side of the receiver
+        buildWalls.add(new ProfileBuilder.Wall(new Coordinate(50, 0, 5), new Coordinate(51, 0, 5), 1,
+                ProfileBuilder.IntersectionType.WALL));
+        // behind the receiver
+        buildWalls.add(new ProfileBuilder.Wall(new Coordinate(-1, -10, 5), new Coordinate(1, -10, 5), 2,
+                ProfileBuilder.IntersectionType.WALL));
+
+        double[] cone = new double[6];
+        // receiver image through the first wall
+        assertTrue(MirrorReceiverResultIndex.computeVisibilityCone(new Coordinate(0, 20),
+                buildWalls.get(0).getLineSegment(), cone));
+        assertTrue(MirrorReceiverResultIndex.isOutsideVisibilityCone(cone, 50, 0, 51, 0));
+        assertFalse(MirrorReceiverResultIndex.isOutsideVisibilityCone(cone, -1, -10, 1, -10));
+        // the wall crossing the cone border is kept
+        assertFalse(MirrorReceiverResultIndex.isOutsideVisibilityCone(cone, -50, 0, 0, 0));
+        // receiver image aligned with the wall
+        assertFalse(MirrorReceiverResultIndex.computeVisibilityCone(new Coordinate(0, 0),
+                buildWalls.get(1).getLineSegment(), cone));
+
+        MirrorReceiverResultIndex index = new MirrorReceiverResultIndex(buildWalls, new Coordinate(0, 0, 1), 2,
+                500, 500);
+        // 3 first order images, then 1 + 2 + 1 second order images (the side wall is not seen through the others)
+        assertEquals(7, index.numberOfImageReceivers);
+    }
+
+    /**
+     * Reflection paths key, used to compare two sets of paths
+     */
+    private static List<String> getPathsKeys(List<PropagationPath> propagationPaths) {
+        List<String> keys = new ArrayList<>();
+        for (PropagationPath propagationPath : propagationPaths) {
+            StringBuilder key = new StringBuilder();
+            for (PointPath pointPath : propagationPath.getPointList()) {
+                key.append(pointPath.type).append(pointPath.coordinate).append(' ');
+            }
+            keys.add(key.toString());
+        }
+        Collections.sort(keys);
+        return keys;
+    }
+
+    @Test
+    public void testWallVisibilityTable() {
+        GeometryFactory factory = new GeometryFactory();
+        ProfileBuilder profileBuilder = new ProfileBuilder();
+        Random random = new Random(42);
+        List<Polygon> buildings = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            for (int j = 0; j < 6; j++) {
+                double size = 10 + random.nextDouble() * 15;
+                Polygon building = (Polygon) factory.toGeometry(new Envelope(i * 40, i * 40 + size, j * 40,
+                        j * 40 + size));
+                if ((i + j) % 2 == 1) {
+                    // clockwise exterior ring
+                    building = building.reverse();
+                }
+                buildings.add(building);
+                profileBuilder.addBuilding(building, 10 + random.nextDouble() * 10);
+            }
+        }
+        // L shaped building
+        Polygon lShape = factory.createPolygon(new Coordinate[]{new Coordinate(250, 0), new Coordinate(280, 0),
+                new Coordinate(280, 10), new Coordinate(260, 10), new Coordinate(260, 30), new Coordinate(250, 30),
+                new Coordinate(250, 0)});
+        buildings.add(lShape);
+        profileBuilder.addBuilding(lShape, 15);
+        // free walls reflecting on both sides
+        profileBuilder.addWall(new Coordinate[]{new Coordinate(30, 110, 0), new Coordinate(30, 150, 0)}, 8, 1);
+        profileBuilder.addWall(new Coordinate[]{new Coordinate(110, 30, 0), new Coordinate(150, 35, 0)}, 8, 2);
+        profileBuilder.finishFeeding();
+
+        CnossosPropagationData data = new CnossosPropagationData(profileBuilder);
+        data.maxSrcDist = 150;
+        data.maxRefDist = 50;
+        data.reflexionOrder = 2;
+        ComputeCnossosRays computeRays = new ComputeCnossosRays(data);
+
+        List<Coordinate> receivers = new ArrayList<>();
+        List<Coordinate> sources = new ArrayList<>();
+        while (receivers.size() < 10 || sources.size() < 20) {
+            Coordinate p = new Coordinate(random.nextDouble() * 280, random.nextDouble() * 240);
+            boolean inBuilding = false;
+            for (Polygon building : buildings) {
+                inBuilding |= building.getEnvelopeInternal().distance(new Envelope(p)) < 1;
+            }
+            if (!inBuilding) {
+                if (receivers.size() < 10) {
+                    receivers.add(new Coordinate(p.x, p.y, 4));
+                } else {
+                    sources.add(new Coordinate(p.x, p.y, 0.05));
+                }
+            }
+        }
+        int imagesWithoutTable = 0;
+        int imagesWithTable = 0;
+        int secondOrderPaths = 0;
+        for (Coordinate receiver : receivers) {
+            Envelope receiverPropagationEnvelope = new Envelope(receiver);
+            receiverPropagationEnvelope.expandBy(data.maxSrcDist);
+            List<ProfileBuilder.Wall> buildWalls = profileBuilder.getWallsIn(receiverPropagationEnvelope);
+            MirrorReceiverResultIndex expectedIndex = new MirrorReceiverResultIndex(buildWalls, receiver,
+                    data.reflexionOrder, data.maxSrcDist, data.maxRefDist);
+            MirrorReceiverResultIndex index = new MirrorReceiverResultIndex(profileBuilder, buildWalls, receiver,
+                    data.reflexionOrder, data.maxSrcDist, data.maxRefDist);
+            imagesWithoutTable += expectedIndex.numberOfImageReceivers;
+            imagesWithTable += index.numberOfImageReceivers;
+            for (Coordinate source : sources) {
+                List<PropagationPath> expected = computeRays.computeReflexion(receiver, source, false,
+                        new Orientation(), expectedIndex);
+                List<PropagationPath> paths = computeRays.computeReflexion(receiver, source, false,
+                        new Orientation(), index);
+                assertEquals(getPathsKeys(expected), getPathsKeys(paths));
+                for (PropagationPath path : paths) {
+                    int reflectionCount = 0;
+                    for (PointPath pointPath : path.getPointList()) {
+                        if (pointPath.type == PointPath.POINT_TYPE.REFL) {
+                            reflectionCount++;
+                        }
+                    }
+                    if (reflectionCount == 2) {
+                        secondOrderPaths++;
+                    }
+                }
+            }
+        }
+        assertTrue(secondOrderPaths > 0);
+        assertTrue(imagesWithTable < imagesWithoutTable);
+    }
+
 //
 //    @Test
 //    public void testExportVisibilityCones() throws Exception {
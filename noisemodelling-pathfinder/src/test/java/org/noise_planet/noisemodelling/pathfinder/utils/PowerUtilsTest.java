@@ -0,0 +1,120 @@
+/**
+ * NoiseModelling is an open-source tool designed to produce environmental noise maps on very large urban areas. It can be used as a Java library or be controlled through a user friendly web interface.
+ *
+ * This version is developed by the DECIDE team from the Lab-STICC (CNRS) and by the Mixt Research Unit in Environmental Acoustics (Université Gustave Eiffel).
+ * <http://noise-planet.org/noisemodelling.html>
+ *
+ * NoiseModelling is distributed under GPL 3 license. You can read a copy of this License in the file LICENCE provided with this software.
+ *
+ * Contact: contact@noise-planet.org
+ *
+ */
+package org.noise_planet.noisemodelling.pathfinder.utils;
+
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.noise_planet.noisemodelling.pathfinder.utils.PowerUtils.*;
+
+public class PowerUtilsTest {
+    private Logger logger = LoggerFactory.getLogger(PowerUtilsTest.class);
+
+    @Test
+    public void testFastConversionError() {
+        Random random = new Random(3);
+        double maxError = 0;
+        for(int i = 0; i < 200000; i++) {
+            double level = random.nextDouble() * 600 - 300;
+            double w = dbaToW(level);
+            maxError = Math.max(maxError, Math.abs(wToDba(fastDbaToW(level)) - level));
+            maxError = Math.max(maxError, Math.abs(fastWToDba(w) - level));
+        }
+        assertTrue(maxError < 1e-7);
+        // limits
+        assertEquals(Double.NEGATIVE_INFINITY, fastWToDba(0), 0);
+        assertTrue(Double.isNaN(fastWToDba(-1)));
+        assertTrue(Double.isNaN(fastDbaToW(Double.NaN)));
+        assertEquals(0, fastDbaToW(Double.NEGATIVE_INFINITY), 0);
+        assertEquals(Double.POSITIVE_INFINITY, fastDbaToW(Double.POSITIVE_INFINITY), 0);
+        assertEquals(dbaToW(-3200), fastDbaToW(-3200), 0);
+        assertEquals(wToDba(Double.MIN_VALUE), fastWToDba(Double.MIN_VALUE), 0);
+        assertEquals(1, fastDbaToW(0), 0);
+        assertEquals(0, fastWToDba(1), 0);
+    }
+
+    @Test
+    public void testInPlace() {
+        double[] a = new double[] {93, 94, 95, 96, 97, 98, 99, 100};
+        double[] b = new double[] {83, 81, 98, 96, 57, 18, 99, 101};
+        double[] out = a.clone();
+        assertArrayEquals(sumDbArray(a, b), sumDbArray(out, b, out), 0);
+        out = b.clone();
+        assertArrayEquals(sumArrayWithPonderation(a, b, 0.3), sumArrayWithPonderation(a, out, 0.3, out), 0);
+        out = a.clone();
+        assertArrayEquals(sumArray(a, b), sumArray(out, b, out), 0);
+        out = a.clone();
+        assertArrayEquals(multArray(a, b), multArray(out, b, out), 0);
+        out = a.clone();
+        assertArrayEquals(dbaToW(a), dbaToW(out, out), 0);
+        assertArrayEquals(wToDba(dbaToW(a)), wToDba(out, out), 0);
+        double[] levels = new double[a.length];
+        double[] expected = sumArray(levels, dbaToW(sumArray(wToDba(dbaToW(a)), b)));
+        addAttenuatedEnergy(levels, dbaToW(a), b);
+        for(int i = 0; i < levels.length; i++) {
+            assertEquals(expected[i], levels[i], expected[i] * 1e-8);
+        }
+    }
+
+    /**
+     * Compare the energetic sum of spectrum with allocation and exact conversion to the in place fast conversion
+     */
+    @Test
+    public void benchmarkSpectrumSum() {
+        Random random = new Random(42);
+        for(int bandCount : new int[] {8, 18}) {
+            double[][] spectrums = new double[10000][bandCount];
+            for (double[] spectrum : spectrums) {
+                for(int i = 0; i < bandCount; i++) {
+                    spectrum[i] = random.nextDouble() * 100;
+                }
+            }
+            int loops = 20;
+            int startLoop = 10;
+            long allocTime = 0;
+            long inPlaceTime = 0;
+            double[] sum = new double[bandCount];
+            double[] energy = new double[bandCount];
+            for(int loop = 0; loop < loops; loop++) {
+                long start = System.nanoTime();
+                double[] allocSum = new double[bandCount];
+                for (double[] spectrum : spectrums) {
+                    allocSum = sumArray(allocSum, dbaToW(spectrum));
+                }
+                long allocEnd = System.nanoTime();
+                Arrays.fill(energy, 0);
+                for (double[] spectrum : spectrums) {
+                    for(int i = 0; i < bandCount; i++) {
+                        energy[i] += fastDbaToW(spectrum[i]);
+                    }
+                }
+                fastWToDba(energy, sum);
+                if(loop >= startLoop) {
+                    allocTime += allocEnd - start;
+                    inPlaceTime += System.nanoTime() - allocEnd;
+                }
+                assertArrayEquals(wToDba(allocSum), sum, 1e-6);
+            }
+            logger.info(String.format(Locale.ROOT, "%d bands spectrum sum in %.1f ns with allocation, %.1f ns in place",
+                    bandCount, allocTime / (double) ((loops - startLoop) * spectrums.length),
+                    inPlaceTime / (double) ((loops - startLoop) * spectrums.length)));
+        }
+    }
+}
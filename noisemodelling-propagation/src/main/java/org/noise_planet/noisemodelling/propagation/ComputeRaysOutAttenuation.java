@@ -90,6 +90,8 @@ public class ComputeRaysOutAttenuation implements IComputeRaysOut {
     public AtomicLong nb_reflexion_path = new AtomicLong();
     public AtomicLong nb_diffraction_path = new AtomicLong();
     public AtomicInteger cellComputed = new AtomicInteger();
+    /** Attenuation evaluators of each computation thread, internal buffers are reused from one path to the next */
+    private final ThreadLocal<List<EvaluateAttenuationCnossos>> threadEvaluators = ThreadLocal.withInitial(ArrayList::new);
     private static final double angle_section = (2 * Math.PI) / PropagationProcessPathData.DEFAULT_WIND_ROSE.length;
 
     /**
@@ -132,6 +134,22 @@ public class ComputeRaysOutAttenuation implements IComputeRaysOut {
 
     }
 
+    /**
+     * @param data Frequencies and sound celerity
+     * @return Attenuation evaluator of the calling thread compatible with the provided data
+     */
+    protected EvaluateAttenuationCnossos getEvaluator(PropagationProcessPathData data) {
+        List<EvaluateAttenuationCnossos> evaluators = threadEvaluators.get();
+        for (EvaluateAttenuationCnossos evaluator : evaluators) {
+            if (evaluator.isCompatible(data)) {
+                return evaluator;
+            }
+        }
+        EvaluateAttenuationCnossos evaluator = new EvaluateAttenuationCnossos(data);
+        evaluators.add(evaluator);
+        return evaluator;
+    }
+
     public CnossosPropagationData getInputData() {
         return inputData;
     }
@@ -164,6 +182,47 @@ public class ComputeRaysOutAttenuation implements IComputeRaysOut {
         if (data == null) {
             return new double[0];
         }
+        return computeAttenuation(new PropagationProcessPathData[] {data}, sourceId, sourceLi, receiverId,
+                propagationPath)[0];
+    }
+
+    /**
+     * Check if the attenuation of several meteorological conditions can be evaluated in a single pass.
+     * The ground and diffraction terms depend on the frequencies and on the sound celerity, so they can be shared
+     * only if theses parameters are identical.
+     * @param dataList Meteorological conditions
+     * @return True if {@link #computeAttenuation(PropagationProcessPathData[], long, double, long, List)} can be used
+     */
+    public static boolean isSinglePassCompatible(PropagationProcessPathData... dataList) {
+        if (dataList[0] == null) {
+            return false;
+        }
+        EvaluateAttenuationCnossos evaluator = new EvaluateAttenuationCnossos(dataList[0]);
+        for (PropagationProcessPathData data : dataList) {
+            if (!evaluator.isCompatible(data)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Compute the attenuation for several meteorological conditions (ex. day, evening, night). The terms that depend
+     * only on the path geometry (divergence, reflection, ground and diffraction) are evaluated once for each path,
+     * then the atmospheric absorption and the wind rose weighting are applied for each condition.
+     * The provided conditions must share the same frequencies and sound celerity.
+     * @see #isSinglePassCompatible(PropagationProcessPathData...)
+     * @param dataList Meteorological conditions
+     * @param sourceId Source index
+     * @param sourceLi Source length coefficient
+     * @param receiverId Receiver index
+     * @param propagationPath Propagation paths between the source and the receiver
+     * @return Attenuation spectrum for each meteorological condition, in the same order as dataList
+     */
+    public double[][] computeAttenuation(PropagationProcessPathData[] dataList, long sourceId, double sourceLi, long receiverId, List<PropagationPath> propagationPath) {
+        // geometric terms are evaluated using the first condition
+        PropagationProcessPathData data = dataList[0];
+        EvaluateAttenuationCnossos evaluator = getEvaluator(data);
         // cache frequencies
         double[] frequencies = new double[0];
         if(inputData != null) {
@@ -173,26 +232,23 @@ public class ComputeRaysOutAttenuation implements IComputeRaysOut {
             }
         }
         // Compute receiver/source attenuation
-        double[] propagationAttenuationSpectrum = null;
+        double[][] propagationAttenuationSpectrum = new double[dataList.length][];
         for (PropagationPath proPath : propagationPath) {
             if(keepAbsorption) {
                 proPath.keepAbsorption = true;
                 proPath.groundAttenuation.init(data.freq_lvl.size());
                 proPath.absorptionData.init(data.freq_lvl.size());
             }
-            EvaluateAttenuationCnossos.init(data);
             //ADiv computation
-            double[] aDiv = EvaluateAttenuationCnossos.aDiv(proPath, data);
-            //AAtm computation
-            double[] aAtm = EvaluateAttenuationCnossos.aAtm(data, proPath.getSRSegment().d);
+            double[] aDiv = evaluator.computeADiv(proPath);
             //Reflexion computation
-            double[] aRef = EvaluateAttenuationCnossos.evaluateAref(proPath, data);
-            double[] aRetroDiff;
+            double[] aRef = evaluator.computeARef(proPath);
             //ABoundary computation
-            double[] aBoundary;
-            double[] aGlobalMeteoHom = new double[data.freq_lvl.size()];
-            double[] aGlobalMeteoFav = new double[data.freq_lvl.size()];
-            double[] deltaBodyScreen = new double[data.freq_lvl.size()];
+            double[] aBoundaryH = null;
+            double[] aBoundaryF = null;
+            double[] aRetroDiff = null;
+            // null if there is no body barrier
+            double[] deltaBodyScreen = null;
 
             List<PointPath> ptList = proPath.getPointList();
 
@@ -304,80 +360,116 @@ public class ComputeRaysOutAttenuation implements IComputeRaysOut {
             Vector3D fieldVectorPropagation = Orientation.rotate(proPath.getSourceOrientation(),
                     Orientation.toVector(proPath.raySourceReceiverDirectivity), false);
             int roseIndex = getRoseIndex(Math.atan2(fieldVectorPropagation.getY(), fieldVectorPropagation.getX()));
+            boolean homogenous = false;
+            boolean favorable = false;
+            for (PropagationProcessPathData meteoData : dataList) {
+                homogenous |= meteoData.getWindRose()[roseIndex] != 1;
+                favorable |= meteoData.getWindRose()[roseIndex] != 0;
+            }
+            if (homogenous || favorable) {
+                aRetroDiff = evaluator.computeDeltaRetrodif(proPath);
+            }
             // Homogenous conditions
-            if (data.getWindRose()[roseIndex] != 1) {
+            if (homogenous) {
                 proPath.setFavorable(false);
-
-                aBoundary = EvaluateAttenuationCnossos.aBoundary(proPath, data);
-                aRetroDiff = EvaluateAttenuationCnossos.deltaRetrodif(proPath, data);
-                for (int idfreq = 0; idfreq < data.freq_lvl.size(); idfreq++) {
-                    aGlobalMeteoHom[idfreq] = -(aDiv[idfreq] + aAtm[idfreq] + aBoundary[idfreq] + aRef[idfreq] + aRetroDiff[idfreq] - deltaBodyScreen[idfreq]); // Eq. 2.5.6
-                }
+                aBoundaryH = evaluator.computeABoundary(proPath);
                 //For testing purpose
                 if(keepAbsorption) {
-                    proPath.absorptionData.aBoundaryH = aBoundary.clone();
-                    proPath.absorptionData.aGlobalH = aGlobalMeteoHom.clone();
+                    proPath.absorptionData.aBoundaryH = aBoundaryH.clone();
                 }
             }
             // Favorable conditions
-            if (data.getWindRose()[roseIndex] != 0) {
+            if (favorable) {
                 proPath.setFavorable(true);
-                aBoundary = EvaluateAttenuationCnossos.aBoundary(proPath, data);
-                aRetroDiff = EvaluateAttenuationCnossos.deltaRetrodif(proPath, data);
-                for (int idfreq = 0; idfreq < data.freq_lvl.size(); idfreq++) {
-                    aGlobalMeteoFav[idfreq] = -(aDiv[idfreq] + aAtm[idfreq] + aBoundary[idfreq]+ aRef[idfreq] + aRetroDiff[idfreq] -deltaBodyScreen[idfreq]); // Eq. 2.5.8
-                }
+                aBoundaryF = evaluator.computeABoundary(proPath);
                 //For testing purpose
                 if(keepAbsorption) {
-                    proPath.absorptionData.aBoundaryF = aBoundary.clone();
-                    proPath.absorptionData.aGlobalF = aGlobalMeteoFav.clone();
+                    proPath.absorptionData.aBoundaryF = aBoundaryF.clone();
                 }
             }
 
-            //For testing purpose
-            if(keepAbsorption) {
-                proPath.keepAbsorption = true;
-                proPath.absorptionData.aDiv = aDiv.clone();
-                proPath.absorptionData.aAtm = aAtm.clone();
-            }
-
-            // Compute attenuation under the wind conditions using the ray direction
-            double[] aGlobalMeteoRay = sumArrayWithPonderation(aGlobalMeteoFav, aGlobalMeteoHom, data.getWindRose()[roseIndex]);
-
             // Apply attenuation due to sound direction
+            double[] attSource = null;
             if(inputData != null && !inputData.isOmnidirectional((int)sourceId)) {
                 Orientation directivityToPick = proPath.raySourceReceiverDirectivity;
-                double[] attSource = inputData.getSourceAttenuation((int) sourceId,
+                attSource = inputData.getSourceAttenuation((int) sourceId,
                         frequencies, Math.toRadians(directivityToPick.yaw),
                         Math.toRadians(directivityToPick.pitch));
                 if(keepAbsorption) {
                     proPath.absorptionData.aSource = attSource;
                 }
-                aGlobalMeteoRay = sumArray(aGlobalMeteoRay, attSource);
             }
 
-            // For line source, take account of li coefficient
-            if(sourceLi > 1.0) {
-                for (int i = 0; i < aGlobalMeteoRay.length; i++) {
-                    aGlobalMeteoRay[i] = wToDba(dbaToW(aGlobalMeteoRay[i]) * sourceLi);
+            // Apply meteorological dependent terms
+            for (int idData = 0; idData < dataList.length; idData++) {
+                PropagationProcessPathData meteoData = dataList[idData];
+                //AAtm computation
+                double[] aAtm = evaluator.computeAAtm(meteoData, proPath.getSRSegment().d);
+                double p = meteoData.getWindRose()[roseIndex];
+                double[] aGlobalMeteoHom = null;
+                double[] aGlobalMeteoFav = null;
+                //For testing purpose
+                if(keepAbsorption) {
+                    aGlobalMeteoHom = p != 1 ? new double[data.freq_lvl.size()] : null;
+                    aGlobalMeteoFav = p != 0 ? new double[data.freq_lvl.size()] : null;
+                }
+                double[] aGlobalMeteoRay = new double[data.freq_lvl.size()];
+                for (int idfreq = 0; idfreq < aGlobalMeteoRay.length; idfreq++) {
+                    double bodyScreen = deltaBodyScreen == null ? 0 : deltaBodyScreen[idfreq];
+                    double aGlobalHom = 0;
+                    double aGlobalFav = 0;
+                    if (p != 1) {
+                        aGlobalHom = -(aDiv[idfreq] + aAtm[idfreq] + aBoundaryH[idfreq] + aRef[idfreq] + aRetroDiff[idfreq] - bodyScreen); // Eq. 2.5.6
+                    }
+                    if (p != 0) {
+                        aGlobalFav = -(aDiv[idfreq] + aAtm[idfreq] + aBoundaryF[idfreq] + aRef[idfreq] + aRetroDiff[idfreq] - bodyScreen); // Eq. 2.5.8
+                    }
+                    if (aGlobalMeteoHom != null) {
+                        aGlobalMeteoHom[idfreq] = aGlobalHom;
+                    }
+                    if (aGlobalMeteoFav != null) {
+                        aGlobalMeteoFav[idfreq] = aGlobalFav;
+                    }
+                    // Compute attenuation under the wind conditions using the ray direction
+                    double level = wToDba(p * dbaToW(aGlobalFav) + (1 - p) * dbaToW(aGlobalHom));
+                    if (attSource != null) {
+                        level += attSource[idfreq];
+                    }
+                    // For line source, take account of li coefficient
+                    if (sourceLi > 1.0) {
+                        level = wToDba(dbaToW(level) * sourceLi);
+                    }
+                    aGlobalMeteoRay[idfreq] = level;
                 }
-            }
-            // Keep global attenuation
-            if(keepAbsorption) {
-                proPath.absorptionData.aGlobal = aGlobalMeteoRay.clone();
-            }
 
-            if (propagationAttenuationSpectrum != null) {
-                propagationAttenuationSpectrum = sumDbArray(aGlobalMeteoRay, propagationAttenuationSpectrum);
-            } else {
-                propagationAttenuationSpectrum = aGlobalMeteoRay;
+                //For testing purpose
+                if(keepAbsorption) {
+                    proPath.keepAbsorption = true;
+                    if (aGlobalMeteoHom != null) {
+                        proPath.absorptionData.aGlobalH = aGlobalMeteoHom;
+                    }
+                    if (aGlobalMeteoFav != null) {
+                        proPath.absorptionData.aGlobalF = aGlobalMeteoFav;
+                    }
+                    proPath.absorptionData.aDiv = aDiv.clone();
+                    proPath.absorptionData.aAtm = aAtm.clone();
+                    // Keep global attenuation
+                    proPath.absorptionData.aGlobal = aGlobalMeteoRay.clone();
+                }
+
+                if (propagationAttenuationSpectrum[idData] != null) {
+                    sumDbArray(propagationAttenuationSpectrum[idData], aGlobalMeteoRay, propagationAttenuationSpectrum[idData]);
+                } else {
+                    propagationAttenuationSpectrum[idData] = aGlobalMeteoRay;
+                }
             }
         }
-        if (propagationAttenuationSpectrum != null) {
-            return propagationAttenuationSpectrum;
-        } else {
-            return new double[0];
+        for (int idData = 0; idData < propagationAttenuationSpectrum.length; idData++) {
+            if (propagationAttenuationSpectrum[idData] == null) {
+                propagationAttenuationSpectrum[idData] = new double[0];
+            }
         }
+        return propagationAttenuationSpectrum;
     }
 
     @Override
@@ -51,18 +51,62 @@ import static org.noise_planet.noisemodelling.pathfinder.PointPath.POINT_TYPE.*;
  * Return the dB value corresponding to the parameters
  * Following Directive 2015/996/EN
  * https://circabc.europa.eu/sd/a/9566c5b9-8607-4118-8427-906dab7632e2/Directive_2015_996_EN.pdf
+ *
+ * Static methods allocate their results. An instance evaluates the attenuation terms into per-frequency buffers
+ * that are reused from one path to the next, so an instance must not be shared between threads.
  * @author Pierre Aumond
  */
 
 public class EvaluateAttenuationCnossos {
-    private static double[] freq_lambda;
-    private static double[] aGlobal;
+    private static final Logger LOGGER = LoggerFactory.getLogger(EvaluateAttenuationCnossos.class);
 
-    public static double[] getaGlobal() {
-        return aGlobal;
+    private final PropagationProcessPathData data;
+    private final List<Integer> freqLvl;
+    private final double celerity;
+    // Per-frequency buffers, the content is only valid until the next call of the same method
+    private final double[] aDiv;
+    private final double[] aAtm;
+    private final double[] aRef;
+    private final double[] aBoundaryH;
+    private final double[] aBoundaryF;
+    private final double[] aRetroDiff;
+    private final double[] aGround;
+    private final double[] aDif;
+    private final double[] cfKValues = new double[3];
+    private final List<PointPath> diffPts = new ArrayList<>();
+
+    /**
+     * @param data Frequencies and sound celerity used to evaluate the attenuation terms
+     */
+    public EvaluateAttenuationCnossos(PropagationProcessPathData data) {
+        this.data = data;
+        this.freqLvl = new ArrayList<>(data.freq_lvl);
+        this.celerity = data.getCelerity();
+        int freqCount = freqLvl.size();
+        aDiv = new double[freqCount];
+        aAtm = new double[freqCount];
+        aRef = new double[freqCount];
+        aBoundaryH = new double[freqCount];
+        aBoundaryF = new double[freqCount];
+        aRetroDiff = new double[freqCount];
+        aGround = new double[freqCount];
+        aDif = new double[freqCount];
     }
 
-    private static final Logger LOGGER = LoggerFactory.getLogger(EvaluateAttenuationCnossos.class);
+    /**
+     * @return Frequencies and sound celerity used to evaluate the attenuation terms
+     */
+    public PropagationProcessPathData getData() {
+        return data;
+    }
+
+    /**
+     * @param other Meteorological data
+     * @return True if this evaluator give the same results with the provided data (same frequencies and celerity)
+     */
+    public boolean isCompatible(PropagationProcessPathData other) {
+        return other != null && freqLvl.equals(other.freq_lvl) && Double.compare(celerity, other.getCelerity()) == 0;
+    }
 
     /**
      * Eq 2.5.21
@@ -75,16 +119,17 @@ public class EvaluateAttenuationCnossos {
         double cprime;
 
         for (int idfreq = 0; idfreq < data.freq_lvl.size(); idfreq++) {
+            double freqLambda = data.freq_lvl.get(idfreq) > 0 ? data.getCelerity() / data.freq_lvl.get(idfreq) : 1;
             double Ch = 1; // Eq 2.5.21
             if (srpath.eLength > 0.3) {
-                double gammaPart = pow((5 * freq_lambda[idfreq]) / srpath.eLength, 2);
+                double gammaPart = pow((5 * freqLambda) / srpath.eLength, 2);
                 cprime = (1. + gammaPart) / (1./3. + gammaPart); // Eq. 2.5.23
             } else {
                 cprime = 1.;
             }
 
             //(7.11) NMP2008 P.32
-            double testForm = (40 / freq_lambda[idfreq])
+            double testForm = (40 / freqLambda)
                     * cprime * srpath.getDelta();
 
             double deltaDif = 0.;
@@ -217,9 +262,12 @@ public class EvaluateAttenuationCnossos {
      * @return
      */
     private static double[] getARef(PropagationPath path, PropagationProcessPathData data) {
-        double[] aRef = new double[data.freq_lvl.size()];
+        return getARef(path, new double[data.freq_lvl.size()]);
+    }
+
+    private static double[] getARef(PropagationPath path, double[] aRef) {
         Arrays.fill(aRef, 0.0);
-        for (int idf = 0; idf < data.freq_lvl.size(); idf++) {
+        for (int idf = 0; idf < aRef.length; idf++) {
             for (int idRef = 0; idRef < path.refPoints.size(); idRef++) {
                 List<Double> alpha = path.getPointList().get(path.refPoints.get(idRef)).alphaWall;
                 if(alpha != null && !alpha.isEmpty()) {
@@ -382,31 +430,23 @@ public class EvaluateAttenuationCnossos {
         return aBoundary;
     }
 
-    /**
-     *
-     * @param data
-     */
-    public static void init(PropagationProcessPathData data) {
-        // init
-        aGlobal = new double[data.freq_lvl.size()];
-
-        // Init wave length for each frequency
-        freq_lambda = new double[data.freq_lvl.size()];
-        for (int idf = 0; idf < data.freq_lvl.size(); idf++) {
-            if (data.freq_lvl.get(idf) > 0) {
-                freq_lambda[idf] = data.getCelerity() / data.freq_lvl.get(idf);
-            } else {
-                freq_lambda[idf] = 1;
-            }
-        }
+    public static double[] aDiv(PropagationPath path, PropagationProcessPathData data) {
+        return aDiv(path, new double[data.freq_lvl.size()]);
     }
 
-    public static double[] aDiv(PropagationPath path, PropagationProcessPathData data) {
-        double[] aDiv = new double[data.freq_lvl.size()];
+    private static double[] aDiv(PropagationPath path, double[] aDiv) {
         Arrays.fill(aDiv, getADiv(path.difVPoints.isEmpty() ? path.getSRSegment().d : path.getSRSegment().dc));
         return aDiv;
     }
 
+    /**
+     * @param path Propagation path
+     * @return Geometric divergence attenuation, buffer owned by this evaluator
+     */
+    public double[] computeADiv(PropagationPath path) {
+        return aDiv(path, aDiv);
+    }
+
     /**
      *
      * @param data
@@ -414,17 +454,25 @@ public class EvaluateAttenuationCnossos {
      * @return
      */
     public static double[] aAtm(PropagationProcessPathData data, double distance) {
-        // init
-        double[] aAtm = new double[data.freq_lvl.size()];
-        // init atmosphere
-        double[] alpha_atmo = data.getAlpha_atmo();
+        return aAtm(data.getAlpha_atmo(), distance, new double[data.freq_lvl.size()]);
+    }
 
-        for (int idfreq = 0; idfreq < data.freq_lvl.size(); idfreq++) {
+    private static double[] aAtm(double[] alpha_atmo, double distance, double[] aAtm) {
+        for (int idfreq = 0; idfreq < aAtm.length; idfreq++) {
             aAtm[idfreq] = getAAtm(distance, alpha_atmo[idfreq]);
         }
         return aAtm;
     }
 
+    /**
+     * @param meteoData Atmospheric conditions, must have the same frequencies as this evaluator
+     * @param distance Propagation distance
+     * @return Atmospheric absorption, buffer owned by this evaluator
+     */
+    public double[] computeAAtm(PropagationProcessPathData meteoData, double distance) {
+        return aAtm(meteoData.getAlpha_atmo(), distance, aAtm);
+    }
+
     /**
      *
      * @param path
@@ -435,6 +483,14 @@ public class EvaluateAttenuationCnossos {
         return getARef(path, data);
     }
 
+    /**
+     * @param path Propagation path
+     * @return Reflection attenuation, buffer owned by this evaluator
+     */
+    public double[] computeARef(PropagationPath path) {
+        return getARef(path, aRef);
+    }
+
     /**
      * Only for propagation Path Cnossos
      * // todo erase evaluate
@@ -444,20 +500,10 @@ public class EvaluateAttenuationCnossos {
      */
     public static double[] evaluate(PropagationPath path, PropagationProcessPathData data) {
         // init
-        aGlobal = new double[data.freq_lvl.size()];
+        double[] aGlobal = new double[data.freq_lvl.size()];
         double[] aBoundary;
         double[] aRef;
 
-        // Init wave length for each frequency
-        freq_lambda = new double[data.freq_lvl.size()];
-        for (int idf = 0; idf < data.freq_lvl.size(); idf++) {
-            if (data.freq_lvl.get(idf) > 0) {
-                freq_lambda[idf] = data.getCelerity() / data.freq_lvl.get(idf);
-            } else {
-                freq_lambda[idf] = 1;
-            }
-        }
-
         // init atmosphere
         double[] alpha_atmo = data.getAlpha_atmo();
 
@@ -499,9 +545,16 @@ public class EvaluateAttenuationCnossos {
     }
 
     public static double[] aBoundary(PropagationPath path, PropagationProcessPathData data) {
-        double[] aGround = new double[data.freq_lvl.size()];
-        double[] aDif = new double[data.freq_lvl.size()];
-        List<PointPath> diffPts = new ArrayList<>();
+        return new EvaluateAttenuationCnossos(data).computeABoundary(path);
+    }
+
+    /**
+     * @param path Propagation path, the favorable state of the path select the homogeneous or favorable conditions
+     * @return Ground and diffraction attenuation, buffer owned by this evaluator. Homogeneous and favorable
+     * conditions use distinct buffers.
+     */
+    public double[] computeABoundary(PropagationPath path) {
+        diffPts.clear();
         for(int i=0; i<path.getPointList().size(); i++) {
             if(path.difHPoints.contains(i)) {
                 diffPts.add(path.getPointList().get(i));
@@ -514,16 +567,17 @@ public class EvaluateAttenuationCnossos {
         path.aBoundaryF.init(data.freq_lvl.size());
         // Without diff
         for(int i=0; i<data.freq_lvl.size(); i++) {
-            int finalI = i;
-            PointPath first = diffPts.stream()
-                    .filter(pp -> pp.type.equals(PointPath.POINT_TYPE.DIFH) || pp.type.equals(DIFV) ||
-                            (pp.type.equals(DIFH_RCRIT) &&
-                                    isValidRcrit(path, data.freq_lvl.get(finalI), path.isFavorable())))
-                    .findFirst()
-                    .orElse(null);
+            PointPath first = null;
+            for(PointPath pp : diffPts) {
+                if(pp.type.equals(PointPath.POINT_TYPE.DIFH) || pp.type.equals(DIFV) ||
+                        (pp.type.equals(DIFH_RCRIT) && isValidRcrit(path, data.freq_lvl.get(i), path.isFavorable()))) {
+                    first = pp;
+                    break;
+                }
+            }
             aGround[i] = path.isFavorable() ?
-                    aGroundF(path, path.getSRSegment(), data, i) :
-                    aGroundH(path, path.getSRSegment(), data, i);
+                    aGroundF(path, path.getSRSegment(), data, i, false, cfKValues) :
+                    aGroundH(path, path.getSRSegment(), data, i, false, cfKValues);
             if(path.groundAttenuation != null && path.groundAttenuation.aGroundF != null) {
                 if (path.isFavorable()) {
                     path.groundAttenuation.aGroundF[i] = aGround[i];
@@ -532,7 +586,7 @@ public class EvaluateAttenuationCnossos {
                 }
             }
             if (first != null) {
-                aDif[i] = aDif(path, data, i, first.type);
+                aDif[i] = aDif(path, i, first.type);
                 if(!first.type.equals(DIFV)) {
                     aGround[i] = 0.;
                 }
@@ -545,12 +599,12 @@ public class EvaluateAttenuationCnossos {
         }
         if(path.keepAbsorption) {
             if (path.isFavorable()) {
-                path.absorptionData.aDifF = aDif;
+                path.absorptionData.aDifF = aDif.clone();
             } else {
-                path.absorptionData.aDifH = aDif;
+                path.absorptionData.aDifH = aDif.clone();
             }
         }
-        double[] aBoundary = new double[data.freq_lvl.size()];
+        double[] aBoundary = path.isFavorable() ? aBoundaryF : aBoundaryH;
         for(int i=0; i<data.freq_lvl.size(); i++) {
             aBoundary[i] = aGround[i] + aDif[i];
         }
@@ -558,8 +612,19 @@ public class EvaluateAttenuationCnossos {
     }
 
     public static double[] deltaRetrodif(PropagationPath reflect, PropagationProcessPathData data) {
+        return deltaRetrodif(reflect, data.freq_lvl, new double[data.freq_lvl.size()]);
+    }
+
+    /**
+     * The retro-diffraction does not depend on the meteorological conditions
+     * @param reflect Propagation path
+     * @return Retro-diffraction attenuation, buffer owned by this evaluator
+     */
+    public double[] computeDeltaRetrodif(PropagationPath reflect) {
+        return deltaRetrodif(reflect, freqLvl, aRetroDiff);
+    }
 
-        double[] retroDiff = new double[data.freq_lvl.size()];
+    private static double[] deltaRetrodif(PropagationPath reflect, List<Integer> freqLvl, double[] retroDiff) {
         Arrays.fill(retroDiff, 0.);
         Coordinate s = reflect.getSRSegment().s;
         Coordinate r = reflect.getSRSegment().r;
@@ -571,8 +636,8 @@ public class EvaluateAttenuationCnossos {
             //Compute de distance delta (2.5.36)
             double deltaPrime = -(s.distance(o) + o.distance(r) - reflect.getSRSegment().d);
             double ch = 1.;
-            for (int i = 0; i < data.freq_lvl.size(); i++) {
-                double lambda = 340.0 / data.freq_lvl.get(i);
+            for (int i = 0; i < retroDiff.length; i++) {
+                double lambda = 340.0 / freqLvl.get(i);
                 double testForm = 40.0 / lambda * deltaPrime;
                 double dLRetro = testForm >= -2 ? 10 * ch * log10(3 + testForm) : 0;
                 retroDiff[i] = dLRetro;
@@ -580,14 +645,14 @@ public class EvaluateAttenuationCnossos {
         }
         if (reflect.keepAbsorption) {
             if (reflect.reflectionAttenuation.dLRetro == null) {
-                reflect.reflectionAttenuation.init(data.freq_lvl.size());
+                reflect.reflectionAttenuation.init(retroDiff.length);
             }
-            reflect.reflectionAttenuation.dLRetro = retroDiff;
+            reflect.reflectionAttenuation.dLRetro = retroDiff.clone();
         }
         return retroDiff;
     }
 
-    private static double aDif(PropagationPath proPath, PropagationProcessPathData data, int i, PointPath.POINT_TYPE type) {
+    private double aDif(PropagationPath proPath, int i, PointPath.POINT_TYPE type) {
         SegmentPath first = proPath.getSegmentList().get(0);
         SegmentPath last = proPath.getSegmentList().get(proPath.getSegmentList().size()-1);
 
@@ -624,8 +689,10 @@ public class EvaluateAttenuationCnossos {
         testForm = 40/lambda*cSecond*_delta;
         double deltaDiffSRPrime = testForm>=-2 ? 10*ch*log10(3+testForm) : 0;
 
-        double aGroundSO = proPath.isFavorable() ? aGroundF(proPath, first, data, i) : aGroundH(proPath, first, data, i);
-        double aGroundOR = proPath.isFavorable() ? aGroundF(proPath, last, data, i, true) : aGroundH(proPath, last, data, i, true);
+        double aGroundSO = proPath.isFavorable() ? aGroundF(proPath, first, data, i, false, cfKValues) :
+                aGroundH(proPath, first, data, i, false, cfKValues);
+        double aGroundOR = proPath.isFavorable() ? aGroundF(proPath, last, data, i, true, cfKValues) :
+                aGroundH(proPath, last, data, i, true, cfKValues);
 
         //If the source or the receiver are under the mean plane, change the computation of deltaDffSR and deltaGround
         double deltaGroundSO = -20*log10(1+(pow(10, -aGroundSO/20)-1)*pow(10, -(deltaDiffSPrimeR-deltaDiffSR)/20));
@@ -670,10 +737,14 @@ public class EvaluateAttenuationCnossos {
         return aDiff;
     }
 
-    private static double[] computeCfKValues(PropagationPath proPath, SegmentPath path, PropagationProcessPathData data, int idFreq) {
-        return computeCfKValues(proPath, path, data, idFreq, false);
+    private static double[] computeCfKValues(PropagationPath proPath, SegmentPath path, PropagationProcessPathData data, int idFreq, double[] values) {
+        return computeCfKValues(proPath, path, data, idFreq, false, values);
     }
-    private static double[] computeCfKValues(PropagationPath proPath, SegmentPath path, PropagationProcessPathData data, int idFreq, boolean forceGPath) {
+
+    /**
+     * @param values Output array of length 3 that receive cf, k and w values
+     */
+    private static double[] computeCfKValues(PropagationPath proPath, SegmentPath path, PropagationProcessPathData data, int idFreq, boolean forceGPath, double[] values) {
         int fm = data.freq_lvl.get(idFreq);
         double c = data.getCelerity();
         double dp = path.dp;
@@ -682,7 +753,10 @@ public class EvaluateAttenuationCnossos {
         double w = 0.0185 * pow(fm, 2.5) * pow(gw, 2.6) /
                 (pow(fm, 1.5) * pow(gw, 2.6) + 1.3e3 * pow(fm, 0.75) * pow(gw, 1.3) + 1.16e6);
         double cf = dp * (1 + 3 * w * dp * exp(-sqrt(w * dp))) / (1 + w * dp);
-        return new double[]{cf, k, w};
+        values[0] = cf;
+        values[1] = k;
+        values[2] = w;
+        return values;
     }
 
     public static double aGroundH(PropagationPath proPath, SegmentPath path, PropagationProcessPathData data, int idFreq) {
@@ -690,7 +764,11 @@ public class EvaluateAttenuationCnossos {
     }
 
     public static double aGroundH(PropagationPath proPath, SegmentPath path, PropagationProcessPathData data, int idFreq, boolean forceGPath) {
-        double[] values = computeCfKValues(proPath, path, data, idFreq, forceGPath);
+        return aGroundH(proPath, path, data, idFreq, forceGPath, new double[3]);
+    }
+
+    private static double aGroundH(PropagationPath proPath, SegmentPath path, PropagationProcessPathData data, int idFreq, boolean forceGPath, double[] cfKValues) {
+        double[] values = computeCfKValues(proPath, path, data, idFreq, forceGPath, cfKValues);
         double cf = values[0];
         double k = values[1];
         double w = values[2];
@@ -717,7 +795,11 @@ public class EvaluateAttenuationCnossos {
         return aGroundF(proPath, path, data, idFreq, false);
     }
     public static double aGroundF(PropagationPath proPath, SegmentPath path, PropagationProcessPathData data, int idFreq, boolean forceGPath) {
-        double[] values = computeCfKValues(proPath, path, data, idFreq);
+        return aGroundF(proPath, path, data, idFreq, forceGPath, new double[3]);
+    }
+
+    private static double aGroundF(PropagationPath proPath, SegmentPath path, PropagationProcessPathData data, int idFreq, boolean forceGPath, double[] cfKValues) {
+        double[] values = computeCfKValues(proPath, path, data, idFreq, cfKValues);
         double cf = values[0];
         double k = values[1];
         double w = values[2];
@@ -0,0 +1,154 @@
+package org.noise_planet.noisemodelling.propagation;
+
+import org.junit.Test;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.noise_planet.noisemodelling.pathfinder.CnossosPropagationData;
+import org.noise_planet.noisemodelling.pathfinder.ComputeCnossosRays;
+import org.noise_planet.noisemodelling.pathfinder.ProfileBuilder;
+import org.noise_planet.noisemodelling.pathfinder.utils.PowerUtils;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Far sources clustering error on the scenes of the CNOSSOS-EU test cases of TestComputeCnossosRays.
+ * The point source of each test case is replaced by a road discretized every meter, so that the far road points
+ * are clustered. TC10 to TC12 and TC14 are not used, the receiver is too close to the road to have far sources.
+ */
+public class SourceClusteringTest {
+    private static final GeometryFactory FACTORY = new GeometryFactory();
+    /** Maximum error of the receiver level, in dB */
+    private static final double MAXIMUM_ERROR = 0.1;
+    private static final double CLUSTERING_DISTANCE = 100;
+
+    private static void addTopography(ProfileBuilder profileBuilder) {
+        Coordinate[] topography = new Coordinate[] {new Coordinate(0, 80, 0), new Coordinate(225, 80, 0),
+                new Coordinate(225, -20, 0), new Coordinate(0, -20, 0), new Coordinate(120, -20, 0),
+                new Coordinate(120, 80, 0), new Coordinate(185, -5, 10), new Coordinate(205, -5, 10),
+                new Coordinate(205, 75, 10), new Coordinate(185, 75, 10)};
+        for(Coordinate coordinate : topography) {
+            profileBuilder.addTopographicPoint(coordinate);
+        }
+    }
+
+    private static void addGroundEffects(ProfileBuilder profileBuilder, double minY, double maxY) {
+        profileBuilder.addGroundEffect(FACTORY.toGeometry(new Envelope(0, 50, minY, maxY)), 0.9);
+        profileBuilder.addGroundEffect(FACTORY.toGeometry(new Envelope(50, 150, minY, maxY)), 0.5);
+        profileBuilder.addGroundEffect(FACTORY.toGeometry(new Envelope(150, 225, minY, maxY)), 0.2);
+    }
+
+    private static ProfileBuilder createBuilder(boolean topography, double groundMinY, double groundMaxY,
+                                                Coordinate[][] buildings, double[] heights) {
+        ProfileBuilder profileBuilder = new ProfileBuilder();
+        for(int i = 0; i < buildings.length; i++) {
+            profileBuilder.addBuilding(FACTORY.createPolygon(buildings[i]), heights[i], -1);
+        }
+        if(topography) {
+            addTopography(profileBuilder);
+        }
+        addGroundEffects(profileBuilder, groundMinY, groundMaxY);
+        profileBuilder.finishFeeding();
+        return profileBuilder;
+    }
+
+    /**
+     * Scenes of TestComputeCnossosRays, with the receiver and the point source of the test case
+     */
+    private static Map<String, CnossosPropagationData> createScenes() {
+        Map<String, CnossosPropagationData> scenes = new LinkedHashMap<>();
+        Coordinate[] shortBarrier = new Coordinate[] {new Coordinate(175, 50, 0), new Coordinate(175.01, 50, 0),
+                new Coordinate(190.01, 10, 0), new Coordinate(190, 10, 0), new Coordinate(175, 50, 0)};
+        Coordinate[] cubicBuilding = new Coordinate[] {new Coordinate(55, 5, 0), new Coordinate(65, 5, 0),
+                new Coordinate(65, 15, 0), new Coordinate(55, 15, 0), new Coordinate(55, 5, 0)};
+        scenes.put("TC07", createScene(createBuilder(false, -250, 250, new Coordinate[][] {{
+                new Coordinate(100, 240, 0), new Coordinate(100.1, 240, 0), new Coordinate(265.1, -180, 0),
+                new Coordinate(265, -180, 0), new Coordinate(100, 240, 0)}}, new double[] {6}),
+                new Coordinate(10, 10, 1), new Coordinate(200, 50, 4)));
+        scenes.put("TC08", createScene(createBuilder(false, -250, 250, new Coordinate[][] {shortBarrier},
+                new double[] {6}), new Coordinate(10, 10, 1), new Coordinate(200, 50, 4)));
+        scenes.put("TC09", createScene(createBuilder(true, -250, 250, new Coordinate[][] {shortBarrier},
+                new double[] {6}), new Coordinate(10, 10, 1), new Coordinate(200, 50, 14)));
+        scenes.put("TC13", createScene(createBuilder(true, -250, 250, new Coordinate[][] {{
+                new Coordinate(169.4, 41.0, 0), new Coordinate(172.5, 33.5, 0), new Coordinate(180.0, 30.4, 0),
+                new Coordinate(187.5, 33.5, 0), new Coordinate(190.6, 41.0, 0), new Coordinate(187.5, 48.5, 0),
+                new Coordinate(180.0, 51.6, 0), new Coordinate(172.5, 48.5, 0), new Coordinate(169.4, 41.0, 0)}},
+                new double[] {20}), new Coordinate(10, 10, 1), new Coordinate(200, 50, 28.5)));
+        scenes.put("TC15", createScene(createBuilder(false, -250, 250, new Coordinate[][] {cubicBuilding, {
+                new Coordinate(70, 14.5, 0), new Coordinate(80.0, 10.2, 0), new Coordinate(80.0, 20.2, 0),
+                new Coordinate(70, 14.5, 0)}, {
+                new Coordinate(90.1, 19.5, 0), new Coordinate(93.3, 17.8, 0), new Coordinate(87.3, 6.6, 0),
+                new Coordinate(84.1, 8.3, 0), new Coordinate(90.1, 19.5, 0)}, {
+                new Coordinate(94.9, 14.1, 0), new Coordinate(98.02, 12.37, 0), new Coordinate(92.03, 1.2, 0),
+                new Coordinate(88.86, 2.9, 0), new Coordinate(94.9, 14.1, 0)}}, new double[] {8, 12, 10, 10}),
+                new Coordinate(50, 10, 1), new Coordinate(100, 15, 5)));
+        scenes.put("TC16", createScene(createBuilder(true, -100, 100, new Coordinate[][] {{
+                new Coordinate(114, 52, 0), new Coordinate(170, 60, 0), new Coordinate(170, 62, 0),
+                new Coordinate(114, 54, 0), new Coordinate(114, 52, 0)}}, new double[] {15}),
+                new Coordinate(10, 10, 1), new Coordinate(200, 50, 14)));
+        scenes.put("TC21", createScene(createBuilder(true, -100, 100, new Coordinate[][] {{
+                new Coordinate(167.2, 39.5), new Coordinate(151.6, 48.5), new Coordinate(141.1, 30.3),
+                new Coordinate(156.7, 21.3), new Coordinate(159.7, 26.5), new Coordinate(151.0, 31.5),
+                new Coordinate(155.5, 39.3), new Coordinate(164.2, 34.3), new Coordinate(167.2, 39.5)}},
+                new double[] {11.5}), new Coordinate(10, 10, 1), new Coordinate(200, 25, 14)));
+        return scenes;
+    }
+
+    /**
+     * @param source Point source of the test case, replaced by a road going through this point along the y axis
+     */
+    private static CnossosPropagationData createScene(ProfileBuilder profileBuilder, Coordinate source,
+                                                      Coordinate receiver) {
+        CnossosPropagationData rayData = new CnossosPropagationData(profileBuilder);
+        for(double y = -90; y <= 90; y += 1) {
+            rayData.addSource(FACTORY.createPoint(new Coordinate(source.x, source.y + y, source.z)));
+        }
+        rayData.addReceiver(receiver);
+        rayData.reflexionOrder = 1;
+        rayData.setComputeHorizontalDiffraction(true);
+        rayData.setComputeVerticalDiffraction(true);
+        return rayData;
+    }
+
+    /**
+     * @return Energetic sum of the attenuation of all the sources and frequency bands
+     */
+    private static double computeReceiverLevel(CnossosPropagationData rayData, PropagationProcessPathData pathData) {
+        ComputeRaysOutAttenuation propDataOut = new ComputeRaysOutAttenuation(false, pathData, rayData);
+        ComputeCnossosRays computeRays = new ComputeCnossosRays(rayData);
+        computeRays.setThreadCount(1);
+        computeRays.run(propDataOut);
+        double level = 0;
+        for(ComputeRaysOutAttenuation.VerticeSL verticeSL : propDataOut.getVerticesSoundLevel()) {
+            level += PowerUtils.dbaToW(PowerUtils.sumDbArray(verticeSL.value));
+        }
+        return PowerUtils.wToDba(level);
+    }
+
+    /**
+     * Clustered far sources must give the same receiver levels than the exact computation
+     */
+    @Test
+    public void testClusteringError() {
+        PropagationProcessPathData pathData = new PropagationProcessPathData(false);
+        List<String> errors = new ArrayList<>();
+        for(Map.Entry<String, CnossosPropagationData> scene : createScenes().entrySet()) {
+            CnossosPropagationData rayData = scene.getValue();
+            double exactLevel = computeReceiverLevel(rayData, pathData);
+            assertTrue(scene.getKey(), Double.isFinite(exactLevel));
+            // Default clustering ratio
+            rayData.sourceClusteringDistance = CLUSTERING_DISTANCE;
+            double clusteredLevel = computeReceiverLevel(rayData, pathData);
+            if(Math.abs(exactLevel - clusteredLevel) > MAXIMUM_ERROR) {
+                errors.add(scene.getKey() + " exact " + exactLevel + " dB clustered " + clusteredLevel + " dB");
+            }
+        }
+        assertEquals(new ArrayList<String>(), errors);
+    }
+}
@@ -27,6 +27,7 @@ import org.noise_planet.noisemodelling.pathfinder.RootProgressVisitor;
 import org.noise_planet.noisemodelling.pathfinder.utils.JVMMemoryMetric;
 import org.noise_planet.noisemodelling.pathfinder.utils.KMLDocument;
 import org.noise_planet.noisemodelling.pathfinder.utils.ProfilerThread;
+import org.noise_planet.noisemodelling.pathfinder.utils.ObstacleCacheMetric;
 import org.noise_planet.noisemodelling.pathfinder.utils.ProgressMetric;
 import org.noise_planet.noisemodelling.pathfinder.utils.ReceiverStatsMetric;
 import org.noise_planet.noisemodelling.propagation.ComputeRaysOutAttenuation;
@@ -166,6 +167,7 @@ class Main {
         profilerThread.addMetric(new ProgressMetric(progressLogger));
         profilerThread.addMetric(new JVMMemoryMetric());
         profilerThread.addMetric(new ReceiverStatsMetric());
+        profilerThread.addMetric(new ObstacleCacheMetric());
         profilerThread.setWriteInterval(60);
         profilerThread.setFlushInterval(60);
         pointNoiseMap.setProfilerThread(profilerThread);
@@ -39,6 +39,7 @@ import org.noise_planet.noisemodelling.pathfinder.utils.KMLDocument
 import org.noise_planet.noisemodelling.pathfinder.utils.ReceiverStatsMetric
 import org.noise_planet.noisemodelling.pathfinder.utils.ProfilerThread
 import org.noise_planet.noisemodelling.pathfinder.utils.ProgressMetric
+import org.noise_planet.noisemodelling.pathfinder.utils.ObstacleCacheMetric
 import org.noise_planet.noisemodelling.propagation.*
 import org.noise_planet.noisemodelling.jdbc.*
 
@@ -709,6 +710,7 @@ def exec(Connection connection, input) {
     profilerThread.addMetric(new ProgressMetric(progressLogger));
     profilerThread.addMetric(new JVMMemoryMetric());
     profilerThread.addMetric(new ReceiverStatsMetric());
+    profilerThread.addMetric(new ObstacleCacheMetric());
     profilerThread.setWriteInterval(300);
     profilerThread.setFlushInterval(300);
     pointNoiseMap.setProfilerThread(profilerThread);
@@ -719,14 +721,13 @@ def exec(Connection connection, input) {
         int k = 0
         Map cells = pointNoiseMap.searchPopulatedCells(connection);
         ProgressVisitor progressVisitor = progressLogger.subProcess(cells.size());
-        new TreeSet<>(cells.keySet()).each { cellIndex ->
+        // Run ray propagation, next cells are fetched while the current cell is computed
+        pointNoiseMap.evaluateCells(connection, new TreeSet<>(cells.keySet()), progressVisitor, receivers, { cellIndex, out ->
             Envelope cellEnvelope = pointNoiseMap.getCellEnv(pointNoiseMap.getMainEnvelope(),
                     cellIndex.getLatitudeIndex(), cellIndex.getLongitudeIndex(), pointNoiseMap.getCellWidth(),
                     pointNoiseMap.getCellHeight());
-            logger.info("Compute domain is " + new GeometryFactory().toGeometry(cellEnvelope))
-            logger.info(String.format("Compute... %.3f %% (%d receivers in this cell)", 100 * k++ / cells.size(), cells.get(cellIndex)))
-            // Run ray propagation
-            IComputeRaysOut out = pointNoiseMap.evaluateCell(connection, cellIndex.getLatitudeIndex(), cellIndex.getLongitudeIndex(), progressVisitor, receivers)
+            logger.info("Computed domain is " + new GeometryFactory().toGeometry(cellEnvelope))
+            logger.info(String.format("Compute... %.3f %% (%d receivers in this cell)", 100 * ++k / cells.size(), cells.get(cellIndex)))
             // Export as a Google Earth 3d scene
             if (out instanceof ComputeRaysOutAttenuation && folderExportKML != null) {
                 ComputeRaysOutAttenuation cellStorage = (ComputeRaysOutAttenuation) out;
@@ -735,8 +736,7 @@ def exec(Connection connection, input) {
                                 cellIndex.getLongitudeIndex())).getPath(),
                 cellStorage.inputData.profileBuilder, cellStorage, sridSources)
             }
-
-        }
+        } as PointNoiseMap.CellComputedListener)
     } finally {
         profilerThread.stop();
         ldenProcessing.stop()
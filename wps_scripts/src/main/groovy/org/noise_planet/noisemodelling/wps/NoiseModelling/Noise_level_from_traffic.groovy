@@ -693,6 +693,7 @@ def exec(Connection connection, input) {
     profilerThread.addMetric(new ProgressMetric(progressLogger));
     profilerThread.addMetric(new JVMMemoryMetric());
     profilerThread.addMetric(new ReceiverStatsMetric());
+    profilerThread.addMetric(new ObstacleCacheMetric());
     profilerThread.setWriteInterval(300);
     profilerThread.setFlushInterval(300);
     pointNoiseMap.setProfilerThread(profilerThread);
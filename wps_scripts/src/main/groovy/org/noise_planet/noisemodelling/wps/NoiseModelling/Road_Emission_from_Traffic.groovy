@@ -18,18 +18,12 @@ package org.noise_planet.noisemodelling.wps.NoiseModelling
 
 import geoserver.GeoServer
 import geoserver.catalog.Store
-import groovy.sql.Sql
 import org.geotools.jdbc.JDBCDataStore
 import org.h2gis.utilities.GeometryTableUtilities
 import org.h2gis.utilities.JDBCUtilities
-import org.h2gis.utilities.SpatialResultSet
 import org.h2gis.utilities.TableLocation
 import org.h2gis.utilities.wrapper.ConnectionWrapper
-import org.locationtech.jts.geom.Geometry
-import org.noise_planet.noisemodelling.jdbc.LDENConfig
-import org.noise_planet.noisemodelling.jdbc.LDENPropagationProcessData
-import org.noise_planet.noisemodelling.pathfinder.utils.PowerUtils
-import org.noise_planet.noisemodelling.propagation.PropagationProcessPathData
+import org.noise_planet.noisemodelling.jdbc.utils.MakeLWTable
 import org.slf4j.Logger
 import org.slf4j.LoggerFactory
 
@@ -149,41 +143,10 @@ def exec(Connection connection, input) {
     }
 
 
-    // -------------------
-    // Init table LW_ROADS
-    // -------------------
-
-    // Create a sql connection to interact with the database in SQL
-    Sql sql = new Sql(connection)
-
-    // drop table LW_ROADS if exists and the create and prepare the table
-    sql.execute("drop table if exists LW_ROADS;")
-    sql.execute("create table LW_ROADS (pk integer, the_geom Geometry, " +
-            "LWD63 double precision, LWD125 double precision, LWD250 double precision, LWD500 double precision, LWD1000 double precision, LWD2000 double precision, LWD4000 double precision, LWD8000 double precision," +
-            "LWE63 double precision, LWE125 double precision, LWE250 double precision, LWE500 double precision, LWE1000 double precision, LWE2000 double precision, LWE4000 double precision, LWE8000 double precision," +
-            "LWN63 double precision, LWN125 double precision, LWN250 double precision, LWN500 double precision, LWN1000 double precision, LWN2000 double precision, LWN4000 double precision, LWN8000 double precision);")
-
-    def qry = 'INSERT INTO LW_ROADS(pk,the_geom, ' +
-            'LWD63, LWD125, LWD250, LWD500, LWD1000,LWD2000, LWD4000, LWD8000,' +
-            'LWE63, LWE125, LWE250, LWE500, LWE1000,LWE2000, LWE4000, LWE8000,' +
-            'LWN63, LWN125, LWN250, LWN500, LWN1000,LWN2000, LWN4000, LWN8000) ' +
-            'VALUES (?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?);'
-
-
     // --------------------------------------
-    // Start calculation and fill the table
+    // Start calculation and fill the table LW_ROADS
     // --------------------------------------
 
-    // Get Class to compute LW
-    LDENConfig ldenConfig = new LDENConfig(LDENConfig.INPUT_MODE.INPUT_MODE_TRAFFIC_FLOW)
-    ldenConfig.setCoefficientVersion(2)
-    ldenConfig.setPropagationProcessPathData(LDENConfig.TIME_PERIOD.DAY, new PropagationProcessPathData(false));
-    ldenConfig.setPropagationProcessPathData(LDENConfig.TIME_PERIOD.EVENING, new PropagationProcessPathData(false));
-    ldenConfig.setPropagationProcessPathData(LDENConfig.TIME_PERIOD.NIGHT, new PropagationProcessPathData(false));
-
-    LDENPropagationProcessData ldenData = new LDENPropagationProcessData(null, ldenConfig)
-
-
     // Get size of the table (number of road segments
     PreparedStatement st = connection.prepareStatement("SELECT COUNT(*) AS total FROM " + sources_table_name)
     ResultSet rs1 = st.executeQuery().unwrap(ResultSet.class)
@@ -193,41 +156,8 @@ def exec(Connection connection, input) {
         logger.info('The table Roads has ' + nbRoads + ' road segments.')
     }
 
-    int k = 0
-    sql.withBatch(100, qry) { ps ->
-        st = connection.prepareStatement("SELECT * FROM " + sources_table_name)
-        SpatialResultSet rs = st.executeQuery().unwrap(SpatialResultSet.class)
-
-        while (rs.next()) {
-            k++
-            //logger.info(rs)
-            Geometry geo = rs.getGeometry()
-
-            // Compute emission sound level for each road segment
-            def results = ldenData.computeLw(rs)
-            def lday = PowerUtils.wToDba(results[0])
-            def levening = PowerUtils.wToDba(results[1])
-            def lnight = PowerUtils.wToDba(results[2])
-            // fill the LW_ROADS table
-            ps.addBatch(rs.getLong(pkIndex) as Integer, geo as Geometry,
-                    lday[0] as Double, lday[1] as Double, lday[2] as Double,
-                    lday[3] as Double, lday[4] as Double, lday[5] as Double,
-                    lday[6] as Double, lday[7] as Double,
-                    levening[0] as Double, levening[1] as Double, levening[2] as Double,
-                    levening[3] as Double, levening[4] as Double, levening[5] as Double,
-                    levening[6] as Double, levening[7] as Double,
-                    lnight[0] as Double, lnight[1] as Double, lnight[2] as Double,
-                    lnight[3] as Double, lnight[4] as Double, lnight[5] as Double,
-                    lnight[6] as Double, lnight[7] as Double)
-        }
-    }
-
-    // Add Z dimension to the road segments
-    sql.execute("UPDATE LW_ROADS SET THE_GEOM = ST_UPDATEZ(The_geom,0.05);")
-
-    // Add primary key to the road table
-    sql.execute("ALTER TABLE LW_ROADS ALTER COLUMN PK INT NOT NULL;")
-    sql.execute("ALTER TABLE LW_ROADS ADD PRIMARY KEY (PK);  ")
+    // The road table is read by blocks and the emission is evaluated on all the cores
+    MakeLWTable.makeRoadLWTable(connection, sources_table_name, "LW_ROADS", 2, 0)
 
     resultString = "Calculation Done ! The table LW_ROADS has been created."
 